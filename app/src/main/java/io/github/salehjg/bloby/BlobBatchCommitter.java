@@ -0,0 +1,184 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores a batch of received blobs as one storage transaction.
+ * <p>
+ * All blob directories are first written under {@code files/.bloby/staging/<batch>/}. Once every
+ * file is in place and synced (payloads and blob.json by their writers, the directories by
+ * {@link #commitStaged}) a commit marker is written, and only then are the staged directories renamed
+ * into the blob catalog. If the process dies before the marker exists the batch is discarded on
+ * the next start; if it dies after, the remaining renames are rolled forward. Either way the
+ * catalog never shows half of a batch.
+ */
+public class BlobBatchCommitter {
+
+    private static final String COMMIT_MARKER = "COMMITTED";
+
+    private final File filesDir;
+    private final File stagingRoot;
+    private final BlobReclaimer reclaimer;
+
+    public BlobBatchCommitter(File filesDir, BlobReclaimer reclaimer) {
+        this.filesDir = filesDir;
+        this.stagingRoot = new File(new File(filesDir, ".bloby"), "staging");
+        this.reclaimer = reclaimer;
+    }
+
+    /**
+     * Write and commit a batch.
+     *
+     * @return the blob.json contents as saved, in the order of the batch
+     */
+    public List<String> commit(List<ByteServer.ReceivedBlob> blobs) throws IOException, JSONException {
+        File batchDir = stage("batch");
+
+        long stageStart = Tracer.begin();
+        List<String> savedJsons = new ArrayList<>(blobs.size());
+        for (ByteServer.ReceivedBlob blob : blobs) {
+            File blobDir = new File(batchDir, blob.blobName);
+            blobDir.mkdirs();
+
+            JSONObject jsonObject = blob.meta.toJson();
+            File blobFile = new File(blobDir, jsonObject.optString("file_name", "default_blob_file"));
+            try (FileOutputStream fos = new FileOutputStream(blobFile)) {
+                fos.write(blob.fileData);
+                fos.getFD().sync();
+            }
+
+            BlobChangeTracker.recordBaseline(jsonObject, blobFile);
+            jsonObject.put(BlobTiering.KEY_LAST_ACCESS, System.currentTimeMillis());
+            String savedJson = jsonObject.toString(4);
+            try (FileOutputStream fos = new FileOutputStream(new File(blobDir, "blob.json"))) {
+                fos.write(savedJson.getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            savedJsons.add(savedJson);
+        }
+
+        Tracer.end("stage batch", "storage", stageStart, 0);
+
+        commitStaged(batchDir);
+        return savedJsons;
+    }
+
+    /**
+     * @return a new empty staging directory, for blob directories written over time (e.g. a tree
+     * blob as it streams in); finish it with {@link #commitStaged} or {@link #discardStaged}
+     */
+    public File stage(String prefix) throws IOException {
+        File batchDir = new File(stagingRoot, prefix + "-" + System.nanoTime());
+        if (!batchDir.mkdirs()) {
+            throw new IOException("Could not create staging directory");
+        }
+        return batchDir;
+    }
+
+    /**
+     * Commit a staging directory: write the commit marker, then publish its blob directories.
+     * The files in it must already be synced, its directories are synced here so the marker can
+     * never be on disk before the entries it vouches for.
+     */
+    public void commitStaged(File batchDir) throws IOException {
+        long markerStart = Tracer.begin();
+        syncDirectories(batchDir);
+        try (FileOutputStream fos = new FileOutputStream(new File(batchDir, COMMIT_MARKER))) {
+            fos.getFD().sync();
+        }
+        syncDirectory(batchDir);
+        syncDirectory(stagingRoot);
+        Tracer.end("sync commit marker", "storage", markerStart, 0);
+
+        long publishStart = Tracer.begin();
+        publish(batchDir);
+        Tracer.end("publish batch", "storage", publishStart, 0);
+    }
+
+    public void discardStaged(File batchDir) {
+        discard(batchDir);
+    }
+
+    /**
+     * Finish or discard batches interrupted by a crash. Call once at startup.
+     *
+     * @return the number of interrupted batches found
+     */
+    public int recover() {
+        File[] batches = stagingRoot.listFiles();
+        if (batches == null) {
+            return 0;
+        }
+        for (File batchDir : batches) {
+            if (new File(batchDir, COMMIT_MARKER).exists()) {
+                publish(batchDir);
+            } else {
+                discard(batchDir);
+            }
+        }
+        return batches.length;
+    }
+
+    /**
+     * Move every staged blob into the catalog, replacing blobs of the same name.
+     */
+    private void publish(File batchDir) {
+        File[] stagedBlobs = batchDir.listFiles();
+        if (stagedBlobs != null) {
+            for (File staged : stagedBlobs) {
+                if (!staged.isDirectory()) continue;
+                File target = new File(filesDir, staged.getName());
+                if (target.exists()) {
+                    reclaimer.tombstone(staged.getName());
+                }
+                staged.renameTo(target);
+            }
+        }
+        // Make the renames durable before the marker goes away with the staging directory
+        syncDirectory(filesDir);
+        discard(batchDir);
+    }
+
+    /**
+     * Sync a directory and every directory below it, so the entries created in them are durable.
+     */
+    private static void syncDirectories(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    syncDirectories(child);
+                }
+            }
+        }
+        syncDirectory(dir);
+    }
+
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every filesystem can sync a directory, the files themselves are synced already
+        }
+    }
+
+    private void discard(File batchDir) {
+        // Reuse the trash so large leftovers are reclaimed in the background
+        File trash = new File(new File(filesDir, BlobReclaimer.TRASH_DIR), batchDir.getName());
+        if (!batchDir.renameTo(trash)) {
+            new File(batchDir, COMMIT_MARKER).delete();
+            batchDir.delete();
+        }
+        reclaimer.wakeUp();
+    }
+}
@@ -0,0 +1,319 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers client pull requests straight from the blob catalog on disk.
+ * <p>
+ * "list" pages through blob metadata in blob name order. Paging uses a cursor (the last name of
+ * the previous page) rather than an offset, so blobs arriving mid-listing do not shift pages.
+ * Metadata goes out as {@link BlobMeta#forClient} leaves it. The storage tier of this device's copy
+ * is a reply field of its own ({@link #KEY_STORAGE_TIER}), list entries add the payload size too.
+ * "fetch" returns a blob payload, or a byte range of it, by blob name or sha256. A single reply is
+ * capped at {@link #MAX_FETCH_LENGTH}; clients fetch larger blobs as consecutive ranges.
+ * "manifest" returns the sha256 and size of every blob so a client can work out what it is
+ * missing, or what the device already has, without listing the metadata.
+ */
+public class BlobCatalog implements ByteServer.RequestHandler {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int MAX_FETCH_LENGTH = 64 * 1024 * 1024;
+    // Manifest entry: 32-byte sha256 followed by the payload size as a big-endian long
+    public static final int MANIFEST_ENTRY_SIZE = 40;
+    // Reply fields next to the metadata, not part of it
+    public static final String KEY_SIZE = "size";
+    public static final String KEY_STORAGE_TIER = "storage_tier";
+
+    private final File filesDir;
+    private final BlobTiering blobTiering;
+    // sha256 -> blob name, filled lazily and re-validated on every hit
+    private final Map<String, String> blobByHash = new ConcurrentHashMap<>();
+
+    public BlobCatalog(File filesDir, BlobTiering blobTiering) {
+        this.filesDir = filesDir;
+        this.blobTiering = blobTiering;
+    }
+
+    @Override
+    public ByteServer.Reply handleRequest(JSONObject request) throws Exception {
+        switch (request.optString("type")) {
+            case "list":
+                return new ByteServer.Reply(listPage(request.optString("cursor", null),
+                        request.optInt("limit", DEFAULT_PAGE_SIZE)), new byte[0]);
+            case "fetch":
+                return fetch(request);
+            case "manifest":
+                return manifest();
+            default:
+                throw new IllegalArgumentException("Unknown request type: " + request.optString("type"));
+        }
+    }
+
+    /**
+     * One page of blob metadata: {"type": "list_result", "total", "blobs", "cursor"}, where
+     * "cursor" is only present if there are more pages. Each entry of "blobs" also carries the
+     * blob's "size" and "storage_tier".
+     */
+    public JSONObject listPage(String cursor, int limit) throws Exception {
+        limit = Math.max(1, Math.min(MAX_PAGE_SIZE, limit));
+        String[] names = blobNames();
+
+        int start = 0;
+        if (cursor != null) {
+            int found = Arrays.binarySearch(names, cursor);
+            start = found >= 0 ? found + 1 : -found - 1;
+        }
+
+        JSONArray blobs = new JSONArray();
+        int i = start;
+        for (; i < names.length && blobs.length() < limit; i++) {
+            try {
+                File blobDir = new File(filesDir, names[i]);
+                JSONObject meta = readMeta(blobDir);
+                JSONObject entry = BlobMeta.forClient(meta.toString());
+                entry.put(KEY_SIZE, payloadSize(blobDir, meta));
+                entry.put(KEY_STORAGE_TIER, BlobTiering.tierOf(meta));
+                blobs.put(entry);
+            } catch (Exception e) {
+                // Deleted since the directory listing, skip it
+            }
+        }
+
+        JSONObject reply = new JSONObject();
+        reply.put("type", "list_result");
+        reply.put("total", names.length);
+        reply.put("blobs", blobs);
+        if (i < names.length) {
+            reply.put("cursor", names[i - 1]);
+        }
+        return reply;
+    }
+
+    private ByteServer.Reply fetch(JSONObject request) throws Exception {
+        String blobName = request.optString("blob_name", null);
+        if (blobName == null) {
+            String sha256 = request.optString("sha256", null);
+            if (sha256 == null) {
+                throw new IllegalArgumentException("fetch needs blob_name or sha256");
+            }
+            blobName = findByHash(sha256);
+            if (blobName == null) {
+                throw new FileNotFoundException("No blob with sha256 " + sha256);
+            }
+        }
+
+        File blobDir = new File(filesDir, blobName);
+        JSONObject meta = readBlobMeta(blobName);
+        if (BlobTiering.TIER_EVICTED.equals(BlobTiering.tierOf(meta))) {
+            throw new FileNotFoundException("Payload of " + blobName + " was evicted");
+        }
+        if (BlobTree.isTree(meta)) {
+            throw new IllegalArgumentException(blobName + " is a tree blob, send it from the device instead");
+        }
+
+        long totalSize = payloadSize(blobDir, meta);
+        long offset = Math.max(0, Math.min(request.optLong("offset", 0), totalSize));
+        long requested = request.optLong("length", -1);
+        long available = totalSize - offset;
+        int length = (int) Math.min(MAX_FETCH_LENGTH, requested < 0 ? available : Math.min(requested, available));
+
+        byte[] payload = readRange(blobDir, meta, offset, length);
+        blobTiering.touch(blobDir);
+
+        JSONObject reply = new JSONObject();
+        reply.put("type", "fetch_result");
+        reply.put("blob", BlobMeta.forClient(meta.toString()));
+        reply.put(KEY_STORAGE_TIER, BlobTiering.tierOf(meta));
+        reply.put("offset", offset);
+        reply.put("length", length);
+        reply.put("total_size", totalSize);
+        return new ByteServer.Reply(reply, payload);
+    }
+
+    /**
+     * The manifest payload is one {@link #MANIFEST_ENTRY_SIZE} byte entry per distinct hash,
+     * sorted by hash, so both sides can diff manifests with a single merge pass.
+     */
+    private ByteServer.Reply manifest() throws Exception {
+        Map<String, Long> sizeByHash = new TreeMap<>();
+        for (String name : blobNames()) {
+            try {
+                File blobDir = new File(filesDir, name);
+                JSONObject meta = readMeta(blobDir);
+                String hash = meta.optString("sha256", "").toLowerCase();
+                if (hash.matches("[0-9a-f]{64}")) {
+                    sizeByHash.put(hash, payloadSize(blobDir, meta));
+                    blobByHash.put(hash, name);
+                }
+            } catch (Exception e) {
+                // Deleted since the directory listing, skip it
+            }
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(sizeByHash.size() * MANIFEST_ENTRY_SIZE);
+        for (Map.Entry<String, Long> entry : sizeByHash.entrySet()) {
+            payload.put(hexToBytes(entry.getKey()));
+            payload.putLong(entry.getValue());
+        }
+
+        JSONObject reply = new JSONObject();
+        reply.put("type", "manifest_result");
+        reply.put("count", sizeByHash.size());
+        reply.put("entry_size", MANIFEST_ENTRY_SIZE);
+        return new ByteServer.Reply(reply, payload.array());
+    }
+
+    /**
+     * Parse a manifest payload back into lowercase hex hashes.
+     */
+    public static Set<String> parseManifest(byte[] payload) {
+        Set<String> hashes = new HashSet<>();
+        StringBuilder hex = new StringBuilder(64);
+        for (int offset = 0; offset + MANIFEST_ENTRY_SIZE <= payload.length; offset += MANIFEST_ENTRY_SIZE) {
+            hex.setLength(0);
+            for (int i = 0; i < 32; i++) {
+                hex.append(String.format("%02x", payload[offset + i] & 0xFF));
+            }
+            hashes.add(hex.toString());
+        }
+        return hashes;
+    }
+
+    static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Read the metadata of a blob named by a client.
+     *
+     * @throws IllegalArgumentException if the name could escape the blob catalog
+     * @throws FileNotFoundException    if there is no such blob
+     */
+    public JSONObject readBlobMeta(String blobName) throws Exception {
+        return readMeta(new File(filesDir, checkBlobName(blobName)));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name could escape the blob catalog
+     */
+    static String checkBlobName(String blobName) {
+        if (blobName.isEmpty() || blobName.startsWith(".") || blobName.contains("/")) {
+            throw new IllegalArgumentException("Invalid blob name: " + blobName);
+        }
+        return blobName;
+    }
+
+    public static long payloadSize(File blobDir, JSONObject meta) {
+        return meta.optLong(BlobChangeTracker.KEY_FILE_SIZE,
+                new File(blobDir, meta.optString("file_name", "unknown")).length());
+    }
+
+    private byte[] readRange(File blobDir, JSONObject meta, long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        if (BlobTiering.TIER_HOT.equals(BlobTiering.tierOf(meta)) &&
+                !blobTiering.getReadCache().admits(payloadSize(blobDir, meta))) {
+            // Seek straight to the range instead of streaming the file from the start (blobs the
+            // read cache takes go through it, reading only the segments of the range)
+            try (RandomAccessFile file = new RandomAccessFile(new File(blobDir, meta.optString("file_name", "unknown")), "r")) {
+                file.seek(offset);
+                file.readFully(data);
+            }
+            return data;
+        }
+        try (InputStream in = blobTiering.openPayload(blobDir, meta)) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    throw new IOException("Payload shorter than its recorded size");
+                }
+                skipped += n;
+            }
+            new DataInputStream(in).readFully(data);
+        }
+        return data;
+    }
+
+    /**
+     * @return the name of a blob with the given sha256, or null
+     */
+    public String findByHash(String sha256) throws Exception {
+        String cached = blobByHash.get(sha256);
+        if (cached != null && hashMatches(cached, sha256)) {
+            return cached;
+        }
+        blobByHash.clear();
+        String match = null;
+        for (String name : blobNames()) {
+            try {
+                String hash = readMeta(new File(filesDir, name)).optString("sha256", null);
+                if (hash != null) {
+                    blobByHash.put(hash, name);
+                    if (hash.equals(sha256)) {
+                        match = name;
+                    }
+                }
+            } catch (Exception e) {
+                // Deleted since the directory listing, or unreadable
+            }
+        }
+        return match;
+    }
+
+    private boolean hashMatches(String blobName, String sha256) {
+        try {
+            return sha256.equals(readMeta(new File(filesDir, blobName)).optString("sha256", null));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the names of all blobs, sorted
+     */
+    private String[] blobNames() {
+        List<String> names = new ArrayList<>();
+        String[] entries = filesDir.list();
+        if (entries != null) {
+            for (String entry : entries) {
+                // Dot-directories hold internal state (trash, queue, staging)
+                if (!entry.startsWith(".") && new File(new File(filesDir, entry), "blob.json").isFile()) {
+                    names.add(entry);
+                }
+            }
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static JSONObject readMeta(File blobDir) throws Exception {
+        File jsonFile = new File(blobDir, "blob.json");
+        if (!jsonFile.isFile()) {
+            throw new FileNotFoundException("Blob not found: " + blobDir.getName());
+        }
+        return new JSONObject(BlobChangeTracker.readText(jsonFile));
+    }
+}
@@ -0,0 +1,189 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Detects edits made to blob payloads (e.g. by the external app launched from openFileForEditing)
+ * and keeps the sha256 in blob.json up to date.
+ * <p>
+ * blob.json carries a baseline ("file_size", "file_mtime") of the payload as last hashed. A check
+ * first compares that baseline with a stat of the payload, which is free; only when it differs is
+ * the whole payload read and hashed again. A blob whose hash actually changed is flagged
+ * "modified" until it has been synced back to the client. None of these keys are sent to clients,
+ * see {@link BlobMeta#DEVICE_KEYS}.
+ */
+public class BlobChangeTracker {
+
+    public static final String KEY_FILE_SIZE = "file_size";
+    public static final String KEY_FILE_MTIME = "file_mtime";
+    public static final String KEY_MODIFIED = "modified";
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * @return the lock to hold while reading, changing and writing back a blob's blob.json (or
+     * replacing its payload), so concurrent updates of the same blob do not undo each other
+     */
+    static Object lockOf(File blobDir) {
+        return locks.computeIfAbsent(blobDir.getAbsolutePath(), path -> new Object());
+    }
+
+    /**
+     * Record the current size/mtime of the payload as the baseline of a blob's metadata.
+     */
+    public static void recordBaseline(JSONObject meta, File payload) throws JSONException {
+        meta.put(KEY_FILE_SIZE, payload.length());
+        meta.put(KEY_FILE_MTIME, payload.lastModified());
+    }
+
+    /**
+     * @return true if the payload's size and mtime are still the ones recorded in the metadata
+     */
+    public static boolean matchesBaseline(JSONObject meta, File payload) {
+        return meta.has(KEY_FILE_SIZE) && meta.has(KEY_FILE_MTIME) &&
+                meta.optLong(KEY_FILE_SIZE) == payload.length() &&
+                meta.optLong(KEY_FILE_MTIME) == payload.lastModified();
+    }
+
+    /**
+     * Check whether a blob's payload changed since its baseline was recorded. When it did, the
+     * refreshed hash and baseline are written to blob.json.
+     *
+     * @return the updated metadata JSON if blob.json was rewritten, or null if nothing changed
+     */
+    public static String check(File blobDir) throws IOException, JSONException {
+        synchronized (lockOf(blobDir)) {
+            File jsonFile = new File(blobDir, "blob.json");
+            JSONObject meta = new JSONObject(readText(jsonFile));
+            File payload = new File(blobDir, meta.optString("file_name", "unknown"));
+            if (!payload.isFile()) {
+                return null;
+            }
+
+            // Fast path: size and mtime unchanged means the payload was not touched
+            if (matchesBaseline(meta, payload)) {
+                return null;
+            }
+
+            String oldHash = meta.optString("sha256", "");
+            String newHash = sha256(payload);
+            boolean changed = !newHash.equals(oldHash);
+            if (changed) {
+                meta.put("sha256", newHash);
+                meta.put(KEY_MODIFIED, true);
+            }
+            // Even if only the mtime moved (e.g. saved without changes), refresh the baseline so the
+            // next check takes the fast path again
+            recordBaseline(meta, payload);
+
+            String updated = meta.toString(4);
+            writeTextAtomically(jsonFile, updated);
+            if (changed) {
+                BlobHistory.onPayloadChanged(blobDir);
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Clear the "modified" flag once the blob was sent back to the client.
+     *
+     * @return the updated metadata JSON
+     */
+    public static String markSynced(File blobDir) throws IOException, JSONException {
+        synchronized (lockOf(blobDir)) {
+            File jsonFile = new File(blobDir, "blob.json");
+            JSONObject meta = new JSONObject(readText(jsonFile));
+            meta.remove(KEY_MODIFIED);
+            String updated = meta.toString(4);
+            writeTextAtomically(jsonFile, updated);
+            return updated;
+        }
+    }
+
+    public static boolean isModified(JSONObject meta) {
+        return meta.optBoolean(KEY_MODIFIED, false);
+    }
+
+    /**
+     * Stream the file through SHA-256 without loading it into memory.
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String sha256(byte[] data) throws IOException {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    static String readText(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int total = 0;
+            while (total < data.length) {
+                int read = in.read(data, total, data.length - total);
+                if (read == -1) {
+                    break;
+                }
+                total += read;
+            }
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write to a temp file and rename over the target so a crash never leaves a half-written blob.json.
+     */
+    static void writeTextAtomically(File file, String text) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(text.getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Version history of a blob's payload, kept in {@code <blob>/.history/}.
+ * <p>
+ * The payload is recorded as a version before it is handed to an editor and again whenever an
+ * edit is detected. A version's content is split into content-defined chunks: a gear rolling hash
+ * over the bytes picks the cut points, so inserting or deleting bytes only changes the chunks
+ * around the edit. Each chunk is stored once under its sha256 in {@code chunks/}, and a version is
+ * a manifest of its chunks (32-byte sha256 and 8-byte size each, like the catalog manifest), so
+ * versions share everything they have in common and the history grows by the changed chunks
+ * only. At most {@link #MAX_VERSIONS} are kept; chunks only the dropped ones used are deleted.
+ */
+public class BlobHistory {
+
+    public static final String HISTORY_DIR = ".history";
+    public static final int MAX_VERSIONS = 32;
+
+    public static final String REASON_BEFORE_EDIT = "before edit";
+    public static final String REASON_EDIT = "edit";
+
+    private static final String INDEX_FILE = "versions.json";
+    private static final String CHUNKS_DIR = "chunks";
+    private static final int MANIFEST_ENTRY_SIZE = 40;
+
+    // Cut points: never before MIN_CHUNK, always at MAX_CHUNK, around AVERAGE_CHUNK in between.
+    // The mask is stricter before the average and looser after it, which keeps sizes close to it.
+    static final int MIN_CHUNK = 8 * 1024;
+    static final int AVERAGE_CHUNK = 32 * 1024;
+    static final int MAX_CHUNK = 128 * 1024;
+    // Top bits, since those of a gear hash depend on the most bytes
+    private static final long MASK_BEFORE_AVERAGE = 0xFFFF800000000000L; // 17 bits
+    private static final long MASK_AFTER_AVERAGE = 0xFFF8000000000000L; // 13 bits
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: cut points, and so the sharing of chunks, must not change between runs
+        long x = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < GEAR.length; i++) {
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            GEAR[i] = x;
+        }
+    }
+
+    public static class Version {
+        public final int number;
+        public final String sha256;
+        public final long size;
+        public final long savedAt;
+        public final String reason;
+
+        Version(JSONObject json) throws JSONException {
+            this.number = json.getInt("version");
+            this.sha256 = json.getString("sha256");
+            this.size = json.getLong("size");
+            this.savedAt = json.optLong("saved_at", 0);
+            this.reason = json.optString("reason", "");
+        }
+    }
+
+    /**
+     * @return true if versions of the blob are being kept
+     */
+    public static boolean isTracked(File blobDir) {
+        return new File(new File(blobDir, HISTORY_DIR), INDEX_FILE).isFile();
+    }
+
+    /**
+     * @return the versions of a blob, oldest first
+     */
+    public static List<Version> list(File blobDir) throws IOException, JSONException {
+        JSONArray versions = readIndex(new File(blobDir, HISTORY_DIR)).getJSONArray("versions");
+        List<Version> list = new ArrayList<>(versions.length());
+        for (int i = 0; i < versions.length(); i++) {
+            list.add(new Version(versions.getJSONObject(i)));
+        }
+        return list;
+    }
+
+    /**
+     * @return bytes taken by the stored chunks of a blob's history
+     */
+    public static long storedBytes(File blobDir) {
+        File historyDir = new File(blobDir, HISTORY_DIR);
+        if (!historyDir.isDirectory()) {
+            return 0;
+        }
+        try {
+            return readIndex(historyDir).optLong("bytes", 0);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Record the current payload as a new version, unless it is the latest one already.
+     *
+     * @return the version number, or -1 if nothing was recorded
+     */
+    public static int record(File blobDir, String reason) throws IOException, JSONException {
+        synchronized (lockOf(blobDir)) {
+            JSONObject meta = new JSONObject(BlobChangeTracker.readText(new File(blobDir, "blob.json")));
+            if (BlobTree.isTree(meta)) {
+                return -1;
+            }
+            File payload = new File(blobDir, meta.optString("file_name", "unknown"));
+            if (!payload.isFile()) {
+                throw new IOException("Payload of " + blobDir.getName() + " is not stored uncompressed");
+            }
+            File historyDir = new File(blobDir, HISTORY_DIR);
+            File chunksDir = new File(historyDir, CHUNKS_DIR);
+            if (!chunksDir.isDirectory() && !chunksDir.mkdirs()) {
+                throw new IOException("Could not create the history of " + blobDir.getName());
+            }
+            JSONObject index = readIndex(historyDir);
+            JSONArray versions = index.getJSONArray("versions");
+            JSONObject latest = versions.length() > 0 ? versions.getJSONObject(versions.length() - 1) : null;
+            // The stat baseline says whether the recorded hash still describes the payload
+            if (latest != null && latest.optString("sha256").equals(meta.optString("sha256")) &&
+                    meta.optLong(BlobChangeTracker.KEY_FILE_SIZE, -1) == payload.length() &&
+                    meta.optLong(BlobChangeTracker.KEY_FILE_MTIME, -1) == payload.lastModified()) {
+                return -1;
+            }
+
+            int number = index.optInt("next", 1);
+            File manifest = manifestOf(historyDir, number);
+            long[] added = new long[1];
+            String sha256 = chunk(payload, chunksDir, manifest, added);
+            if (latest != null && latest.optString("sha256").equals(sha256)) {
+                manifest.delete();
+                return -1;
+            }
+
+            JSONObject version = new JSONObject();
+            version.put("version", number);
+            version.put("sha256", sha256);
+            version.put("size", payload.length());
+            version.put("saved_at", System.currentTimeMillis());
+            version.put("reason", reason);
+            versions.put(version);
+            index.put("next", number + 1);
+            index.put("bytes", index.optLong("bytes", 0) + added[0]);
+            prune(historyDir, index);
+            BlobChangeTracker.writeTextAtomically(new File(historyDir, INDEX_FILE), index.toString(4));
+            return number;
+        }
+    }
+
+    /**
+     * Record a detected edit, if the blob's versions are being kept (see
+     * {@link BlobChangeTracker#check}).
+     */
+    public static void onPayloadChanged(File blobDir) throws IOException, JSONException {
+        if (isTracked(blobDir)) {
+            record(blobDir, REASON_EDIT);
+        }
+    }
+
+    /**
+     * Stream the content of a version from its chunks.
+     */
+    public static InputStream open(File blobDir, int number) throws IOException {
+        File historyDir = new File(blobDir, HISTORY_DIR);
+        File chunksDir = new File(historyDir, CHUNKS_DIR);
+        List<String> chunks = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(manifestOf(historyDir, number))))) {
+            byte[] hash = new byte[32];
+            while (true) {
+                try {
+                    in.readFully(hash);
+                } catch (EOFException e) {
+                    break;
+                }
+                in.readLong();
+                chunks.add(BlobChangeTracker.toHex(hash));
+            }
+        }
+        Enumeration<InputStream> streams = new Enumeration<InputStream>() {
+            int next = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < chunks.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (next >= chunks.size()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return new FileInputStream(new File(chunksDir, chunks.get(next++)));
+                } catch (IOException e) {
+                    // SequenceInputStream cannot throw here; a failing stream ends the read instead
+                    return new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            throw e;
+                        }
+                    };
+                }
+            }
+        };
+        return new BufferedInputStream(new SequenceInputStream(streams), READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Make a version the blob's payload again. The current payload is recorded first, so this
+     * can be undone, and the restored content becomes the newest version. The blob must be in the
+     * hot tier.
+     *
+     * @return the updated metadata JSON
+     */
+    public static String restore(File blobDir, int number) throws IOException, JSONException {
+        synchronized (lockOf(blobDir)) {
+            Version version = find(blobDir, number);
+            record(blobDir, "before restoring v" + number);
+
+            File jsonFile = new File(blobDir, "blob.json");
+            JSONObject meta = new JSONObject(BlobChangeTracker.readText(jsonFile));
+            File payload = new File(blobDir, meta.optString("file_name", "unknown"));
+            File tmp = new File(blobDir, payload.getName() + ".tmp");
+            MessageDigest digest = newDigest();
+            try (InputStream in = open(blobDir, number); FileOutputStream out = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+                out.getFD().sync();
+            }
+            if (!BlobChangeTracker.toHex(digest.digest()).equals(version.sha256)) {
+                tmp.delete();
+                throw new IOException("Version " + number + " of " + blobDir.getName() + " is damaged");
+            }
+            if (!tmp.renameTo(payload)) {
+                tmp.delete();
+                throw new IOException("Could not restore version " + number + " of " + blobDir.getName());
+            }
+
+            if (!version.sha256.equals(meta.optString("sha256"))) {
+                meta.put("sha256", version.sha256);
+                meta.put(BlobChangeTracker.KEY_MODIFIED, true);
+            }
+            BlobChangeTracker.recordBaseline(meta, payload);
+            meta.put(BlobTiering.KEY_LAST_ACCESS, System.currentTimeMillis());
+            String updated = meta.toString(4);
+            BlobChangeTracker.writeTextAtomically(jsonFile, updated);
+            record(blobDir, "restored v" + number);
+            return updated;
+        }
+    }
+
+    public static Version find(File blobDir, int number) throws IOException, JSONException {
+        for (Version version : list(blobDir)) {
+            if (version.number == number) {
+                return version;
+            }
+        }
+        throw new IOException("No version " + number + " of " + blobDir.getName());
+    }
+
+    /**
+     * Drop a blob's history, e.g. because its payload was evicted.
+     */
+    public static void clear(File blobDir) {
+        synchronized (lockOf(blobDir)) {
+            deleteRecursively(new File(blobDir, HISTORY_DIR));
+        }
+    }
+
+    /**
+     * Split a file into chunks, storing the ones not stored yet, and write its manifest.
+     *
+     * @param added receives the bytes of newly stored chunks
+     * @return the sha256 of the whole file
+     */
+    private static String chunk(File payload, File chunksDir, File manifest, long[] added) throws IOException {
+        MessageDigest fileDigest = newDigest();
+        MessageDigest chunkDigest = newDigest();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        byte[] chunk = new byte[MAX_CHUNK];
+        int length = 0;
+        long hash = 0;
+        try (InputStream in = new FileInputStream(payload);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifest)))) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                fileDigest.update(buffer, 0, read);
+                for (int i = 0; i < read; i++) {
+                    int b = buffer[i] & 0xFF;
+                    chunk[length++] = (byte) b;
+                    hash = (hash << 1) + GEAR[b];
+                    if (length < MIN_CHUNK) {
+                        continue;
+                    }
+                    long mask = length < AVERAGE_CHUNK ? MASK_BEFORE_AVERAGE : MASK_AFTER_AVERAGE;
+                    if ((hash & mask) == 0 || length == MAX_CHUNK) {
+                        added[0] += storeChunk(chunk, length, chunksDir, chunkDigest, out);
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+            }
+            if (length > 0) {
+                added[0] += storeChunk(chunk, length, chunksDir, chunkDigest, out);
+            }
+        }
+        return BlobChangeTracker.toHex(fileDigest.digest());
+    }
+
+    /**
+     * @return the bytes stored, 0 if the chunk was stored already
+     */
+    private static long storeChunk(byte[] chunk, int length, File chunksDir, MessageDigest digest,
+                                   DataOutputStream manifest) throws IOException {
+        digest.update(chunk, 0, length);
+        byte[] hash = digest.digest();
+        manifest.write(hash);
+        manifest.writeLong(length);
+        File file = new File(chunksDir, BlobChangeTracker.toHex(hash));
+        if (file.isFile()) {
+            return 0;
+        }
+        File tmp = new File(chunksDir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(chunk, 0, length);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not store a chunk of " + chunksDir.getParentFile().getParentFile().getName());
+        }
+        return length;
+    }
+
+    /**
+     * Drop the oldest versions beyond {@link #MAX_VERSIONS}, then the chunks no version uses.
+     */
+    private static void prune(File historyDir, JSONObject index) throws IOException, JSONException {
+        JSONArray versions = index.getJSONArray("versions");
+        if (versions.length() <= MAX_VERSIONS) {
+            return;
+        }
+        JSONArray kept = new JSONArray();
+        for (int i = versions.length() - MAX_VERSIONS; i < versions.length(); i++) {
+            kept.put(versions.getJSONObject(i));
+        }
+        for (int i = 0; i < versions.length() - MAX_VERSIONS; i++) {
+            manifestOf(historyDir, versions.getJSONObject(i).getInt("version")).delete();
+        }
+        index.put("versions", kept);
+
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < kept.length(); i++) {
+            byte[] manifest = readAll(manifestOf(historyDir, kept.getJSONObject(i).getInt("version")));
+            for (int offset = 0; offset + MANIFEST_ENTRY_SIZE <= manifest.length; offset += MANIFEST_ENTRY_SIZE) {
+                used.add(BlobChangeTracker.toHex(Arrays.copyOfRange(manifest, offset, offset + 32)));
+            }
+        }
+        long freed = 0;
+        File[] chunks = new File(historyDir, CHUNKS_DIR).listFiles();
+        if (chunks != null) {
+            for (File chunk : chunks) {
+                if (!used.contains(chunk.getName())) {
+                    freed += chunk.length();
+                    chunk.delete();
+                }
+            }
+        }
+        index.put("bytes", Math.max(0, index.optLong("bytes", 0) - freed));
+    }
+
+    private static JSONObject readIndex(File historyDir) throws IOException, JSONException {
+        File indexFile = new File(historyDir, INDEX_FILE);
+        if (!indexFile.isFile()) {
+            JSONObject index = new JSONObject();
+            index.put("next", 1);
+            index.put("bytes", 0);
+            index.put("versions", new JSONArray());
+            return index;
+        }
+        return new JSONObject(BlobChangeTracker.readText(indexFile));
+    }
+
+    private static File manifestOf(File historyDir, int number) {
+        return new File(historyDir, "v" + number + ".manifest");
+    }
+
+    // Versions of one blob are recorded one at a time, and never while blob.json is updated
+    private static Object lockOf(File blobDir) {
+        return BlobChangeTracker.lockOf(blobDir);
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
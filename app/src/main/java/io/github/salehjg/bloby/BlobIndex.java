@@ -0,0 +1,247 @@
+package io.github.salehjg.bloby;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Incrementally maintained search index over blob metadata.
+ * <p>
+ * Text fields (blob_name, file_name, datetime) go into a prefix trie where every node keeps the
+ * set of blobs having a token with that prefix, so a lookup costs O(length of the term) no matter
+ * how many blobs are stored. Payload sizes live in a sorted map for range queries.
+ * <p>
+ * Query syntax: whitespace separated terms, all of which must match (AND). A term is either a
+ * prefix of any token/field ("report", "2025-10", "scan.pdf") or a size filter such as
+ * "&gt;10mb", "&lt;=500k" or "&gt;1g".
+ */
+public class BlobIndex {
+
+    private static class TrieNode {
+        final Map<Character, TrieNode> children = new HashMap<>();
+        final Set<String> blobs = new HashSet<>();
+    }
+
+    private final TrieNode root = new TrieNode();
+    private final Map<String, List<String>> tokensByBlob = new HashMap<>();
+    private final Map<String, Long> sizeByBlob = new HashMap<>();
+    private final TreeMap<Long, Set<String>> blobsBySize = new TreeMap<>();
+
+    /**
+     * Add or replace the index entry of a blob.
+     */
+    public synchronized void put(String blobName, String fileName, String datetime, long size) {
+        remove(blobName);
+
+        List<String> tokens = new ArrayList<>();
+        collectTokens(blobName, tokens);
+        collectTokens(fileName, tokens);
+        collectTokens(datetime, tokens);
+        tokensByBlob.put(blobName, tokens);
+
+        for (String token : tokens) {
+            TrieNode node = root;
+            for (int i = 0; i < token.length(); i++) {
+                TrieNode child = node.children.get(token.charAt(i));
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(token.charAt(i), child);
+                }
+                child.blobs.add(blobName);
+                node = child;
+            }
+        }
+
+        sizeByBlob.put(blobName, size);
+        Set<String> sameSize = blobsBySize.get(size);
+        if (sameSize == null) {
+            sameSize = new HashSet<>();
+            blobsBySize.put(size, sameSize);
+        }
+        sameSize.add(blobName);
+    }
+
+    public synchronized void remove(String blobName) {
+        List<String> tokens = tokensByBlob.remove(blobName);
+        if (tokens != null) {
+            for (String token : tokens) {
+                removeToken(root, token, 0, blobName);
+            }
+        }
+
+        Long size = sizeByBlob.remove(blobName);
+        if (size != null) {
+            Set<String> sameSize = blobsBySize.get(size);
+            if (sameSize != null) {
+                sameSize.remove(blobName);
+                if (sameSize.isEmpty()) {
+                    blobsBySize.remove(size);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        root.children.clear();
+        tokensByBlob.clear();
+        sizeByBlob.clear();
+        blobsBySize.clear();
+    }
+
+    public synchronized int size() {
+        return tokensByBlob.size();
+    }
+
+    /**
+     * Evaluate a query.
+     *
+     * @return names of the matching blobs, or null if the query is blank (i.e. no filtering)
+     */
+    public synchronized Set<String> search(String query) {
+        if (query == null || query.trim().isEmpty()) {
+            return null;
+        }
+
+        Set<String> result = null;
+        for (String term : query.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            Set<String> matches = matchSize(term);
+            if (matches == null) {
+                matches = matchPrefix(term);
+            }
+            if (result == null) {
+                result = new HashSet<>(matches);
+            } else {
+                result.retainAll(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private Set<String> matchPrefix(String prefix) {
+        TrieNode node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.children.get(prefix.charAt(i));
+        }
+        return node == null ? Collections.emptySet() : node.blobs;
+    }
+
+    /**
+     * @return blobs matching a size filter, or null if the term is not a size filter
+     */
+    private Set<String> matchSize(String term) {
+        String op;
+        if (term.startsWith(">=") || term.startsWith("<=")) {
+            op = term.substring(0, 2);
+        } else if (term.startsWith(">") || term.startsWith("<")) {
+            op = term.substring(0, 1);
+        } else {
+            return null;
+        }
+
+        long bytes = parseSize(term.substring(op.length()));
+        if (bytes < 0) {
+            return null;
+        }
+
+        NavigableMap<Long, Set<String>> range;
+        switch (op) {
+            case ">":
+                range = blobsBySize.tailMap(bytes, false);
+                break;
+            case ">=":
+                range = blobsBySize.tailMap(bytes, true);
+                break;
+            case "<":
+                range = blobsBySize.headMap(bytes, false);
+                break;
+            default:
+                range = blobsBySize.headMap(bytes, true);
+                break;
+        }
+
+        Set<String> matches = new HashSet<>();
+        for (Set<String> blobs : range.values()) {
+            matches.addAll(blobs);
+        }
+        return matches;
+    }
+
+    private static long parseSize(String text) {
+        int end = 0;
+        while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '.')) {
+            end++;
+        }
+        if (end == 0) {
+            return -1;
+        }
+
+        double value;
+        try {
+            value = Double.parseDouble(text.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        switch (text.substring(end)) {
+            case "":
+            case "b":
+                return (long) value;
+            case "k":
+            case "kb":
+                return (long) (value * 1024);
+            case "m":
+            case "mb":
+                return (long) (value * 1024 * 1024);
+            case "g":
+            case "gb":
+                return (long) (value * 1024 * 1024 * 1024);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * A field is indexed both as a whole (so "2025-10" or "scan.pdf" match) and split into
+     * alphanumeric words (so "scan" or "pdf" match).
+     */
+    private static void collectTokens(String field, List<String> out) {
+        if (field == null || field.isEmpty()) {
+            return;
+        }
+        String lower = field.toLowerCase(Locale.ROOT);
+        out.add(lower);
+        for (String word : lower.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty() && !word.equals(lower)) {
+                out.add(word);
+            }
+        }
+    }
+
+    /**
+     * Remove a blob from every node along a token path, pruning nodes that no longer index anything.
+     */
+    private static void removeToken(TrieNode node, String token, int depth, String blobName) {
+        if (depth == token.length()) {
+            return;
+        }
+        TrieNode child = node.children.get(token.charAt(depth));
+        if (child == null) {
+            return;
+        }
+        child.blobs.remove(blobName);
+        removeToken(child, token, depth + 1, blobName);
+        if (child.blobs.isEmpty()) {
+            node.children.remove(token.charAt(depth));
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the blob library between two roots, e.g. private storage and the external Bloby folder,
+ * one blob directory per blob as in {@code getFilesDir()}.
+ * <p>
+ * Blobs are copied by {@link #COPY_THREADS} workers with {@link FileChannel#transferTo}. A file
+ * already at the target with the same size and mtime is skipped without reading it, so running a
+ * copy again after an interruption only moves what is missing. Only when the mtimes differ are the
+ * contents compared, using the sha256 in blob.json for a payload that has not changed since. Files
+ * are written as {@code <name>.part} and renamed when complete; a leftover .part is continued where
+ * it stopped. Each blob's blob.json is copied last, so a blob only shows up at the target once its
+ * payload is there.
+ */
+public class BlobLibraryCopier {
+
+    public static final int COPY_THREADS = 4;
+
+    private static final String JSON_FILE = "blob.json";
+    private static final String PART_SUFFIX = ".part";
+    // Bytes per transferTo call, between cancellation checks
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    public static class Plan {
+        final List<File> blobDirs = new ArrayList<>();
+        public long totalBytes;
+
+        public int getBlobCount() {
+            return blobDirs.size();
+        }
+    }
+
+    public static class Result {
+        // Blobs whose blob.json was written to the target
+        public final List<String> copiedBlobs = new ArrayList<>();
+        public int copiedFiles;
+        public int skippedFiles;
+        public long copiedBytes;
+    }
+
+    private final File sourceRoot;
+    private final File targetRoot;
+
+    public BlobLibraryCopier(File sourceRoot, File targetRoot) {
+        this.sourceRoot = sourceRoot;
+        this.targetRoot = targetRoot;
+    }
+
+    /**
+     * List the blobs under the source root (directories holding a blob.json; hidden ones such as
+     * .bloby are not blobs).
+     */
+    public Plan plan() {
+        Plan plan = new Plan();
+        File[] entries = sourceRoot.listFiles();
+        if (entries == null) {
+            return plan;
+        }
+        for (File blobDir : entries) {
+            if (blobDir.getName().startsWith(".") || !new File(blobDir, JSON_FILE).isFile()) {
+                continue;
+            }
+            plan.blobDirs.add(blobDir);
+            for (String path : listBlobFiles(blobDir)) {
+                if (!path.endsWith("/")) {
+                    plan.totalBytes += new File(blobDir, path).length();
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Copy the planned blobs. Blocks until done.
+     *
+     * @param progress receives every byte copied or skipped, and is checked for cancellation
+     * @throws TransferProgress.CancelledException if cancelled; copying again resumes
+     */
+    public Result copy(Plan plan, TransferProgress progress) throws IOException {
+        Result result = new Result();
+        AtomicInteger copiedFiles = new AtomicInteger();
+        AtomicInteger skippedFiles = new AtomicInteger();
+        AtomicLong copiedBytes = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(COPY_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "bloby-copy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (File blobDir : plan.blobDirs) {
+                Callable<Boolean> task = () -> {
+                    File targetDir = new File(targetRoot, blobDir.getName());
+                    if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+                        throw new IOException("Could not create " + targetDir);
+                    }
+                    boolean jsonCopied = false;
+                    String payloadName = null;
+                    String payloadSha256 = null;
+                    try {
+                        JSONObject meta = new JSONObject(BlobChangeTracker.readText(new File(blobDir, JSON_FILE)));
+                        payloadName = meta.optString("file_name", null);
+                        if (payloadName != null && !meta.optString("sha256").isEmpty() &&
+                                BlobChangeTracker.matchesBaseline(meta, new File(blobDir, payloadName))) {
+                            payloadSha256 = meta.getString("sha256");
+                        }
+                    } catch (JSONException e) {
+                        // Copied as it is, files are compared by content
+                    }
+                    for (String path : listBlobFiles(blobDir)) {
+                        if (path.equals(JSON_FILE)) continue;
+                        File target = new File(targetDir, path);
+                        if (path.endsWith("/")) {
+                            target.mkdirs();
+                            continue;
+                        }
+                        if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs()) {
+                            throw new IOException("Could not create " + target.getParentFile());
+                        }
+                        String knownSha256 = path.equals(payloadName) ? payloadSha256 : null;
+                        if (copyFile(new File(blobDir, path), knownSha256, target, progress, copiedBytes)) {
+                            copiedFiles.incrementAndGet();
+                        } else {
+                            skippedFiles.incrementAndGet();
+                        }
+                    }
+                    if (copyFile(new File(blobDir, JSON_FILE), null, new File(targetDir, JSON_FILE), progress, copiedBytes)) {
+                        copiedFiles.incrementAndGet();
+                        jsonCopied = true;
+                    } else {
+                        skippedFiles.incrementAndGet();
+                    }
+                    // Drop what the blob no longer has, e.g. the payload after it was compressed
+                    for (String stale : listBlobFiles(targetDir)) {
+                        if (!new File(blobDir, stale).exists()) {
+                            new File(targetDir, stale).delete();
+                        }
+                    }
+                    return jsonCopied;
+                };
+                futures.add(executor.submit(task));
+            }
+
+            IOException error = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    if (futures.get(i).get()) {
+                        result.copiedBlobs.add(plan.blobDirs.get(i).getName());
+                    }
+                } catch (ExecutionException e) {
+                    // Keep the first failure, but let the other blobs finish so a rerun has less to do
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        result.copiedFiles = copiedFiles.get();
+        result.skippedFiles = skippedFiles.get();
+        result.copiedBytes = copiedBytes.get();
+        return result;
+    }
+
+    /**
+     * @param sourceSha256 the source's sha256 if known, or null to hash it when needed
+     * @return false if the target already had the same content
+     */
+    private static boolean copyFile(File source, String sourceSha256, File target, TransferProgress progress,
+                                    AtomicLong copiedBytes) throws IOException {
+        progress.checkCancelled();
+        long size = source.length();
+        if (target.isFile() && target.length() == size) {
+            // A finished copy gets the source's mtime, so this is the common case of a rerun
+            boolean same = target.lastModified() == source.lastModified();
+            if (!same) {
+                if (sourceSha256 == null) {
+                    sourceSha256 = BlobChangeTracker.sha256(source);
+                }
+                same = BlobChangeTracker.sha256(target).equals(sourceSha256);
+                if (same) {
+                    target.setLastModified(source.lastModified());
+                }
+            }
+            if (same) {
+                progress.add(size);
+                return false;
+            }
+        }
+
+        File part = new File(target.getParentFile(), target.getName() + PART_SUFFIX);
+        long position = part.isFile() && part.length() <= size ? part.length() : 0;
+        long resumedFrom = position;
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(position);
+            out.position(position);
+            progress.add(position);
+            while (position < size) {
+                progress.checkCancelled();
+                long copied = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+                if (copied <= 0) {
+                    throw new IOException("Could not copy " + source + " at byte " + position);
+                }
+                position += copied;
+                copiedBytes.addAndGet(copied);
+                progress.add(copied);
+            }
+            out.force(false);
+        }
+
+        // The source may have changed since the interrupted copy; start over if it did
+        if (resumedFrom > 0 && !BlobChangeTracker.sha256(part).equals(
+                sourceSha256 != null ? sourceSha256 : BlobChangeTracker.sha256(source))) {
+            if (!part.delete()) {
+                throw new IOException("Could not restart " + part);
+            }
+            progress.add(-size);
+            return copyFile(source, sourceSha256, target, progress, copiedBytes);
+        }
+
+        if (!part.renameTo(target)) {
+            throw new IOException("Could not rename " + part + " to " + target.getName());
+        }
+        // Keeps the change tracker's size/mtime baseline in blob.json valid for the copy
+        target.setLastModified(source.lastModified());
+        return true;
+    }
+
+    /**
+     * @return the paths of a blob's files relative to its directory, including those of a tree blob;
+     * empty directories are listed too, with a trailing '/'
+     */
+    private static List<String> listBlobFiles(File blobDir) {
+        List<String> files = new ArrayList<>();
+        collectFiles(blobDir, "", files);
+        return files;
+    }
+
+    private static void collectFiles(File dir, String prefix, List<String> files) {
+        File[] entries = dir.listFiles();
+        if (entries != null && entries.length == 0 && !prefix.isEmpty()) {
+            files.add(prefix);
+        } else if (entries != null) {
+            for (File entry : entries) {
+                if (entry.isDirectory()) {
+                    collectFiles(entry, prefix + entry.getName() + "/", files);
+                } else if (entry.isFile() && !entry.getName().endsWith(PART_SUFFIX)) {
+                    files.add(prefix + entry.getName());
+                }
+            }
+        }
+    }
+}
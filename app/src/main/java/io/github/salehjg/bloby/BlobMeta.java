@@ -0,0 +1,363 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Blob metadata as a typed record, decoded once per frame from either the JSON header or the
+ * binary header a client can negotiate in its handshake ({@link #FORMAT_TLV}).
+ * <p>
+ * Binary header: {@link #TLV_MAGIC}, a version byte, then fields of [tag][varint length][value].
+ * A JSON header starts with '{', so the first byte tells the two apart. Strings are UTF-8, sha256
+ * and uuid are raw bytes and sizes are varints. Metadata without a tag of its own travels as
+ * compact JSON under {@link #TAG_EXTRA}, so it still ends up in blob.json. Unknown tags are skipped.
+ * <p>
+ * The keys blob.json keeps for this device only ({@link #DEVICE_KEYS}) never go over the wire:
+ * {@link #forClient} drops them from what is sent and {@link #toJson} from what is received.
+ */
+public class BlobMeta {
+
+    public static final String FORMAT_TLV = "tlv1";
+    public static final byte TLV_MAGIC = (byte) 0xB1;
+    private static final int TLV_VERSION = 1;
+
+    private static final int TAG_TYPE = 1;
+    private static final int TAG_BLOB_NAME = 2;
+    private static final int TAG_DATETIME = 3;
+    private static final int TAG_FILE_NAME = 4;
+    private static final int TAG_SHA256 = 5;
+    private static final int TAG_UUID = 6;
+    // Batch entries only: the entry's payload size
+    private static final int TAG_SIZE = 7;
+    // Batch frames only: one entry's fields, nested
+    private static final int TAG_ENTRY = 8;
+    private static final int TAG_EXTRA = 15;
+
+    // Only values that come back byte for byte get a binary field, anything else goes in the extras
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
+    // Change tracking and tiering state of this device's copy, meaningless to anyone else
+    static final List<String> DEVICE_KEYS = Arrays.asList(
+            BlobChangeTracker.KEY_FILE_SIZE, BlobChangeTracker.KEY_FILE_MTIME, BlobChangeTracker.KEY_MODIFIED,
+            BlobTiering.KEY_TIER, BlobTiering.KEY_LAST_ACCESS, BlobTiering.KEY_INCOMPRESSIBLE);
+
+    private static final Pattern UUID_TEXT = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    /**
+     * A blob or batch frame header. Control frames stay JSON.
+     */
+    public static class Frame {
+        // Null for a blob frame
+        public final BlobMeta blob;
+        // Batch frames only, with each entry's payload size
+        public final List<BlobMeta> entries;
+        public final List<Integer> sizes;
+
+        private Frame(BlobMeta blob, List<BlobMeta> entries, List<Integer> sizes) {
+            this.blob = blob;
+            this.entries = entries;
+            this.sizes = sizes;
+        }
+
+        public boolean isBatch() {
+            return blob == null;
+        }
+
+        /**
+         * @return the blob or batch carried by a JSON header, or null for a control frame
+         * @throws JSONException if a batch entry has no valid size
+         */
+        public static Frame fromJson(JSONObject json) throws JSONException {
+            String type = json.optString("type");
+            if (type.isEmpty()) {
+                return new Frame(BlobMeta.fromJson(json), null, null);
+            }
+            if (!"batch".equals(type)) {
+                return null;
+            }
+            JSONArray array = json.getJSONArray("entries");
+            List<BlobMeta> entries = new ArrayList<>(array.length());
+            List<Integer> sizes = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject entry = array.getJSONObject(i);
+                sizes.add(entry.getInt("size"));
+                // The size is framing, not metadata
+                entry.remove("size");
+                entries.add(BlobMeta.fromJson(entry));
+            }
+            return new Frame(null, entries, sizes);
+        }
+    }
+
+    // Null where the metadata has no such field
+    public final String blobName;
+    public final String datetime;
+    public final String fileName;
+    public final String sha256;
+    public final String uuid;
+    // Every other field, null if there are none
+    private final JSONObject extra;
+
+    private BlobMeta(String blobName, String datetime, String fileName, String sha256, String uuid, JSONObject extra) {
+        this.blobName = blobName;
+        this.datetime = datetime;
+        this.fileName = fileName;
+        this.sha256 = sha256;
+        this.uuid = uuid;
+        this.extra = extra;
+    }
+
+    public static BlobMeta fromJson(JSONObject json) throws JSONException {
+        String blobName = null;
+        String datetime = null;
+        String fileName = null;
+        String sha256 = null;
+        String uuid = null;
+        JSONObject extra = null;
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.get(key);
+            String text = value instanceof String ? (String) value : null;
+            if ("blob_name".equals(key) && text != null) {
+                blobName = text;
+            } else if ("datetime".equals(key) && text != null) {
+                datetime = text;
+            } else if ("file_name".equals(key) && text != null) {
+                fileName = text;
+            } else if ("sha256".equals(key) && text != null && SHA256_HEX.matcher(text).matches()) {
+                sha256 = text;
+            } else if ("uuid".equals(key) && text != null && UUID_TEXT.matcher(text).matches()) {
+                uuid = text;
+            } else {
+                if (extra == null) {
+                    extra = new JSONObject();
+                }
+                extra.put(key, value);
+            }
+        }
+        return new BlobMeta(blobName, datetime, fileName, sha256, uuid, extra);
+    }
+
+    /**
+     * @return a blob's blob.json without the {@link #DEVICE_KEYS}, as it is sent to a client
+     */
+    public static JSONObject forClient(String blobJson) throws JSONException {
+        JSONObject json = new JSONObject(blobJson);
+        for (String key : DEVICE_KEYS) {
+            json.remove(key);
+        }
+        return json;
+    }
+
+    /**
+     * @return a new JSON object with all the metadata except {@link #DEVICE_KEYS}, ready to be
+     * extended and saved as blob.json
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.putOpt("blob_name", blobName);
+        json.putOpt("datetime", datetime);
+        json.putOpt("file_name", fileName);
+        json.putOpt("sha256", sha256);
+        json.putOpt("uuid", uuid);
+        if (extra != null) {
+            Iterator<String> keys = extra.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!DEVICE_KEYS.contains(key)) {
+                    json.put(key, extra.get(key));
+                }
+            }
+        }
+        return json;
+    }
+
+    /**
+     * @return a binary header for a blob frame carrying this metadata
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(TLV_MAGIC);
+        out.write(TLV_VERSION);
+        writeString(out, TAG_BLOB_NAME, blobName);
+        writeString(out, TAG_DATETIME, datetime);
+        writeString(out, TAG_FILE_NAME, fileName);
+        if (sha256 != null) {
+            writeField(out, TAG_SHA256, BlobCatalog.hexToBytes(sha256));
+        }
+        if (uuid != null) {
+            UUID parsed = UUID.fromString(uuid);
+            writeField(out, TAG_UUID, ByteBuffer.allocate(16)
+                    .putLong(parsed.getMostSignificantBits()).putLong(parsed.getLeastSignificantBits()).array());
+        }
+        if (extra != null) {
+            writeString(out, TAG_EXTRA, extra.toString());
+        }
+        return out.toByteArray();
+    }
+
+    public static boolean isBinaryHeader(byte[] header) {
+        return header.length > 0 && header[0] == TLV_MAGIC;
+    }
+
+    /**
+     * Decode a binary header.
+     *
+     * @throws JSONException if it is malformed or of an unknown version
+     */
+    public static Frame decodeFrame(byte[] header) throws JSONException {
+        if (header.length < 2 || header[0] != TLV_MAGIC) {
+            throw new JSONException("Not a binary header");
+        }
+        if (header[1] != TLV_VERSION) {
+            throw new JSONException("Unsupported binary header version " + header[1]);
+        }
+        Fields fields = readFields(header, 2, header.length, true);
+        if (fields.type == null) {
+            return new Frame(fields.toMeta(), null, null);
+        }
+        if (!"batch".equals(fields.type)) {
+            throw new JSONException("Unexpected binary frame type " + fields.type);
+        }
+        List<BlobMeta> entries = new ArrayList<>(fields.entries.size());
+        List<Integer> sizes = new ArrayList<>(fields.entries.size());
+        for (Fields entry : fields.entries) {
+            if (entry.size < 0 || entry.size > Integer.MAX_VALUE) {
+                throw new JSONException("Batch entry without a valid size");
+            }
+            entries.add(entry.toMeta());
+            sizes.add((int) entry.size);
+        }
+        return new Frame(null, entries, sizes);
+    }
+
+    private static class Fields {
+        String type;
+        String blobName;
+        String datetime;
+        String fileName;
+        String sha256;
+        String uuid;
+        JSONObject extra;
+        long size = -1;
+        final List<Fields> entries = new ArrayList<>();
+
+        BlobMeta toMeta() {
+            return new BlobMeta(blobName, datetime, fileName, sha256, uuid, extra);
+        }
+    }
+
+    private static Fields readFields(byte[] buf, int start, int end, boolean topLevel) throws JSONException {
+        Fields fields = new Fields();
+        int[] pos = {start};
+        while (pos[0] < end) {
+            int tag = buf[pos[0]++] & 0xFF;
+            long length = readVarint(buf, pos, end);
+            // A length past 2^63 decodes negative and would move backwards
+            if (length < 0 || length > end - pos[0]) {
+                throw new JSONException("Binary header field " + tag + " overruns the header");
+            }
+            int valueStart = pos[0];
+            int valueEnd = valueStart + (int) length;
+            switch (tag) {
+                case TAG_TYPE:
+                    fields.type = topLevel ? utf8(buf, valueStart, valueEnd) : null;
+                    break;
+                case TAG_BLOB_NAME:
+                    fields.blobName = utf8(buf, valueStart, valueEnd);
+                    break;
+                case TAG_DATETIME:
+                    fields.datetime = utf8(buf, valueStart, valueEnd);
+                    break;
+                case TAG_FILE_NAME:
+                    fields.fileName = utf8(buf, valueStart, valueEnd);
+                    break;
+                case TAG_SHA256:
+                    if (length != 32) {
+                        throw new JSONException("sha256 must be 32 bytes");
+                    }
+                    byte[] hash = new byte[32];
+                    System.arraycopy(buf, valueStart, hash, 0, 32);
+                    fields.sha256 = BlobChangeTracker.toHex(hash);
+                    break;
+                case TAG_UUID:
+                    if (length != 16) {
+                        throw new JSONException("uuid must be 16 bytes");
+                    }
+                    ByteBuffer uuid = ByteBuffer.wrap(buf, valueStart, 16);
+                    fields.uuid = new UUID(uuid.getLong(), uuid.getLong()).toString();
+                    break;
+                case TAG_SIZE:
+                    int[] sizePos = {valueStart};
+                    fields.size = readVarint(buf, sizePos, valueEnd);
+                    break;
+                case TAG_ENTRY:
+                    if (topLevel) {
+                        fields.entries.add(readFields(buf, valueStart, valueEnd, false));
+                    }
+                    break;
+                case TAG_EXTRA:
+                    fields.extra = new JSONObject(utf8(buf, valueStart, valueEnd));
+                    break;
+                default:
+                    // Added by a newer client, skip it
+                    break;
+            }
+            pos[0] = valueEnd;
+        }
+        return fields;
+    }
+
+    private static String utf8(byte[] buf, int start, int end) {
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(byte[] buf, int[] pos, int end) throws JSONException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= end) {
+                throw new JSONException("Truncated varint in binary header");
+            }
+            int b = buf[pos[0]++] & 0xFF;
+            if (shift == 63 && (b & 0x7E) != 0) {
+                throw new JSONException("Varint too long in binary header");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new JSONException("Varint too long in binary header");
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, int tag, String value) {
+        if (value != null) {
+            writeField(out, tag, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writeField(ByteArrayOutputStream out, int tag, byte[] value) {
+        out.write(tag);
+        writeVarint(out, value.length);
+        out.write(value, 0, value.length);
+    }
+}
@@ -0,0 +1,213 @@
+package io.github.salehjg.bloby;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mirror mode: watches the blob directories for writes and reports each blob whose payload
+ * changed once its writes have settled, so it can be pushed to the client.
+ * <p>
+ * Every blob directory has its own {@link FileObserver} (they do not recurse), and one on the
+ * catalog root follows blobs as they arrive and go. A write schedules a check of its blob
+ * {@link #DEBOUNCE_MS} later and every further write pushes that back, but never beyond
+ * {@link #MAX_DELAY_MS} after the first, so an app that saves continuously is still mirrored. The
+ * check is {@link BlobChangeTracker#check}, which re-hashes only when size or mtime moved. Our own
+ * writes (blob.json, temp files, the compressed tier) are ignored, and tree blobs are not watched.
+ */
+public class BlobMirror {
+
+    public static final long DEBOUNCE_MS = 1500;
+    public static final long MAX_DELAY_MS = 10000;
+
+    private static final int ROOT_EVENTS = FileObserver.CREATE | FileObserver.MOVED_TO |
+            FileObserver.DELETE | FileObserver.MOVED_FROM;
+    // Editors either write the file in place or write a copy and rename it over the original
+    private static final int BLOB_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+
+    public interface Listener {
+        /**
+         * A blob changed and has not been synced yet. Called on the mirror thread.
+         */
+        void onBlobChanged(String blobName, String updatedJson);
+
+        void onError(String blobName, Exception e);
+    }
+
+    private final File filesDir;
+    private final Listener listener;
+    private HandlerThread thread;
+    private Handler handler;
+
+    // Only touched on the mirror thread
+    private FileObserver rootObserver;
+    private final Map<String, BlobObserver> observers = new HashMap<>();
+    private final Map<String, Long> firstWriteAt = new HashMap<>();
+
+    public BlobMirror(File filesDir, Listener listener) {
+        this.filesDir = filesDir;
+        this.listener = listener;
+    }
+
+    /**
+     * Start watching. Blobs that changed or were left unsynced while the mirror was off are
+     * reported right away.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new HandlerThread("bloby-mirror", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        Handler mirrorHandler = new Handler(thread.getLooper());
+        handler = mirrorHandler;
+        mirrorHandler.post(() -> {
+            rootObserver = new FileObserver(filesDir, ROOT_EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (path != null) {
+                        mirrorHandler.post(() -> onRootEvent(event, path, mirrorHandler));
+                    }
+                }
+            };
+            rootObserver.startWatching();
+            File[] blobDirs = filesDir.listFiles();
+            if (blobDirs != null) {
+                for (File blobDir : blobDirs) {
+                    if (watch(blobDir.getName(), mirrorHandler)) {
+                        check(blobDir.getName());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop watching. Writes whose check was still pending are picked up by the next start.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        handler.removeCallbacksAndMessages(null);
+        handler.post(() -> {
+            if (rootObserver != null) {
+                rootObserver.stopWatching();
+                rootObserver = null;
+            }
+            for (BlobObserver observer : observers.values()) {
+                observer.stopWatching();
+            }
+            observers.clear();
+            firstWriteAt.clear();
+        });
+        thread.quitSafely();
+        thread = null;
+        handler = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    private void onRootEvent(int event, String name, Handler mirrorHandler) {
+        if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+            watch(name, mirrorHandler);
+        } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            BlobObserver observer = observers.remove(name);
+            if (observer != null) {
+                observer.stopWatching();
+                firstWriteAt.remove(name);
+            }
+        }
+    }
+
+    /**
+     * @return true if the blob is watched now
+     */
+    private boolean watch(String blobName, Handler mirrorHandler) {
+        if (blobName.startsWith(".") || observers.containsKey(blobName)) {
+            return false;
+        }
+        File blobDir = new File(filesDir, blobName);
+        if (!blobDir.isDirectory() || isTree(blobDir)) {
+            return false;
+        }
+        BlobObserver observer = new BlobObserver(blobName, blobDir, mirrorHandler);
+        observers.put(blobName, observer);
+        observer.startWatching();
+        return true;
+    }
+
+    private void onBlobWrite(BlobObserver observer, String fileName) {
+        if (fileName.equals("blob.json") || fileName.endsWith(".tmp") || fileName.endsWith(".gz") ||
+                fileName.endsWith(".part") || observers.get(observer.blobName) != observer) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        Long first = firstWriteAt.get(observer.blobName);
+        if (first == null) {
+            first = now;
+            firstWriteAt.put(observer.blobName, now);
+        }
+        // The observer doubles as the token of its blob's pending check
+        observer.handler.removeCallbacksAndMessages(observer);
+        observer.handler.postAtTime(() -> check(observer.blobName), observer,
+                Math.min(now + DEBOUNCE_MS, first + MAX_DELAY_MS));
+    }
+
+    private void check(String blobName) {
+        firstWriteAt.remove(blobName);
+        File blobDir = new File(filesDir, blobName);
+        try {
+            if (!new File(blobDir, "blob.json").isFile()) {
+                return;
+            }
+            String updatedJson = BlobChangeTracker.check(blobDir);
+            if (updatedJson == null) {
+                updatedJson = BlobChangeTracker.readText(new File(blobDir, "blob.json"));
+            }
+            // The flag, not a hash comparison, decides: another check (e.g. after an edit in the
+            // app) may have refreshed the hash first
+            if (BlobChangeTracker.isModified(new JSONObject(updatedJson))) {
+                listener.onBlobChanged(blobName, updatedJson);
+            }
+        } catch (Exception e) {
+            listener.onError(blobName, e);
+        }
+    }
+
+    private static boolean isTree(File blobDir) {
+        try {
+            return BlobTree.isTree(new JSONObject(BlobChangeTracker.readText(new File(blobDir, "blob.json"))));
+        } catch (Exception e) {
+            return false; // not written yet, the payload comes first
+        }
+    }
+
+    private class BlobObserver extends FileObserver {
+        final String blobName;
+        final Handler handler;
+
+        BlobObserver(String blobName, File blobDir, Handler handler) {
+            super(blobDir, BLOB_EVENTS);
+            this.blobName = blobName;
+            this.handler = handler;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (path != null) {
+                handler.post(() -> onBlobWrite(this, path));
+            }
+        }
+    }
+}
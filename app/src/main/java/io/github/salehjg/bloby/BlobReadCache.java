@@ -0,0 +1,302 @@
+package io.github.salehjg.bloby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A byte-budgeted LRU cache of blob payload segments, so blobs that are served again and again
+ * (sent to each teammate, re-fetched by scripts) come from memory instead of flash or gzip.
+ * <p>
+ * Payloads are cached in {@link #SEGMENT_SIZE} segments keyed by the payload's sha256 and the
+ * segment's index, so a range fetch only loads the segments it touches. The segments of a blob's
+ * previous hash are dropped as soon as the change is seen, see {@link #onBlobChanged}; a payload
+ * edited before its new hash is known is not served from here at all (see
+ * {@link BlobTiering#openPayload}). Segment buffers are recycled on eviction, so a full cache does
+ * not churn the heap, but they do live on the Java heap and count against the app's memory class:
+ * keep the budget within {@link #maxBudget}. Blobs larger than half the budget are not cached, they
+ * would only push everything else out.
+ */
+public class BlobReadCache {
+
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    // Share of the app's heap the cache may take
+    private static final int MAX_HEAP_FRACTION = 4;
+
+    private final Object lock = new Object();
+    // Access order: the eldest entry is the least recently used segment
+    private final LinkedHashMap<String, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> hashByBlob = new HashMap<>();
+    private long budget = DEFAULT_BUDGET;
+    private long used;
+    private long hitBytes;
+    private long missBytes;
+
+    private static class Segment {
+        final ByteBuffer buffer;
+        final int length;
+
+        Segment(ByteBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param budget bytes the cache may hold, 0 to disable it
+     */
+    public void setBudget(long budget) {
+        synchronized (lock) {
+            this.budget = Math.max(0, budget);
+            while (used > this.budget && !segments.isEmpty()) {
+                evictEldest();
+            }
+        }
+    }
+
+    /**
+     * @param memoryClassMb the app's heap limit, see ActivityManager#getMemoryClass
+     * @return the largest budget that leaves the rest of the app enough heap
+     */
+    public static long maxBudget(int memoryClassMb) {
+        return (long) memoryClassMb * 1024 * 1024 / MAX_HEAP_FRACTION;
+    }
+
+    public long getBudget() {
+        synchronized (lock) {
+            return budget;
+        }
+    }
+
+    /**
+     * @return true if a payload of this size is cached when served
+     */
+    public boolean admits(long size) {
+        synchronized (lock) {
+            return size > 0 && size <= budget / 2;
+        }
+    }
+
+    /**
+     * Stream a payload, serving the segments that are cached and caching the ones read from the
+     * source (opened only on the first miss, and positioned there).
+     */
+    public InputStream open(String sha256, long size, ByteServer.PayloadSource source) {
+        return new CachedStream(sha256, size, source);
+    }
+
+    /**
+     * A blob now has the given hash; the segments of any other hash it had are dropped.
+     */
+    public void onBlobChanged(String blobName, String sha256) {
+        synchronized (lock) {
+            String previous = sha256 == null || sha256.isEmpty()
+                    ? hashByBlob.remove(blobName) : hashByBlob.put(blobName, sha256);
+            if (previous != null && !previous.equals(sha256)) {
+                invalidateLocked(previous);
+            }
+        }
+    }
+
+    /**
+     * Drop every segment of a payload.
+     */
+    public void invalidate(String sha256) {
+        synchronized (lock) {
+            invalidateLocked(sha256);
+        }
+    }
+
+    /**
+     * @return e.g. "12 MB of 64 MB, 87% of bytes served from memory"
+     */
+    public String describe() {
+        synchronized (lock) {
+            long served = hitBytes + missBytes;
+            return (used / (1024 * 1024)) + " MB of " + (budget / (1024 * 1024)) + " MB, " +
+                    (served > 0 ? hitBytes * 100 / served : 0) + "% of bytes served from memory";
+        }
+    }
+
+    private static String keyOf(String sha256, long index) {
+        return sha256 + '@' + index;
+    }
+
+    /**
+     * Copy part of a cached segment.
+     *
+     * @return the bytes copied, or -1 if the segment is not cached
+     */
+    private int copy(String sha256, long index, int offset, byte[] dst, int dstOffset, int length) {
+        synchronized (lock) {
+            Segment segment = segments.get(keyOf(sha256, index));
+            if (segment == null) {
+                return -1;
+            }
+            int n = Math.min(length, segment.length - offset);
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset);
+            view.get(dst, dstOffset, n);
+            hitBytes += n;
+            return n;
+        }
+    }
+
+    private void put(String sha256, long index, byte[] data, int length) {
+        synchronized (lock) {
+            String key = keyOf(sha256, index);
+            if (segments.containsKey(key) || SEGMENT_SIZE > budget) {
+                return;
+            }
+            ByteBuffer buffer = null;
+            while (used + SEGMENT_SIZE > budget && !segments.isEmpty()) {
+                ByteBuffer evicted = evictEldest();
+                if (buffer == null) {
+                    buffer = evicted;
+                }
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+            }
+            buffer.clear();
+            buffer.put(data, 0, length);
+            segments.put(key, new Segment(buffer, length));
+            used += SEGMENT_SIZE;
+        }
+    }
+
+    private void countMiss(int length) {
+        synchronized (lock) {
+            missBytes += length;
+        }
+    }
+
+    private ByteBuffer evictEldest() {
+        Iterator<Segment> eldest = segments.values().iterator();
+        Segment segment = eldest.next();
+        eldest.remove();
+        used -= SEGMENT_SIZE;
+        return segment.buffer;
+    }
+
+    private void invalidateLocked(String sha256) {
+        String prefix = sha256 + '@';
+        Iterator<Map.Entry<String, Segment>> entries = segments.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().getKey().startsWith(prefix)) {
+                entries.remove();
+                used -= SEGMENT_SIZE;
+            }
+        }
+    }
+
+    private class CachedStream extends InputStream {
+        private final String sha256;
+        private final long size;
+        private final ByteServer.PayloadSource source;
+        private long position;
+        // The source, opened on the first miss
+        private InputStream raw;
+        private long rawPosition;
+        // The last segment read from the source
+        private byte[] segment;
+        private long segmentIndex = -1;
+        private int segmentLength;
+
+        CachedStream(String sha256, long size, ByteServer.PayloadSource source) {
+            this.sha256 = sha256;
+            this.size = size;
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= size) {
+                return -1;
+            }
+            long index = position / SEGMENT_SIZE;
+            int within = (int) (position % SEGMENT_SIZE);
+            int n;
+            if (index == segmentIndex) {
+                n = Math.min(length, segmentLength - within);
+                System.arraycopy(segment, within, buffer, offset, n);
+            } else {
+                n = copy(sha256, index, within, buffer, offset, length);
+                if (n < 0) {
+                    load(index);
+                    n = Math.min(length, segmentLength - within);
+                    System.arraycopy(segment, within, buffer, offset, n);
+                }
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, size - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (raw != null) {
+                raw.close();
+                raw = null;
+            }
+        }
+
+        private void load(long index) throws IOException {
+            long start = index * SEGMENT_SIZE;
+            if (raw == null || rawPosition > start) {
+                close();
+                raw = source.open();
+                rawPosition = 0;
+            }
+            while (rawPosition < start) {
+                long skipped = raw.skip(start - rawPosition);
+                if (skipped <= 0) {
+                    throw new IOException("Payload shorter than its recorded size");
+                }
+                rawPosition += skipped;
+            }
+            int length = (int) Math.min(SEGMENT_SIZE, size - start);
+            if (segment == null) {
+                segment = new byte[SEGMENT_SIZE];
+            }
+            int read = 0;
+            while (read < length) {
+                int n = raw.read(segment, read, length - read);
+                if (n == -1) {
+                    throw new IOException("Payload shorter than its recorded size");
+                }
+                read += n;
+            }
+            rawPosition += length;
+            segmentIndex = index;
+            segmentLength = length;
+            countMiss(length);
+            put(sha256, index, segment, length);
+        }
+    }
+}
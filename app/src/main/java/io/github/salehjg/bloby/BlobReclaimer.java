@@ -0,0 +1,131 @@
+package io.github.salehjg.bloby;
+
+import android.os.Process;
+
+import java.io.File;
+
+/**
+ * Makes blob deletion constant time.
+ * <p>
+ * Deleting a blob only renames its directory into {@code files/.trash}, which is a single
+ * metadata operation no matter how large the payload is. Since the blob catalog is the set of
+ * blob directories under getFilesDir(), the rename acts as the tombstone: the blob disappears
+ * from loadSavedBlobs and every other scan right away. A low-priority worker thread then frees
+ * the disk space. Anything left in the trash after a crash is reclaimed on the next start.
+ */
+public class BlobReclaimer {
+
+    public static final String TRASH_DIR = ".trash";
+
+    private final File filesDir;
+    private final File trashDir;
+    private final Object lock = new Object();
+    private boolean pending = true; // reclaim leftovers from a previous run on start
+    private Thread worker;
+
+    public BlobReclaimer(File filesDir) {
+        this.filesDir = filesDir;
+        this.trashDir = new File(filesDir, TRASH_DIR);
+        if (!trashDir.exists()) {
+            trashDir.mkdirs();
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (worker != null) {
+                return;
+            }
+            worker = new Thread(this::reclaimLoop, "bloby-reclaimer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Tombstone a single blob.
+     *
+     * @return false if the blob directory does not exist or could not be moved
+     */
+    public boolean tombstone(String blobName) {
+        File blobDir = new File(filesDir, blobName);
+        if (!blobDir.exists()) {
+            return false;
+        }
+        boolean moved = moveToTrash(blobDir);
+        if (moved) {
+            wakeUp();
+        }
+        return moved;
+    }
+
+    /**
+     * Tombstone every blob. Internal state directories (names starting with '.') are kept.
+     *
+     * @return the number of entries moved to the trash
+     */
+    public int tombstoneAll() {
+        File[] entries = filesDir.listFiles();
+        int count = 0;
+        if (entries != null) {
+            for (File entry : entries) {
+                if (entry.getName().startsWith(".")) {
+                    continue;
+                }
+                if (moveToTrash(entry)) {
+                    count++;
+                }
+            }
+        }
+        wakeUp();
+        return count;
+    }
+
+    private boolean moveToTrash(File entry) {
+        // Unique name so a blob re-received under the same name can be tombstoned again
+        File target = new File(trashDir, entry.getName() + "." + System.nanoTime());
+        return entry.renameTo(target);
+    }
+
+    void wakeUp() {
+        synchronized (lock) {
+            pending = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void reclaimLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        while (true) {
+            synchronized (lock) {
+                while (!pending) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                pending = false;
+            }
+
+            File[] entries = trashDir.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    deleteRecursive(entry);
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursive(File fileOrDir) {
+        if (fileOrDir.isDirectory()) {
+            File[] children = fileOrDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursive(child);
+                }
+            }
+        }
+        fileOrDir.delete();
+    }
+}
@@ -0,0 +1,437 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Storage tiering for blob payloads under a configurable quota.
+ * <p>
+ * Every blob records its "last_access" time in blob.json. When the payloads take more space than
+ * the quota, the least recently used blobs are moved to the compressed tier (payload gzipped in
+ * place as {@code <file_name>.gz}) and, if that is not enough, evicted: the payload is dropped but
+ * blob.json is kept, so the blob stays listed and can be restored by receiving the same content
+ * (matching sha256) again. Blobs accessed within {@link #HOT_WINDOW_MS} and blobs with unsynced
+ * edits are never evicted, and hot blobs are never compressed.
+ */
+public class BlobTiering {
+
+    public static final String KEY_LAST_ACCESS = "last_access";
+    public static final String KEY_TIER = "tier";
+    public static final String TIER_HOT = "hot";
+    public static final String TIER_COMPRESSED = "compressed";
+    public static final String TIER_EVICTED = "evicted";
+
+    static final String KEY_INCOMPRESSIBLE = "incompressible";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final long HOT_WINDOW_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024;
+    // Keep the compressed copy only if it saves at least this fraction of the space
+    private static final double MIN_COMPRESSION_SAVING = 0.10;
+
+    public static class Report {
+        public long usedBefore;
+        public long usedAfter;
+        public int compressed;
+        public int evicted;
+    }
+
+    private static class Candidate {
+        File blobDir;
+        JSONObject meta;
+        long lastAccess;
+        long storedSize;
+    }
+
+    private final File filesDir;
+    private final Map<String, String> evictedByHash = new ConcurrentHashMap<>();
+    private final BlobReadCache readCache = new BlobReadCache();
+
+    public BlobTiering(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    public BlobReadCache getReadCache() {
+        return readCache;
+    }
+
+    public static String tierOf(JSONObject meta) {
+        return meta.optString(KEY_TIER, TIER_HOT);
+    }
+
+    /**
+     * Record an access to a blob (open, send) so it is treated as hot.
+     */
+    public void touch(File blobDir) throws IOException, JSONException {
+        synchronized (BlobChangeTracker.lockOf(blobDir)) {
+            File jsonFile = new File(blobDir, "blob.json");
+            JSONObject meta = new JSONObject(BlobChangeTracker.readText(jsonFile));
+            meta.put(KEY_LAST_ACCESS, System.currentTimeMillis());
+            BlobChangeTracker.writeTextAtomically(jsonFile, meta.toString(4));
+        }
+    }
+
+    /**
+     * Stream a blob's payload whatever its tier, through the {@link BlobReadCache} if it admits
+     * the blob. Compressed payloads are inflated on the fly.
+     * <p>
+     * A plain payload edited since its sha256 was recorded (e.g. by another app while this one was
+     * in the background, before {@link BlobChangeTracker#check} caught up) is read from storage,
+     * the cached segments of the recorded hash are not its content anymore.
+     *
+     * @throws IOException if the payload was evicted
+     */
+    public InputStream openPayload(File blobDir, JSONObject meta) throws IOException {
+        String sha256 = meta.optString("sha256", "");
+        long size = BlobCatalog.payloadSize(blobDir, meta);
+        if (!sha256.isEmpty() && readCache.admits(size)) {
+            File payload = new File(blobDir, meta.optString("file_name", "unknown"));
+            if (payload.isFile() && !BlobChangeTracker.matchesBaseline(meta, payload)) {
+                readCache.invalidate(sha256);
+                return openStoredPayload(blobDir, meta);
+            }
+            readCache.onBlobChanged(blobDir.getName(), sha256);
+            return readCache.open(sha256, size, () -> openStoredPayload(blobDir, meta));
+        }
+        return openStoredPayload(blobDir, meta);
+    }
+
+    private InputStream openStoredPayload(File blobDir, JSONObject meta) throws IOException {
+        String fileName = meta.optString("file_name", "unknown");
+        File payload = new File(blobDir, fileName);
+        if (payload.isFile()) {
+            return new BufferedInputStream(new FileInputStream(payload), STREAM_BUFFER_SIZE);
+        }
+        File compressed = new File(blobDir, fileName + COMPRESSED_SUFFIX);
+        if (compressed.isFile()) {
+            return new GZIPInputStream(new FileInputStream(compressed), STREAM_BUFFER_SIZE);
+        }
+        throw new IOException("Payload of " + blobDir.getName() + " was evicted, re-send it to restore");
+    }
+
+    /**
+     * Bring a blob back to the hot tier so it can be handed to another app as a plain file.
+     * Compressed payloads are inflated with a streaming copy.
+     *
+     * @return the updated metadata JSON, or null if the blob already was hot
+     * @throws IOException if the payload was evicted
+     */
+    public String ensureHot(File blobDir) throws IOException, JSONException {
+        synchronized (BlobChangeTracker.lockOf(blobDir)) {
+            return ensureHotLocked(blobDir);
+        }
+    }
+
+    private String ensureHotLocked(File blobDir) throws IOException, JSONException {
+        File jsonFile = new File(blobDir, "blob.json");
+        JSONObject meta = new JSONObject(BlobChangeTracker.readText(jsonFile));
+        if (BlobTree.isTree(meta)) {
+            return null; // always hot
+        }
+        String fileName = meta.optString("file_name", "unknown");
+        File payload = new File(blobDir, fileName);
+        File compressed = new File(blobDir, fileName + COMPRESSED_SUFFIX);
+
+        if (payload.isFile()) {
+            compressed.delete(); // leftover of an interrupted compression
+            if (TIER_HOT.equals(tierOf(meta))) {
+                return null;
+            }
+        } else {
+            if (!compressed.isFile()) {
+                throw new IOException("Payload of " + blobDir.getName() + " was evicted, re-send it to restore");
+            }
+            File tmp = new File(blobDir, fileName + ".tmp");
+            try (InputStream in = new GZIPInputStream(new FileInputStream(compressed), STREAM_BUFFER_SIZE);
+                 FileOutputStream out = new FileOutputStream(tmp)) {
+                copy(in, out);
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(payload)) {
+                tmp.delete();
+                throw new IOException("Could not restore payload of " + blobDir.getName());
+            }
+            // Restore the mtime so change tracking does not mistake decompression for an edit
+            if (meta.has(BlobChangeTracker.KEY_FILE_MTIME)) {
+                payload.setLastModified(meta.optLong(BlobChangeTracker.KEY_FILE_MTIME));
+            }
+            compressed.delete();
+        }
+
+        meta.put(KEY_TIER, TIER_HOT);
+        meta.put(KEY_LAST_ACCESS, System.currentTimeMillis());
+        String updated = meta.toString(4);
+        BlobChangeTracker.writeTextAtomically(jsonFile, updated);
+        return updated;
+    }
+
+    /**
+     * Find an evicted blob whose content matches the given hash, so a re-received payload can
+     * restore it instead of creating a duplicate entry.
+     */
+    public String findEvictedBlob(String sha256) {
+        String blobName = sha256 == null ? null : evictedByHash.get(sha256);
+        if (blobName != null && !new File(new File(filesDir, blobName), "blob.json").exists()) {
+            evictedByHash.remove(sha256); // deleted since the last scan
+            return null;
+        }
+        return blobName;
+    }
+
+    /**
+     * Put a re-received payload back into an evicted blob.
+     *
+     * @return the updated metadata JSON
+     * @throws IOException if the payload is not the blob's content, whatever hash it came with
+     */
+    public String restore(File blobDir, byte[] payloadData) throws IOException, JSONException {
+        synchronized (BlobChangeTracker.lockOf(blobDir)) {
+            return restoreLocked(blobDir, payloadData);
+        }
+    }
+
+    private String restoreLocked(File blobDir, byte[] payloadData) throws IOException, JSONException {
+        File jsonFile = new File(blobDir, "blob.json");
+        JSONObject meta = new JSONObject(BlobChangeTracker.readText(jsonFile));
+        if (!BlobChangeTracker.sha256(payloadData).equals(meta.optString("sha256"))) {
+            throw new IOException("Received payload does not match " + blobDir.getName());
+        }
+        File payload = new File(blobDir, meta.optString("file_name", "unknown"));
+        try (FileOutputStream fos = new FileOutputStream(payload)) {
+            fos.write(payloadData);
+            fos.getFD().sync();
+        }
+
+        meta.put(KEY_TIER, TIER_HOT);
+        meta.put(KEY_LAST_ACCESS, System.currentTimeMillis());
+        BlobChangeTracker.recordBaseline(meta, payload);
+        String updated = meta.toString(4);
+        BlobChangeTracker.writeTextAtomically(jsonFile, updated);
+        evictedByHash.remove(meta.optString("sha256"));
+        return updated;
+    }
+
+    /**
+     * Compress and then evict least recently used blobs until the payloads fit in the quota.
+     *
+     * @param quotaBytes the quota, or 0 for unlimited (only refreshes the evicted blob lookup)
+     * @param listener   notified with the new blob.json of every blob whose tier changed
+     */
+    public Report enforceQuota(long quotaBytes, OnTierChangedListener listener) {
+        Report report = new Report();
+        List<Candidate> candidates = new ArrayList<>();
+
+        File[] blobDirs = filesDir.listFiles();
+        if (blobDirs != null) {
+            for (File blobDir : blobDirs) {
+                File jsonFile = new File(blobDir, "blob.json");
+                if (!jsonFile.exists()) continue;
+                try {
+                    Candidate c = new Candidate();
+                    c.blobDir = blobDir;
+                    c.meta = new JSONObject(BlobChangeTracker.readText(jsonFile));
+                    if (BlobTree.isTree(c.meta)) {
+                        // Counted, but a tree is never compressed or evicted as a whole
+                        report.usedBefore += c.meta.optLong(BlobChangeTracker.KEY_FILE_SIZE, 0);
+                        continue;
+                    }
+                    c.lastAccess = lastAccessOf(c.meta, jsonFile);
+                    c.storedSize = storedSize(blobDir, c.meta);
+                    report.usedBefore += c.storedSize;
+                    if (TIER_EVICTED.equals(tierOf(c.meta))) {
+                        evictedByHash.put(c.meta.optString("sha256"), blobDir.getName());
+                    }
+                    candidates.add(c);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        long used = report.usedBefore;
+        if (quotaBytes > 0 && used > quotaBytes) {
+            Collections.sort(candidates, (a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+            long hotSince = System.currentTimeMillis() - HOT_WINDOW_MS;
+
+            // Pass 1: compress cold payloads, oldest first
+            for (Candidate c : candidates) {
+                if (used <= quotaBytes) break;
+                if (c.lastAccess >= hotSince || !TIER_HOT.equals(tierOf(c.meta)) ||
+                        c.meta.optBoolean(KEY_INCOMPRESSIBLE, false)) {
+                    continue;
+                }
+                try {
+                    String updated = compress(c.blobDir, hotSince);
+                    if (updated == null) {
+                        continue; // changed since the scan
+                    }
+                    c.meta = new JSONObject(updated);
+                    long before = c.storedSize;
+                    c.storedSize = storedSize(c.blobDir, c.meta);
+                    used -= before - c.storedSize;
+                    if (TIER_COMPRESSED.equals(tierOf(c.meta))) {
+                        report.compressed++;
+                        if (listener != null) listener.onTierChanged(c.blobDir.getName(), updated);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // Pass 2: still over quota, evict payloads but keep their metadata
+            for (Candidate c : candidates) {
+                if (used <= quotaBytes) break;
+                if (c.lastAccess >= hotSince || TIER_EVICTED.equals(tierOf(c.meta)) ||
+                        BlobChangeTracker.isModified(c.meta)) {
+                    continue; // never drop unsynced edits
+                }
+                try {
+                    String updated = evict(c.blobDir, hotSince);
+                    if (updated == null) {
+                        continue; // changed since the scan
+                    }
+                    c.meta = new JSONObject(updated);
+                    used -= c.storedSize;
+                    c.storedSize = 0;
+                    evictedByHash.put(c.meta.optString("sha256"), c.blobDir.getName());
+                    report.evicted++;
+                    if (listener != null) listener.onTierChanged(c.blobDir.getName(), updated);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        report.usedAfter = used;
+        return report;
+    }
+
+    public interface OnTierChangedListener {
+        void onTierChanged(String blobName, String updatedJson);
+    }
+
+    /**
+     * Compress a blob's payload, unless it became hot, was edited or changed tier since the scan.
+     *
+     * @return the updated metadata JSON, or null if the blob was left alone
+     */
+    private String compress(File blobDir, long hotSince) throws IOException, JSONException {
+        synchronized (BlobChangeTracker.lockOf(blobDir)) {
+            File jsonFile = new File(blobDir, "blob.json");
+            JSONObject meta = new JSONObject(BlobChangeTracker.readText(jsonFile));
+            File payload = new File(blobDir, meta.optString("file_name", "unknown"));
+            if (lastAccessOf(meta, jsonFile) >= hotSince || !TIER_HOT.equals(tierOf(meta)) ||
+                    meta.optBoolean(KEY_INCOMPRESSIBLE, false) || !payload.isFile() ||
+                    !BlobChangeTracker.matchesBaseline(meta, payload)) {
+                return null; // an unchecked edit must stay visible to change tracking
+            }
+            return compressLocked(blobDir, meta);
+        }
+    }
+
+    private String compressLocked(File blobDir, JSONObject meta) throws IOException, JSONException {
+        String fileName = meta.optString("file_name", "unknown");
+        File payload = new File(blobDir, fileName);
+        File compressed = new File(blobDir, fileName + COMPRESSED_SUFFIX);
+        File tmp = new File(blobDir, fileName + COMPRESSED_SUFFIX + ".tmp");
+
+        try (InputStream in = new FileInputStream(payload);
+             FileOutputStream fos = new FileOutputStream(tmp);
+             GZIPOutputStream out = new GZIPOutputStream(fos, STREAM_BUFFER_SIZE) {
+                 {
+                     def.setLevel(Deflater.BEST_SPEED);
+                 }
+             }) {
+            copy(in, out);
+            out.finish();
+            // On disk before the plain payload, the only other copy, is deleted
+            fos.getFD().sync();
+        }
+
+        if (tmp.length() > payload.length() * (1.0 - MIN_COMPRESSION_SAVING)) {
+            // Already compressed formats (jpg, zip, most pdfs...) are not worth it
+            tmp.delete();
+            meta.put(KEY_INCOMPRESSIBLE, true);
+        } else {
+            if (!tmp.renameTo(compressed)) {
+                tmp.delete();
+                throw new IOException("Could not store compressed payload of " + blobDir.getName());
+            }
+            meta.put(KEY_TIER, TIER_COMPRESSED);
+        }
+
+        String updated = meta.toString(4);
+        BlobChangeTracker.writeTextAtomically(new File(blobDir, "blob.json"), updated);
+        // Only drop the original once blob.json points at the compressed copy
+        if (TIER_COMPRESSED.equals(tierOf(meta))) {
+            payload.delete();
+        }
+        return updated;
+    }
+
+    /**
+     * Evict a blob's payload, unless it became hot, has unsynced edits or was evicted meanwhile.
+     *
+     * @return the updated metadata JSON, or null if the blob was left alone
+     */
+    private String evict(File blobDir, long hotSince) throws IOException, JSONException {
+        synchronized (BlobChangeTracker.lockOf(blobDir)) {
+            File jsonFile = new File(blobDir, "blob.json");
+            JSONObject meta = new JSONObject(BlobChangeTracker.readText(jsonFile));
+            if (lastAccessOf(meta, jsonFile) >= hotSince || TIER_EVICTED.equals(tierOf(meta)) ||
+                    BlobChangeTracker.isModified(meta)) {
+                return null;
+            }
+            File payload = new File(blobDir, meta.optString("file_name", "unknown"));
+            if (payload.isFile() && !BlobChangeTracker.matchesBaseline(meta, payload)) {
+                return null; // edited, and not checked yet
+            }
+            return evictLocked(blobDir, meta);
+        }
+    }
+
+    private String evictLocked(File blobDir, JSONObject meta) throws IOException, JSONException {
+        String fileName = meta.optString("file_name", "unknown");
+        meta.put(KEY_TIER, TIER_EVICTED);
+        String updated = meta.toString(4);
+        BlobChangeTracker.writeTextAtomically(new File(blobDir, "blob.json"), updated);
+        new File(blobDir, fileName).delete();
+        new File(blobDir, fileName + COMPRESSED_SUFFIX).delete();
+        BlobHistory.clear(blobDir);
+        readCache.invalidate(meta.optString("sha256", ""));
+        return updated;
+    }
+
+    private static long lastAccessOf(JSONObject meta, File jsonFile) {
+        return meta.optLong(KEY_LAST_ACCESS, meta.optLong(BlobChangeTracker.KEY_FILE_MTIME, jsonFile.lastModified()));
+    }
+
+    private static long storedSize(File blobDir, JSONObject meta) {
+        String fileName = meta.optString("file_name", "unknown");
+        return new File(blobDir, fileName).length() + new File(blobDir, fileName + COMPRESSED_SUFFIX).length() +
+                BlobHistory.storedBytes(blobDir);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+}
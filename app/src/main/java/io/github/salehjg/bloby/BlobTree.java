@@ -0,0 +1,253 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A tree blob: a whole directory stored as one blob, under {@code <blob>/<file_name>/}, with
+ * "kind": "tree" in its blob.json.
+ * <p>
+ * On the wire a tree is a {@link #TYPE_BEGIN} frame with the blob metadata, the number of entries
+ * and their total size, then one {@link #TYPE_ENTRY} frame per file (or empty directory) whose
+ * payload is the file content, then a {@link #TYPE_END} frame. Entries are sent back to back and
+ * written to disk as they arrive, so neither side builds an archive first. The receiver stages the
+ * tree like a batch and only publishes it once every entry is in.
+ */
+public class BlobTree {
+
+    public static final String KEY_KIND = "kind";
+    public static final String KIND_TREE = "tree";
+    public static final String KEY_ENTRY_COUNT = "entry_count";
+
+    public static final String TYPE_BEGIN = "tree";
+    public static final String TYPE_ENTRY = "tree_entry";
+    public static final String TYPE_END = "tree_end";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * One file or empty directory of a tree, by its '/' separated path relative to the root.
+     */
+    public static class Entry {
+        public final String path;
+        public final boolean directory;
+        public final long size;
+        public final long mtime;
+        public final boolean executable;
+        // Sending side only
+        final File file;
+
+        Entry(String path, boolean directory, long size, long mtime, boolean executable, File file) {
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.mtime = mtime;
+            this.executable = executable;
+            this.file = file;
+        }
+
+        /**
+         * @return the entry frame header; the payload size is the frame's own
+         */
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("type", TYPE_ENTRY);
+            json.put("path", path);
+            if (directory) {
+                json.put("dir", true);
+            }
+            json.put("mtime", mtime);
+            json.put("mode", directory || executable ? 0755 : 0644);
+            return json;
+        }
+
+        public static Entry fromJson(JSONObject json, long size) throws JSONException {
+            return new Entry(json.getString("path"), json.optBoolean("dir", false), size,
+                    json.optLong("mtime", 0), (json.optInt("mode", 0644) & 0100) != 0, null);
+        }
+    }
+
+    public static boolean isTree(JSONObject meta) {
+        return KIND_TREE.equals(meta.optString(KEY_KIND));
+    }
+
+    /**
+     * @return the directory holding a stored tree's entries
+     */
+    public static File rootOf(File blobDir, JSONObject meta) {
+        return new File(blobDir, meta.optString("file_name", "unknown"));
+    }
+
+    /**
+     * List a directory for sending: every file, plus directories that have nothing else in them,
+     * in path order so parents come first.
+     */
+    public static List<Entry> list(File root) throws IOException {
+        if (!root.isDirectory()) {
+            throw new IOException("Tree root not found: " + root);
+        }
+        List<Entry> entries = new ArrayList<>();
+        collect(root, "", entries);
+        return entries;
+    }
+
+    private static void collect(File dir, String prefix, List<Entry> entries) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children, (a, b) -> a.getName().compareTo(b.getName()));
+        if (children.length == 0 && !prefix.isEmpty()) {
+            entries.add(new Entry(prefix.substring(0, prefix.length() - 1), true, 0, dir.lastModified(), false, dir));
+            return;
+        }
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                collect(child, path + "/", entries);
+            } else if (child.isFile() && !child.getName().endsWith(PART_SUFFIX)) {
+                entries.add(new Entry(path, false, child.length(), child.lastModified(), child.canExecute(), child));
+            }
+        }
+    }
+
+    public static long totalSize(List<Entry> entries) {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    /**
+     * Resolve an entry path sent by a client under the tree root.
+     *
+     * @throws IOException if the path is absolute, empty or could escape the root
+     */
+    static File resolve(File root, String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/") || path.contains("\\")) {
+            throw new IOException("Invalid tree entry path: " + path);
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IOException("Invalid tree entry path: " + path);
+            }
+        }
+        return new File(root, path);
+    }
+
+    /**
+     * Writes a tree as it is received into its own staging directory of the
+     * {@link BlobBatchCommitter}, and publishes it as one blob on {@link #commit()}.
+     */
+    public static class Receiver {
+        public final String blobName;
+        private final BlobBatchCommitter committer;
+        private final BlobMeta meta;
+        private final File stagingDir;
+        private final File root;
+        private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        private int entryCount;
+        private long totalBytes;
+
+        public Receiver(BlobBatchCommitter committer, BlobMeta meta) throws IOException {
+            if (meta.blobName == null || meta.fileName == null) {
+                throw new IOException("Tree without blob_name or file_name");
+            }
+            // Both end up as single directory names
+            BlobCatalog.checkBlobName(meta.blobName);
+            if (meta.fileName.contains("/") || meta.fileName.equals("blob.json")) {
+                throw new IOException("Invalid tree name: " + meta.fileName);
+            }
+            this.committer = committer;
+            this.meta = meta;
+            this.blobName = meta.blobName;
+            this.stagingDir = committer.stage("tree");
+            this.root = resolve(new File(stagingDir, blobName), meta.fileName);
+            if (!root.mkdirs()) {
+                committer.discardStaged(stagingDir);
+                throw new IOException("Could not create staging directory for " + blobName);
+            }
+        }
+
+        /**
+         * Write one entry, reading exactly {@code entry.size} bytes from {@code data}.
+         */
+        public void receive(Entry entry, InputStream data) throws IOException {
+            File target = resolve(root, entry.path);
+            if (entry.directory) {
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("Could not create " + entry.path);
+                }
+            } else {
+                File parent = target.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create " + parent.getName());
+                }
+                try (FileOutputStream out = new FileOutputStream(target)) {
+                    long remaining = entry.size;
+                    while (remaining > 0) {
+                        int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            throw new IOException("Tree entry " + entry.path + " cut short");
+                        }
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    // Must be durable before the commit marker is written
+                    out.getFD().sync();
+                }
+                if (entry.executable) {
+                    target.setExecutable(true);
+                }
+                totalBytes += entry.size;
+            }
+            if (entry.mtime > 0) {
+                target.setLastModified(entry.mtime);
+            }
+            entryCount++;
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Write blob.json and move the tree into the catalog.
+         *
+         * @return blob.json as saved
+         */
+        public String commit() throws IOException, JSONException {
+            JSONObject jsonObject = meta.toJson();
+            jsonObject.put(KEY_KIND, KIND_TREE);
+            jsonObject.put(KEY_ENTRY_COUNT, entryCount);
+            jsonObject.put(BlobChangeTracker.KEY_FILE_SIZE, totalBytes);
+            jsonObject.put(BlobTiering.KEY_LAST_ACCESS, System.currentTimeMillis());
+            String savedJson = jsonObject.toString(4);
+            try (FileOutputStream fos = new FileOutputStream(new File(root.getParentFile(), "blob.json"))) {
+                fos.write(savedJson.getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            committer.commitStaged(stagingDir);
+            return savedJson;
+        }
+
+        public void abort() {
+            committer.discardStaged(stagingDir);
+        }
+    }
+}
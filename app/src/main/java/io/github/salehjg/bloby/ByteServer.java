@@ -3,37 +3,290 @@ package io.github.salehjg.bloby;
 import android.os.Handler;
 import android.os.Looper;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ByteServer {
 
     public interface OnDataReceivedListener {
-        void onBlobReceived(String blobName, String datetime, String fullJson, byte[] fileData);
+        void onBlobReceived(ReceivedBlob blob);
 
         void onServerStatus(String status);
+
+        /**
+         * Called with true whenever a client connects, and with false once the last one leaves.
+         */
+        void onClientConnectionChanged(boolean connected);
+
+        /**
+         * A batch frame was received. Unlike {@link #onBlobReceived}, this is called on the
+         * receive thread so the whole batch can be stored before the next frame is read.
+         */
+        void onBatchReceived(List<ReceivedBlob> blobs);
+
+        /**
+         * A tree blob starts, see {@link BlobTree}. Called on the receive thread, like everything
+         * the returned sink is then given.
+         */
+        TreeSink onTreeStarted(BlobMeta meta) throws IOException;
+    }
+
+    /**
+     * Stores a tree blob entry by entry as it streams in, and commits it after the last one.
+     * Nothing of the tree may be visible before {@link #commit}.
+     */
+    public interface TreeSink {
+        /**
+         * Store one entry, reading exactly its size from {@code data}.
+         */
+        void receive(BlobTree.Entry entry, InputStream data) throws IOException;
+
+        void commit() throws Exception;
+
+        /**
+         * Drop what was stored, e.g. because the client disconnected mid-tree.
+         */
+        void abort();
+    }
+
+    /**
+     * Answers request frames (any control type other than ping, batch and the tree frames) on the
+     * receive thread.
+     */
+    public interface RequestHandler {
+        Reply handleRequest(JSONObject request) throws Exception;
+    }
+
+    public static class Reply {
+        public final JSONObject json;
+        public final byte[] payload;
+
+        public Reply(JSONObject json, byte[] payload) {
+            this.json = json;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Supplies a blob payload for {@link #broadcastBlob}. It is opened once for the shared read,
+     * and again only for clients that fall too far behind it.
+     */
+    public interface PayloadSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Writes one or more frames to the output {@link #writeFrames} picked.
+     */
+    private interface FrameWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * One received blob, from a blob frame or unpacked from a batch frame.
+     */
+    public static class ReceivedBlob {
+        public final String blobName;
+        public final String datetime;
+        public final BlobMeta meta;
+        public final byte[] fileData;
+
+        ReceivedBlob(BlobMeta meta, byte[] fileData) {
+            this.blobName = meta.blobName != null ? meta.blobName : "unknown";
+            this.datetime = meta.datetime != null ? meta.datetime : "unknown";
+            this.meta = meta;
+            this.fileData = fileData;
+        }
+    }
+
+    /**
+     * One connected client. Each has its own receive thread.
+     */
+    private static class ClientSession {
+        final Socket socket;
+        final TransportTuner tuner;
+        final String host;
+        // Frames from the receive thread (replies) and sender threads must not interleave
+        final Object writeLock = new Object();
+        volatile boolean connected = true;
+        // Blobs are only pushed after the client's handshake; clients that only send or pull say
+        // so there and never get pushed blobs
+        volatile boolean acceptsPushes = false;
+        // Hashes the client announced in a "have" frame (same format as the catalog manifest), so
+        // pushes of blobs it already has can be skipped
+        volatile Set<String> hashes = Collections.emptySet();
+        // Blob metadata format agreed in the handshake, null for JSON
+        volatile String metaFormat = null;
+        // Set once the handshake switched the connection to multiplexed streams; frames are then
+        // written on streams of their own instead of under the write lock
+        volatile StreamMux mux;
+
+        ClientSession(Socket socket, TransportTuner tuner) {
+            this.socket = socket;
+            this.tuner = tuner;
+            this.host = socket.getInetAddress().getHostAddress();
+        }
+
+        boolean canReceivePushes() {
+            return connected && acceptsPushes && !socket.isClosed();
+        }
+
+        boolean hasBlob(String sha256) {
+            return sha256 != null && hashes.contains(sha256.toLowerCase());
+        }
+
+        boolean wantsBinaryMeta() {
+            return BlobMeta.FORMAT_TLV.equals(metaFormat);
+        }
+    }
+
+    /**
+     * A tree blob between its begin and end frames.
+     */
+    private static class TreeReceive {
+        final String name;
+        final int expectedEntries;
+        final TransferProgress progress;
+        TreeSink sink;
+        int receivedEntries;
+        // Set once the tree cannot be stored any more; its remaining entries are only drained
+        String error;
+
+        TreeReceive(String name, int expectedEntries, TransferProgress progress) {
+            this.name = name;
+            this.expectedEntries = expectedEntries;
+            this.progress = progress;
+        }
+    }
+
+    /**
+     * Where frames come from: the connection itself, or one of its streams once multiplexed.
+     * Only touched by the thread reading it.
+     */
+    private static class Inbound {
+        final ClientSession session;
+        final InputStream in;
+        // Null when not multiplexed
+        final StreamMux.Input stream;
+        // Tree being received; a tree never spans streams
+        TreeReceive tree;
+        int blobCount;
+
+        Inbound(ClientSession session, InputStream in, StreamMux.Input stream) {
+            this.session = session;
+            this.in = in;
+            this.stream = stream;
+        }
+    }
+
+    /**
+     * The payload of the frame being received, read in tuned chunks. Remembers if the connection
+     * (or stream) failed, so that can be told apart from a failure to store the data.
+     */
+    private static class PayloadInputStream extends InputStream {
+        private final Inbound inbound;
+        private final InputStream in;
+        private final TransportTuner tuner;
+        private final TransferProgress progress;
+        private long remaining;
+        boolean connectionLost;
+
+        PayloadInputStream(Inbound inbound, long length, TransferProgress progress) {
+            this.inbound = inbound;
+            this.in = inbound.in;
+            this.tuner = inbound.session.tuner;
+            this.progress = progress;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            long readStart = System.nanoTime();
+            int bytesRead;
+            try {
+                bytesRead = in.read(buffer, offset, (int) Math.min(Math.min(length, remaining), tuner.getChunkSize()));
+            } catch (IOException e) {
+                connectionLost = true;
+                throw e;
+            }
+            if (bytesRead < 0) {
+                connectionLost = true;
+                throw new IOException("Connection lost while reading file data");
+            }
+            remaining -= bytesRead;
+            if (progress != null) {
+                progress.add(bytesRead);
+            }
+            if (inbound.stream == null && tuner.onPayloadRead(bytesRead, System.nanoTime() - readStart)) {
+                tuner.apply(inbound.session.socket);
+            }
+            return bytesRead;
+        }
+
+        void drain() throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // discard
+            }
+        }
     }
 
     private OnDataReceivedListener listener;
+    private RequestHandler requestHandler;
     private ServerSocket serverSocket;
     private boolean isRunning = false;
 
-    private Socket currentClientSocket = null;
-    private boolean hasConnectedClient = false;
+    private final List<ClientSession> sessions = new CopyOnWriteArrayList<>();
+    private final TransferTracker transferTracker = new TransferTracker();
+    // Last measured throughput per client host, used to seed the tuner of its next connection
+    private final java.util.Map<String, Double> throughputByHost = new java.util.concurrent.ConcurrentHashMap<>();
 
     public void setOnDataReceivedListener(OnDataReceivedListener listener) {
         this.listener = listener;
     }
 
+    public void setRequestHandler(RequestHandler requestHandler) {
+        this.requestHandler = requestHandler;
+    }
+
+    /**
+     * Progress of the blob payloads moving in either direction, and the way to cancel them
+     */
+    public TransferTracker getTransferTracker() {
+        return transferTracker;
+    }
+
     public void startServer(int port) {
         if (isRunning) {
             notifyStatus("Server already running!");
@@ -42,7 +295,12 @@ public class ByteServer {
 
         new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(port);
+                serverSocket = new ServerSocket();
+                serverSocket.setReuseAddress(true);
+                // Must be set before bind() so accepted sockets can negotiate a large TCP window
+                serverSocket.setReceiveBufferSize(TransportTuner.INITIAL_RECEIVE_BUFFER);
+                // The wildcard address: every interface, IPv4 and IPv6 (see NetworkPaths)
+                serverSocket.bind(new InetSocketAddress(port));
                 isRunning = true;
                 notifyStatus("Server started on port " + port + ", waiting for connections...");
 
@@ -50,7 +308,8 @@ public class ByteServer {
                     try {
                         Socket clientSocket = serverSocket.accept();
                         notifyStatus("Client connected: " + clientSocket.getInetAddress());
-                        handleClient(clientSocket);
+                        // Several clients can be connected at once, e.g. to receive a broadcast
+                        new Thread(() -> handleClient(clientSocket)).start();
                     } catch (Exception e) {
                         if (isRunning) {
                             notifyStatus("Error accepting connection: " + e.getMessage());
@@ -68,212 +327,990 @@ public class ByteServer {
     }
 
     public boolean hasConnectedClient() {
-        return hasConnectedClient && currentClientSocket != null && !currentClientSocket.isClosed();
+        return pushTarget() != null;
+    }
+
+    /**
+     * @return the number of connected clients that accept pushed blobs
+     */
+    public int getPushClientCount() {
+        int count = 0;
+        for (ClientSession session : sessions) {
+            if (session.canReceivePushes()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the client single sends go to announced that it already has a blob with
+     * this hash
+     */
+    public boolean clientHasBlob(String sha256) {
+        ClientSession target = pushTarget();
+        return target != null && target.hasBlob(sha256);
     }
 
+    /**
+     * Send a blob to the most recently connected client that accepts pushes.
+     */
     public void sendBlobToClient(String jsonData, byte[] fileData) throws Exception {
-        if (!hasConnectedClient()) {
+        ClientSession session = pushTarget();
+        if (session == null) {
             throw new Exception("No client connected");
         }
 
+        JSONObject json = BlobMeta.forClient(jsonData);
+        TransferProgress progress = transferTracker.begin(TransferProgress.Direction.SEND,
+                json.optString("blob_name", "unknown"), fileData.length, () -> abandonSend(session));
+        Exception error = null;
         try {
-            java.io.OutputStream outputStream = currentClientSocket.getOutputStream();
+            // Binary metadata if the client negotiated it, compact JSON otherwise
+            byte[] jsonBytes = session.wantsBinaryMeta()
+                    ? BlobMeta.fromJson(json).encode() : json.toString().getBytes(StandardCharsets.UTF_8);
 
-            // Convert JSON to bytes
-            byte[] jsonBytes = jsonData.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            long sendStart = Tracer.begin();
+            writeFrame(session, jsonBytes, fileData, progress);
+            Tracer.end("send blob", "net", sendStart, progress.getId());
+
+            if (listener != null) {
+                listener.onServerStatus("Sent blob to client: JSON " + jsonBytes.length + " bytes, File " + fileData.length + " bytes");
+            }
+
+        } catch (Exception e) {
+            abandonSend(session);
+            error = progress.isCancelled() ? new TransferProgress.CancelledException(progress.getName()) : e;
+            throw error;
+        } finally {
+            transferTracker.end(progress, error);
+        }
+    }
+
+    /**
+     * Send a tree blob to the most recently connected client that accepts pushes, streaming each
+     * entry from its file right after the previous one, see {@link BlobTree}.
+     */
+    public void sendTreeToClient(String jsonData, List<BlobTree.Entry> entries) throws Exception {
+        ClientSession session = pushTarget();
+        if (session == null) {
+            throw new Exception("No client connected");
+        }
+
+        JSONObject begin = BlobMeta.forClient(jsonData);
+        long totalSize = BlobTree.totalSize(entries);
+        begin.put("type", BlobTree.TYPE_BEGIN);
+        begin.put("entries", entries.size());
+        begin.put("size", totalSize);
+        JSONObject end = new JSONObject();
+        end.put("type", BlobTree.TYPE_END);
+        end.put("entries", entries.size());
+
+        List<byte[]> entryHeaders = new ArrayList<>(entries.size());
+        for (BlobTree.Entry entry : entries) {
+            if (entry.size > Integer.MAX_VALUE) {
+                throw new IOException(entry.path + " is too large for a single frame");
+            }
+            entryHeaders.add(entry.toJson().toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        TransferProgress progress = transferTracker.begin(TransferProgress.Direction.SEND,
+                begin.optString("blob_name", "unknown") + " (tree)", totalSize, () -> abandonSend(session));
+        Exception error = null;
+        try {
+            long sendStart = Tracer.begin();
+            int chunkSize = session.tuner.getChunkSize();
+            // One tree is one contiguous frame sequence
+            writeFrames(session, out -> {
+                writeFrame(out, chunkSize, begin.toString().getBytes(StandardCharsets.UTF_8), new byte[0], null);
+                for (int i = 0; i < entries.size(); i++) {
+                    BlobTree.Entry entry = entries.get(i);
+                    try (InputStream in = entry.directory ? null : new FileInputStream(entry.file)) {
+                        writeStreamFrame(out, chunkSize, entryHeaders.get(i), in, (int) entry.size, progress);
+                    }
+                }
+                writeFrame(out, chunkSize, end.toString().getBytes(StandardCharsets.UTF_8), new byte[0], null);
+            });
+            Tracer.end("send tree", "net", sendStart, progress.getId());
+            notifyStatus("Sent tree to client: " + entries.size() + " entries, " + totalSize + " bytes");
+        } catch (Exception e) {
+            abandonSend(session);
+            error = progress.isCancelled() ? new TransferProgress.CancelledException(progress.getName()) : e;
+            throw error;
+        } finally {
+            transferTracker.end(progress, error);
+        }
+    }
 
-            // Send JSON length as 4-byte integer (big-endian)
-            int jsonLength = jsonBytes.length;
-            outputStream.write((jsonLength >> 24) & 0xFF);
-            outputStream.write((jsonLength >> 16) & 0xFF);
-            outputStream.write((jsonLength >> 8) & 0xFF);
-            outputStream.write(jsonLength & 0xFF);
+    /**
+     * Send one blob to every client that accepts pushes and does not have it yet, concurrently.
+     * The payload is read from the source once into a {@link FanOutRing} and each client gets its
+     * own writer thread; a client that falls a whole ring behind continues from a private read
+     * instead of holding back the others.
+     *
+     * @return the number of clients the blob was delivered to
+     */
+    public int broadcastBlob(String jsonData, long payloadLength, PayloadSource source) throws Exception {
+        if (payloadLength > Integer.MAX_VALUE) {
+            throw new IOException("Payload too large for a single frame");
+        }
+        JSONObject json = BlobMeta.forClient(jsonData);
+        String sha256 = json.optString("sha256", null);
+        List<ClientSession> targets = new ArrayList<>();
+        int alreadyHave = 0;
+        for (ClientSession session : sessions) {
+            if (!session.canReceivePushes()) continue;
+            if (session.hasBlob(sha256)) {
+                alreadyHave++;
+            } else {
+                targets.add(session);
+            }
+        }
+        if (targets.isEmpty()) {
+            if (alreadyHave == 0) {
+                throw new Exception("No client connected");
+            }
+            notifyStatus("All " + alreadyHave + " client(s) already have the blob");
+            return 0;
+        }
 
-            // Send JSON data
-            outputStream.write(jsonBytes);
+        byte[] jsonBytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] binaryBytes = BlobMeta.fromJson(json).encode();
+        TransferProgress progress = transferTracker.begin(TransferProgress.Direction.SEND,
+                json.optString("blob_name", "unknown") + " to " + targets.size() + " clients",
+                payloadLength * targets.size(), () -> {
+                    for (ClientSession session : targets) {
+                        abandonSend(session);
+                    }
+                });
+        FanOutRing ring = new FanOutRing(targets.size(), FanOutRing.DEFAULT_SLOTS, FanOutRing.DEFAULT_CHUNK_SIZE);
+        AtomicInteger delivered = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            ClientSession session = targets.get(i);
+            int consumer = i;
+            Thread writer = new Thread(() -> {
+                long writeStart = Tracer.begin();
+                byte[] header = session.wantsBinaryMeta() ? binaryBytes : jsonBytes;
+                try {
+                    writeFrameFromRing(session, header, (int) payloadLength, ring, consumer, source, progress);
+                    delivered.incrementAndGet();
+                    Tracer.end("broadcast write", "net", writeStart, progress.getId());
+                } catch (Exception e) {
+                    ring.detach(consumer);
+                    abandonSend(session);
+                    notifyStatus("Broadcast to " + session.host + " failed: " + e.getMessage());
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
 
-            // Send file length as 4-byte integer (big-endian)
-            int fileLength = fileData.length;
-            outputStream.write((fileLength >> 24) & 0xFF);
-            outputStream.write((fileLength >> 16) & 0xFF);
-            outputStream.write((fileLength >> 8) & 0xFF);
-            outputStream.write(fileLength & 0xFF);
+        IOException readFailure = null;
+        long readStart = Tracer.begin();
+        try (InputStream in = source.open()) {
+            while (!progress.isCancelled() && ring.fill(in)) {
+                // the writers drain the ring
+            }
+            ring.finish();
+        } catch (IOException e) {
+            readFailure = e;
+            ring.fail(e);
+        }
+        Tracer.end("broadcast read", "storage", readStart, progress.getId());
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        if (progress.isCancelled()) {
+            readFailure = new TransferProgress.CancelledException(progress.getName());
+        }
+        transferTracker.end(progress, readFailure);
+        if (readFailure != null) {
+            throw readFailure;
+        }
+        notifyStatus("Broadcast blob to " + delivered.get() + " of " + targets.size() + " client(s)" +
+                (alreadyHave > 0 ? ", " + alreadyHave + " already had it" : ""));
+        return delivered.get();
+    }
 
-            // Send file data
-            outputStream.write(fileData);
+    private void writeFrameFromRing(ClientSession session, byte[] jsonBytes, int payloadLength, FanOutRing ring,
+                                    int consumer, PayloadSource source, TransferProgress progress) throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(4 + jsonBytes.length + 4);
+        header.putInt(jsonBytes.length);
+        header.put(jsonBytes);
+        header.putInt(payloadLength);
 
+        writeFrames(session, outputStream -> {
+            outputStream.write(header.array());
+            byte[] chunk = new byte[ring.getChunkSize()];
+            long sent = 0;
+            try {
+                int length;
+                while ((length = ring.take(consumer, chunk)) >= 0) {
+                    progress.checkCancelled();
+                    outputStream.write(chunk, 0, length);
+                    sent += length;
+                    progress.add(length);
+                }
+            } catch (FanOutRing.OverrunException e) {
+                // Too slow for the shared read, finish with a private one
+                notifyStatus("Client " + session.host + " fell behind the broadcast, reading separately");
+                try (InputStream in = source.open()) {
+                    long skipped = 0;
+                    while (skipped < sent) {
+                        long n = in.skip(sent - skipped);
+                        if (n <= 0) throw new IOException("Payload shorter than its recorded size");
+                        skipped += n;
+                    }
+                    int length;
+                    while ((length = in.read(chunk)) > 0) {
+                        progress.checkCancelled();
+                        outputStream.write(chunk, 0, length);
+                        sent += length;
+                        progress.add(length);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Broadcast interrupted");
+            }
+            if (sent != payloadLength) {
+                throw new IOException("Payload is " + sent + " bytes, expected " + payloadLength);
+            }
             outputStream.flush();
+        });
+    }
 
-            if (listener != null) {
-                listener.onServerStatus("Sent blob to client: JSON " + jsonBytes.length + " bytes, File " + fileData.length + " bytes");
+    /**
+     * Write one frame: JSON length, JSON, payload length, payload (lengths are 4-byte big-endian).
+     * The header goes out in a single write since TCP_NODELAY is on, the payload in tuned chunks.
+     */
+    private void writeFrame(ClientSession session, byte[] jsonBytes, byte[] payload) throws IOException {
+        writeFrame(session, jsonBytes, payload, null);
+    }
+
+    private void writeFrame(ClientSession session, byte[] jsonBytes, byte[] payload, TransferProgress progress) throws IOException {
+        int chunkSize = session.tuner.getChunkSize();
+        writeFrames(session, outputStream -> writeFrame(outputStream, chunkSize, jsonBytes, payload, progress));
+    }
+
+    private static void writeFrame(OutputStream outputStream, int chunkSize, byte[] jsonBytes, byte[] payload,
+                                   TransferProgress progress) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + jsonBytes.length + 4);
+        header.putInt(jsonBytes.length);
+        header.put(jsonBytes);
+        header.putInt(payload.length);
+
+        outputStream.write(header.array());
+        for (int offset = 0; offset < payload.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, payload.length - offset);
+            if (progress != null) {
+                progress.checkCancelled();
+            }
+            outputStream.write(payload, offset, length);
+            if (progress != null) {
+                progress.add(length);
+            }
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Write one frame whose payload streams from {@code in} (null for an empty payload).
+     */
+    private static void writeStreamFrame(OutputStream outputStream, int chunkSize, byte[] jsonBytes, InputStream in,
+                                         int payloadLength, TransferProgress progress) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + jsonBytes.length + 4);
+        header.putInt(jsonBytes.length);
+        header.put(jsonBytes);
+        header.putInt(payloadLength);
+
+        byte[] chunk = new byte[Math.min(chunkSize, payloadLength)];
+        outputStream.write(header.array());
+        int sent = 0;
+        while (sent < payloadLength) {
+            progress.checkCancelled();
+            int length = in.read(chunk, 0, Math.min(chunk.length, payloadLength - sent));
+            if (length < 0) {
+                throw new IOException("File shrank while sending, " + sent + " of " + payloadLength + " bytes");
+            }
+            outputStream.write(chunk, 0, length);
+            sent += length;
+            progress.add(length);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Write frames that must stay together: on the socket under the write lock, or once the
+     * connection is multiplexed, on a stream of their own that interleaves with everything else.
+     * If the writer fails midway the stream is reset, which the client discards.
+     */
+    private void writeFrames(ClientSession session, FrameWriter writer) throws IOException {
+        synchronized (session.writeLock) {
+            // Checked under the lock: the pong that switches the connection is written under it
+            if (session.mux == null) {
+                writer.write(session.socket.getOutputStream());
+                return;
+            }
+        }
+        StreamMux.Output stream = session.mux.openStream();
+        boolean written = false;
+        try {
+            writer.write(stream);
+            written = true;
+        } finally {
+            if (written) {
+                stream.close();
+            } else {
+                stream.abort();
+            }
+        }
+    }
+
+    /**
+     * After a send failed or was cancelled: a frame cut off halfway leaves the connection unusable,
+     * so the client is dropped, unless the frame was on a stream of its own.
+     */
+    private void abandonSend(ClientSession session) {
+        if (session.mux == null) {
+            dropSession(session);
+        }
+    }
+
+    /**
+     * Cancel what is being received: only its stream if multiplexed, the whole client otherwise.
+     */
+    private void cancelInbound(Inbound inbound) {
+        if (inbound.stream != null) {
+            inbound.stream.cancel();
+        } else {
+            dropSession(inbound.session);
+        }
+    }
+
+    /**
+     * @return the most recently connected client that accepts pushes, or null
+     */
+    private ClientSession pushTarget() {
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            ClientSession session = sessions.get(i);
+            if (session.canReceivePushes()) return session;
+        }
+        return null;
+    }
+
+    /**
+     * Disconnect a client whose stream can no longer be trusted; its threads then wind down.
+     */
+    private void dropSession(ClientSession session) {
+        session.connected = false;
+        try {
+            session.socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Answer a ping control frame. The client reports the RTT it measured on the previous
+     * ping, and gets the currently chosen transport parameters back. A client listing
+     * "meta_formats" is told in "meta_format" if blob metadata may go binary both ways. A client
+     * asking for "mux" (on its last handshake ping, sending nothing else until the pong) is told
+     * the stream window in "mux", and both sides switch to {@link StreamMux} segments right after
+     * the pong. A client asking for "paths" gets every address of this device in "paths", see
+     * {@link NetworkPaths}.
+     */
+    private void handlePing(ClientSession session, JSONObject ping) throws IOException, JSONException {
+        TransportTuner tuner = session.tuner;
+        session.acceptsPushes = ping.optBoolean("accept_pushes", true);
+        tuner.onRttSample(ping.optDouble("rtt_ms", -1));
+        tuner.apply(session.socket);
+
+        JSONObject pong = new JSONObject();
+        pong.put("type", "pong");
+        pong.put("seq", ping.optInt("seq", 0));
+        pong.put("tuning", tuner.toJson());
+        JSONArray metaFormats = ping.optJSONArray("meta_formats");
+        if (metaFormats != null) {
+            for (int i = 0; i < metaFormats.length(); i++) {
+                if (BlobMeta.FORMAT_TLV.equals(metaFormats.optString(i))) {
+                    session.metaFormat = BlobMeta.FORMAT_TLV;
+                    pong.put("meta_format", BlobMeta.FORMAT_TLV);
+                    break;
+                }
+            }
+        }
+        if (ping.optBoolean("paths", false)) {
+            pong.put("paths", NetworkPaths.toJson(session.socket.getLocalPort()));
+        }
+        boolean switchToMux = session.mux == null && ping.optInt("mux", 0) >= StreamMux.VERSION;
+        if (switchToMux) {
+            JSONObject mux = new JSONObject();
+            mux.put("version", StreamMux.VERSION);
+            mux.put("window", StreamMux.WINDOW);
+            mux.put("segment", StreamMux.SEGMENT_SIZE);
+            mux.put("max_streams", StreamMux.MAX_STREAMS);
+            pong.put("mux", mux);
+        }
+        // Nothing else may be written between the pong and the switch
+        synchronized (session.writeLock) {
+            writeFrame(session, pong.toString().getBytes(StandardCharsets.UTF_8), new byte[0]);
+            if (switchToMux) {
+                session.mux = new StreamMux(session.socket);
+            }
+        }
+    }
+
+    /**
+     * Split a batch frame into its blobs. The frame header carries each blob's metadata and
+     * size; the payload is all blob payloads concatenated in that order.
+     */
+    private List<ReceivedBlob> unpackBatch(BlobMeta.Frame batch, byte[] payload) throws JSONException {
+        List<ReceivedBlob> blobs = new ArrayList<>(batch.entries.size());
+        int offset = 0;
+        for (int i = 0; i < batch.entries.size(); i++) {
+            int size = batch.sizes.get(i);
+            if (size < 0 || offset + size > payload.length) {
+                throw new JSONException("Batch entry " + i + " exceeds the payload");
+            }
+            byte[] fileData = Arrays.copyOfRange(payload, offset, offset + size);
+            offset += size;
+            blobs.add(new ReceivedBlob(batch.entries.get(i), fileData));
+        }
+        return blobs;
+    }
+
+    /**
+     * Start receiving a tree. The begin frame carries the blob metadata plus the number of entries
+     * and their total size.
+     */
+    private void beginTree(Inbound inbound, JSONObject begin) throws JSONException {
+        if (inbound.tree != null) {
+            finishTree(inbound, "Tree " + inbound.tree.name + " was not finished");
+        }
+        JSONObject metaJson = new JSONObject(begin.toString());
+        metaJson.remove("type");
+        int entries = metaJson.getInt("entries");
+        metaJson.remove("entries");
+        long size = metaJson.optLong("size", 0);
+        metaJson.remove("size");
+        BlobMeta meta = BlobMeta.fromJson(metaJson);
+
+        String name = meta.blobName != null ? meta.blobName : "unknown";
+        TreeReceive tree = new TreeReceive(name, entries, transferTracker.begin(TransferProgress.Direction.RECEIVE,
+                name + " (tree)", size, () -> cancelInbound(inbound)));
+        try {
+            if (listener == null) {
+                throw new IOException("Trees are not supported");
             }
+            tree.sink = listener.onTreeStarted(meta);
+        } catch (Exception e) {
+            tree.error = e.getMessage();
+            notifyStatus("Cannot store tree " + name + ": " + tree.error);
+        }
+        inbound.tree = tree;
+    }
 
+    /**
+     * Store one tree entry straight from the socket. If it cannot be stored the tree is marked as
+     * failed and the entry drained, so the stream stays usable.
+     *
+     * @throws IOException only if the connection failed
+     */
+    private void receiveTreeEntry(Inbound inbound, JSONObject header, int length) throws IOException {
+        ClientSession session = inbound.session;
+        TreeReceive tree = inbound.tree;
+        PayloadInputStream payload = new PayloadInputStream(inbound, length, tree != null ? tree.progress : null);
+        try {
+            if (tree == null) {
+                throw new IOException("Tree entry outside of a tree");
+            }
+            if (tree.error == null) {
+                tree.sink.receive(BlobTree.Entry.fromJson(header, length), payload);
+                tree.receivedEntries++;
+            }
         } catch (Exception e) {
-            hasConnectedClient = false;
-            currentClientSocket = null;
+            if (payload.connectionLost) {
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            if (tree == null) {
+                notifyStatus("Dropped " + header.optString("path") + ": " + e.getMessage());
+            } else {
+                tree.error = header.optString("path") + ": " + e.getMessage();
+                notifyStatus("Cannot store tree " + tree.name + ", " + tree.error);
+            }
+        }
+        payload.drain();
+        if (inbound.stream == null && session.tuner.onPayloadComplete()) {
+            session.tuner.apply(session.socket);
+        }
+    }
+
+    /**
+     * Commit the session's tree if all of its entries were stored, discard it otherwise.
+     *
+     * @param failure why the tree ends without its end frame, or null at the end frame
+     */
+    private void finishTree(Inbound inbound, String failure) {
+        TreeReceive tree = inbound.tree;
+        inbound.tree = null;
+        String reason = failure != null ? failure : tree.error;
+        if (reason == null && tree.receivedEntries != tree.expectedEntries) {
+            reason = "got " + tree.receivedEntries + " of " + tree.expectedEntries + " entries";
+        }
+        Exception error = null;
+        if (reason == null) {
+            try {
+                tree.sink.commit();
+            } catch (Exception e) {
+                error = e;
+            }
+        } else {
+            if (tree.sink != null) {
+                tree.sink.abort();
+            }
+            error = tree.progress.isCancelled() ? new TransferProgress.CancelledException(tree.name)
+                    : new IOException(reason);
+        }
+        transferTracker.end(tree.progress, error);
+        notifyStatus(error == null ? "Received tree " + tree.name + " (" + tree.receivedEntries + " entries)"
+                : "Discarded tree " + tree.name + ": " + error.getMessage());
+    }
+
+    /**
+     * Answer a trace control frame: optionally turn tracing on or off or clear the buffer, and
+     * with "export" return the buffered events as trace-event JSON in the payload.
+     */
+    private void handleTrace(ClientSession session, JSONObject request) throws IOException, JSONException {
+        if (request.has("enable")) {
+            Tracer.setEnabled(request.getBoolean("enable"));
+        }
+        // Export before clearing, so "clear after download" gets the events it clears
+        int exported = 0;
+        byte[] payload = new byte[0];
+        if (request.optBoolean("export", false)) {
+            exported = Tracer.size();
+            payload = Tracer.exportJson().getBytes(StandardCharsets.UTF_8);
+        }
+        if (request.optBoolean("clear", false)) {
+            Tracer.clear();
+        }
+        JSONObject reply = new JSONObject();
+        reply.put("type", "trace_result");
+        reply.put("enabled", Tracer.isEnabled());
+        reply.put("events", Tracer.size());
+        reply.put("exported", exported);
+        if (request.has("request_id")) {
+            reply.put("request_id", request.get("request_id"));
+        }
+        writeFrame(session, reply.toString().getBytes(StandardCharsets.UTF_8), payload);
+        notifyStatus("Tracing " + (Tracer.isEnabled() ? "on" : "off") + ", " + Tracer.size() + " event(s) buffered");
+    }
+
+    /**
+     * Answer a request frame with the handler's reply, or an error frame. The request_id of the
+     * request, if any, is echoed so clients can match replies.
+     */
+    private void handleRequest(ClientSession session, JSONObject request) throws IOException, JSONException {
+        Reply reply;
+        try {
+            if (requestHandler == null) {
+                throw new IllegalStateException("Requests are not supported");
+            }
+            reply = requestHandler.handleRequest(request);
+        } catch (Exception e) {
+            JSONObject error = new JSONObject();
+            error.put("type", "error");
+            error.put("error", e.getMessage() != null ? e.getMessage() : e.toString());
+            reply = new Reply(error, new byte[0]);
+        }
+        if (request.has("request_id")) {
+            reply.json.put("request_id", request.get("request_id"));
+        }
+        TransferProgress progress = reply.payload.length > 0
+                ? transferTracker.begin(TransferProgress.Direction.SEND, request.optString("type") + " reply",
+                reply.payload.length, () -> abandonSend(session))
+                : null;
+        try {
+            writeFrame(session, reply.json.toString().getBytes(StandardCharsets.UTF_8), reply.payload, progress);
+        } catch (IOException e) {
+            if (progress != null) transferTracker.end(progress, e);
             throw e;
         }
+        if (progress != null) transferTracker.end(progress, null);
+        if (listener != null) {
+            listener.onServerStatus("Answered " + request.optString("type") + " request (" + reply.payload.length + " bytes)");
+        }
     }
 
-    private void handleClient(Socket clientSocket) {
-        this.currentClientSocket = clientSocket;
-        this.hasConnectedClient = true;
+    private static JSONObject parseFrameJson(String jsonString) {
+        try {
+            return new JSONObject(jsonString);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the blob or batch a frame carries, or null for control frames and malformed headers
+     * (those are reported once the payload has been read)
+     */
+    private static BlobMeta.Frame parseBlobFrame(byte[] jsonBytes, JSONObject frameJson) {
+        try {
+            if (BlobMeta.isBinaryHeader(jsonBytes)) {
+                return BlobMeta.decodeFrame(jsonBytes);
+            }
+            return frameJson != null ? BlobMeta.Frame.fromJson(frameJson) : null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return what a frame carries, for progress reporting, or null for control frames
+     */
+    private static String transferNameOf(BlobMeta.Frame frame) {
+        if (frame == null) {
+            return null;
+        }
+        if (frame.isBatch()) {
+            return "batch of " + frame.entries.size() + " blob(s)";
+        }
+        return frame.blob.blobName != null ? frame.blob.blobName : "unknown";
+    }
 
+    /**
+     * Read and handle one frame.
+     *
+     * @return false once the connection or stream has ended
+     */
+    private boolean receiveFrame(Inbound inbound) throws IOException {
+        ClientSession session = inbound.session;
+        Socket clientSocket = session.socket;
+        InputStream inputStream = inbound.in;
+        TransportTuner tuner = session.tuner;
+        // Reads from a stream say nothing about the socket
+        boolean sampleTuner = inbound.stream == null;
         if (listener != null) {
-            listener.onServerStatus("Python client connected, starting listener thread");
+            listener.onServerStatus("Loop iteration " + (inbound.blobCount + 1) + ", waiting for next blob...");
         }
 
-        // Create a dedicated thread to listen for incoming data
-        new Thread(() -> {
-            try {
-                InputStream inputStream = clientSocket.getInputStream();
-                int blobCount = 0;
+        // Try to read JSON length - this will block until data arrives
+        if (listener != null) {
+            listener.onServerStatus("Attempting to read JSON length header...");
+        }
+
+        byte[] jsonLengthBytes = new byte[4];
+        int totalRead = 0;
+
+        // Read exactly 4 bytes for JSON length
+        while (totalRead < 4) {
+            if (listener != null && totalRead == 0) {
+                listener.onServerStatus("Blocking read for JSON length...");
+            }
+
+            int bytesRead = inputStream.read(jsonLengthBytes, totalRead, 4 - totalRead);
 
+            if (listener != null) {
+                listener.onServerStatus("Read " + bytesRead + " bytes for JSON length header");
+            }
+
+            if (bytesRead == -1) {
                 if (listener != null) {
-                    listener.onServerStatus("Listener thread started, beginning receive loop");
+                    listener.onServerStatus("Client disconnected (EOF) - exiting listener");
                 }
+                return false; // Exit thread when client disconnects
+            }
+            totalRead += bytesRead;
+        }
 
-                // KEEP LISTENING IN A LOOP - don't exit after one blob
-                while (hasConnectedClient && !clientSocket.isClosed()) {
-                    try {
-                        if (listener != null) {
-                            listener.onServerStatus("Loop iteration " + (blobCount + 1) + ", waiting for next blob...");
-                        }
+        if (listener != null) {
+            listener.onServerStatus("Received JSON length header, processing blob...");
+        }
 
-                        // Try to read JSON length - this will block until data arrives
-                        if (listener != null) {
-                            listener.onServerStatus("Attempting to read JSON length header...");
-                        }
+        // The wait for the next frame is idle time, the frame's phases start here
+        long transferId = Tracer.newId();
+        long headerStart = Tracer.begin();
 
-                        byte[] jsonLengthBytes = new byte[4];
-                        int totalRead = 0;
+        // Parse JSON length
+        int jsonLength = ((jsonLengthBytes[0] & 0xFF) << 24) |
+                ((jsonLengthBytes[1] & 0xFF) << 16) |
+                ((jsonLengthBytes[2] & 0xFF) << 8) |
+                (jsonLengthBytes[3] & 0xFF);
 
-                        // Read exactly 4 bytes for JSON length
-                        while (totalRead < 4) {
-                            if (listener != null && totalRead == 0) {
-                                listener.onServerStatus("Blocking read for JSON length...");
-                            }
+        if (listener != null) {
+            listener.onServerStatus("JSON length: " + jsonLength);
+        }
 
-                            int bytesRead = inputStream.read(jsonLengthBytes, totalRead, 4 - totalRead);
+        // Read JSON data
+        byte[] jsonBytes = new byte[jsonLength];
+        totalRead = 0;
+        while (totalRead < jsonLength) {
+            int bytesRead = inputStream.read(jsonBytes, totalRead, jsonLength - totalRead);
+            if (bytesRead == -1) {
+                if (listener != null) {
+                    listener.onServerStatus("Connection lost while reading JSON");
+                }
+                return false;
+            }
+            totalRead += bytesRead;
+        }
 
-                            if (listener != null) {
-                                listener.onServerStatus("Read " + bytesRead + " bytes for JSON length header");
-                            }
+        boolean binaryHeader = BlobMeta.isBinaryHeader(jsonBytes);
+        String jsonString = binaryHeader ? null : new String(jsonBytes, StandardCharsets.UTF_8);
+        if (listener != null) {
+            listener.onServerStatus(binaryHeader ? "Received binary header, length: " + jsonLength
+                    : "Received JSON, length: " + jsonString.length());
+        }
 
-                            if (bytesRead == -1) {
-                                if (listener != null) {
-                                    listener.onServerStatus("Client disconnected (EOF) - exiting listener");
-                                }
-                                return; // Exit thread when client disconnects
-                            }
-                            totalRead += bytesRead;
-                        }
+        // Read file length
+        byte[] fileLengthBytes = new byte[4];
+        totalRead = 0;
+        while (totalRead < 4) {
+            int bytesRead = inputStream.read(fileLengthBytes, totalRead, 4 - totalRead);
+            if (bytesRead == -1) {
+                if (listener != null) {
+                    listener.onServerStatus("Connection lost while reading file length");
+                }
+                return false;
+            }
+            totalRead += bytesRead;
+        }
 
-                        if (listener != null) {
-                            listener.onServerStatus("Received JSON length header, processing blob...");
-                        }
+        int fileLength = ((fileLengthBytes[0] & 0xFF) << 24) |
+                ((fileLengthBytes[1] & 0xFF) << 16) |
+                ((fileLengthBytes[2] & 0xFF) << 8) |
+                (fileLengthBytes[3] & 0xFF);
 
-                        // Parse JSON length
-                        int jsonLength = ((jsonLengthBytes[0] & 0xFF) << 24) |
-                                ((jsonLengthBytes[1] & 0xFF) << 16) |
-                                ((jsonLengthBytes[2] & 0xFF) << 8) |
-                                (jsonLengthBytes[3] & 0xFF);
+        if (listener != null) {
+            listener.onServerStatus("File length: " + fileLength);
+        }
 
-                        if (listener != null) {
-                            listener.onServerStatus("JSON length: " + jsonLength);
-                        }
+        Tracer.end("read header", "net", headerStart, transferId);
 
-                        // Read JSON data
-                        byte[] jsonBytes = new byte[jsonLength];
-                        totalRead = 0;
-                        while (totalRead < jsonLength) {
-                            int bytesRead = inputStream.read(jsonBytes, totalRead, jsonLength - totalRead);
-                            if (bytesRead == -1) {
-                                if (listener != null) {
-                                    listener.onServerStatus("Connection lost while reading JSON");
-                                }
-                                return;
-                            }
-                            totalRead += bytesRead;
-                        }
+        // Blob and batch payloads are reported as transfers, cancelling one drops the client (or
+        // only its stream)
+        JSONObject frameJson = binaryHeader ? null : parseFrameJson(jsonString);
+        if (frameJson != null && BlobTree.TYPE_ENTRY.equals(frameJson.optString("type"))) {
+            // Tree entries go to storage as they arrive instead of into memory
+            long entryStart = Tracer.begin();
+            receiveTreeEntry(inbound, frameJson, fileLength);
+            Tracer.end("tree entry", "storage", entryStart, transferId);
+            return true;
+        }
+        BlobMeta.Frame blobFrame = parseBlobFrame(jsonBytes, frameJson);
+        String transferName = transferNameOf(blobFrame);
+        TransferProgress progress = transferName != null && fileLength > 0
+                ? transferTracker.begin(TransferProgress.Direction.RECEIVE, transferName, fileLength,
+                () -> cancelInbound(inbound))
+                : null;
 
-                        String jsonString = new String(jsonBytes, StandardCharsets.UTF_8);
-                        if (listener != null) {
-                            listener.onServerStatus("Received JSON, length: " + jsonString.length());
-                        }
+        // Read file data in tuned chunks, sampling throughput for the tuner
+        byte[] fileBytes = new byte[fileLength];
+        totalRead = 0;
+        boolean payloadComplete = false;
+        long payloadStart = fileLength > 0 ? Tracer.begin() : 0;
+        try {
+            while (totalRead < fileLength) {
+                long readStart = System.nanoTime();
+                int bytesRead = inputStream.read(fileBytes, totalRead,
+                        Math.min(tuner.getChunkSize(), fileLength - totalRead));
+                if (bytesRead == -1) {
+                    if (listener != null) {
+                        listener.onServerStatus("Connection lost while reading file data");
+                    }
+                    return false;
+                }
+                totalRead += bytesRead;
+                if (progress != null) {
+                    progress.add(bytesRead);
+                }
+                if (sampleTuner && tuner.onPayloadRead(bytesRead, System.nanoTime() - readStart)) {
+                    tuner.apply(clientSocket);
+                    if (listener != null) {
+                        listener.onServerStatus("Transport tuned: " + tuner);
+                    }
+                }
+            }
+            payloadComplete = true;
+        } finally {
+            Tracer.end("read payload", "net", payloadStart, transferId);
+            if (progress != null) {
+                transferTracker.end(progress, payloadComplete ? null
+                        : new IOException("Connection lost while reading file data"));
+            }
+        }
+        if (sampleTuner && tuner.onPayloadComplete()) {
+            tuner.apply(clientSocket);
+            if (listener != null) {
+                listener.onServerStatus("Transport tuned: " + tuner);
+            }
+        }
 
-                        // Read file length
-                        byte[] fileLengthBytes = new byte[4];
-                        totalRead = 0;
-                        while (totalRead < 4) {
-                            int bytesRead = inputStream.read(fileLengthBytes, totalRead, 4 - totalRead);
-                            if (bytesRead == -1) {
-                                if (listener != null) {
-                                    listener.onServerStatus("Connection lost while reading file length");
-                                }
-                                return;
-                            }
-                            totalRead += bytesRead;
-                        }
+        if (listener != null) {
+            listener.onServerStatus("Successfully received blob, processing...");
+        }
+
+        // Parse JSON and trigger the callback ON MAIN THREAD
+        try {
+            // Control frames are always JSON, answered here and never reach the listener
+            JSONObject jsonObject = binaryHeader ? null
+                    : frameJson != null ? frameJson : new JSONObject(jsonString);
+            String type = jsonObject != null ? jsonObject.optString("type") : "";
+            if ("ping".equals(type)) {
+                long pingStart = Tracer.begin();
+                handlePing(session, jsonObject);
+                Tracer.end("ping", "net", pingStart, transferId);
+                return true;
+            }
+            if ("trace".equals(type)) {
+                handleTrace(session, jsonObject);
+                return true;
+            }
+            if ("have".equals(type)) {
+                session.hashes = BlobCatalog.parseManifest(fileBytes);
+                if (listener != null) {
+                    listener.onServerStatus("Client already has " + session.hashes.size() + " blob(s)");
+                }
+                return true;
+            }
+            if (BlobTree.TYPE_BEGIN.equals(type)) {
+                beginTree(inbound, jsonObject);
+                return true;
+            }
+            if (BlobTree.TYPE_END.equals(type)) {
+                if (inbound.tree == null) {
+                    throw new JSONException("Tree end without a tree");
+                }
+                long storeStart = Tracer.begin();
+                finishTree(inbound, null);
+                Tracer.end("store tree", "storage", storeStart, transferId);
+                inbound.blobCount++;
+                return true;
+            }
+            if (!type.isEmpty() && !"batch".equals(type)) {
+                long requestStart = Tracer.begin();
+                handleRequest(session, jsonObject);
+                Tracer.end(type, "request", requestStart, transferId);
+                return true;
+            }
 
-                        int fileLength = ((fileLengthBytes[0] & 0xFF) << 24) |
-                                ((fileLengthBytes[1] & 0xFF) << 16) |
-                                ((fileLengthBytes[2] & 0xFF) << 8) |
-                                (fileLengthBytes[3] & 0xFF);
+            // Blob and batch metadata is decoded once, here, into typed records
+            BlobMeta.Frame frame = blobFrame;
+            if (frame == null) {
+                // Malformed, decode again for the error
+                frame = binaryHeader ? BlobMeta.decodeFrame(jsonBytes) : BlobMeta.Frame.fromJson(jsonObject);
+            }
+            if (frame.isBatch()) {
+                List<ReceivedBlob> blobs = unpackBatch(frame, fileBytes);
+                long storeStart = Tracer.begin();
+                if (listener != null) {
+                    listener.onBatchReceived(blobs);
+                }
+                Tracer.end("store batch", "storage", storeStart, transferId);
+                inbound.blobCount += blobs.size();
+                return true;
+            }
 
-                        if (listener != null) {
-                            listener.onServerStatus("File length: " + fileLength);
-                        }
+            ReceivedBlob blob = new ReceivedBlob(frame.blob, fileBytes);
+            String blobName = blob.blobName;
 
-                        // Read file data
-                        byte[] fileBytes = new byte[fileLength];
-                        totalRead = 0;
-                        while (totalRead < fileLength) {
-                            int bytesRead = inputStream.read(fileBytes, totalRead, fileLength - totalRead);
-                            if (bytesRead == -1) {
-                                if (listener != null) {
-                                    listener.onServerStatus("Connection lost while reading file data");
-                                }
-                                return;
-                            }
-                            totalRead += bytesRead;
-                        }
+            // CRITICAL: Call listener on main thread for UI updates
+            if (listener != null) {
+                // Post to main thread using Handler
+                android.os.Handler mainHandler = new android.os.Handler(android.os.Looper.getMainLooper());
+                long postStart = Tracer.begin();
+                long flowId = Tracer.newId();
+                Tracer.flowStart("deliver blob", flowId);
+                mainHandler.post(() -> {
+                    long deliverStart = Tracer.begin();
+                    Tracer.flowEnd("deliver blob", flowId);
+                    listener.onBlobReceived(blob);
+                    listener.onServerStatus("Blob processed and added to list: " + blobName);
+                    Tracer.end("deliver blob", "main", deliverStart, transferId);
+                });
+                Tracer.end("post to main", "handoff", postStart, transferId);
+            }
 
-                        if (listener != null) {
-                            listener.onServerStatus("Successfully received blob, processing...");
-                        }
+            inbound.blobCount++;
+            if (listener != null) {
+                listener.onServerStatus("Blob " + inbound.blobCount + " completed successfully, continuing loop...");
+            }
 
-                        // Parse JSON and trigger the callback ON MAIN THREAD
-                        try {
-                            JSONObject jsonObject = new JSONObject(jsonString);
-                            String blobName = jsonObject.optString("blob_name", "unknown");
-                            String datetime = jsonObject.optString("datetime", "unknown");
-
-                            // CRITICAL: Call listener on main thread for UI updates
-                            if (listener != null) {
-                                // Post to main thread using Handler
-                                android.os.Handler mainHandler = new android.os.Handler(android.os.Looper.getMainLooper());
-                                mainHandler.post(() -> {
-                                    listener.onBlobReceived(blobName, datetime, jsonString, fileBytes);
-                                    listener.onServerStatus("Blob processed and added to list: " + blobName);
-                                });
-                            }
-
-                            blobCount++;
-                            if (listener != null) {
-                                listener.onServerStatus("Blob " + blobCount + " completed successfully, continuing loop...");
-                            }
-
-                        } catch (Exception e) {
-                            if (listener != null) {
-                                listener.onServerStatus("Error parsing received data: " + e.getMessage());
-                            }
-                            // Don't return here - continue the loop even with parsing errors
-                        }
+        } catch (Exception e) {
+            if (listener != null) {
+                listener.onServerStatus("Error parsing received data: " + e.getMessage());
+            }
+            // Don't return here - continue the loop even with parsing errors
+        }
 
-                        // CONTINUE LOOP - don't exit, wait for next blob
-                        if (listener != null) {
-                            listener.onServerStatus("End of blob processing, looping back...");
+        // CONTINUE LOOP - don't exit, wait for next blob
+        if (listener != null) {
+            listener.onServerStatus("End of blob processing, looping back...");
+        }
+        return true;
+    }
+
+    /**
+     * Read the frames of one stream the client opened, until it ends.
+     */
+    private void receiveStream(ClientSession session, StreamMux.Input stream) {
+        Inbound inbound = new Inbound(session, stream, stream);
+        try {
+            while (receiveFrame(inbound)) {
+                // next frame on this stream
+            }
+        } catch (IOException e) {
+            notifyStatus("Stream " + stream.id + " failed: " + e.getMessage());
+        } finally {
+            if (inbound.tree != null) {
+                finishTree(inbound, "Stream ended");
+            }
+            stream.close();
+        }
+    }
+
+    private void handleClient(Socket clientSocket) {
+        TransportTuner tuner = new TransportTuner();
+        ClientSession session = new ClientSession(clientSocket, tuner);
+        sessions.add(session);
+        Tracer.instant("client connected", "net", 0);
+        String clientHost = session.host;
+        Double previousThroughput = throughputByHost.get(clientHost);
+        if (previousThroughput != null) {
+            tuner.seedThroughput(previousThroughput);
+        }
+        try {
+            tuner.onConnected(clientSocket);
+        } catch (IOException e) {
+            notifyStatus("Could not configure client socket: " + e.getMessage());
+        }
+
+        if (listener != null) {
+            listener.onServerStatus("Python client connected, starting listener thread");
+        }
+        notifyConnectionChanged(true);
+
+        // Create a dedicated thread to listen for incoming data
+        new Thread(() -> {
+            Inbound inbound = null;
+            try {
+                InputStream inputStream = clientSocket.getInputStream();
+                inbound = new Inbound(session, inputStream, null);
+
+                if (listener != null) {
+                    listener.onServerStatus("Listener thread started, beginning receive loop");
+                }
+
+                // KEEP LISTENING IN A LOOP - don't exit after one blob
+                while (session.connected && !clientSocket.isClosed()) {
+                    try {
+                        if (!receiveFrame(inbound)) {
+                            return;
+                        }
+                        if (session.mux != null) {
+                            // The handshake switched the connection to streams, each read on its own thread
+                            session.mux.run(inputStream, stream -> receiveStream(session, stream));
+                            return;
                         }
 
                     } catch (IOException e) {
@@ -290,7 +1327,7 @@ public class ByteServer {
                 }
 
                 if (listener != null) {
-                    listener.onServerStatus("Exited receive loop - hasConnectedClient: " + hasConnectedClient + ", isClosed: " + clientSocket.isClosed());
+                    listener.onServerStatus("Exited receive loop - connected: " + session.connected + ", isClosed: " + clientSocket.isClosed());
                 }
 
             } catch (Exception e) {
@@ -298,6 +1335,15 @@ public class ByteServer {
                     listener.onServerStatus("Listener thread error: " + e.getMessage());
                 }
             } finally {
+                if (inbound != null && inbound.tree != null) {
+                    finishTree(inbound, "Connection lost");
+                }
+                // Lets the connection keeper below return, so the next client can be accepted
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
                 if (listener != null) {
                     listener.onServerStatus("Listener thread ended");
                 }
@@ -306,7 +1352,7 @@ public class ByteServer {
 
         // Keep main connection alive
         try {
-            while (hasConnectedClient && !clientSocket.isClosed()) {
+            while (session.connected && !clientSocket.isClosed()) {
                 Thread.sleep(1000);
             }
         } catch (Exception e) {
@@ -314,8 +1360,11 @@ public class ByteServer {
                 listener.onServerStatus("Connection keeper error: " + e.getMessage());
             }
         } finally {
-            this.hasConnectedClient = false;
-            this.currentClientSocket = null;
+            session.connected = false;
+            sessions.remove(session);
+            if (tuner.getThroughput() > 0) {
+                throughputByHost.put(clientHost, tuner.getThroughput());
+            }
             try {
                 if (!clientSocket.isClosed()) {
                     clientSocket.close();
@@ -326,6 +1375,9 @@ public class ByteServer {
             if (listener != null) {
                 listener.onServerStatus("Python client disconnected");
             }
+            if (sessions.isEmpty()) {
+                notifyConnectionChanged(false);
+            }
         }
     }
 
@@ -340,10 +1392,18 @@ public class ByteServer {
         }
     }
 
-    private void notifyBlobReceived(String blobName, String datetime, String fullJson, byte[] fileData) {
+    private void notifyBlobReceived(ReceivedBlob blob) {
+        if (listener != null) {
+            new Handler(Looper.getMainLooper()).post(() ->
+                    listener.onBlobReceived(blob)
+            );
+        }
+    }
+
+    private void notifyConnectionChanged(boolean connected) {
         if (listener != null) {
             new Handler(Looper.getMainLooper()).post(() ->
-                    listener.onBlobReceived(blobName, datetime, fullJson, fileData)
+                    listener.onClientConnectionChanged(connected)
             );
         }
     }
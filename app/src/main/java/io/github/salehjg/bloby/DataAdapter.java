@@ -4,6 +4,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
@@ -11,7 +12,9 @@ import androidx.recyclerview.widget.RecyclerView;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder> {
 
@@ -21,10 +24,14 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
         void onDeleteClicked(int position);
     }
 
-    private ArrayList<DataItem> dataList;
+    private ArrayList<DataItem> allItems;   // every blob, newest first
+    private ArrayList<DataItem> dataList;   // rows currently shown (allItems filtered by search)
+    private Set<String> visibleBlobs;       // null means no filter
     private OnItemActionListener actionListener;
+    private ThumbnailCache thumbnailCache;
 
     public DataAdapter() {
+        this.allItems = new ArrayList<>();
         this.dataList = new ArrayList<>();
         setHasStableIds(true); // Enable stable IDs
     }
@@ -33,6 +40,25 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
         this.actionListener = listener;
     }
 
+    public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    /**
+     * Warm the thumbnail cache for rows in [from, to] (clamped), typically just outside the viewport.
+     */
+    public void prefetchThumbnails(int from, int to) {
+        if (thumbnailCache == null) {
+            return;
+        }
+        int start = Math.max(0, from);
+        int end = Math.min(dataList.size() - 1, to);
+        for (int i = start; i <= end; i++) {
+            DataItem item = dataList.get(i);
+            thumbnailCache.prefetch(item.getBlobName(), item.getFileName());
+        }
+    }
+
     @NonNull
     @Override
     public DataViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -49,8 +75,12 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
     @Override
     public void onBindViewHolder(@NonNull DataViewHolder holder, int position) {
         DataItem item = dataList.get(position);
-        holder.textViewData.setText("Blob: " + item.getBlobName());
+        holder.textViewData.setText("Blob: " + item.getBlobName() + (item.isModified() ? " (modified)" : "") +
+                (BlobTiering.TIER_HOT.equals(item.getTier()) ? "" : " [" + item.getTier() + "]"));
         holder.textViewTimestamp.setText("DateTime: " + item.getDatetime());
+        if (thumbnailCache != null) {
+            thumbnailCache.load(item.getBlobName(), item.getFileName(), holder.imageViewThumbnail);
+        }
 
         // Set button click listeners using getAdapterPosition() to get current position
         holder.buttonView.setOnClickListener(v -> {
@@ -81,21 +111,110 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
         return dataList.size();
     }
 
-    public void addJsonData(String blobName, String datetime, String fullJson) {
+    public void addJsonData(String blobName, String datetime, String fileName, String fullJson) {
+        if (insertItem(blobName, datetime, fileName, fullJson)) {
+            notifyItemInserted(0);
+        }
+    }
+
+    /**
+     * Add several blobs with a single change notification, e.g. for a received batch. Each row is
+     * {blobName, datetime, fileName, fullJson}; the last row ends up on top like repeated
+     * {@link #addJsonData} calls would.
+     */
+    public void addJsonDataBatch(List<String[]> rows) {
+        int inserted = 0;
+        for (String[] row : rows) {
+            if (insertItem(row[0], row[1], row[2], row[3])) {
+                inserted++;
+            }
+        }
+        if (inserted > 0) {
+            notifyItemRangeInserted(0, inserted);
+        }
+    }
+
+    /**
+     * @return true if the new item is visible under the current filter
+     */
+    private boolean insertItem(String blobName, String datetime, String fileName, String fullJson) {
         String receivedTime = new SimpleDateFormat("HH:mm:ss", Locale.getDefault())
                 .format(new Date());
-        long id = System.currentTimeMillis() + dataList.size(); // Generate unique ID
-        dataList.add(0, new DataItem(blobName, datetime, fullJson, receivedTime, id)); // Add to top
-        notifyItemInserted(0);
+        long id = System.currentTimeMillis() + allItems.size(); // Generate unique ID
+        DataItem item = new DataItem(blobName, datetime, fileName, fullJson, receivedTime, id);
+        allItems.add(0, item); // Add to top
+        if (visibleBlobs == null || visibleBlobs.contains(blobName)) {
+            dataList.add(0, item);
+            return true;
+        }
+        return false;
     }
 
     public void removeItem(int position) {
         if (position >= 0 && position < dataList.size()) {
-            dataList.remove(position);
+            DataItem item = dataList.remove(position);
+            allItems.remove(item);
             notifyItemRemoved(position);
         }
     }
 
+    /**
+     * Replace the metadata of a blob after it changed on disk (e.g. refreshed hash after an edit).
+     */
+    public void updateItem(String blobName, String fullJson, boolean modified, String tier) {
+        for (DataItem item : allItems) {
+            if (item.getBlobName().equals(blobName)) {
+                item.fullJson = fullJson;
+                item.modified = modified;
+                item.tier = tier;
+                int position = dataList.indexOf(item);
+                if (position >= 0) {
+                    notifyItemChanged(position);
+                }
+            }
+        }
+    }
+
+    public boolean containsBlob(String blobName) {
+        for (DataItem item : allItems) {
+            if (item.getBlobName().equals(blobName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return every blob flagged as modified since it was last synced, regardless of the search filter
+     */
+    public List<DataItem> getModifiedItems() {
+        List<DataItem> modified = new ArrayList<>();
+        for (DataItem item : allItems) {
+            if (item.isModified()) {
+                modified.add(item);
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Show only the blobs in the given set (as returned by {@link BlobIndex#search}), or all when null.
+     */
+    public void setVisibleBlobs(Set<String> blobNames) {
+        visibleBlobs = blobNames;
+        dataList.clear();
+        if (blobNames == null) {
+            dataList.addAll(allItems);
+        } else {
+            for (DataItem item : allItems) {
+                if (blobNames.contains(item.getBlobName())) {
+                    dataList.add(item);
+                }
+            }
+        }
+        notifyDataSetChanged();
+    }
+
     public DataItem getItem(int position) {
         if (position >= 0 && position < dataList.size()) {
             return dataList.get(position);
@@ -104,11 +223,13 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
     }
 
     public void clearData() {
+        allItems.clear();
         dataList.clear();
         notifyDataSetChanged();
     }
 
     static class DataViewHolder extends RecyclerView.ViewHolder {
+        ImageView imageViewThumbnail;
         TextView textViewData;
         TextView textViewTimestamp;
         Button buttonView;
@@ -117,6 +238,7 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
 
         public DataViewHolder(@NonNull View itemView) {
             super(itemView);
+            imageViewThumbnail = itemView.findViewById(R.id.imageViewThumbnail);
             textViewData = itemView.findViewById(R.id.textViewData);
             textViewTimestamp = itemView.findViewById(R.id.textViewTimestamp);
             buttonView = itemView.findViewById(R.id.buttonView);
@@ -128,13 +250,17 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
     static class DataItem {
         private String blobName;
         private String datetime;
+        private String fileName;
         private String fullJson;
         private String receivedTime;
         private long id;
+        private boolean modified;
+        private String tier = BlobTiering.TIER_HOT;
 
-        public DataItem(String blobName, String datetime, String fullJson, String receivedTime, long id) {
+        public DataItem(String blobName, String datetime, String fileName, String fullJson, String receivedTime, long id) {
             this.blobName = blobName;
             this.datetime = datetime;
+            this.fileName = fileName;
             this.fullJson = fullJson;
             this.receivedTime = receivedTime;
             this.id = id;
@@ -148,6 +274,10 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
             return datetime;
         }
 
+        public String getFileName() {
+            return fileName;
+        }
+
         public String getFullJson() {
             return fullJson;
         }
@@ -159,5 +289,13 @@ public class DataAdapter extends RecyclerView.Adapter<DataAdapter.DataViewHolder
         public long getId() {
             return id;
         }
+
+        public boolean isModified() {
+            return modified;
+        }
+
+        public String getTier() {
+            return tier;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+package io.github.salehjg.bloby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A fixed ring of payload chunks, read from the source once and consumed by several writers,
+ * each at its own pace.
+ * <p>
+ * The producer only waits for the fastest consumer, so a slow receiver never holds back the
+ * others. Before overwriting a chunk that a lagging consumer has yet to take, it gives that
+ * consumer at most {@link #DEFAULT_LAG_GRACE_MS} per chunk to catch up, so a hiccup does not cost
+ * a consumer the shared read while one that is slower for good is lapped within about a ring. A
+ * consumer that falls a whole ring behind gets an {@link OverrunException} and is expected to
+ * continue from its own read of the source. Every chunk but the last is full, so chunk {@code i}
+ * always starts at byte {@code i * chunkSize}.
+ */
+class FanOutRing {
+
+    static final int DEFAULT_SLOTS = 16;
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    static final long DEFAULT_LAG_GRACE_MS = 5;
+
+    static class OverrunException extends Exception {
+        OverrunException() {
+            super("Fell behind the shared read");
+        }
+    }
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int chunkSize;
+    private final long lagGraceMs;
+    private final long[] nextChunk;
+    private final boolean[] active;
+    // The producer reads into this outside the lock, then swaps it into the ring
+    private byte[] spare;
+    private long produced = 0;
+    private boolean finished = false;
+    private IOException failure = null;
+
+    FanOutRing(int consumers, int slotCount, int chunkSize) {
+        this(consumers, slotCount, chunkSize, DEFAULT_LAG_GRACE_MS);
+    }
+
+    FanOutRing(int consumers, int slotCount, int chunkSize, long lagGraceMs) {
+        this.slots = new byte[slotCount][];
+        this.lengths = new int[slotCount];
+        this.chunkSize = chunkSize;
+        this.lagGraceMs = lagGraceMs;
+        this.nextChunk = new long[consumers];
+        this.active = new boolean[consumers];
+        Arrays.fill(active, true);
+        this.spare = new byte[chunkSize];
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Read the next chunk from the source, waiting while the fastest consumer is a whole ring
+     * behind, and up to the lag grace while any other is.
+     *
+     * @return false at the end of the source, or once no consumer is left
+     */
+    boolean fill(InputStream in) throws IOException, InterruptedException {
+        synchronized (this) {
+            while (hasActiveConsumer() && produced - fastestConsumer() >= slots.length) {
+                wait();
+            }
+            long deadline = System.currentTimeMillis() + lagGraceMs;
+            long left;
+            while (hasActiveConsumer() && produced - slowestConsumer() >= slots.length &&
+                    (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+            if (!hasActiveConsumer()) {
+                return false;
+            }
+        }
+
+        int length = 0;
+        while (length < chunkSize) {
+            int n = in.read(spare, length, chunkSize - length);
+            if (n < 0) break;
+            length += n;
+        }
+        if (length == 0) {
+            return false;
+        }
+
+        synchronized (this) {
+            int index = (int) (produced % slots.length);
+            byte[] old = slots[index];
+            slots[index] = spare;
+            lengths[index] = length;
+            spare = old != null ? old : new byte[chunkSize];
+            produced++;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Copy the consumer's next chunk into buffer, which must hold {@link #getChunkSize()} bytes.
+     *
+     * @return the chunk length, or -1 once the whole source was consumed
+     * @throws OverrunException if the chunk was already overwritten; the consumer is detached
+     */
+    synchronized int take(int consumer, byte[] buffer) throws IOException, InterruptedException, OverrunException {
+        long chunk = nextChunk[consumer];
+        while (chunk >= produced && !finished && failure == null) {
+            wait();
+        }
+        if (failure != null) {
+            throw new IOException("Reading the payload failed: " + failure.getMessage(), failure);
+        }
+        if (chunk >= produced) {
+            return -1;
+        }
+        if (chunk < produced - slots.length) {
+            detach(consumer);
+            throw new OverrunException();
+        }
+
+        int index = (int) (chunk % slots.length);
+        System.arraycopy(slots[index], 0, buffer, 0, lengths[index]);
+        nextChunk[consumer] = chunk + 1;
+        notifyAll();
+        return lengths[index];
+    }
+
+    /**
+     * Stop waiting for a consumer that failed or went its own way
+     */
+    synchronized void detach(int consumer) {
+        active[consumer] = false;
+        notifyAll();
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    private boolean hasActiveConsumer() {
+        for (boolean consumerActive : active) {
+            if (consumerActive) return true;
+        }
+        return false;
+    }
+
+    private long slowestConsumer() {
+        long slowest = Long.MAX_VALUE;
+        for (int i = 0; i < active.length; i++) {
+            if (active[i]) slowest = Math.min(slowest, nextChunk[i]);
+        }
+        return slowest;
+    }
+
+    private long fastestConsumer() {
+        long fastest = 0;
+        for (int i = 0; i < active.length; i++) {
+            if (active[i]) fastest = Math.max(fastest, nextChunk[i]);
+        }
+        return fastest;
+    }
+}
@@ -0,0 +1,455 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server for the blob catalog, so browsers, curl and download managers can
+ * fetch blobs without the Python CLI.
+ * <ul>
+ * <li>{@code GET /} or {@code /blobs[?cursor=..&limit=..]}: the paged blob index as JSON</li>
+ * <li>{@code GET /blobs/<blob name>} and {@code /sha256/<hash>}: the payload</li>
+ * </ul>
+ * Payloads carry the sha256 as ETag and support single byte ranges, If-None-Match and If-Range,
+ * so parallel range downloads and conditional re-fetches work. Connections are kept alive. Hot
+ * payloads are sent with {@link FileChannel#transferTo}, which lets the kernel copy straight
+ * from the page cache to the socket.
+ */
+public class HttpBlobServer {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    public interface Listener {
+        void onStatus(String status);
+
+        void onActiveConnectionsChanged(int active);
+    }
+
+    private static final int IDLE_TIMEOUT_MS = 30 * 1000;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+    private final BlobCatalog catalog;
+    private final BlobTiering blobTiering;
+    private final File filesDir;
+    private final Listener listener;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean isRunning;
+
+    public HttpBlobServer(File filesDir, BlobCatalog catalog, BlobTiering blobTiering, Listener listener) {
+        this.filesDir = filesDir;
+        this.catalog = catalog;
+        this.blobTiering = blobTiering;
+        this.listener = listener;
+    }
+
+    public synchronized void start(int port) {
+        if (isRunning) {
+            return;
+        }
+        ServerSocketChannel channel;
+        try {
+            channel = ServerSocketChannel.open();
+            channel.socket().setReuseAddress(true);
+            channel.socket().setReceiveBufferSize(TransportTuner.INITIAL_RECEIVE_BUFFER);
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            listener.onStatus("HTTP server error: " + e.getMessage());
+            return;
+        }
+        serverChannel = channel;
+        isRunning = true;
+        listener.onStatus("HTTP server started on port " + port);
+
+        new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel client = channel.accept();
+                    Thread connectionThread = new Thread(() -> handleConnection(client), "bloby-http");
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                }
+            } catch (IOException e) {
+                // closed by stop()
+            } finally {
+                listener.onStatus("HTTP server stopped");
+            }
+        }, "bloby-http-accept").start();
+    }
+
+    public synchronized void stop() {
+        isRunning = false;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            serverChannel = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    private void handleConnection(SocketChannel client) {
+        listener.onActiveConnectionsChanged(activeConnections.incrementAndGet());
+        try {
+            Socket socket = client.socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            // One request per iteration until either side asks to close
+            boolean keepAlive = true;
+            while (keepAlive && isRunning) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+                if (requestLine.isEmpty()) {
+                    continue; // tolerate stray CRLF between requests
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                }
+                if (line == null) {
+                    break;
+                }
+
+                String[] parts = requestLine.split(" ");
+                boolean http11 = parts.length == 3 && parts[2].equals("HTTP/1.1");
+                String connection = headers.getOrDefault("connection", "").toLowerCase(Locale.US);
+                keepAlive = http11 ? !connection.equals("close") : connection.equals("keep-alive");
+                if (parts.length != 3) {
+                    sendError(client, 400, "Bad Request", false);
+                    break;
+                }
+                if (headers.containsKey("content-length") || headers.containsKey("transfer-encoding")) {
+                    // Only GET/HEAD are served, a request body would desync the connection
+                    keepAlive = false;
+                }
+                keepAlive &= handleRequest(client, parts[0], parts[1], headers, keepAlive);
+            }
+        } catch (SocketTimeoutException e) {
+            // idle keep-alive connection
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            listener.onActiveConnectionsChanged(activeConnections.decrementAndGet());
+        }
+    }
+
+    /**
+     * @return false if the connection must be closed after this response
+     */
+    private boolean handleRequest(SocketChannel client, String method, String target,
+                                  Map<String, String> headers, boolean keepAlive) throws IOException {
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            sendError(client, 405, "Method Not Allowed", keepAlive);
+            return keepAlive;
+        }
+
+        String path;
+        Map<String, String> query = new HashMap<>();
+        try {
+            URI uri = new URI(target);
+            path = uri.getPath();
+            if (uri.getQuery() != null) {
+                for (String pair : uri.getQuery().split("&")) {
+                    int eq = pair.indexOf('=');
+                    if (eq > 0) {
+                        query.put(pair.substring(0, eq), pair.substring(eq + 1));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            sendError(client, 400, "Bad Request", keepAlive);
+            return keepAlive;
+        }
+
+        try {
+            if (path.equals("/") || path.equals("/blobs") || path.equals("/blobs/")) {
+                int limit = BlobCatalog.MAX_PAGE_SIZE;
+                if (query.containsKey("limit")) {
+                    limit = Integer.parseInt(query.get("limit"));
+                }
+                JSONObject page = catalog.listPage(query.get("cursor"), limit);
+                page.remove("type");
+                byte[] body = page.toString(2).getBytes(StandardCharsets.UTF_8);
+                sendHeaders(client, 200, "OK", "application/json; charset=utf-8", body.length, keepAlive);
+                if (!head) {
+                    writeFully(client, ByteBuffer.wrap(body));
+                }
+            } else if (path.startsWith("/blobs/")) {
+                sendPayload(client, path.substring("/blobs/".length()), headers, head, keepAlive);
+            } else if (path.startsWith("/sha256/")) {
+                String blobName = catalog.findByHash(path.substring("/sha256/".length()).toLowerCase(Locale.US));
+                if (blobName == null) {
+                    sendError(client, 404, "Not Found", keepAlive);
+                } else {
+                    sendPayload(client, blobName, headers, head, keepAlive);
+                }
+            } else {
+                sendError(client, 404, "Not Found", keepAlive);
+            }
+        } catch (FileNotFoundException e) {
+            sendError(client, 404, "Not Found", keepAlive);
+        } catch (IllegalArgumentException e) {
+            sendError(client, 400, "Bad Request", keepAlive);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            listener.onStatus("HTTP error serving " + target + ": " + e.getMessage());
+            sendError(client, 500, "Internal Server Error", false);
+            return false;
+        }
+        return keepAlive;
+    }
+
+    private void sendPayload(SocketChannel client, String blobName, Map<String, String> headers,
+                             boolean head, boolean keepAlive) throws Exception {
+        JSONObject meta = catalog.readBlobMeta(blobName);
+        if (BlobTiering.TIER_EVICTED.equals(BlobTiering.tierOf(meta))) {
+            sendError(client, 410, "Gone", keepAlive);
+            return;
+        }
+        if (BlobTree.isTree(meta)) {
+            // A directory has no single payload to serve
+            sendError(client, 409, "Conflict", keepAlive);
+            return;
+        }
+        File blobDir = new File(filesDir, blobName);
+        long size = BlobCatalog.payloadSize(blobDir, meta);
+        String sha256 = meta.optString("sha256", null);
+        String etag = sha256 != null ? "\"" + sha256 + "\"" : null;
+        String fileName = meta.optString("file_name", blobName);
+
+        if (etag != null && etagMatches(headers.get("if-none-match"), etag)) {
+            StringBuilder notModified = statusLine(304, "Not Modified", keepAlive);
+            notModified.append("ETag: ").append(etag).append("\r\n\r\n");
+            writeFully(client, ByteBuffer.wrap(notModified.toString().getBytes(StandardCharsets.ISO_8859_1)));
+            return;
+        }
+
+        // A Range only applies if If-Range (when given) still names the current version
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                StringBuilder unsatisfiable = statusLine(416, "Range Not Satisfiable", keepAlive);
+                unsatisfiable.append("Content-Range: bytes */").append(size).append("\r\n");
+                unsatisfiable.append("Content-Length: 0\r\n\r\n");
+                writeFully(client, ByteBuffer.wrap(unsatisfiable.toString().getBytes(StandardCharsets.ISO_8859_1)));
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                partial = true;
+            }
+        }
+        long length = end - start + 1;
+
+        StringBuilder response = statusLine(partial ? 206 : 200, partial ? "Partial Content" : "OK", keepAlive);
+        String contentType = URLConnection.guessContentTypeFromName(fileName);
+        response.append("Content-Type: ").append(contentType != null ? contentType : "application/octet-stream").append("\r\n");
+        response.append("Content-Length: ").append(length).append("\r\n");
+        response.append("Accept-Ranges: bytes\r\n");
+        response.append("Content-Disposition: attachment; filename=\"").append(fileName.replace("\"", "")).append("\"\r\n");
+        if (etag != null) {
+            response.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (partial) {
+            response.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(size).append("\r\n");
+        }
+        response.append("\r\n");
+        writeFully(client, ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        if (head || length == 0) {
+            return;
+        }
+
+        if (BlobTiering.TIER_HOT.equals(BlobTiering.tierOf(meta))) {
+            try (FileChannel file = FileChannel.open(new File(blobDir, fileName).toPath(), StandardOpenOption.READ)) {
+                long position = start;
+                long remaining = length;
+                while (remaining > 0) {
+                    long sent = file.transferTo(position, remaining, client);
+                    if (sent <= 0) {
+                        throw new IOException("Payload shorter than its recorded size");
+                    }
+                    position += sent;
+                    remaining -= sent;
+                }
+            }
+        } else {
+            // Compressed blobs are inflated on the fly, no zero-copy path there
+            try (InputStream payload = blobTiering.openPayload(blobDir, meta)) {
+                long skipped = 0;
+                while (skipped < start) {
+                    long n = payload.skip(start - skipped);
+                    if (n <= 0) throw new IOException("Payload shorter than its recorded size");
+                    skipped += n;
+                }
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                long remaining = length;
+                while (remaining > 0) {
+                    int n = payload.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) throw new IOException("Payload shorter than its recorded size");
+                    writeFully(client, ByteBuffer.wrap(buffer, 0, n));
+                    remaining -= n;
+                }
+            }
+        }
+        try {
+            blobTiering.touch(blobDir);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parse a Range header against a payload of the given size.
+     *
+     * @return {start, end} (inclusive), an empty array if the header should be ignored (not a
+     * single byte range), or null if it is unsatisfiable
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return new long[0]; // multiple ranges are allowed to be answered with the full body
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // Suffix range: the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) return null;
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if (end < start) return start >= size ? null : new long[0];
+            }
+            if (start >= size) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static boolean etagMatches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : header.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StringBuilder statusLine(int code, String reason, boolean keepAlive) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+        builder.append("Server: Bloby\r\n");
+        builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        return builder;
+    }
+
+    private static void sendHeaders(SocketChannel client, int code, String reason, String contentType,
+                                    long contentLength, boolean keepAlive) throws IOException {
+        StringBuilder response = statusLine(code, reason, keepAlive);
+        response.append("Content-Type: ").append(contentType).append("\r\n");
+        response.append("Content-Length: ").append(contentLength).append("\r\n");
+        response.append("\r\n");
+        writeFully(client, ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static void sendError(SocketChannel client, int code, String reason, boolean keepAlive) throws IOException {
+        byte[] body = (code + " " + reason + "\n").getBytes(StandardCharsets.UTF_8);
+        sendHeaders(client, code, reason, "text/plain; charset=utf-8", body.length, keepAlive);
+        writeFully(client, ByteBuffer.wrap(body));
+    }
+
+    private static void writeFully(SocketChannel client, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    /**
+     * Read one CRLF (or LF) terminated header line.
+     *
+     * @return the line without its terminator, or null at end of stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+            if (line.size() > MAX_HEADER_BYTES) {
+                throw new IOException("Header line too long");
+            }
+        }
+        return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+    }
+}
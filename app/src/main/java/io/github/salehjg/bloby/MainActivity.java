@@ -1,12 +1,20 @@
 package io.github.salehjg.bloby;
 
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.InputType;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -21,16 +29,12 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import org.json.JSONObject;
 
-import java.io.FileOutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.List;
 
-import java.io.ByteArrayOutputStream;
-import java.net.NetworkInterface;
-import java.net.InetAddress;
-import java.net.SocketException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 
 import android.os.Environment;
 import android.Manifest;
@@ -43,24 +47,129 @@ import androidx.core.content.ContextCompat;
 public class MainActivity extends AppCompatActivity {
 
     private TextView textViewIpAddress;
+    private TextView textViewTransfers;
+    private EditText editTextSearch;
     private RecyclerView mainRecyclerView;
     private ListView logListView;
-    private Button buttonWipeAll, buttonToggleLogs;
+    private Button buttonWipeAll, buttonToggleLogs, buttonSyncChanged, buttonMore;
 
     private boolean isLogVisible = false;
     private ArrayList<String> logData;
     private ArrayAdapter<String> logAdapter;
 
     // Server and data handling
-    private ByteServer byteServer;
+    private TransferService transferService; // null until bound
     private DataAdapter dataAdapter;
+    private ThumbnailCache thumbnailCache;
+    private BlobIndex blobIndex;
+    private SharedPreferences settings;
 
+    // Number of rows beyond each edge of the viewport whose thumbnails are prefetched
+    private static final int THUMBNAIL_PREFETCH_ROWS = 6;
+    private static final int MAX_TRANSFER_LINES = 3;
 
     // Add these constants to your MainActivity class
     private static final int PERMISSIONS_REQUEST_CODE = 1000;
     private static final String BLOBY_FOLDER = "Bloby";
 
     private ActivityResultLauncher<Intent> mFileEditLauncher;
+    private String editingBlobName; // blob handed to the external editor, checked for changes on return
+
+    private final ServiceConnection transferServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            transferService = ((TransferService.LocalBinder) binder).getService();
+            transferService.setCallback(transferCallback);
+
+            // Load the list only now, so no blob stored by the service in between is missed
+            dataAdapter.clearData();
+            blobIndex.clear();
+            loadSavedBlobs();
+            addLogEntry("Indexed " + blobIndex.size() + " blobs for search");
+            if (editTextSearch.length() > 0) {
+                applySearch();
+            }
+            // Catch edits made while the app was not around to see the editor return
+            checkBlobsForChanges(null);
+            refreshIpAddress(); // e.g. USB tethering turned on meanwhile
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            transferService = null;
+        }
+    };
+
+    private final TransferService.Callback transferCallback = new TransferService.Callback() {
+        @Override
+        public void onLog(String message) {
+            addLogEntry(message);
+        }
+
+        @Override
+        public void onBlobsStored(List<TransferService.StoredBlob> blobs) {
+            List<String[]> rows = new ArrayList<>();
+            for (TransferService.StoredBlob blob : blobs) {
+                thumbnailCache.invalidate(blob.blobName); // A re-sent blob may reuse the name
+                if (dataAdapter.containsBlob(blob.blobName)) {
+                    onBlobMetadataChanged(blob.blobName, blob.savedJson);
+                    continue;
+                }
+                blobIndex.put(blob.blobName, blob.fileName, blob.datetime, blob.size);
+                rows.add(new String[]{blob.blobName, blob.datetime, blob.fileName, blob.savedJson});
+            }
+            dataAdapter.addJsonDataBatch(rows);
+            if (editTextSearch.length() > 0) {
+                applySearch(); // Re-evaluate so the new blobs show up if they match
+            }
+            Toast.makeText(MainActivity.this, blobs.size() == 1 ? "Received blob: " + blobs.get(0).blobName :
+                    "Received " + blobs.size() + " blobs", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onBlobMetadataChanged(String blobName, String updatedJson) {
+            MainActivity.this.onBlobMetadataChanged(blobName, updatedJson);
+        }
+
+        @Override
+        public void onBlobSent(String blobName, long bytes) {
+            Toast.makeText(MainActivity.this, "Blob sent successfully!", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onSendFailed(String blobName, String error, boolean queued) {
+            Toast.makeText(MainActivity.this, queued ? "Error sending blob: " + error : error,
+                    queued ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onTransferProgress(List<TransferProgress> active) {
+            if (active.isEmpty()) {
+                textViewTransfers.setVisibility(View.GONE);
+                return;
+            }
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < active.size() && i < MAX_TRANSFER_LINES; i++) {
+                if (i > 0) text.append('\n');
+                text.append(active.get(i));
+            }
+            if (active.size() > MAX_TRANSFER_LINES) {
+                text.append("\n+").append(active.size() - MAX_TRANSFER_LINES).append(" more");
+            }
+            textViewTransfers.setText(text);
+            textViewTransfers.setVisibility(View.VISIBLE);
+        }
+    };
+
+    /**
+     * @return the bound transfer service, or null (after telling the user) while it is still starting
+     */
+    private TransferService requireService() {
+        if (transferService == null) {
+            Toast.makeText(this, "Transfer service is starting, try again", Toast.LENGTH_SHORT).show();
+        }
+        return transferService;
+    }
 
 
     private void loadSavedBlobs() {
@@ -88,9 +197,16 @@ public class MainActivity extends AppCompatActivity {
 
                         String blobName = jsonObject.optString("blob_name", blobDir.getName());
                         String datetime = jsonObject.optString("datetime", "unknown");
-
-                        // Add to adapter
-                        dataAdapter.addJsonData(blobName, datetime, fullJson);
+                        String fileName = jsonObject.optString("file_name", "unknown");
+
+                        // Add to search index and adapter
+                        long size = jsonObject.optLong(BlobChangeTracker.KEY_FILE_SIZE, new File(blobDir, fileName).length());
+                        blobIndex.put(blobName, fileName, datetime, size);
+                        dataAdapter.addJsonData(blobName, datetime, fileName, fullJson);
+                        String tier = BlobTiering.tierOf(jsonObject);
+                        if (BlobChangeTracker.isModified(jsonObject) || !BlobTiering.TIER_HOT.equals(tier)) {
+                            dataAdapter.updateItem(blobName, fullJson, BlobChangeTracker.isModified(jsonObject), tier);
+                        }
 
                         addLogEntry("Restored blob: " + blobName);
 
@@ -146,6 +262,8 @@ public class MainActivity extends AppCompatActivity {
      * Open file with appropriate application using content URI
      */
     private void openFileForEditing(String blobName) {
+        TransferService service = requireService();
+        if (service == null) return;
         try {
             // Get the blob directory from internal storage
             File blobDir = new File(getFilesDir(), blobName);
@@ -176,10 +294,66 @@ public class MainActivity extends AppCompatActivity {
             // Find the actual file in internal storage
             File targetFile = new File(blobDir, fileName);
             if (!targetFile.exists()) {
-                Toast.makeText(this, "File not found: " + fileName, Toast.LENGTH_SHORT).show();
+                if (BlobTiering.TIER_COMPRESSED.equals(BlobTiering.tierOf(jsonObject))) {
+                    // Cold blob: inflate it back to the hot tier off the main thread, then retry
+                    addLogEntry("Decompressing cold blob: " + blobName);
+                    new Thread(() -> {
+                        try {
+                            String updatedJson = service.getBlobTiering().ensureHot(blobDir);
+                            runOnUiThread(() -> {
+                                if (updatedJson != null) {
+                                    onBlobMetadataChanged(blobName, updatedJson);
+                                }
+                                openFileForEditing(blobName);
+                            });
+                        } catch (Exception e) {
+                            runOnUiThread(() -> {
+                                addLogEntry("Error decompressing blob: " + e.getMessage());
+                                Toast.makeText(this, "Error decompressing blob: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                            });
+                        }
+                    }).start();
+                } else if (BlobTiering.TIER_EVICTED.equals(BlobTiering.tierOf(jsonObject))) {
+                    Toast.makeText(this, "Payload was evicted to save space. Re-send it from the CLI to restore.", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, "File not found: " + fileName, Toast.LENGTH_SHORT).show();
+                }
                 return;
             }
 
+            // Record the payload as it is before the editor gets it, so the edit can be undone
+            addLogEntry("Saving a version of: " + blobName);
+            new Thread(() -> {
+                try {
+                    String updatedJson = BlobChangeTracker.check(blobDir);
+                    int version = BlobHistory.record(blobDir, BlobHistory.REASON_BEFORE_EDIT);
+                    runOnUiThread(() -> {
+                        if (updatedJson != null) {
+                            onBlobMetadataChanged(blobName, updatedJson);
+                        }
+                        if (version > 0) {
+                            addLogEntry("Saved version " + version + " of: " + blobName);
+                        }
+                        launchEditor(blobName, blobDir, targetFile);
+                    });
+                } catch (Exception e) {
+                    runOnUiThread(() -> {
+                        addLogEntry("Error saving a version of " + blobName + ": " + e.getMessage());
+                        launchEditor(blobName, blobDir, targetFile);
+                    });
+                }
+            }).start();
+
+        } catch (Exception e) {
+            Toast.makeText(this, "Error opening file: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            addLogEntry("Error opening file: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void launchEditor(String blobName, File blobDir, File targetFile) {
+        try {
+            String fileName = targetFile.getName();
             // Create intent with FileProvider URI - exactly like your working code
             Intent intent = new Intent(Intent.ACTION_VIEW);
             intent.setData(androidx.core.content.FileProvider.getUriForFile(
@@ -190,7 +364,9 @@ public class MainActivity extends AppCompatActivity {
             intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
 
             // Launch with result launcher
+            editingBlobName = blobName;
             mFileEditLauncher.launch(intent);
+            touchBlob(blobDir);
 
             addLogEntry("Opened file for editing: " + fileName);
             Toast.makeText(this, "File opened. Changes will be saved automatically.", Toast.LENGTH_SHORT).show();
@@ -271,105 +447,463 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void sendBlobToConnectedClient(String fullJson, String blobName) {
-        // Check if we have a connected client
-        if (!byteServer.hasConnectedClient()) {
-            Toast.makeText(this, "No Python client connected", Toast.LENGTH_SHORT).show();
-            addLogEntry("Send failed: No client connected");
+    /**
+     * Show the files of a tree blob with their sizes.
+     */
+    private void showTreeEntries(String blobName, String fullJson) {
+        new Thread(() -> {
+            StringBuilder listing = new StringBuilder();
+            try {
+                File root = BlobTree.rootOf(new File(getFilesDir(), blobName), new JSONObject(fullJson));
+                for (BlobTree.Entry entry : BlobTree.list(root)) {
+                    listing.append(entry.path).append(entry.directory ? "/" : "  (" + entry.size + " bytes)").append('\n');
+                }
+            } catch (Exception e) {
+                listing.append("Error listing files: ").append(e.getMessage());
+            }
+            runOnUiThread(() -> showDataDialog("Files in " + blobName, listing.toString()));
+        }).start();
+    }
+
+    /**
+     * List the saved versions of a blob, newest first, and offer to restore or send one
+     */
+    private void showHistoryDialog(String blobName) {
+        TransferService service = requireService();
+        if (service == null) return;
+
+        File blobDir = new File(getFilesDir(), blobName);
+        if (!BlobHistory.isTracked(blobDir)) {
+            Toast.makeText(this, "No versions yet, they are saved when the file is edited", Toast.LENGTH_LONG).show();
+            return;
+        }
+        List<BlobHistory.Version> versions;
+        try {
+            versions = BlobHistory.list(blobDir);
+        } catch (Exception e) {
+            addLogEntry("Error reading history of " + blobName + ": " + e.getMessage());
+            return;
+        }
+        java.util.Collections.reverse(versions);
+        java.text.SimpleDateFormat format = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.getDefault());
+        String[] lines = new String[versions.size()];
+        for (int i = 0; i < lines.length; i++) {
+            BlobHistory.Version version = versions.get(i);
+            lines[i] = "v" + version.number + "  " + format.format(new java.util.Date(version.savedAt)) +
+                    "  " + version.size + " bytes  (" + version.reason + ")";
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("History of " + blobName + " (" + BlobHistory.storedBytes(blobDir) + " bytes)")
+                .setItems(lines, (dialog, which) -> {
+                    BlobHistory.Version version = versions.get(which);
+                    new AlertDialog.Builder(this)
+                            .setTitle("Version " + version.number)
+                            .setMessage("Restore it as the current content (the current content is kept as a version), " +
+                                    "or send it to the connected Python client?")
+                            .setPositiveButton("Restore", (d, w) -> service.restoreVersionInBackground(blobName, version.number))
+                            .setNeutralButton("Send", (d, w) -> service.sendVersionInBackground(blobName, version.number))
+                            .setNegativeButton("Cancel", (d, w) -> d.dismiss())
+                            .show();
+                })
+                .setNegativeButton("Close", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    private void sendBlobToConnectedClient(String blobName) {
+        TransferService service = requireService();
+        if (service == null) return;
+
+        // Without a connected client, offer to queue the blob until one connects
+        if (!service.hasConnectedClient()) {
+            new AlertDialog.Builder(this)
+                    .setTitle("No Client Connected")
+                    .setMessage("Queue '" + blobName + "' to be sent as soon as a Python client connects?")
+                    .setPositiveButton("Queue", (dialog, which) -> service.queueBlobForSending(blobName))
+                    .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                    .show();
             return;
         }
 
         // Show confirmation dialog
+        int clients = service.getPushClientCount();
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Send Blob")
-                .setMessage("Send '" + blobName + "' to connected Python client?")
+                .setMessage(clients > 1
+                        ? "Send '" + blobName + "' to the last connected Python client, or to all " + clients + "?"
+                        : "Send '" + blobName + "' to connected Python client?")
                 .setPositiveButton("Send", (dialog, which) -> {
-                    sendBlobInBackground(fullJson, blobName);
+                    service.sendBlobInBackground(blobName);
                 })
-                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
-                .show();
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss());
+        if (clients > 1) {
+            builder.setNeutralButton("Send to All", (dialog, which) -> service.broadcastBlobInBackground(blobName));
+        }
+        builder.show();
     }
 
-    private void sendBlobInBackground(String fullJson, String blobName) {
+    /**
+     * Check one blob (or all of them when blobName is null) for payload changes in the background.
+     * Only blobs whose size/mtime moved get re-hashed.
+     */
+    private void checkBlobsForChanges(String blobName) {
+        File filesDir = getFilesDir();
         new Thread(() -> {
-            try {
-                runOnUiThread(() -> {
-                    addLogEntry("Preparing to send blob: " + blobName);
-                });
+            File[] blobDirs = blobName != null ? new File[]{new File(filesDir, blobName)} : filesDir.listFiles();
+            if (blobDirs == null) return;
 
-                // Read the file data from internal storage
-                File blobDir = new File(getFilesDir(), blobName);
-                if (!blobDir.exists()) {
-                    runOnUiThread(() -> {
-                        addLogEntry("Error: Blob directory not found: " + blobName);
-                        Toast.makeText(this, "Blob not found", Toast.LENGTH_SHORT).show();
-                    });
-                    return;
+            for (File blobDir : blobDirs) {
+                if (!new File(blobDir, "blob.json").exists()) continue;
+                try {
+                    String updatedJson = BlobChangeTracker.check(blobDir);
+                    if (updatedJson != null) {
+                        runOnUiThread(() -> onBlobMetadataChanged(blobDir.getName(), updatedJson));
+                    }
+                } catch (Exception e) {
+                    runOnUiThread(() -> addLogEntry("Error checking " + blobDir.getName() + " for changes: " + e.getMessage()));
                 }
+            }
+        }).start();
+    }
 
-                // Get the original file name from JSON
-                JSONObject jsonObject = new JSONObject(fullJson);
-                String fileName = jsonObject.optString("file_name", "unknown");
+    /**
+     * Propagate refreshed blob.json contents (new hash/size) to the list, search index and thumbnails.
+     */
+    private void onBlobMetadataChanged(String blobName, String updatedJson) {
+        try {
+            JSONObject jsonObject = new JSONObject(updatedJson);
+            boolean modified = BlobChangeTracker.isModified(jsonObject);
+            dataAdapter.updateItem(blobName, updatedJson, modified, BlobTiering.tierOf(jsonObject));
+            blobIndex.put(blobName,
+                    jsonObject.optString("file_name", "unknown"),
+                    jsonObject.optString("datetime", "unknown"),
+                    jsonObject.optLong(BlobChangeTracker.KEY_FILE_SIZE, 0));
+            thumbnailCache.invalidate(blobName);
+            if (transferService != null) {
+                // Edits found by the activity's own checks do not pass through the service
+                transferService.getBlobTiering().getReadCache().onBlobChanged(blobName, jsonObject.optString("sha256", ""));
+            }
+            if (modified) {
+                addLogEntry("Blob changed: " + blobName + ", new sha256: " + jsonObject.optString("sha256"));
+            }
+        } catch (Exception e) {
+            addLogEntry("Error refreshing blob metadata: " + e.getMessage());
+        }
+    }
 
-                // Read the file data
-                File targetFile = new File(blobDir, fileName);
-                if (!targetFile.exists()) {
-                    runOnUiThread(() -> {
-                        addLogEntry("Error: File not found: " + fileName);
-                        Toast.makeText(this, "File not found: " + fileName, Toast.LENGTH_SHORT).show();
-                    });
-                    return;
-                }
+    /**
+     * Send back only the blobs that were modified since they were last synced. They go through
+     * the outbound queue, so they are sent right away if a client is connected, otherwise as
+     * soon as one connects.
+     */
+    private void syncChangedBlobs() {
+        TransferService service = requireService();
+        if (service == null) return;
 
-                byte[] fileData = readFileToBytes(targetFile);
-                if (fileData == null) {
-                    runOnUiThread(() -> {
-                        addLogEntry("Error: Could not read file data");
-                        Toast.makeText(this, "Could not read file data", Toast.LENGTH_SHORT).show();
-                    });
-                    return;
-                }
+        List<DataAdapter.DataItem> modifiedItems = dataAdapter.getModifiedItems();
+        if (modifiedItems.isEmpty()) {
+            Toast.makeText(this, "No modified blobs to sync", Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-                // Send data to connected client
-                byteServer.sendBlobToClient(fullJson, fileData);
+        String target = service.hasConnectedClient() ? "connected Python client" : "next Python client that connects";
+        new AlertDialog.Builder(this)
+                .setTitle("Sync Changed")
+                .setMessage("Send " + modifiedItems.size() + " modified blob(s) to the " + target + "?")
+                .setPositiveButton("Send", (dialog, which) -> {
+                    for (DataAdapter.DataItem item : modifiedItems) {
+                        service.queueBlobForSending(item.getBlobName());
+                    }
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
 
-                runOnUiThread(() -> {
-                    addLogEntry("Successfully sent blob: " + blobName + " (" + fileData.length + " bytes)");
-                    Toast.makeText(this, "Blob sent successfully!", Toast.LENGTH_SHORT).show();
-                });
+    /**
+     * List the transfers in flight and offer to cancel one
+     */
+    private void showTransfersDialog() {
+        TransferService service = requireService();
+        if (service == null) return;
 
-                // Close server after sending blob
-                byteServer.stopServer();
-                runOnUiThread(() -> {
-                    addLogEntry("Server stopped after sending blob. Restarting...");
-                    byteServer.startServer(12345);
-                });
+        List<TransferProgress> active = service.getActiveTransfers();
+        if (active.isEmpty()) {
+            Toast.makeText(this, "No transfers in progress", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] lines = new String[active.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = active.get(i).toString();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Transfers (" + lines.length + ")")
+                .setItems(lines, (dialog, which) -> {
+                    TransferProgress transfer = active.get(which);
+                    new AlertDialog.Builder(this)
+                            .setTitle("Cancel Transfer")
+                            .setMessage("Cancel '" + transfer.getName() + "'? The client connection it uses is closed.")
+                            .setPositiveButton("Cancel Transfer", (d, w) -> {
+                                if (!service.cancelTransfer(transfer.getId())) {
+                                    Toast.makeText(this, "Transfer already finished", Toast.LENGTH_SHORT).show();
+                                }
+                            })
+                            .setNegativeButton("Keep", (d, w) -> d.dismiss())
+                            .show();
+                })
+                .setNegativeButton("Close", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    private void showOutboundQueueDialog() {
+        TransferService service = requireService();
+        if (service == null) return;
+
+        List<String> lines = service.getOutboundQueue().describe();
+        StringBuilder message = new StringBuilder();
+        for (String line : lines) {
+            message.append("• ").append(line).append("\n");
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Outbound Queue (" + lines.size() + ")")
+                .setMessage(lines.isEmpty() ? "Nothing queued." : message.toString())
+                .setPositiveButton("OK", (dialog, which) -> dialog.dismiss())
+                .setNegativeButton("Clear", (dialog, which) -> {
+                    service.getOutboundQueue().clear();
+                    addLogEntry("Outbound queue cleared");
+                })
+                .show();
+    }
 
+    /**
+     * Record an access so the blob stays in the hot storage tier
+     */
+    private void touchBlob(File blobDir) {
+        TransferService service = transferService;
+        if (service == null) return;
+        new Thread(() -> {
+            try {
+                service.getBlobTiering().touch(blobDir);
             } catch (Exception e) {
-                runOnUiThread(() -> {
-                    addLogEntry("Error sending blob: " + e.getMessage());
-                    Toast.makeText(this, "Error sending blob: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                });
                 e.printStackTrace();
             }
         }).start();
     }
 
-    private byte[] readFileToBytes(File file) {
-        try (java.io.FileInputStream fis = new java.io.FileInputStream(file);
-             ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+    private void showStorageQuotaDialog() {
+        EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        input.setText(String.valueOf(settings.getLong(TransferService.PREF_STORAGE_QUOTA_MB, 0)));
+
+        new AlertDialog.Builder(this)
+                .setTitle("Storage Quota (MB)")
+                .setMessage("Cold blobs are compressed, then evicted (metadata kept) when payloads exceed this size. 0 = unlimited.")
+                .setView(input)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    long quotaMb;
+                    try {
+                        quotaMb = Long.parseLong(input.getText().toString().trim());
+                    } catch (NumberFormatException e) {
+                        Toast.makeText(this, "Invalid quota", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    settings.edit().putLong(TransferService.PREF_STORAGE_QUOTA_MB, quotaMb).apply();
+                    addLogEntry("Storage quota set to " + (quotaMb == 0 ? "unlimited" : quotaMb + " MB"));
+                    if (transferService != null) {
+                        transferService.enforceStorageQuota();
+                    }
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    private void showHttpServerDialog() {
+        TransferService service = requireService();
+        if (service == null) return;
+
+        boolean enabled = service.isHttpServerEnabled();
+        NetworkPaths.Path path = NetworkPaths.preferred();
+        String url = "http://" + (path != null ? path.withPort(HttpBlobServer.DEFAULT_PORT) : "localhost:" + HttpBlobServer.DEFAULT_PORT) + "/";
+        new AlertDialog.Builder(this)
+                .setTitle("HTTP Server")
+                .setMessage((enabled ? "Serving blobs at " + url : "Serve blobs at " + url) +
+                        " to browsers, curl and download managers (with range requests).\n\n" +
+                        "Anyone on this network can download your blobs while it is on.")
+                .setPositiveButton(enabled ? "Turn Off" : "Turn On", (dialog, which) -> {
+                    service.setHttpServerEnabled(!enabled);
+                    addLogEntry("HTTP server " + (enabled ? "disabled" : "enabled at " + url));
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    /**
+     * Turn mirror mode on or off
+     */
+    private void showMirrorDialog() {
+        TransferService service = requireService();
+        if (service == null) return;
+
+        boolean enabled = service.isMirrorEnabled();
+        new AlertDialog.Builder(this)
+                .setTitle("Mirror Mode")
+                .setMessage("While a Python client is connected, blobs edited on this device are sent to it a " +
+                        "few seconds after the last save, without tapping Send.\n\nMirror mode is " +
+                        (enabled ? "on." : "off."))
+                .setPositiveButton(enabled ? "Turn Off" : "Turn On", (dialog, which) -> {
+                    service.setMirrorEnabled(!enabled);
+                    addLogEntry("Mirror mode " + (enabled ? "disabled" : "enabled"));
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    /**
+     * Turn transfer tracing on or off, or share the buffered trace as Chrome trace-event JSON
+     */
+    private void showTracingDialog() {
+        boolean enabled = Tracer.isEnabled();
+        new AlertDialog.Builder(this)
+                .setTitle("Tracing")
+                .setMessage("Tracing is " + (enabled ? "on" : "off") + ", " + Tracer.size() +
+                        " event(s) buffered (the newest " + Tracer.CAPACITY + " are kept).\n\n" +
+                        "Exported traces open in Perfetto or chrome://tracing.")
+                .setPositiveButton(enabled ? "Turn Off" : "Turn On", (dialog, which) -> {
+                    Tracer.setEnabled(!enabled);
+                    addLogEntry("Tracing " + (enabled ? "off" : "on"));
+                })
+                .setNeutralButton("Export", (dialog, which) -> exportTrace())
+                .setNegativeButton("Close", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                baos.write(buffer, 0, bytesRead);
+    private void exportTrace() {
+        if (Tracer.size() == 0) {
+            Toast.makeText(this, "No trace events recorded", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new Thread(() -> {
+            try {
+                File traceDir = new File(new File(getFilesDir(), ".bloby"), "traces");
+                traceDir.mkdirs();
+                File traceFile = new File(traceDir, "trace-" + System.currentTimeMillis() + ".json");
+                try (FileOutputStream fos = new FileOutputStream(traceFile)) {
+                    fos.write(Tracer.exportJson().getBytes(StandardCharsets.UTF_8));
+                }
+                runOnUiThread(() -> {
+                    addLogEntry("Trace written to " + traceFile.getAbsolutePath());
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("application/json");
+                    intent.putExtra(Intent.EXTRA_STREAM, androidx.core.content.FileProvider.getUriForFile(
+                            getApplicationContext(), getPackageName() + ".provider", traceFile));
+                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    startActivity(Intent.createChooser(intent, "Share trace"));
+                });
+            } catch (Exception e) {
+                runOnUiThread(() -> addLogEntry("Error exporting trace: " + e.getMessage()));
             }
-            return baos.toByteArray();
+        }).start();
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Export the library to, or import it from, the external Bloby folder
+     */
+    private void showLibraryCopyDialog() {
+        TransferService service = requireService();
+        if (service == null) return;
+        if (!checkStoragePermissions()) {
+            Toast.makeText(this, "Allow storage access, then try again", Toast.LENGTH_LONG).show();
+            requestStoragePermissions();
+            return;
         }
+
+        File externalDir = getBlobyExternalDirectory();
+        new AlertDialog.Builder(this)
+                .setTitle("Export / Import")
+                .setMessage("Copy all blobs to " + externalDir.getAbsolutePath() + ", or import the blobs found there.\n\n" +
+                        "Unchanged files are skipped, so an interrupted copy resumes when started again. " +
+                        "Imported blobs replace blobs of the same name.")
+                .setPositiveButton("Export", (dialog, which) -> service.exportLibraryInBackground(externalDir))
+                .setNeutralButton("Import", (dialog, which) -> service.importLibraryInBackground(externalDir))
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    /**
+     * Let the user size the in-memory read cache
+     */
+    private void showReadCacheDialog() {
+        TransferService service = requireService();
+        if (service == null) return;
+
+        BlobReadCache cache = service.getBlobTiering().getReadCache();
+        long maxMb = service.getMaxReadCacheMb();
+        EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        input.setText(String.valueOf(cache.getBudget() / (1024 * 1024)));
+
+        new AlertDialog.Builder(this)
+                .setTitle("Read Cache (MB)")
+                .setMessage("Blobs sent or fetched again are served from memory, up to this size. " +
+                        "Blobs larger than half of it are always read from storage. 0 = off, at most " +
+                        maxMb + " MB on this device.\n\n" + cache.describe())
+                .setView(input)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    long budgetMb;
+                    try {
+                        budgetMb = Long.parseLong(input.getText().toString().trim());
+                    } catch (NumberFormatException e) {
+                        Toast.makeText(this, "Invalid size", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    if (budgetMb > maxMb) {
+                        Toast.makeText(this, "Capped at " + maxMb + " MB", Toast.LENGTH_SHORT).show();
+                        budgetMb = maxMb;
+                    }
+                    settings.edit().putLong(TransferService.PREF_READ_CACHE_MB, budgetMb).apply();
+                    service.applyReadCacheBudget();
+                    addLogEntry("Read cache set to " + (budgetMb == 0 ? "off" : budgetMb + " MB"));
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    /**
+     * Show the less frequently used actions
+     */
+    private void showMoreActionsDialog() {
+        String queued = transferService != null ? String.valueOf(transferService.getOutboundQueue().size()) : "?";
+        String http = transferService != null && transferService.isHttpServerEnabled() ? "on" : "off";
+        String mirror = transferService != null && transferService.isMirrorEnabled() ? "on" : "off";
+        String[] actions = {"Storage Quota...", "Outbound Queue (" + queued + ")...", "HTTP Server (" + http + ")...",
+                "Tracing (" + (Tracer.isEnabled() ? "on" : "off") + ")...", "Export / Import...",
+                "Mirror Mode (" + mirror + ")...", "Read Cache..."};
+        new AlertDialog.Builder(this)
+                .setTitle("More")
+                .setItems(actions, (dialog, which) -> {
+                    switch (which) {
+                        case 0:
+                            showStorageQuotaDialog();
+                            break;
+                        case 1:
+                            showOutboundQueueDialog();
+                            break;
+                        case 2:
+                            showHttpServerDialog();
+                            break;
+                        case 3:
+                            showTracingDialog();
+                            break;
+                        case 4:
+                            showLibraryCopyDialog();
+                            break;
+                        case 5:
+                            showMirrorDialog();
+                            break;
+                        case 6:
+                            showReadCacheDialog();
+                            break;
+                    }
+                })
+                .show();
     }
 
     @Override
@@ -379,10 +913,15 @@ public class MainActivity extends AppCompatActivity {
 
         // Initialize Views
         textViewIpAddress = findViewById(R.id.textViewIpAddress);
+        textViewTransfers = findViewById(R.id.textViewTransfers);
+        editTextSearch = findViewById(R.id.editTextSearch);
         mainRecyclerView = findViewById(R.id.mainRecyclerView);
         logListView = findViewById(R.id.logListView);
         buttonWipeAll = findViewById(R.id.buttonAction2);
         buttonToggleLogs = findViewById(R.id.buttonToggleLogs);
+        buttonSyncChanged = findViewById(R.id.buttonSyncChanged);
+        buttonMore = findViewById(R.id.buttonMore);
+        settings = getSharedPreferences(TransferService.PREFS_NAME, MODE_PRIVATE);
 
         // --- Setup Log ListView ---
         logData = new ArrayList<>();
@@ -398,15 +937,50 @@ public class MainActivity extends AppCompatActivity {
         addLogEntry("UI components initialized");
         addLogEntry("Ready for connections");
 
-        // Initialize and display IP Address
-        String deviceIp = getDeviceIpAddress();
-        updateIpAddress(deviceIp);
+        // Initialize and display IP Address, tap for all of them
+        refreshIpAddress();
+        textViewIpAddress.setOnClickListener(v -> showDeviceAddresses());
 
         // --- Setup RecyclerView (Main List) ---
         dataAdapter = new DataAdapter();
-        mainRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        blobIndex = new BlobIndex();
+        thumbnailCache = new ThumbnailCache(this);
+        dataAdapter.setThumbnailCache(thumbnailCache);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        mainRecyclerView.setLayoutManager(layoutManager);
         mainRecyclerView.setAdapter(dataAdapter);
-        loadSavedBlobs();
+        mainRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // Prefetch thumbnails for the rows just outside the viewport
+                int first = layoutManager.findFirstVisibleItemPosition();
+                int last = layoutManager.findLastVisibleItemPosition();
+                if (first == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                if (dy >= 0) {
+                    dataAdapter.prefetchThumbnails(last + 1, last + THUMBNAIL_PREFETCH_ROWS);
+                }
+                if (dy <= 0) {
+                    dataAdapter.prefetchThumbnails(first - THUMBNAIL_PREFETCH_ROWS, first - 1);
+                }
+            }
+        });
+
+        editTextSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                applySearch();
+            }
+        });
 
         mFileEditLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
@@ -416,7 +990,11 @@ public class MainActivity extends AppCompatActivity {
                         // File editing is complete
                         addLogEntry("File editing completed");
                         // The file changes are automatically saved by the external app
-                        // since we granted WRITE_URI_PERMISSION
+                        // since we granted WRITE_URI_PERMISSION, see whether it actually changed
+                        if (editingBlobName != null) {
+                            checkBlobsForChanges(editingBlobName);
+                            editingBlobName = null;
+                        }
                     }
                 }
         );
@@ -427,24 +1005,45 @@ public class MainActivity extends AppCompatActivity {
             public void onViewClicked(String fullJson, int position) {
                 // Get the blob name from the JSON
                 String blobName = "unknown";
+                boolean tree = false;
                 try {
                     JSONObject jsonObject = new JSONObject(fullJson);
                     blobName = jsonObject.optString("blob_name", "unknown");
+                    tree = BlobTree.isTree(jsonObject);
                 } catch (Exception e) {
                     addLogEntry("Error parsing JSON for blob name: " + e.getMessage());
                 }
 
                 final String finalBlobName = blobName;
+                if (tree) {
+                    new AlertDialog.Builder(MainActivity.this)
+                            .setTitle("Folder Options")
+                            .setMessage("Choose what to do with this folder:")
+                            .setPositiveButton("List Files", (dialog, which) -> showTreeEntries(finalBlobName, fullJson))
+                            .setNeutralButton("View JSON", (dialog, which) -> {
+                                showDataDialog("Full JSON Data", fullJson);
+                            })
+                            .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                            .show();
+                    return;
+                }
 
-                // Show dialog with options
+                // Show dialog with options, a list since there are more of them than buttons
+                String[] actions = {"Edit File", "View JSON", "History..."};
                 AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
                 builder.setTitle("File Options")
-                        .setMessage("Choose what to do with this file:")
-                        .setPositiveButton("Edit File", (dialog, which) -> {
-                            openFileForEditing(finalBlobName);
-                        })
-                        .setNeutralButton("View JSON", (dialog, which) -> {
-                            showDataDialog("Full JSON Data", fullJson);
+                        .setItems(actions, (dialog, which) -> {
+                            switch (which) {
+                                case 0:
+                                    openFileForEditing(finalBlobName);
+                                    break;
+                                case 1:
+                                    showDataDialog("Full JSON Data", fullJson);
+                                    break;
+                                case 2:
+                                    showHistoryDialog(finalBlobName);
+                                    break;
+                            }
                         })
                         .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
                         .show();
@@ -454,7 +1053,7 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void onSendClicked(String fullJson, String blobName, int position) {
-                sendBlobToConnectedClient(fullJson, blobName);
+                sendBlobToConnectedClient(blobName);
             }
 
 
@@ -473,15 +1072,19 @@ public class MainActivity extends AppCompatActivity {
                         .setTitle("Confirm Delete")
                         .setMessage("Are you sure you want to delete \"" + blobName + "\"?")
                         .setPositiveButton("Delete", (dialog, which) -> {
+                            TransferService service = requireService();
+                            if (service == null) return;
                             try {
-                                // Delete the blob directory (json + file inside)
-                                File blobDir = new File(getFilesDir(), blobName);
-                                if (blobDir.exists()) {
-                                    deleteRecursive(blobDir);
+                                // Tombstone the blob directory (json + file inside), the space is
+                                // reclaimed in the background
+                                service.getOutboundQueue().remove(blobName);
+                                if (service.getBlobReclaimer().tombstone(blobName)) {
+                                    thumbnailCache.invalidate(blobName);
                                     addLogEntry("Deleted blob directory: " + blobName);
                                 } else {
                                     addLogEntry("Blob directory not found: " + blobName);
                                 }
+                                blobIndex.remove(blobName);
 
                                 // Remove from adapter (UI list)
                                 dataAdapter.removeItem(position);
@@ -501,67 +1104,6 @@ public class MainActivity extends AppCompatActivity {
 
         });
 
-        // Initialize ByteServer
-        byteServer = new ByteServer();
-        byteServer.setOnDataReceivedListener(new ByteServer.OnDataReceivedListener() {
-            @Override
-            public void onBlobReceived(String blobName, String datetime, String fullJson, byte[] fileData) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            addLogEntry("Processing received blob: " + blobName);
-
-                            // Create a folder named after the blobName in internal storage
-                            File blobDir = new File(getFilesDir(), blobName);
-                            if (!blobDir.exists()) {
-                                blobDir.mkdirs();
-                            }
-
-                            // Save JSON as-is
-                            File jsonFile = new File(blobDir, "blob.json");
-                            try (FileOutputStream fos = new FileOutputStream(jsonFile)) {
-                                fos.write(fullJson.getBytes(StandardCharsets.UTF_8));
-                            }
-
-                            // Extract file_name from JSON
-                            JSONObject jsonObject = new JSONObject(fullJson);
-                            String fileName = jsonObject.optString("file_name", "default_blob_file");
-
-                            // Save byte array as file
-                            File blobFile = new File(blobDir, fileName);
-                            try (FileOutputStream fos = new FileOutputStream(blobFile)) {
-                                fos.write(fileData);
-                            }
-
-                            addLogEntry("Saved blob: " + blobName + ", path: " + blobFile.getAbsolutePath());
-                            dataAdapter.addJsonData(blobName, datetime, fullJson); // Ensure this is also safe or wrapped
-                            Toast.makeText(MainActivity.this, "Received blob: " + blobName, Toast.LENGTH_SHORT).show();
-
-                            byteServer.stopServer();
-                            addLogEntry("Server stopped after receiving blob. Restarting...");
-                            byteServer.startServer(12345); // This starts a new server thread, which is fine
-
-                        } catch (Exception e) {
-                            addLogEntry("Error saving blob: " + e.getMessage());
-                            e.printStackTrace();
-                        }
-                    }
-                });
-            }
-
-            @Override
-            public void onServerStatus(String status) { // This is MainActivity.java:509
-                // Switch to the main UI thread before updating the UI
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        addLogEntry("Server: " + status); // This will now run on the main thread
-                    }
-                });
-            }
-        });
-
         buttonWipeAll.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -570,16 +1112,21 @@ public class MainActivity extends AppCompatActivity {
                         .setTitle("Wipe All Data")
                         .setMessage("Are you sure you want to delete ALL saved blobs and files?")
                         .setPositiveButton("Yes", (dialog, which) -> {
+                            TransferService service = requireService();
+                            if (service == null) return;
                             try {
-                                // 1. Delete all folders and files in private storage
-                                File filesDir = getFilesDir();
-                                deleteRecursive(filesDir);
+                                // 1. Tombstone all folders and files in private storage, the space is
+                                // reclaimed in the background
+                                int wiped = service.getBlobReclaimer().tombstoneAll();
+                                service.getOutboundQueue().clear();
 
-                                // 2. Clear RecyclerView adapter (main list)
+                                // 2. Clear RecyclerView adapter (main list) and cached previews
                                 dataAdapter.clearData();
+                                thumbnailCache.clear();
+                                blobIndex.clear();
 
                                 // 3. Log & toast
-                                addLogEntry("Wiped all stored blobs and cleared list.");
+                                addLogEntry("Wiped all stored blobs (" + wiped + " entries) and cleared list.");
                                 Toast.makeText(MainActivity.this, "All data deleted.", Toast.LENGTH_SHORT).show();
 
                             } catch (Exception e) {
@@ -593,6 +1140,22 @@ public class MainActivity extends AppCompatActivity {
         });
 
 
+        buttonSyncChanged.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                syncChangedBlobs();
+            }
+        });
+
+        textViewTransfers.setOnClickListener(v -> showTransfersDialog());
+
+        buttonMore.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showMoreActionsDialog();
+            }
+        });
+
         buttonToggleLogs.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -609,24 +1172,48 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        byteServer.startServer(12345);
+        // The service owns the server and outlives this activity (rotation, backgrounding)
+        Intent serviceIntent = new Intent(this, TransferService.class);
+        ContextCompat.startForegroundService(this, serviceIntent);
+        bindService(serviceIntent, transferServiceConnection, BIND_AUTO_CREATE);
+
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.TIRAMISU &&
+                ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            // Only needed to show the transfer notification, transfers run either way
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.POST_NOTIFICATIONS}, PERMISSIONS_REQUEST_CODE);
+        }
     }
 
-    private void deleteRecursive(File fileOrDir) {
-        if (fileOrDir != null && fileOrDir.exists()) {
-            if (fileOrDir.isDirectory()) {
-                for (File child : fileOrDir.listFiles()) {
-                    deleteRecursive(child);
-                }
-            }
-            // Don’t delete root filesDir itself, only its contents
-            if (!fileOrDir.equals(getFilesDir())) {
-                fileOrDir.delete();
-            }
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Android stops the service at its daily background limit, being in the foreground resets that
+        if (transferService != null && transferService.isTimedOut()) {
+            ContextCompat.startForegroundService(this, new Intent(this, TransferService.class));
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (transferService != null) {
+            transferService.setCallback(null);
+        }
+        unbindService(transferServiceConnection);
+        transferService = null;
+        if (thumbnailCache != null) {
+            thumbnailCache.shutdown();
         }
     }
 
 
+    /**
+     * Filter the main list with the current search box query
+     */
+    private void applySearch() {
+        dataAdapter.setVisibleBlobs(blobIndex.search(editTextSearch.getText().toString()));
+    }
+
     /**
      * Toggle the visibility of the log ListView
      */
@@ -686,44 +1273,28 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Get the device's IP address
-     *
-     * @return IP address as string, or "Not Available" if not found
+     * Show every address of the device, fastest link first (see {@link NetworkPaths})
      */
-    private String getDeviceIpAddress() {
-        try {
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface networkInterface = interfaces.nextElement();
-
-                // Skip loopback and inactive interfaces
-                if (networkInterface.isLoopback() || !networkInterface.isUp()) {
-                    continue;
-                }
-
-                Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    InetAddress address = addresses.nextElement();
-
-                    // We want IPv4 addresses that are not loopback
-                    if (!address.isLoopbackAddress() &&
-                            !address.isLinkLocalAddress() &&
-                            address.getHostAddress().indexOf(':') == -1) { // IPv4 check
-
-                        String ipAddress = address.getHostAddress();
+    private void showDeviceAddresses() {
+        refreshIpAddress();
+        List<NetworkPaths.Path> paths = NetworkPaths.list();
+        StringBuilder message = new StringBuilder();
+        for (NetworkPaths.Path path : paths) {
+            message.append("• ").append(path).append("\n");
+        }
+        message.append("\nThe server listens on all of them. The Python client finds the others from any one " +
+                "and uses the fastest, switching to another one if it drops.");
+        showDataDialog("Addresses (" + paths.size() + ")", paths.isEmpty() ? "Not Available" : message.toString());
+    }
 
-                        // Prefer addresses that start with common private ranges
-                        if (ipAddress.startsWith("192.168.") ||
-                                ipAddress.startsWith("10.") ||
-                                ipAddress.startsWith("172.")) {
-                            return ipAddress;
-                        }
-                    }
-                }
-            }
-        } catch (SocketException e) {
-            e.printStackTrace();
+    private void refreshIpAddress() {
+        List<NetworkPaths.Path> paths = NetworkPaths.list();
+        if (paths.isEmpty()) {
+            updateIpAddress("Not Available");
+        } else {
+            NetworkPaths.Path best = paths.get(0);
+            updateIpAddress(best.address + " (" + best.kind + ")" +
+                    (paths.size() > 1 ? " +" + (paths.size() - 1) + " more" : ""));
         }
-        return "Not Available";
     }
 }
\ No newline at end of file
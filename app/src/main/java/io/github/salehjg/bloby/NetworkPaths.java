@@ -0,0 +1,166 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The addresses clients can reach this device at: every IPv4 and IPv6 address of every interface
+ * that is up, e.g. Wi-Fi, USB tethering and USB Ethernet adapters at once.
+ * <p>
+ * The servers listen on the wildcard address, which on Android is a dual-stack IPv6 socket, so
+ * they accept connections on all of them. The addresses are advertised to clients in the
+ * handshake (see {@link ByteServer}); the client probes them and picks the fastest. The kind of
+ * link is guessed from the interface name, since wired links are much faster than Wi-Fi even
+ * when their RTTs look alike. Loopback, link-local addresses (they need the client's scope) and
+ * mobile data are left out.
+ */
+public class NetworkPaths {
+
+    public static final String KIND_USB = "usb";
+    public static final String KIND_ETHERNET = "ethernet";
+    public static final String KIND_WIFI = "wifi";
+    public static final String KIND_OTHER = "other";
+
+    public static class Path implements Comparable<Path> {
+        public final String interfaceName;
+        public final String address;
+        public final String kind;
+        public final boolean ipv6;
+
+        Path(String interfaceName, String address, String kind, boolean ipv6) {
+            this.interfaceName = interfaceName;
+            this.address = address;
+            this.kind = kind;
+            this.ipv6 = ipv6;
+        }
+
+        /**
+         * @return the address with the port, bracketed if IPv6
+         */
+        public String withPort(int port) {
+            return (ipv6 ? "[" + address + "]" : address) + ":" + port;
+        }
+
+        @Override
+        public int compareTo(Path other) {
+            int byKind = Integer.compare(rank(kind), rank(other.kind));
+            return byKind != 0 ? byKind : Boolean.compare(ipv6, other.ipv6);
+        }
+
+        @Override
+        public String toString() {
+            return address + " (" + kind + ", " + interfaceName + ")";
+        }
+    }
+
+    /**
+     * @return the usable addresses, fastest kind of link first and IPv4 before IPv6
+     */
+    public static List<Path> list() {
+        List<Path> paths = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (networkInterface.isLoopback() || !networkInterface.isUp()) {
+                    continue;
+                }
+                String kind = kindOf(networkInterface.getName());
+                if (kind == null) {
+                    continue;
+                }
+                Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (address.isLoopbackAddress() || address.isLinkLocalAddress() ||
+                            address.isAnyLocalAddress() || address.isMulticastAddress()) {
+                        continue;
+                    }
+                    String hostAddress = address.getHostAddress();
+                    // Android appends the interface as scope even to global addresses
+                    int scope = hostAddress.indexOf('%');
+                    if (scope >= 0) {
+                        hostAddress = hostAddress.substring(0, scope);
+                    }
+                    paths.add(new Path(networkInterface.getName(), hostAddress, kind,
+                            address instanceof Inet6Address));
+                }
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * @return the address to show first, or null if there is none
+     */
+    public static Path preferred() {
+        List<Path> paths = list();
+        return paths.isEmpty() ? null : paths.get(0);
+    }
+
+    /**
+     * @return the paths as sent in the handshake pong
+     */
+    public static JSONArray toJson(int port) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Path path : list()) {
+            JSONObject json = new JSONObject();
+            json.put("address", path.address);
+            json.put("port", port);
+            json.put("kind", path.kind);
+            array.put(json);
+        }
+        return array;
+    }
+
+    /**
+     * @return the kind of link of an interface, or null if it should not be advertised
+     */
+    static String kindOf(String interfaceName) {
+        String name = interfaceName.toLowerCase(Locale.ROOT);
+        if (name.startsWith("rndis") || name.startsWith("usb") || name.startsWith("ncm")) {
+            return KIND_USB;
+        }
+        if (name.startsWith("eth")) {
+            return KIND_ETHERNET;
+        }
+        if (name.startsWith("wlan") || name.startsWith("swlan") || name.startsWith("ap") ||
+                name.startsWith("p2p")) {
+            return KIND_WIFI;
+        }
+        // Mobile data, and the tunnels and placeholders Android keeps around
+        if (name.startsWith("rmnet") || name.startsWith("ccmni") || name.startsWith("v4-") ||
+                name.startsWith("dummy") || name.startsWith("ifb") || name.startsWith("sit") ||
+                name.startsWith("ip6tnl") || name.startsWith("tunl")) {
+            return null;
+        }
+        return KIND_OTHER;
+    }
+
+    private static int rank(String kind) {
+        switch (kind) {
+            case KIND_USB:
+                return 0;
+            case KIND_ETHERNET:
+                return 1;
+            case KIND_WIFI:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+}
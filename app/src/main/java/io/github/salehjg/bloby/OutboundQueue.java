@@ -0,0 +1,286 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Durable queue of blobs waiting to be sent to the CLI.
+ * <p>
+ * Entries are persisted to {@code files/.bloby/outbound_queue.json} on every change, so a queued
+ * batch survives app restarts. A dispatcher thread drains the queue back to back whenever a
+ * client is connected; a failed send is retried with exponential backoff (with jitter) instead of
+ * being dropped.
+ */
+public class OutboundQueue {
+
+    public interface Sender {
+        boolean isReady();
+
+        /**
+         * Send one blob, throwing on failure. A {@link FileNotFoundException} means the blob no
+         * longer exists and a {@link TransferProgress.CancelledException} that the user cancelled
+         * the send; either way the entry is dropped instead of retried.
+         */
+        void send(String blobName) throws Exception;
+    }
+
+    public interface Listener {
+        void onSent(String blobName, int remaining);
+
+        void onFailed(String blobName, int attempts, long retryInMs, Exception e);
+
+        void onDropped(String blobName, String reason);
+    }
+
+    private static final long BASE_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    private static class Entry {
+        String blobName;
+        long enqueuedAt;
+        int attempts;
+        long nextAttemptAt;
+        String lastError;
+    }
+
+    private final File queueFile;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Random jitter = new Random();
+    private Sender sender;
+    private Listener listener;
+    private Thread dispatcher;
+
+    public OutboundQueue(File filesDir) {
+        File stateDir = new File(filesDir, ".bloby");
+        if (!stateDir.exists()) {
+            stateDir.mkdirs();
+        }
+        this.queueFile = new File(stateDir, "outbound_queue.json");
+        load();
+    }
+
+    public void start(Sender sender, Listener listener) {
+        synchronized (this) {
+            this.sender = sender;
+            this.listener = listener;
+            if (dispatcher != null) {
+                return;
+            }
+            dispatcher = new Thread(this::dispatchLoop, "bloby-outbound-queue");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    /**
+     * Start again after {@link #stop}, with the sender and listener given before.
+     */
+    public synchronized void restart() {
+        start(sender, listener);
+    }
+
+    /**
+     * Stop the dispatcher. Entries stay persisted for the next {@link #start}.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (dispatcher != null) {
+                dispatcher.interrupt();
+                dispatcher = null;
+            }
+        }
+    }
+
+    /**
+     * Queue a blob for sending. A blob already in the queue is not added twice.
+     *
+     * @return false if the blob was already queued
+     */
+    public synchronized boolean enqueue(String blobName) {
+        for (Entry entry : entries) {
+            if (entry.blobName.equals(blobName)) {
+                return false;
+            }
+        }
+        Entry entry = new Entry();
+        entry.blobName = blobName;
+        entry.enqueuedAt = System.currentTimeMillis();
+        entries.add(entry);
+        save();
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void remove(String blobName) {
+        if (entries.removeIf(entry -> entry.blobName.equals(blobName))) {
+            save();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        save();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * One line per queued blob, for display.
+     */
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries) {
+            String line = entry.blobName;
+            if (entry.attempts > 0) {
+                line += " (" + entry.attempts + " failed, retry in " +
+                        Math.max(0, (entry.nextAttemptAt - now) / 1000) + "s: " + entry.lastError + ")";
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Wake the dispatcher, e.g. when a client connects. Pending retries are due immediately since
+     * a fresh connection is the most likely reason a previous attempt failed.
+     */
+    public synchronized void onClientConnected() {
+        for (Entry entry : entries) {
+            entry.nextAttemptAt = 0;
+        }
+        notifyAll();
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            Entry next;
+            synchronized (this) {
+                next = nextDue();
+                while (next == null) {
+                    try {
+                        wait(millisUntilNextDue());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    next = nextDue();
+                }
+            }
+
+            try {
+                sender.send(next.blobName);
+                int remaining;
+                synchronized (this) {
+                    entries.remove(next);
+                    save();
+                    remaining = entries.size();
+                }
+                if (listener != null) listener.onSent(next.blobName, remaining);
+            } catch (FileNotFoundException | TransferProgress.CancelledException e) {
+                synchronized (this) {
+                    entries.remove(next);
+                    save();
+                }
+                if (listener != null) listener.onDropped(next.blobName, e.getMessage());
+            } catch (Exception e) {
+                long backoff;
+                synchronized (this) {
+                    next.attempts++;
+                    backoff = backoffFor(next.attempts);
+                    next.nextAttemptAt = System.currentTimeMillis() + backoff;
+                    next.lastError = e.getMessage();
+                    save();
+                }
+                if (listener != null) listener.onFailed(next.blobName, next.attempts, backoff, e);
+            }
+        }
+    }
+
+    /**
+     * @return the oldest entry that is due, or null if nothing can be sent right now
+     */
+    private Entry nextDue() {
+        if (sender == null || !sender.isReady()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries) {
+            if (entry.nextAttemptAt <= now) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private long millisUntilNextDue() {
+        if (entries.isEmpty()) {
+            return 0; // wait until notified
+        }
+        if (sender == null || !sender.isReady()) {
+            // Woken by onClientConnected, but re-check once a second in case a connection was missed
+            return 1000;
+        }
+        long now = System.currentTimeMillis();
+        long soonest = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            soonest = Math.min(soonest, entry.nextAttemptAt - now);
+        }
+        return Math.max(1, Math.min(soonest, 1000));
+    }
+
+    private long backoffFor(int attempts) {
+        long backoff = BASE_BACKOFF_MS << Math.min(attempts - 1, 16);
+        backoff = Math.min(backoff, MAX_BACKOFF_MS);
+        // +/-20% jitter so retries of a batch do not all fire at once
+        return (long) (backoff * (0.8 + 0.4 * jitter.nextDouble()));
+    }
+
+    private void load() {
+        if (!queueFile.exists()) {
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray(BlobChangeTracker.readText(queueFile));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                Entry entry = new Entry();
+                entry.blobName = json.getString("blob_name");
+                entry.enqueuedAt = json.optLong("enqueued_at");
+                entry.attempts = json.optInt("attempts");
+                entry.lastError = json.optString("last_error", null);
+                // Backoff deadlines do not carry over a restart
+                entries.add(entry);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void save() {
+        try {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries) {
+                JSONObject json = new JSONObject();
+                json.put("blob_name", entry.blobName);
+                json.put("enqueued_at", entry.enqueuedAt);
+                json.put("attempts", entry.attempts);
+                if (entry.lastError != null) {
+                    json.put("last_error", entry.lastError);
+                }
+                array.put(json);
+            }
+            BlobChangeTracker.writeTextAtomically(queueFile, array.toString(4));
+        } catch (JSONException | java.io.IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
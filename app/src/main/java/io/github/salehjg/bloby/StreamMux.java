@@ -0,0 +1,464 @@
+package io.github.salehjg.bloby;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Many frame streams over one client connection, once the handshake switched it over (see
+ * {@link ByteServer}).
+ * <p>
+ * Everything on the wire is then a segment: stream id (4 bytes), flags (1 byte), data length
+ * (4 bytes, big-endian), data. A stream carries ordinary frames one way, from the side that opened
+ * it: clients use odd ids, we use even ones. The opener ends it with {@link #FLAG_FIN}, either side
+ * can abort it with {@link #FLAG_RESET}. Each stream has its own flow-control window: at most
+ * {@link #WINDOW} bytes may be in flight on it, and the reading side returns credit in
+ * {@link #FLAG_WINDOW} segments as it consumes them, so a stream whose reader is slow never holds
+ * up the others. Data goes out in segments of at most {@link #SEGMENT_SIZE} and writers take turns
+ * on the socket through a fair lock, so a small frame waits for one segment of each busy stream
+ * rather than for a whole large payload.
+ */
+public class StreamMux {
+
+    public static final int VERSION = 1;
+    public static final int SEGMENT_SIZE = 16 * 1024;
+    public static final int WINDOW = 256 * 1024;
+    // Streams the client may have open at once; buffered data is bounded by this times the window
+    public static final int MAX_STREAMS = 32;
+
+    static final int FLAG_FIN = 1;
+    // Data is a 4-byte credit increment for a stream of the other side
+    static final int FLAG_WINDOW = 2;
+    static final int FLAG_RESET = 4;
+
+    private static final int SEGMENT_HEADER = 9;
+
+    /**
+     * Reads the frames of a stream the client opened. Called on a thread of its own per stream.
+     */
+    public interface StreamHandler {
+        void onStream(Input stream);
+    }
+
+    private final Socket socket;
+    private final OutputStream out;
+    // Fair, so writers of different streams alternate segment by segment
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final byte[] segment = new byte[SEGMENT_HEADER + SEGMENT_SIZE];
+    private final Map<Integer, Output> outputs = new ConcurrentHashMap<>();
+    private final Map<Integer, Input> inputs = new ConcurrentHashMap<>();
+    // Client streams not yet closed by their reader, finished or not
+    private final AtomicInteger activeInputs = new AtomicInteger();
+    private int nextId = 2;
+    // Client ids only grow, so a segment for a lower unknown id belongs to a stream that is over
+    private int lastInputId = -1;
+    private volatile boolean closed;
+
+    public StreamMux(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+    }
+
+    /**
+     * Open a stream to the client. Close it to end it, or {@link Output#abort} it.
+     */
+    public Output openStream() throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        Output stream;
+        synchronized (this) {
+            stream = new Output(nextId);
+            nextId += 2;
+        }
+        outputs.put(stream.id, stream);
+        return stream;
+    }
+
+    public int getOpenStreamCount() {
+        return outputs.size() + activeInputs.get();
+    }
+
+    /**
+     * Read segments until the connection ends, handing each stream the client opens to
+     * {@code handler}. Every stream fails once this returns.
+     */
+    public void run(InputStream socketIn, StreamHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socketIn, 64 * 1024));
+        try {
+            while (true) {
+                int id;
+                try {
+                    id = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                int flags = in.readUnsignedByte();
+                int length = in.readInt();
+                if (length < 0 || length > SEGMENT_SIZE) {
+                    throw new IOException("Invalid segment length " + length);
+                }
+                if ((id & 1) == 0) {
+                    // Credit or a reset for one of ours
+                    onOutputSegment(in, id, flags, length);
+                } else {
+                    onInputSegment(in, id, flags, length, handler);
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void onOutputSegment(DataInputStream in, int id, int flags, int length) throws IOException {
+        int credit = (flags & FLAG_WINDOW) != 0 && length == 4 ? in.readInt() : skip(in, length);
+        Output stream = outputs.get(id);
+        if (stream == null) {
+            return; // already finished
+        }
+        if ((flags & FLAG_RESET) != 0) {
+            stream.onReset();
+        } else if (credit > 0) {
+            stream.grant(credit);
+        }
+    }
+
+    private void onInputSegment(DataInputStream in, int id, int flags, int length, StreamHandler handler)
+            throws IOException {
+        Input stream = inputs.get(id);
+        if (stream == null) {
+            if ((flags & FLAG_RESET) != 0 || id <= lastInputId) {
+                skip(in, length);
+                return;
+            }
+            lastInputId = id;
+            if (activeInputs.get() >= MAX_STREAMS) {
+                skip(in, length);
+                writeSegment(id, FLAG_RESET, null, 0, 0);
+                return;
+            }
+            stream = new Input(id);
+            inputs.put(id, stream);
+            activeInputs.incrementAndGet();
+            Input opened = stream;
+            new Thread(() -> handler.onStream(opened), "bloby-stream-" + id).start();
+        }
+        byte[] data = null;
+        if (length > 0) {
+            data = new byte[length];
+            in.readFully(data);
+        }
+        if ((flags & FLAG_RESET) != 0) {
+            stream.onReset();
+        } else {
+            stream.onData(data, (flags & FLAG_FIN) != 0);
+        }
+    }
+
+    private static int skip(DataInputStream in, int length) throws IOException {
+        in.readFully(new byte[length]);
+        return 0;
+    }
+
+    /**
+     * Write one segment, in a single write under the socket lock.
+     */
+    private void writeSegment(int id, int flags, byte[] data, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            ByteBuffer header = ByteBuffer.wrap(segment, 0, SEGMENT_HEADER);
+            header.putInt(id);
+            header.put((byte) flags);
+            header.putInt(length);
+            if (length > 0) {
+                System.arraycopy(data, offset, segment, SEGMENT_HEADER, length);
+            }
+            out.write(segment, 0, SEGMENT_HEADER + length);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeCredit(int id, int credit) throws IOException {
+        byte[] data = ByteBuffer.allocate(4).putInt(credit).array();
+        writeSegment(id, FLAG_WINDOW, data, 0, 4);
+    }
+
+    /**
+     * Fail every stream, e.g. because the connection ended.
+     */
+    public void close() {
+        closed = true;
+        for (Output stream : outputs.values()) {
+            stream.onReset();
+        }
+        for (Input stream : inputs.values()) {
+            stream.onReset();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * A stream we opened. Buffers up to one segment, so small writes (e.g. frame headers) do not
+     * each become a segment of their own.
+     */
+    public class Output extends OutputStream {
+        final int id;
+        private final byte[] buffer = new byte[SEGMENT_SIZE];
+        private int buffered;
+        // Guarded by this
+        private int credit = WINDOW;
+        private boolean reset;
+        private boolean finished;
+
+        Output(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, buffer.length - buffered);
+                System.arraycopy(data, offset, buffer, buffered, n);
+                buffered += n;
+                offset += n;
+                length -= n;
+                if (buffered == buffer.length) {
+                    sendBuffered(0);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffered > 0) {
+                sendBuffered(0);
+            }
+        }
+
+        /**
+         * End the stream after what was written so far.
+         */
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            try {
+                sendBuffered(FLAG_FIN);
+            } finally {
+                finished = true;
+                outputs.remove(id);
+            }
+        }
+
+        /**
+         * Drop the stream; the client discards what it got of the frame being written.
+         */
+        public void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            outputs.remove(id);
+            try {
+                writeSegment(id, FLAG_RESET, null, 0, 0);
+            } catch (IOException e) {
+                // the connection is gone anyway
+            }
+        }
+
+        private void sendBuffered(int flags) throws IOException {
+            if (finished) {
+                throw new IOException("Stream closed");
+            }
+            awaitCredit(buffered);
+            writeSegment(id, flags, buffer, 0, buffered);
+            buffered = 0;
+        }
+
+        private synchronized void awaitCredit(int needed) throws IOException {
+            try {
+                while (!reset && credit < needed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the client");
+            }
+            if (reset) {
+                throw new IOException(closed ? "Connection closed" : "Stream reset by the client");
+            }
+            credit -= needed;
+        }
+
+        synchronized void grant(int increment) {
+            credit += increment;
+            notifyAll();
+        }
+
+        synchronized void onReset() {
+            reset = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A stream the client opened, buffered up to its window.
+     */
+    public class Input extends InputStream {
+        final int id;
+        // Guarded by this
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset;
+        private int buffered;
+        private boolean finished;
+        private boolean reset;
+        private boolean released;
+        // Consumed but not yet returned to the client as credit
+        private int consumed;
+
+        Input(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int off, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int n;
+            int credit = 0;
+            synchronized (this) {
+                try {
+                    while (chunks.isEmpty() && !finished && !reset) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading a stream");
+                }
+                if (reset) {
+                    throw new IOException(closed ? "Connection lost" : "Stream reset");
+                }
+                if (chunks.isEmpty()) {
+                    return -1;
+                }
+                byte[] chunk = chunks.peekFirst();
+                n = Math.min(length, chunk.length - offset);
+                System.arraycopy(chunk, offset, data, off, n);
+                offset += n;
+                if (offset == chunk.length) {
+                    chunks.removeFirst();
+                    offset = 0;
+                }
+                buffered -= n;
+                consumed += n;
+                // Half a window at a time keeps the sender busy without a segment per read
+                if (consumed >= WINDOW / 2 && !finished) {
+                    credit = consumed;
+                    consumed = 0;
+                }
+            }
+            if (credit > 0) {
+                writeCredit(id, credit);
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffered;
+        }
+
+        /**
+         * Stop reading the stream and tell the client to stop sending it, e.g. because its
+         * transfer was cancelled. A blocked read fails.
+         */
+        public void cancel() {
+            boolean wasOpen;
+            boolean release;
+            synchronized (this) {
+                wasOpen = !finished && !reset;
+                release = !released;
+                released = true;
+                onReset();
+            }
+            inputs.remove(id);
+            if (release) {
+                activeInputs.decrementAndGet();
+            }
+            if (wasOpen) {
+                try {
+                    writeSegment(id, FLAG_RESET, null, 0, 0);
+                } catch (IOException e) {
+                    // the connection is gone anyway
+                }
+            }
+        }
+
+        /**
+         * Done with the stream; cancels it if the client has not finished it.
+         */
+        @Override
+        public void close() {
+            cancel();
+        }
+
+        synchronized void onData(byte[] data, boolean fin) throws IOException {
+            if (reset) {
+                return; // cancelled here, the client stops once it sees our reset
+            }
+            if (data != null) {
+                buffered += data.length;
+                if (buffered > WINDOW) {
+                    throw new IOException("Client overran the window of stream " + id);
+                }
+                chunks.addLast(data);
+            }
+            if (fin) {
+                finished = true;
+                inputs.remove(id);
+            }
+            notifyAll();
+        }
+
+        synchronized void onReset() {
+            reset = true;
+            chunks.clear();
+            buffered = 0;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package io.github.salehjg.bloby;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.pdf.PdfRenderer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Two-tier (memory + disk) LRU cache of first-page/preview thumbnails for blob payloads.
+ * Thumbnails are generated lazily on background threads and each preview is decoded at most once.
+ */
+public class ThumbnailCache {
+
+    private static final int THUMB_SIZE_PX = 192;
+    private static final long DISK_BUDGET_BYTES = 32L * 1024 * 1024;
+    private static final int WORKER_THREADS = 2;
+
+    private final File blobsRoot;
+    private final File diskDir;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // key -> views waiting for the in-flight decode of that key (empty list for prefetches)
+    private final Map<String, List<ImageView>> inFlight = new ConcurrentHashMap<>();
+    // keys for which no preview can be produced (unsupported type, corrupt file...)
+    private final Set<String> noPreview = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public ThumbnailCache(Context context) {
+        this.blobsRoot = context.getFilesDir();
+        this.diskDir = new File(context.getCacheDir(), "thumbnails");
+        if (!diskDir.exists()) {
+            diskDir.mkdirs();
+        }
+
+        // Use 1/16th of the available heap for decoded thumbnails
+        int memoryBudget = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        this.memoryCache = new LruCache<String, Bitmap>(memoryBudget) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        this.executor = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "bloby-thumbnails");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Bind the thumbnail of the given blob to an ImageView, decoding it in the background if needed.
+     * Must be called on the main thread.
+     */
+    public void load(String blobName, String fileName, ImageView target) {
+        File payload = payloadFile(blobName, fileName);
+        String key = cacheKey(blobName, payload);
+        target.setTag(key);
+
+        if (key == null || noPreview.contains(key)) {
+            target.setImageDrawable(null);
+            return;
+        }
+
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            target.setImageBitmap(cached);
+            return;
+        }
+
+        target.setImageDrawable(null);
+        enqueue(key, payload, target);
+    }
+
+    /**
+     * Warm the caches for a blob that is about to scroll into view.
+     */
+    public void prefetch(String blobName, String fileName) {
+        File payload = payloadFile(blobName, fileName);
+        String key = cacheKey(blobName, payload);
+        if (key == null || noPreview.contains(key) || memoryCache.get(key) != null) {
+            return;
+        }
+        enqueue(key, payload, null);
+    }
+
+    /**
+     * Drop every cached thumbnail of a blob (e.g. after it was deleted or edited).
+     */
+    public void invalidate(String blobName) {
+        String prefix = blobName + "@";
+        for (String key : new ArrayList<>(memoryCache.snapshot().keySet())) {
+            if (key.startsWith(prefix)) {
+                memoryCache.remove(key);
+            }
+        }
+        File[] files = diskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        memoryCache.evictAll();
+        noPreview.clear();
+        File[] files = diskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private File payloadFile(String blobName, String fileName) {
+        return new File(new File(blobsRoot, blobName), fileName);
+    }
+
+    /**
+     * The key includes size and mtime so an edited payload never hits a stale preview.
+     */
+    private String cacheKey(String blobName, File payload) {
+        if (payload == null || !payload.isFile()) {
+            return null;
+        }
+        return blobName + "@" + payload.lastModified() + "-" + payload.length();
+    }
+
+    private void enqueue(String key, File payload, ImageView target) {
+        List<ImageView> waiting = new ArrayList<>();
+        List<ImageView> existing = inFlight.putIfAbsent(key, waiting);
+        if (existing != null) {
+            // Already being decoded, just wait for it
+            if (target != null) {
+                synchronized (existing) {
+                    existing.add(target);
+                }
+            }
+            return;
+        }
+        if (target != null) {
+            waiting.add(target);
+        }
+
+        executor.execute(() -> {
+            Bitmap bitmap = null;
+            try {
+                bitmap = loadFromDisk(key);
+                if (bitmap == null) {
+                    bitmap = generate(payload);
+                    if (bitmap != null) {
+                        saveToDisk(key, bitmap);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            final Bitmap result = bitmap;
+            if (result != null) {
+                memoryCache.put(key, result);
+            } else {
+                noPreview.add(key);
+            }
+
+            mainHandler.post(() -> {
+                List<ImageView> targets = inFlight.remove(key);
+                if (targets == null || result == null) {
+                    return;
+                }
+                synchronized (targets) {
+                    for (ImageView view : targets) {
+                        // The view may have been recycled for another row in the meantime
+                        if (key.equals(view.getTag())) {
+                            view.setImageBitmap(result);
+                        }
+                    }
+                }
+            });
+        });
+    }
+
+    private Bitmap loadFromDisk(String key) {
+        File file = new File(diskDir, key + ".jpg");
+        if (!file.exists()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis()); // LRU touch
+        return BitmapFactory.decodeFile(file.getAbsolutePath());
+    }
+
+    private void saveToDisk(String key, Bitmap bitmap) {
+        File file = new File(diskDir, key + ".jpg");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, fos);
+        } catch (Exception e) {
+            e.printStackTrace();
+            file.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    /**
+     * Evict least recently used thumbnails until the disk tier fits its budget.
+     */
+    private synchronized void trimDisk() {
+        File[] files = diskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_BUDGET_BYTES) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (total <= DISK_BUDGET_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private Bitmap generate(File payload) throws Exception {
+        String name = payload.getName().toLowerCase();
+        if (name.endsWith(".pdf")) {
+            return renderPdfFirstPage(payload);
+        }
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") ||
+                name.endsWith(".gif") || name.endsWith(".bmp") || name.endsWith(".webp")) {
+            return decodeSampledImage(payload);
+        }
+        return null;
+    }
+
+    private Bitmap renderPdfFirstPage(File payload) throws Exception {
+        try (ParcelFileDescriptor fd = ParcelFileDescriptor.open(payload, ParcelFileDescriptor.MODE_READ_ONLY);
+             PdfRenderer renderer = new PdfRenderer(fd)) {
+            if (renderer.getPageCount() == 0) {
+                return null;
+            }
+            try (PdfRenderer.Page page = renderer.openPage(0)) {
+                float scale = (float) THUMB_SIZE_PX / Math.max(page.getWidth(), page.getHeight());
+                int width = Math.max(1, Math.round(page.getWidth() * scale));
+                int height = Math.max(1, Math.round(page.getHeight() * scale));
+                Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                bitmap.eraseColor(Color.WHITE); // PDF pages are transparent by default
+                page.render(bitmap, null, null, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
+                return bitmap;
+            }
+        }
+    }
+
+    private Bitmap decodeSampledImage(File payload) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(payload.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= THUMB_SIZE_PX) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(payload.getAbsolutePath(), options);
+    }
+}
@@ -0,0 +1,197 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Span tracing for the transfer and storage path, exported as Chrome trace-event JSON (open it in
+ * Perfetto or chrome://tracing).
+ * <p>
+ * Spans are recorded as complete events into a fixed ring, so the newest {@link #CAPACITY} events
+ * are kept. Hand-offs between threads (e.g. a posted Runnable) are flow events joining the span
+ * that hands off with the span that picks the work up. While disabled, {@link #begin()} returns 0
+ * and every other call returns right away, so instrumented code pays one volatile read.
+ * <p>
+ * Call sites pass constant names; the transfer a span belongs to goes into its args as an id.
+ */
+public final class Tracer {
+
+    public static final int CAPACITY = 16384;
+
+    private static final char PHASE_COMPLETE = 'X';
+    private static final char PHASE_INSTANT = 'i';
+    private static final char PHASE_FLOW_START = 's';
+    private static final char PHASE_FLOW_END = 'f';
+
+    private static class Event {
+        char phase;
+        String name;
+        String category;
+        long startNanos;
+        long durationNanos;
+        long threadId;
+        String threadName;
+        long transferId;
+        long flowId;
+    }
+
+    private static volatile boolean enabled = false;
+    private static final Event[] events = new Event[CAPACITY];
+    private static long written = 0;
+    private static final AtomicLong nextId = new AtomicLong(1);
+    // Trace timestamps are relative to this, Chrome wants microseconds
+    private static final long originNanos = System.nanoTime();
+
+    private Tracer() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * @return an id for a transfer or a thread hand-off, or 0 while disabled
+     */
+    public static long newId() {
+        return enabled ? nextId.getAndIncrement() : 0;
+    }
+
+    /**
+     * @return the start of a span, or 0 while disabled
+     */
+    public static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a span that started at {@code start} (from {@link #begin()}) and ends now.
+     */
+    public static void end(String name, String category, long start, long transferId) {
+        if (start == 0 || !enabled) {
+            return;
+        }
+        record(PHASE_COMPLETE, name, category, start, System.nanoTime() - start, transferId, 0);
+    }
+
+    public static void instant(String name, String category, long transferId) {
+        if (!enabled) {
+            return;
+        }
+        record(PHASE_INSTANT, name, category, System.nanoTime(), 0, transferId, 0);
+    }
+
+    /**
+     * Mark the current thread handing work off; pair with {@link #flowEnd} on the receiving
+     * thread, inside the span that runs the work.
+     */
+    public static void flowStart(String name, long flowId) {
+        if (flowId == 0 || !enabled) {
+            return;
+        }
+        record(PHASE_FLOW_START, name, "handoff", System.nanoTime(), 0, 0, flowId);
+    }
+
+    public static void flowEnd(String name, long flowId) {
+        if (flowId == 0 || !enabled) {
+            return;
+        }
+        record(PHASE_FLOW_END, name, "handoff", System.nanoTime(), 0, 0, flowId);
+    }
+
+    public static synchronized void clear() {
+        written = 0;
+    }
+
+    /**
+     * @return the number of events currently held
+     */
+    public static synchronized int size() {
+        return (int) Math.min(written, CAPACITY);
+    }
+
+    /**
+     * The buffered events as a trace-event JSON object, oldest first.
+     */
+    public static synchronized String exportJson() throws JSONException {
+        JSONArray traceEvents = new JSONArray();
+        JSONObject processName = new JSONObject();
+        processName.put("ph", "M");
+        processName.put("name", "process_name");
+        processName.put("pid", 1);
+        processName.put("args", new JSONObject().put("name", "Bloby"));
+        traceEvents.put(processName);
+
+        Set<Long> namedThreads = new HashSet<>();
+        long first = Math.max(0, written - CAPACITY);
+        for (long i = first; i < written; i++) {
+            Event event = events[(int) (i % CAPACITY)];
+            if (namedThreads.add(event.threadId)) {
+                JSONObject threadName = new JSONObject();
+                threadName.put("ph", "M");
+                threadName.put("name", "thread_name");
+                threadName.put("pid", 1);
+                threadName.put("tid", event.threadId);
+                threadName.put("args", new JSONObject().put("name", event.threadName));
+                traceEvents.put(threadName);
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("ph", String.valueOf(event.phase));
+            json.put("name", event.name);
+            json.put("cat", event.category);
+            json.put("pid", 1);
+            json.put("tid", event.threadId);
+            json.put("ts", (event.startNanos - originNanos) / 1000.0);
+            if (event.phase == PHASE_COMPLETE) {
+                json.put("dur", event.durationNanos / 1000.0);
+            } else if (event.phase == PHASE_INSTANT) {
+                json.put("s", "t");
+            } else {
+                json.put("id", event.flowId);
+                if (event.phase == PHASE_FLOW_END) {
+                    // Bind to the enclosing span rather than the next one to start
+                    json.put("bp", "e");
+                }
+            }
+            if (event.transferId != 0) {
+                json.put("args", new JSONObject().put("transfer", event.transferId));
+            }
+            traceEvents.put(json);
+        }
+
+        JSONObject trace = new JSONObject();
+        trace.put("traceEvents", traceEvents);
+        trace.put("displayTimeUnit", "ms");
+        return trace.toString();
+    }
+
+    private static synchronized void record(char phase, String name, String category, long startNanos,
+                                            long durationNanos, long transferId, long flowId) {
+        int index = (int) (written % CAPACITY);
+        Event event = events[index];
+        if (event == null) {
+            event = new Event();
+            events[index] = event;
+        }
+        Thread thread = Thread.currentThread();
+        event.phase = phase;
+        event.name = name;
+        event.category = category;
+        event.startNanos = startNanos;
+        event.durationNanos = durationNanos;
+        event.threadId = thread.getId();
+        event.threadName = thread.getName();
+        event.transferId = transferId;
+        event.flowId = flowId;
+        written++;
+    }
+}
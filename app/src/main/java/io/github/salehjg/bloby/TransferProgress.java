@@ -0,0 +1,139 @@
+package io.github.salehjg.bloby;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one in-flight transfer. The transferring thread adds bytes as they move; rate and
+ * ETA are sampled by {@link TransferTracker} at a fixed interval.
+ * <p>
+ * Cancellation is cooperative: the transferring thread calls {@link #checkCancelled()} between
+ * chunks, and the cancel action (usually closing the socket) unblocks it if it is stuck in I/O.
+ */
+public class TransferProgress {
+
+    public enum Direction {SEND, RECEIVE}
+
+    public static class CancelledException extends IOException {
+        public CancelledException(String name) {
+            super("Transfer cancelled: " + name);
+        }
+    }
+
+    // Weight of the newest sample in the smoothed rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final long id;
+    private final Direction direction;
+    private final String name;
+    private final long totalBytes;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final Runnable cancelAction;
+    private volatile boolean cancelled = false;
+
+    // Only touched by the tracker's sampling
+    private long lastSampleBytes = 0;
+    private long lastSampleNanos = startNanos;
+    private volatile double bytesPerSecond = 0;
+
+    TransferProgress(long id, Direction direction, String name, long totalBytes, Runnable cancelAction) {
+        this.id = id;
+        this.direction = direction;
+        this.name = name;
+        this.totalBytes = totalBytes;
+        this.cancelAction = cancelAction;
+    }
+
+    public void add(long bytes) {
+        bytesDone.addAndGet(bytes);
+    }
+
+    /**
+     * @throws CancelledException if the transfer was cancelled
+     */
+    public void checkCancelled() throws CancelledException {
+        if (cancelled) {
+            throw new CancelledException(name);
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+        if (cancelAction != null) {
+            cancelAction.run();
+        }
+    }
+
+    void sample(long nowNanos) {
+        long done = bytesDone.get();
+        long elapsed = nowNanos - lastSampleNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        double rate = (done - lastSampleBytes) * 1e9 / elapsed;
+        bytesPerSecond = lastSampleBytes == 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * bytesPerSecond;
+        lastSampleBytes = done;
+        lastSampleNanos = nowNanos;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getBytesDone() {
+        return bytesDone.get();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getElapsedMs() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * @return estimated milliseconds left, or -1 while the rate is unknown
+     */
+    public long getEtaMs() {
+        double rate = bytesPerSecond;
+        if (rate <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, totalBytes - bytesDone.get()) * 1000 / rate);
+    }
+
+    public int getPercent() {
+        return totalBytes > 0 ? (int) (bytesDone.get() * 100 / totalBytes) : 0;
+    }
+
+    /**
+     * One line for logs and the UI, e.g. "↓ photo.jpg 45% 12.3 MB/s ETA 0:12"
+     */
+    @Override
+    public String toString() {
+        long eta = getEtaMs();
+        return String.format(Locale.US, "%s %s %d%% %.1f MB/s ETA %s",
+                direction == Direction.SEND ? "↑" : "↓", name, getPercent(),
+                bytesPerSecond / (1024 * 1024),
+                eta < 0 ? "?" : String.format(Locale.US, "%d:%02d", eta / 60000, eta / 1000 % 60));
+    }
+}
@@ -0,0 +1,1008 @@
+package io.github.salehjg.bloby;
+
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Foreground service that owns the server, blob storage and the outbound queue.
+ * <p>
+ * Transfers live here rather than in MainActivity so they survive rotation, backgrounding and a
+ * screen that is off. The activity only binds to the service and registers a {@link Callback} to
+ * mirror what happens in its list and log. While a client is connected, a partial wake lock and a
+ * high performance Wi-Fi lock keep the CPU and radio from throttling the transfer.
+ */
+public class TransferService extends Service {
+
+    public static final int SERVER_PORT = 12345;
+    public static final String PREFS_NAME = "bloby_settings";
+    public static final String PREF_STORAGE_QUOTA_MB = "storage_quota_mb";
+    public static final String PREF_HTTP_SERVER_ENABLED = "http_server_enabled";
+    public static final String PREF_MIRROR_ENABLED = "mirror_enabled";
+    public static final String PREF_READ_CACHE_MB = "read_cache_mb";
+
+    private static final String ACTION_STOP = "io.github.salehjg.bloby.action.STOP";
+    private static final String CHANNEL_ID = "transfers";
+    private static final int NOTIFICATION_ID = 1;
+    // Log lines kept while no activity is bound, replayed when one binds
+    private static final int MAX_PENDING_LOGS = 100;
+    // Completed transfers at least this large get a summary line in the log
+    private static final long LOGGED_TRANSFER_BYTES = 1024 * 1024;
+
+    /**
+     * UI side of the service. Every method is called on the main thread.
+     */
+    public interface Callback {
+        void onLog(String message);
+
+        void onBlobsStored(List<StoredBlob> blobs);
+
+        void onBlobMetadataChanged(String blobName, String updatedJson);
+
+        void onBlobSent(String blobName, long bytes);
+
+        void onSendFailed(String blobName, String error, boolean queued);
+
+        /**
+         * Transfers in flight, at most every {@link TransferTracker#PROGRESS_INTERVAL_MS}
+         */
+        void onTransferProgress(List<TransferProgress> active);
+    }
+
+    /**
+     * A received blob after it was written to storage.
+     */
+    public static class StoredBlob {
+        public final String blobName;
+        public final String datetime;
+        public final String fileName;
+        public final String savedJson;
+        public final long size;
+
+        StoredBlob(String blobName, String datetime, String fileName, String savedJson, long size) {
+            this.blobName = blobName;
+            this.datetime = datetime;
+            this.fileName = fileName;
+            this.savedJson = savedJson;
+            this.size = size;
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        public TransferService getService() {
+            return TransferService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<String> pendingLogs = new ArrayDeque<>();
+    private Callback callback;
+
+    private ByteServer byteServer;
+    private BlobReclaimer blobReclaimer;
+    private BlobBatchCommitter blobBatchCommitter;
+    private BlobTiering blobTiering;
+    private OutboundQueue outboundQueue;
+    private HttpBlobServer httpServer;
+    private BlobMirror blobMirror;
+    private SharedPreferences settings;
+
+    private PowerManager.WakeLock wakeLock;
+    private WifiManager.WifiLock wifiLock;
+    private boolean clientConnected;
+    // Android 15+ stopped us after the daily dataSync foreground time ran out
+    private boolean timedOut;
+    private int httpConnections;
+    private final AtomicBoolean libraryCopyRunning = new AtomicBoolean(false);
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+
+        blobReclaimer = new BlobReclaimer(getFilesDir());
+        blobReclaimer.start(); // also resumes reclaiming anything tombstoned before a crash
+        blobBatchCommitter = new BlobBatchCommitter(getFilesDir(), blobReclaimer);
+        int interruptedBatches = blobBatchCommitter.recover();
+        if (interruptedBatches > 0) {
+            log("Recovered " + interruptedBatches + " interrupted batch(es)");
+        }
+        blobTiering = new BlobTiering(getFilesDir());
+        applyReadCacheBudget();
+        enforceStorageQuota();
+
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Bloby:transfer");
+        wakeLock.setReferenceCounted(false);
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "Bloby:transfer");
+        wifiLock.setReferenceCounted(false);
+
+        BlobCatalog blobCatalog = new BlobCatalog(getFilesDir(), blobTiering);
+        httpServer = new HttpBlobServer(getFilesDir(), blobCatalog, blobTiering, new HttpBlobServer.Listener() {
+            @Override
+            public void onStatus(String status) {
+                log(status);
+            }
+
+            @Override
+            public void onActiveConnectionsChanged(int active) {
+                mainHandler.post(() -> {
+                    httpConnections = active;
+                    updateTransferLocks();
+                });
+            }
+        });
+        if (settings.getBoolean(PREF_HTTP_SERVER_ENABLED, false)) {
+            httpServer.start(HttpBlobServer.DEFAULT_PORT);
+        }
+
+        byteServer = new ByteServer();
+        byteServer.getTransferTracker().setListener(new TransferTracker.Listener() {
+            @Override
+            public void onProgress(List<TransferProgress> active) {
+                if (callback != null) callback.onTransferProgress(active);
+            }
+
+            @Override
+            public void onFinished(TransferProgress transfer, Exception error) {
+                if (error instanceof TransferProgress.CancelledException) {
+                    log("Cancelled " + transfer.getName() + " after " + transfer.getBytesDone() + " of " +
+                            transfer.getTotalBytes() + " bytes");
+                } else if (transfer.getTotalBytes() >= LOGGED_TRANSFER_BYTES) {
+                    log((error == null ? "Finished " : "Failed ") + transfer.getName() + ": " + transfer.getTotalBytes() +
+                            " bytes in " + transfer.getElapsedMs() + " ms");
+                }
+            }
+        });
+        // Lets the CLI list and fetch blobs on its own
+        byteServer.setRequestHandler(blobCatalog);
+        byteServer.setOnDataReceivedListener(new ByteServer.OnDataReceivedListener() {
+            @Override
+            public void onBlobReceived(ByteServer.ReceivedBlob blob) {
+                storeBlob(blob);
+            }
+
+            @Override
+            public void onBatchReceived(List<ByteServer.ReceivedBlob> blobs) {
+                storeBatch(blobs);
+            }
+
+            @Override
+            public ByteServer.TreeSink onTreeStarted(BlobMeta meta) throws IOException {
+                return storeTree(meta);
+            }
+
+            @Override
+            public void onClientConnectionChanged(boolean connected) {
+                setClientConnected(connected);
+                if (connected && outboundQueue.size() > 0) {
+                    log("Client connected, sending " + outboundQueue.size() + " queued blob(s)");
+                }
+                if (connected) {
+                    outboundQueue.onClientConnected();
+                }
+                updateMirror();
+            }
+
+            @Override
+            public void onServerStatus(String status) {
+                log("Server: " + status);
+            }
+        });
+
+        // Edits are pushed through the outbound queue, so one that misses the client is retried
+        blobMirror = new BlobMirror(getFilesDir(), new BlobMirror.Listener() {
+            @Override
+            public void onBlobChanged(String blobName, String updatedJson) {
+                notifyMetadataChanged(blobName, updatedJson);
+                if (outboundQueue.enqueue(blobName)) {
+                    log("Mirror: " + blobName + " changed, sending");
+                }
+            }
+
+            @Override
+            public void onError(String blobName, Exception e) {
+                log("Mirror: error checking " + blobName + ": " + e.getMessage());
+            }
+        });
+
+        // Drain blobs queued earlier (possibly before a restart) whenever a client is connected
+        outboundQueue = new OutboundQueue(getFilesDir());
+        outboundQueue.start(new OutboundQueue.Sender() {
+            @Override
+            public boolean isReady() {
+                return byteServer.hasConnectedClient();
+            }
+
+            @Override
+            public void send(String blobName) throws Exception {
+                sendBlobNow(blobName);
+            }
+        }, new OutboundQueue.Listener() {
+            @Override
+            public void onSent(String blobName, int remaining) {
+                log("Sent queued blob: " + blobName + " (" + remaining + " left)");
+            }
+
+            @Override
+            public void onFailed(String blobName, int attempts, long retryInMs, Exception e) {
+                log("Queued send of " + blobName + " failed (attempt " + attempts +
+                        "): " + e.getMessage() + ", retrying in " + (retryInMs / 1000) + "s");
+            }
+
+            @Override
+            public void onDropped(String blobName, String reason) {
+                log("Dropped queued blob " + blobName + ": " + reason);
+            }
+        });
+        if (outboundQueue.size() > 0) {
+            log(outboundQueue.size() + " blob(s) waiting in the outbound queue");
+        }
+
+        byteServer.startServer(SERVER_PORT);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            log("Stopping transfer service");
+            stopForeground(STOP_FOREGROUND_REMOVE);
+            stopSelf(); // destroyed once the activity unbinds as well
+            return START_NOT_STICKY;
+        }
+        try {
+            startForeground(NOTIFICATION_ID, buildNotification(), ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } catch (IllegalStateException e) {
+            // The daily dataSync time is used up, Android refuses until the app is in the foreground again
+            log("Cannot run in the background: " + e.getMessage());
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (timedOut) {
+            timedOut = false;
+            log("Restarting the servers");
+            byteServer.startServer(SERVER_PORT);
+            if (isHttpServerEnabled()) {
+                httpServer.start(HttpBlobServer.DEFAULT_PORT);
+            }
+            outboundQueue.restart();
+        }
+        return START_STICKY;
+    }
+
+    /**
+     * Android 15+ allows dataSync foreground services 6 hours a day. Once that is used up, stop
+     * serving and say so in the notification; opening the app starts the service again.
+     */
+    @Override
+    public void onTimeout(int startId, int fgsType) {
+        log("Android's daily background time limit was reached, stopping the servers");
+        timedOut = true;
+        byteServer.stopServer();
+        httpServer.stop();
+        blobMirror.stop();
+        outboundQueue.stop();
+        if (wakeLock.isHeld()) wakeLock.release();
+        if (wifiLock.isHeld()) wifiLock.release();
+        // Keep the notification, so the user sees why transfers stopped
+        stopForeground(STOP_FOREGROUND_DETACH);
+        NotificationManager notificationManager = getSystemService(NotificationManager.class);
+        notificationManager.notify(NOTIFICATION_ID, buildNotification());
+        stopSelf();
+    }
+
+    /**
+     * @return true if Android stopped the servers at the daily time limit, see {@link #onTimeout}
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        byteServer.stopServer();
+        httpServer.stop();
+        blobMirror.stop();
+        outboundQueue.stop();
+        if (wakeLock.isHeld()) wakeLock.release();
+        if (wifiLock.isHeld()) wifiLock.release();
+    }
+
+    /**
+     * Register the UI callback (or null to detach it). Log lines produced while detached are
+     * delivered right away.
+     */
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+        if (callback != null) {
+            while (!pendingLogs.isEmpty()) {
+                callback.onLog(pendingLogs.pollFirst());
+            }
+        }
+    }
+
+    /**
+     * Turn the HTTP endpoint on or off, and remember the choice
+     */
+    public void setHttpServerEnabled(boolean enabled) {
+        settings.edit().putBoolean(PREF_HTTP_SERVER_ENABLED, enabled).apply();
+        if (enabled) {
+            httpServer.start(HttpBlobServer.DEFAULT_PORT);
+        } else {
+            httpServer.stop();
+        }
+        NotificationManager notificationManager = getSystemService(NotificationManager.class);
+        notificationManager.notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    public boolean isHttpServerEnabled() {
+        return settings.getBoolean(PREF_HTTP_SERVER_ENABLED, false);
+    }
+
+    /**
+     * Turn mirror mode on or off, and remember the choice. It only watches while a client is
+     * connected, see {@link BlobMirror}.
+     */
+    public void setMirrorEnabled(boolean enabled) {
+        settings.edit().putBoolean(PREF_MIRROR_ENABLED, enabled).apply();
+        updateMirror();
+    }
+
+    public boolean isMirrorEnabled() {
+        return settings.getBoolean(PREF_MIRROR_ENABLED, false);
+    }
+
+    private void updateMirror() {
+        boolean watch = clientConnected && isMirrorEnabled();
+        if (watch == blobMirror.isRunning()) {
+            return;
+        }
+        if (watch) {
+            blobMirror.start();
+            log("Mirror: watching blobs for changes");
+        } else {
+            blobMirror.stop();
+            log("Mirror: stopped");
+        }
+    }
+
+    public boolean hasConnectedClient() {
+        return byteServer.hasConnectedClient();
+    }
+
+    /**
+     * @return false if the transfer already ended
+     */
+    public boolean cancelTransfer(long transferId) {
+        return byteServer.getTransferTracker().cancel(transferId);
+    }
+
+    public List<TransferProgress> getActiveTransfers() {
+        return byteServer.getTransferTracker().getActive();
+    }
+
+    public int getPushClientCount() {
+        return byteServer.getPushClientCount();
+    }
+
+    public BlobReclaimer getBlobReclaimer() {
+        return blobReclaimer;
+    }
+
+    public BlobTiering getBlobTiering() {
+        return blobTiering;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public boolean queueBlobForSending(String blobName) {
+        boolean queued = outboundQueue.enqueue(blobName);
+        if (queued) {
+            log("Queued for sending: " + blobName + " (" + outboundQueue.size() + " in queue)");
+        } else {
+            log("Already queued: " + blobName);
+        }
+        return queued;
+    }
+
+    /**
+     * Send a blob to the connected client in the background, queueing it for retry on failure.
+     */
+    public void sendBlobInBackground(String blobName) {
+        new Thread(() -> {
+            try {
+                log("Preparing to send blob: " + blobName);
+
+                long sentBytes = sendBlobNow(blobName);
+
+                log("Successfully sent blob: " + blobName + " (" + sentBytes + " bytes)");
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onBlobSent(blobName, sentBytes);
+                });
+
+            } catch (FileNotFoundException e) {
+                log("Error: " + e.getMessage());
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onSendFailed(blobName, "Blob not found", false);
+                });
+            } catch (TransferProgress.CancelledException e) {
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onSendFailed(blobName, "Send cancelled", false);
+                });
+            } catch (Exception e) {
+                // Keep the send instead of losing it, the queue retries with backoff
+                log("Error sending blob: " + e.getMessage() + ", queued for retry");
+                mainHandler.post(() -> {
+                    queueBlobForSending(blobName);
+                    if (callback != null) callback.onSendFailed(blobName, e.getMessage(), true);
+                });
+                e.printStackTrace();
+            }
+        }).start();
+    }
+
+    /**
+     * Read a blob from storage (whatever its tier) and send it to the connected client on the
+     * calling thread. Used by single sends and the outbound queue.
+     *
+     * @return number of payload bytes sent, 0 if the client already had the blob
+     * @throws FileNotFoundException if the blob or its payload no longer exists
+     */
+    private long sendBlobNow(String blobName) throws Exception {
+        File blobDir = new File(getFilesDir(), blobName);
+        String fullJson = readSendableJson(blobDir);
+        JSONObject jsonObject = new JSONObject(fullJson);
+        if (BlobTree.isTree(jsonObject)) {
+            return sendTreeNow(blobDir, fullJson, jsonObject);
+        }
+        if (byteServer.clientHasBlob(jsonObject.optString("sha256", null))) {
+            log("Client already has " + blobName + ", skipped");
+            return 0;
+        }
+
+        // Read the file data (inflated on the fly if the blob sits in the compressed tier)
+        long readStart = Tracer.begin();
+        byte[] fileData;
+        try (InputStream in = blobTiering.openPayload(blobDir, jsonObject)) {
+            fileData = readStreamToBytes(in);
+        }
+        Tracer.end("read payload", "storage", readStart, 0);
+
+        // Send data to connected client
+        byteServer.sendBlobToClient(fullJson, fileData);
+
+        if (BlobChangeTracker.isModified(jsonObject)) {
+            String syncedJson = BlobChangeTracker.markSynced(blobDir);
+            notifyMetadataChanged(blobName, syncedJson);
+        }
+        blobTiering.touch(blobDir);
+        return fileData.length;
+    }
+
+    /**
+     * Stream a tree blob's entries from storage to the connected client.
+     *
+     * @return number of payload bytes sent
+     */
+    private long sendTreeNow(File blobDir, String fullJson, JSONObject jsonObject) throws Exception {
+        File root = BlobTree.rootOf(blobDir, jsonObject);
+        if (!root.isDirectory()) {
+            throw new FileNotFoundException("Tree of " + blobDir.getName() + " not found");
+        }
+        List<BlobTree.Entry> entries = BlobTree.list(root);
+        byteServer.sendTreeToClient(fullJson, entries);
+        blobTiering.touch(blobDir);
+        return BlobTree.totalSize(entries);
+    }
+
+    /**
+     * Send a blob to every connected client that accepts pushes, all at once, reading it from
+     * storage a single time. Clients that announced they already have it are skipped.
+     */
+    public void broadcastBlobInBackground(String blobName) {
+        new Thread(() -> {
+            try {
+                File blobDir = new File(getFilesDir(), blobName);
+                String fullJson = readSendableJson(blobDir);
+                JSONObject jsonObject = new JSONObject(fullJson);
+                if (BlobTree.isTree(jsonObject)) {
+                    throw new Exception("trees are sent to one client at a time");
+                }
+                long size = BlobCatalog.payloadSize(blobDir, jsonObject);
+                log("Broadcasting blob: " + blobName + " to " + byteServer.getPushClientCount() + " client(s)");
+
+                long start = System.nanoTime();
+                int delivered = byteServer.broadcastBlob(fullJson, size,
+                        () -> blobTiering.openPayload(blobDir, jsonObject));
+                log("Broadcast " + blobName + " (" + size + " bytes) to " + delivered + " client(s) in " +
+                        (System.nanoTime() - start) / 1000000 + " ms");
+
+                if (delivered > 0 && BlobChangeTracker.isModified(jsonObject)) {
+                    notifyMetadataChanged(blobName, BlobChangeTracker.markSynced(blobDir));
+                }
+                blobTiering.touch(blobDir);
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onBlobSent(blobName, size);
+                });
+            } catch (FileNotFoundException e) {
+                log("Error: " + e.getMessage());
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onSendFailed(blobName, "Blob not found", false);
+                });
+            } catch (TransferProgress.CancelledException e) {
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onSendFailed(blobName, "Broadcast cancelled", false);
+                });
+            } catch (Exception e) {
+                log("Error broadcasting blob: " + e.getMessage());
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onSendFailed(blobName, "Error broadcasting blob: " + e.getMessage(), false);
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Make a saved version the blob's content again in the background, see {@link BlobHistory}.
+     */
+    public void restoreVersionInBackground(String blobName, int version) {
+        new Thread(() -> {
+            try {
+                File blobDir = new File(getFilesDir(), blobName);
+                String hotJson = blobTiering.ensureHot(blobDir);
+                if (hotJson != null) {
+                    notifyMetadataChanged(blobName, hotJson);
+                }
+                notifyMetadataChanged(blobName, BlobHistory.restore(blobDir, version));
+                log("Restored version " + version + " of: " + blobName);
+            } catch (Exception e) {
+                log("Error restoring version " + version + " of " + blobName + ": " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Send a saved version of a blob to the connected client in the background, rebuilt from its
+     * chunks. It arrives as {@code <name>.v<version><ext>} and does not touch the blob itself.
+     */
+    public void sendVersionInBackground(String blobName, int version) {
+        new Thread(() -> {
+            try {
+                File blobDir = new File(getFilesDir(), blobName);
+                BlobHistory.Version saved = BlobHistory.find(blobDir, version);
+                JSONObject jsonObject = new JSONObject(BlobChangeTracker.readText(new File(blobDir, "blob.json")));
+                String fileName = jsonObject.optString("file_name", "unknown");
+                int dot = fileName.lastIndexOf('.');
+                jsonObject.put("file_name", dot > 0
+                        ? fileName.substring(0, dot) + ".v" + version + fileName.substring(dot)
+                        : fileName + ".v" + version);
+                jsonObject.put("sha256", saved.sha256);
+
+                byte[] fileData;
+                try (InputStream in = BlobHistory.open(blobDir, version)) {
+                    fileData = readStreamToBytes(in);
+                }
+                byteServer.sendBlobToClient(jsonObject.toString(), fileData);
+                log("Sent version " + version + " of " + blobName + " (" + fileData.length + " bytes)");
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onBlobSent(blobName, fileData.length);
+                });
+            } catch (Exception e) {
+                log("Error sending version " + version + " of " + blobName + ": " + e.getMessage());
+                mainHandler.post(() -> {
+                    if (callback != null) callback.onSendFailed(blobName, e.getMessage(), false);
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Copy every blob to {@code targetDir} in the background, see {@link BlobLibraryCopier}.
+     * Exporting again resumes an interrupted export and skips what is already there.
+     */
+    public void exportLibraryInBackground(File targetDir) {
+        copyLibraryInBackground(getFilesDir(), targetDir, false);
+    }
+
+    /**
+     * Copy the blobs found in {@code sourceDir} into storage in the background, replacing blobs
+     * of the same name, and list them.
+     */
+    public void importLibraryInBackground(File sourceDir) {
+        copyLibraryInBackground(sourceDir, getFilesDir(), true);
+    }
+
+    private void copyLibraryInBackground(File sourceRoot, File targetRoot, boolean importing) {
+        if (!libraryCopyRunning.compareAndSet(false, true)) {
+            log("An import or export is already running");
+            return;
+        }
+        mainHandler.post(this::updateTransferLocks);
+        new Thread(() -> {
+            String what = importing ? "Import from " + sourceRoot : "Export to " + targetRoot;
+            BlobLibraryCopier copier = new BlobLibraryCopier(sourceRoot, targetRoot);
+            BlobLibraryCopier.Plan plan = copier.plan();
+            log(what + ": " + plan.getBlobCount() + " blob(s), " + (plan.totalBytes / 1024) + " KB");
+            TransferProgress progress = byteServer.getTransferTracker().begin(importing ?
+                    TransferProgress.Direction.RECEIVE : TransferProgress.Direction.SEND, what, plan.totalBytes, null);
+            Exception error = null;
+            try {
+                long start = System.nanoTime();
+                BlobLibraryCopier.Result result = copier.copy(plan, progress);
+                log(what + " done in " + (System.nanoTime() - start) / 1000000 + " ms: copied " + result.copiedFiles +
+                        " file(s), " + (result.copiedBytes / 1024) + " KB, " + result.skippedFiles + " unchanged");
+                if (importing && !result.copiedBlobs.isEmpty()) {
+                    notifyStored(readStoredBlobs(result.copiedBlobs));
+                    enforceStorageQuota();
+                }
+            } catch (TransferProgress.CancelledException e) {
+                error = e;
+            } catch (Exception e) {
+                error = e;
+                log("Error: " + what + ": " + e.getMessage() + " (run it again to resume)");
+            } finally {
+                byteServer.getTransferTracker().end(progress, error);
+                libraryCopyRunning.set(false);
+                mainHandler.post(this::updateTransferLocks);
+            }
+        }).start();
+    }
+
+    private List<StoredBlob> readStoredBlobs(List<String> blobNames) {
+        List<StoredBlob> stored = new ArrayList<>();
+        for (String blobName : blobNames) {
+            File blobDir = new File(getFilesDir(), blobName);
+            try {
+                String savedJson = BlobChangeTracker.readText(new File(blobDir, "blob.json"));
+                JSONObject jsonObject = new JSONObject(savedJson);
+                String fileName = jsonObject.optString("file_name", "unknown");
+                stored.add(new StoredBlob(jsonObject.optString("blob_name", blobName), jsonObject.optString("datetime", "unknown"),
+                        fileName, savedJson, jsonObject.optLong(BlobChangeTracker.KEY_FILE_SIZE, new File(blobDir, fileName).length())));
+            } catch (Exception e) {
+                log("Error reading imported blob " + blobName + ": " + e.getMessage());
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * @return blob.json of a blob whose payload can be sent
+     * @throws FileNotFoundException if the blob does not exist or its payload was evicted
+     */
+    private String readSendableJson(File blobDir) throws Exception {
+        File jsonFile = new File(blobDir, "blob.json");
+        if (!jsonFile.exists()) {
+            throw new FileNotFoundException("Blob directory not found: " + blobDir.getName());
+        }
+        String fullJson = BlobChangeTracker.readText(jsonFile);
+        if (BlobTiering.TIER_EVICTED.equals(BlobTiering.tierOf(new JSONObject(fullJson)))) {
+            throw new FileNotFoundException("Payload of " + blobDir.getName() + " was evicted");
+        }
+        return fullJson;
+    }
+
+    /**
+     * Size the read cache from {@link #PREF_READ_CACHE_MB}, capped at {@link #getMaxReadCacheMb}
+     */
+    public void applyReadCacheBudget() {
+        long defaultMb = BlobReadCache.DEFAULT_BUDGET / (1024 * 1024);
+        long budgetMb = Math.min(settings.getLong(PREF_READ_CACHE_MB, defaultMb), getMaxReadCacheMb());
+        blobTiering.getReadCache().setBudget(budgetMb * 1024 * 1024);
+    }
+
+    /**
+     * @return the largest read cache this device's heap allows, in MB
+     */
+    public long getMaxReadCacheMb() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        return BlobReadCache.maxBudget(activityManager.getMemoryClass()) / (1024 * 1024);
+    }
+
+    /**
+     * Compress/evict least recently used blobs in the background if over the storage quota
+     */
+    public void enforceStorageQuota() {
+        long quotaBytes = settings.getLong(PREF_STORAGE_QUOTA_MB, 0) * 1024 * 1024;
+        new Thread(() -> {
+            BlobTiering.Report report = blobTiering.enforceQuota(quotaBytes, this::notifyMetadataChanged);
+            if (report.compressed > 0 || report.evicted > 0) {
+                log("Storage quota: compressed " + report.compressed +
+                        ", evicted " + report.evicted + ", " + (report.usedBefore / 1024) + " KB -> " +
+                        (report.usedAfter / 1024) + " KB");
+            } else if (quotaBytes > 0 && report.usedAfter > quotaBytes) {
+                log("Storage quota exceeded by recently used blobs: " + (report.usedAfter / 1024) + " KB");
+            }
+        }).start();
+    }
+
+    /**
+     * Save a single received blob. Called on the main thread, like before the service existed.
+     */
+    private void storeBlob(ByteServer.ReceivedBlob blob) {
+        String blobName = blob.blobName;
+        byte[] fileData = blob.fileData;
+        try {
+            log("Processing received blob: " + blobName);
+
+            JSONObject jsonObject = blob.meta.toJson();
+            String fileName = blob.meta.fileName != null ? blob.meta.fileName : "default_blob_file";
+
+            // The evicted blob itself sent again: put the payload back, keeping its blob.json
+            String evictedBlob = blobTiering.findEvictedBlob(blob.meta.sha256);
+            if (blobName.equals(evictedBlob) && restoreEvicted(evictedBlob, fileData)) {
+                enforceStorageQuota();
+                return;
+            }
+
+            // Create a folder named after the blobName in internal storage
+            File blobDir = new File(getFilesDir(), blobName);
+            if (!blobDir.exists()) {
+                blobDir.mkdirs();
+            }
+
+            // A blob re-sent under the same name replaces one the tracker or tiering may be updating
+            File blobFile = new File(blobDir, fileName);
+            String savedJson;
+            synchronized (BlobChangeTracker.lockOf(blobDir)) {
+                // Save byte array as file
+                long writeStart = Tracer.begin();
+                try (FileOutputStream fos = new FileOutputStream(blobFile)) {
+                    fos.write(fileData);
+                    fos.getFD().sync();
+                }
+                Tracer.end("write payload", "storage", writeStart, 0);
+
+                // Save JSON with the payload baseline used for change tracking
+                long metaStart = Tracer.begin();
+                BlobChangeTracker.recordBaseline(jsonObject, blobFile);
+                jsonObject.put(BlobTiering.KEY_LAST_ACCESS, System.currentTimeMillis());
+                savedJson = jsonObject.toString(4);
+                BlobChangeTracker.writeTextAtomically(new File(blobDir, "blob.json"), savedJson);
+                Tracer.end("write blob.json", "storage", metaStart, 0);
+            }
+
+            log("Saved blob: " + blobName + ", path: " + blobFile.getAbsolutePath());
+            notifyStored(Collections.singletonList(
+                    new StoredBlob(blobName, blob.datetime, fileName, savedJson, fileData.length)));
+            // Same content as another, evicted blob: that one gets it back as well
+            if (evictedBlob != null && !evictedBlob.equals(blobName)) {
+                restoreEvicted(evictedBlob, fileData);
+            }
+            enforceStorageQuota();
+
+        } catch (Exception e) {
+            log("Error saving blob: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Save a received batch. Runs on the receive thread: the whole batch is stored in one
+     * transaction, then the UI and server are updated once instead of once per blob.
+     */
+    private void storeBatch(List<ByteServer.ReceivedBlob> blobs) {
+        try {
+            List<ByteServer.ReceivedBlob> newBlobs = new ArrayList<>();
+            List<ByteServer.ReceivedBlob> alsoRestoring = new ArrayList<>();
+            List<String> alsoRestoringNames = new ArrayList<>();
+            int restored = 0;
+            for (ByteServer.ReceivedBlob blob : blobs) {
+                String evictedBlob = blobTiering.findEvictedBlob(blob.meta.sha256);
+                if (blob.blobName.equals(evictedBlob) && restoreEvicted(evictedBlob, blob.fileData)) {
+                    restored++;
+                    continue;
+                }
+                newBlobs.add(blob);
+                if (evictedBlob != null && !evictedBlob.equals(blob.blobName)) {
+                    alsoRestoring.add(blob);
+                    alsoRestoringNames.add(evictedBlob);
+                }
+            }
+            List<String> savedJsons = blobBatchCommitter.commit(newBlobs);
+            for (int i = 0; i < alsoRestoring.size(); i++) {
+                if (restoreEvicted(alsoRestoringNames.get(i), alsoRestoring.get(i).fileData)) {
+                    restored++;
+                }
+            }
+            List<StoredBlob> stored = new ArrayList<>();
+            for (int i = 0; i < newBlobs.size(); i++) {
+                ByteServer.ReceivedBlob blob = newBlobs.get(i);
+                String fileName = new JSONObject(savedJsons.get(i)).optString("file_name", "default_blob_file");
+                stored.add(new StoredBlob(blob.blobName, blob.datetime, fileName, savedJsons.get(i), blob.fileData.length));
+            }
+
+            log("Saved batch of " + newBlobs.size() + " blob(s)" +
+                    (restored == 0 ? "" : ", restored " + restored + " evicted blob(s)"));
+            if (!stored.isEmpty()) {
+                notifyStored(stored);
+            }
+            enforceStorageQuota();
+        } catch (Exception e) {
+            log("Error saving batch: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Put a received payload back into an evicted blob with the same content.
+     *
+     * @return false if the payload did not match the blob or could not be written
+     */
+    private boolean restoreEvicted(String blobName, byte[] payloadData) {
+        try {
+            notifyMetadataChanged(blobName, blobTiering.restore(new File(getFilesDir(), blobName), payloadData));
+            log("Restored evicted blob " + blobName + " from received payload");
+            return true;
+        } catch (IOException | JSONException e) {
+            log("Not restoring evicted blob " + blobName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Start storing a tree blob. Runs on the receive thread, as does the returned sink: entries
+     * are staged as they arrive and the tree is listed once committed.
+     */
+    private ByteServer.TreeSink storeTree(BlobMeta meta) throws IOException {
+        BlobTree.Receiver receiver = new BlobTree.Receiver(blobBatchCommitter, meta);
+        log("Receiving tree blob: " + receiver.blobName);
+        return new ByteServer.TreeSink() {
+            @Override
+            public void receive(BlobTree.Entry entry, InputStream data) throws IOException {
+                receiver.receive(entry, data);
+            }
+
+            @Override
+            public void commit() throws Exception {
+                String savedJson = receiver.commit();
+                log("Saved tree blob: " + receiver.blobName + ", " + receiver.getEntryCount() + " entries, " +
+                        receiver.getTotalBytes() + " bytes");
+                notifyStored(Collections.singletonList(new StoredBlob(receiver.blobName,
+                        meta.datetime != null ? meta.datetime : "unknown", meta.fileName, savedJson,
+                        receiver.getTotalBytes())));
+                enforceStorageQuota();
+            }
+
+            @Override
+            public void abort() {
+                receiver.abort();
+                log("Discarded incomplete tree blob: " + receiver.blobName);
+            }
+        };
+    }
+
+    private void setClientConnected(boolean connected) {
+        clientConnected = connected;
+        updateTransferLocks();
+    }
+
+    /**
+     * Hold the CPU and Wi-Fi awake only while a client (CLI or HTTP) is connected
+     */
+    private void updateTransferLocks() {
+        boolean active = clientConnected || httpConnections > 0 || libraryCopyRunning.get();
+        if (active == wakeLock.isHeld()) {
+            return;
+        }
+        if (active) {
+            wakeLock.acquire();
+            wifiLock.acquire();
+        } else {
+            if (wakeLock.isHeld()) wakeLock.release();
+            if (wifiLock.isHeld()) wifiLock.release();
+        }
+        NotificationManager notificationManager = getSystemService(NotificationManager.class);
+        notificationManager.notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    private Notification buildNotification() {
+        NotificationManager notificationManager = getSystemService(NotificationManager.class);
+        notificationManager.createNotificationChannel(
+                new NotificationChannel(CHANNEL_ID, "Transfers", NotificationManager.IMPORTANCE_LOW));
+
+        PendingIntent openIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        PendingIntent stopIntent = PendingIntent.getService(this, 0,
+                new Intent(this, TransferService.class).setAction(ACTION_STOP), PendingIntent.FLAG_IMMUTABLE);
+
+        if (timedOut) {
+            return new Notification.Builder(this, CHANNEL_ID)
+                    .setSmallIcon(R.mipmap.ic_launcher)
+                    .setContentTitle("Bloby")
+                    .setContentText("Stopped: Android's daily background time limit was reached. Open Bloby to restart.")
+                    .setContentIntent(openIntent)
+                    .setAutoCancel(true)
+                    .build();
+        }
+        return new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle("Bloby")
+                .setContentText((clientConnected ? "Client connected" : "Waiting for connections on port " + SERVER_PORT) +
+                        (isHttpServerEnabled() ? ", HTTP on port " + HttpBlobServer.DEFAULT_PORT : ""))
+                .setContentIntent(openIntent)
+                .addAction(new Notification.Action.Builder(null, "Stop", stopIntent).build())
+                .setOngoing(true)
+                .build();
+    }
+
+    private void notifyStored(List<StoredBlob> blobs) {
+        mainHandler.post(() -> {
+            if (callback != null) callback.onBlobsStored(blobs);
+        });
+    }
+
+    private void notifyMetadataChanged(String blobName, String updatedJson) {
+        try {
+            blobTiering.getReadCache().onBlobChanged(blobName, new JSONObject(updatedJson).optString("sha256", ""));
+        } catch (Exception e) {
+            // Not JSON, nothing to invalidate by
+        }
+        mainHandler.post(() -> {
+            if (callback != null) callback.onBlobMetadataChanged(blobName, updatedJson);
+        });
+    }
+
+    /**
+     * Log to the bound activity, from any thread
+     */
+    private void log(String message) {
+        mainHandler.post(() -> {
+            if (callback != null) {
+                callback.onLog(message);
+            } else {
+                pendingLogs.addLast(message);
+                if (pendingLogs.size() > MAX_PENDING_LOGS) {
+                    pendingLogs.pollFirst();
+                }
+            }
+        });
+    }
+
+    private static byte[] readStreamToBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            baos.write(buffer, 0, bytesRead);
+        }
+        return baos.toByteArray();
+    }
+}
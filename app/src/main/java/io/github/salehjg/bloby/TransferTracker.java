@@ -0,0 +1,117 @@
+package io.github.salehjg.bloby;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the transfers in flight and reports their progress on the main thread.
+ * <p>
+ * Transferring threads only bump counters; the listener is called at most every
+ * {@link #PROGRESS_INTERVAL_MS} however fast chunks move, so progress never floods the UI.
+ */
+public class TransferTracker {
+
+    public interface Listener {
+        /**
+         * Called on the main thread every {@link #PROGRESS_INTERVAL_MS} while transfers are active,
+         * and once more with an empty list when the last one ends.
+         */
+        void onProgress(List<TransferProgress> active);
+
+        /**
+         * Called on the main thread when a transfer ends. The error is null on success and a
+         * {@link TransferProgress.CancelledException} if it was cancelled.
+         */
+        void onFinished(TransferProgress transfer, Exception error);
+    }
+
+    public static final long PROGRESS_INTERVAL_MS = 250;
+
+    private final List<TransferProgress> active = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile Listener listener;
+    // Main thread only
+    private boolean ticking = false;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            for (TransferProgress transfer : active) {
+                transfer.sample(now);
+            }
+            Listener l = listener;
+            if (l != null) {
+                l.onProgress(new ArrayList<>(active));
+            }
+            if (active.isEmpty()) {
+                ticking = false;
+            } else {
+                mainHandler.postDelayed(this, PROGRESS_INTERVAL_MS);
+            }
+        }
+    };
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Register a transfer that is about to start.
+     *
+     * @param cancelAction run on cancellation to unblock the transferring thread, may be null
+     */
+    public TransferProgress begin(TransferProgress.Direction direction, String name, long totalBytes, Runnable cancelAction) {
+        TransferProgress transfer = new TransferProgress(nextId.getAndIncrement(), direction, name, totalBytes, cancelAction);
+        active.add(transfer);
+        mainHandler.post(() -> {
+            if (!ticking) {
+                ticking = true;
+                mainHandler.postDelayed(tick, PROGRESS_INTERVAL_MS);
+            }
+        });
+        return transfer;
+    }
+
+    /**
+     * Unregister a transfer.
+     *
+     * @param error null if the transfer completed
+     */
+    public void end(TransferProgress transfer, Exception error) {
+        if (!active.remove(transfer)) {
+            return;
+        }
+        Exception outcome = transfer.isCancelled() && error != null
+                ? new TransferProgress.CancelledException(transfer.getName()) : error;
+        mainHandler.post(() -> {
+            Listener l = listener;
+            if (l != null) {
+                l.onFinished(transfer, outcome);
+            }
+        });
+    }
+
+    /**
+     * @return false if no such transfer is in flight
+     */
+    public boolean cancel(long id) {
+        for (TransferProgress transfer : active) {
+            if (transfer.getId() == id) {
+                transfer.cancel();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<TransferProgress> getActive() {
+        return new ArrayList<>(active);
+    }
+}
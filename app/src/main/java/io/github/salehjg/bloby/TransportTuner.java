@@ -0,0 +1,151 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Per-connection transport tuning from measured RTT and throughput.
+ * <p>
+ * The client reports round trip times measured with ping/pong control frames during the
+ * handshake, and the server measures throughput while reading the first megabytes of payload.
+ * From the bandwidth-delay product (BDP) it derives socket buffer sizes and the application chunk
+ * size used for payload reads/writes, and applies them to the socket. Buffers are only ever grown
+ * so the kernel's own autotuning is not undercut.
+ */
+public class TransportTuner {
+
+    // Applied to the listening socket so accepted connections can negotiate a large TCP window
+    public static final int INITIAL_RECEIVE_BUFFER = 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int MIN_BUFFER = 64 * 1024;
+    private static final int MAX_BUFFER = 8 * 1024 * 1024;
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final int MAX_CHUNK = 1024 * 1024;
+    // Throughput is sampled over this many payload bytes, smaller transfers are too noisy
+    private static final long PROBE_BYTES = 4L * 1024 * 1024;
+    private static final long MIN_PROBE_BYTES = 256L * 1024;
+
+    private double minRttMs = -1;
+    private double bytesPerSecond = -1;
+    private long probeBytes;
+    private long probeNanos;
+    private boolean measured;
+
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Configure a freshly accepted socket: no Nagle delay for the small control frames
+     * (payloads are always written in large chunks anyway).
+     */
+    public synchronized void onConnected(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(true);
+        receiveBufferSize = socket.getReceiveBufferSize();
+        sendBufferSize = socket.getSendBufferSize();
+    }
+
+    /**
+     * Start from the throughput measured on a previous connection from the same host, so the
+     * handshake can already size buffers before any payload was sampled.
+     */
+    public synchronized void seedThroughput(double previousBytesPerSecond) {
+        if (bytesPerSecond < 0 && previousBytesPerSecond > 0) {
+            bytesPerSecond = previousBytesPerSecond;
+        }
+    }
+
+    public synchronized double getThroughput() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void onRttSample(double rttMs) {
+        if (rttMs > 0 && (minRttMs < 0 || rttMs < minRttMs)) {
+            minRttMs = rttMs;
+        }
+    }
+
+    /**
+     * Account for payload bytes read in the given time.
+     *
+     * @return true once enough bytes were sampled to produce a throughput estimate, meaning
+     * {@link #apply(Socket)} should be called
+     */
+    public synchronized boolean onPayloadRead(long bytes, long nanos) {
+        if (probeBytes >= PROBE_BYTES) {
+            return false;
+        }
+        probeBytes += bytes;
+        probeNanos += nanos;
+        if (probeBytes >= PROBE_BYTES) {
+            // A fresh measurement replaces any seeded estimate
+            bytesPerSecond = probeBytes * 1e9 / Math.max(1, probeNanos);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Use whatever was sampled of a payload shorter than the probe window.
+     */
+    public synchronized boolean onPayloadComplete() {
+        if (probeBytes < PROBE_BYTES && probeBytes >= MIN_PROBE_BYTES && !measured) {
+            measured = true;
+            bytesPerSecond = probeBytes * 1e9 / Math.max(1, probeNanos);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Recompute buffer and chunk sizes from the current estimates and apply them to the socket.
+     */
+    public synchronized void apply(Socket socket) throws SocketException {
+        if (minRttMs < 0 || bytesPerSecond < 0) {
+            return;
+        }
+        // Twice the BDP leaves room for the window to keep growing
+        long bdp = (long) (bytesPerSecond * minRttMs / 1000.0);
+        int buffer = (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, 2 * bdp));
+        if (buffer > receiveBufferSize) {
+            socket.setReceiveBufferSize(buffer);
+            receiveBufferSize = socket.getReceiveBufferSize();
+        }
+        if (buffer > sendBufferSize) {
+            socket.setSendBufferSize(buffer);
+            sendBufferSize = socket.getSendBufferSize();
+        }
+        // A quarter of the BDP per read/write keeps several chunks in flight
+        chunkSize = (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, Integer.highestOneBit((int) Math.max(1, bdp / 4))));
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * The chosen values, sent back to the client in pong frames and logged per connection.
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("rtt_ms", minRttMs);
+        json.put("throughput_bps", (long) bytesPerSecond);
+        json.put("rcvbuf", receiveBufferSize);
+        json.put("sndbuf", sendBufferSize);
+        json.put("chunk_size", chunkSize);
+        json.put("tcp_nodelay", true);
+        return json;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(java.util.Locale.US,
+                "rtt=%.1fms, throughput=%.1fMB/s, rcvbuf=%dKB, sndbuf=%dKB, chunk=%dKB",
+                minRttMs, bytesPerSecond / (1024 * 1024), receiveBufferSize / 1024,
+                sendBufferSize / 1024, chunkSize / 1024);
+    }
+}
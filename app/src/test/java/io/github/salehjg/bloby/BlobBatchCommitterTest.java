@@ -0,0 +1,84 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlobBatchCommitterTest {
+
+    private File filesDir;
+    private BlobBatchCommitter committer;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = Files.createTempDirectory("bloby").toFile();
+        committer = new BlobBatchCommitter(filesDir, new BlobReclaimer(filesDir));
+    }
+
+    private static ByteServer.ReceivedBlob blob(String name, String content) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("blob_name", name);
+        json.put("file_name", name + ".txt");
+        return new ByteServer.ReceivedBlob(BlobMeta.fromJson(json), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String payloadOf(String name) throws IOException {
+        return new String(Files.readAllBytes(new File(new File(filesDir, name), name + ".txt").toPath()),
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void commitPublishesEveryBlob() throws Exception {
+        List<String> saved = committer.commit(Arrays.asList(blob("a", "one"), blob("b", "two")));
+
+        assertEquals(2, saved.size());
+        assertEquals("one", payloadOf("a"));
+        assertEquals("two", payloadOf("b"));
+        JSONObject meta = new JSONObject(saved.get(1));
+        assertEquals(3, meta.getLong(BlobChangeTracker.KEY_FILE_SIZE));
+        assertTrue(new File(new File(filesDir, "b"), "blob.json").isFile());
+        assertEquals(0, committer.recover());
+    }
+
+    @Test
+    public void commitReplacesABlobOfTheSameName() throws Exception {
+        committer.commit(Arrays.asList(blob("a", "old")));
+        committer.commit(Arrays.asList(blob("a", "new")));
+
+        assertEquals("new", payloadOf("a"));
+    }
+
+    @Test
+    public void recoverDiscardsABatchWithoutMarker() throws Exception {
+        File staged = committer.stage("batch");
+        File blobDir = new File(staged, "half");
+        assertTrue(blobDir.mkdirs());
+        Files.write(new File(blobDir, "blob.json").toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(1, committer.recover());
+        assertFalse(new File(filesDir, "half").exists());
+        assertFalse(staged.exists());
+    }
+
+    @Test
+    public void recoverRollsACommittedBatchForward() throws Exception {
+        File staged = committer.stage("batch");
+        File blobDir = new File(staged, "done");
+        assertTrue(blobDir.mkdirs());
+        Files.write(new File(blobDir, "blob.json").toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+        assertTrue(new File(staged, "COMMITTED").createNewFile());
+
+        assertEquals(1, committer.recover());
+        assertTrue(new File(new File(filesDir, "done"), "blob.json").isFile());
+        assertFalse(staged.exists());
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BlobCatalogTest {
+
+    private static final int SIZE = 100_000;
+
+    private File filesDir;
+    private BlobTiering tiering;
+    private BlobCatalog catalog;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        filesDir = Files.createTempDirectory("bloby-catalog").toFile();
+        tiering = new BlobTiering(filesDir);
+        catalog = new BlobCatalog(filesDir, tiering);
+
+        File blobDir = new File(filesDir, "notes");
+        assertTrue(blobDir.mkdir());
+        File payload = new File(blobDir, "notes.txt");
+        data = new byte[SIZE];
+        Arrays.fill(data, (byte) 'x');
+        Files.write(payload.toPath(), data);
+        JSONObject meta = new JSONObject();
+        meta.put("blob_name", "notes");
+        meta.put("file_name", payload.getName());
+        meta.put("sha256", BlobChangeTracker.sha256(payload));
+        BlobChangeTracker.recordBaseline(meta, payload);
+        // Cold, so the quota below compresses it
+        meta.put(BlobTiering.KEY_LAST_ACCESS, 1_000_000_000_000L);
+        BlobChangeTracker.writeTextAtomically(new File(blobDir, "blob.json"), meta.toString(4));
+        assertEquals(1, tiering.enforceQuota(SIZE / 2, null).compressed);
+    }
+
+    @Test
+    public void listCarriesSizeAndTierButNoDeviceKeys() throws Exception {
+        JSONObject blob = catalog.listPage(null, 10).getJSONArray("blobs").getJSONObject(0);
+
+        for (String key : BlobMeta.DEVICE_KEYS) {
+            assertFalse(key, blob.has(key));
+        }
+        assertEquals("notes", blob.getString("blob_name"));
+        assertEquals(SIZE, blob.getLong(BlobCatalog.KEY_SIZE));
+        assertEquals(BlobTiering.TIER_COMPRESSED, blob.getString(BlobCatalog.KEY_STORAGE_TIER));
+    }
+
+    @Test
+    public void fetchCarriesTierButNoDeviceKeys() throws Exception {
+        JSONObject request = new JSONObject();
+        request.put("type", "fetch");
+        request.put("blob_name", "notes");
+        request.put("offset", 10);
+        request.put("length", 100);
+        ByteServer.Reply reply = catalog.handleRequest(request);
+
+        JSONObject blob = reply.json.getJSONObject("blob");
+        for (String key : BlobMeta.DEVICE_KEYS) {
+            assertFalse(key, blob.has(key));
+        }
+        assertEquals(SIZE, reply.json.getLong("total_size"));
+        assertEquals(BlobTiering.TIER_COMPRESSED, reply.json.getString(BlobCatalog.KEY_STORAGE_TIER));
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 110), reply.payload);
+    }
+}
@@ -0,0 +1,187 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BlobHistoryTest {
+
+    private static final int SIZE = 2 * 1024 * 1024;
+
+    private File blobDir;
+    private File payload;
+    private long mtime = 1_600_000_000_000L;
+
+    @Before
+    public void setUp() throws Exception {
+        blobDir = Files.createTempDirectory("bloby-history").toFile();
+        payload = new File(blobDir, "data.bin");
+        write(random(SIZE, 1));
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Replace the payload and its blob.json, as a received blob or a checked edit leaves them
+     */
+    private void write(byte[] data) throws Exception {
+        Files.write(payload.toPath(), data);
+        // A new mtime every time, so the stat baseline always tells the versions apart
+        mtime += 1000;
+        assertTrue(payload.setLastModified(mtime));
+        JSONObject meta = new JSONObject();
+        meta.put("blob_name", blobDir.getName());
+        meta.put("file_name", payload.getName());
+        meta.put("sha256", BlobChangeTracker.sha256(payload));
+        BlobChangeTracker.recordBaseline(meta, payload);
+        BlobChangeTracker.writeTextAtomically(new File(blobDir, "blob.json"), meta.toString(4));
+    }
+
+    private byte[] read() throws IOException {
+        return Files.readAllBytes(payload.toPath());
+    }
+
+    /**
+     * @return a version's manifest: 32-byte sha256 and 8-byte size per chunk
+     */
+    private byte[] manifestOf(int version) throws IOException {
+        return Files.readAllBytes(
+                new File(new File(blobDir, BlobHistory.HISTORY_DIR), "v" + version + ".manifest").toPath());
+    }
+
+    /**
+     * @return the chunk hashes of a version, in order
+     */
+    private List<String> chunksOf(int version) throws IOException {
+        byte[] manifest = manifestOf(version);
+        List<String> chunks = new ArrayList<>();
+        for (int offset = 0; offset + 40 <= manifest.length; offset += 40) {
+            chunks.add(BlobChangeTracker.toHex(Arrays.copyOfRange(manifest, offset, offset + 32)));
+        }
+        return chunks;
+    }
+
+    private static byte[] insert(byte[] data, int at, byte[] inserted) {
+        byte[] result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(inserted, 0, result, at, inserted.length);
+        System.arraycopy(data, at, result, at + inserted.length, data.length - at);
+        return result;
+    }
+
+    private byte[] open(int version) throws IOException {
+        try (InputStream in = BlobHistory.open(blobDir, version)) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void chunkSizesStayWithinBounds() throws Exception {
+        int version = BlobHistory.record(blobDir, BlobHistory.REASON_BEFORE_EDIT);
+
+        byte[] manifest = manifestOf(version);
+        long total = 0;
+        int count = manifest.length / 40;
+        for (int i = 0; i < count; i++) {
+            long size = ByteBuffer.wrap(manifest, i * 40 + 32, 8).getLong();
+            assertTrue("chunk of " + size, size <= BlobHistory.MAX_CHUNK);
+            if (i < count - 1) {
+                assertTrue("chunk of " + size, size >= BlobHistory.MIN_CHUNK);
+            }
+            total += size;
+        }
+        assertEquals(SIZE, total);
+        // Around the average, not cut at every minimum or maximum
+        assertTrue("" + count, count > SIZE / BlobHistory.MAX_CHUNK && count < SIZE / BlobHistory.MIN_CHUNK);
+    }
+
+    @Test
+    public void insertionOnlyChangesTheChunksAroundIt() throws Exception {
+        byte[] original = read();
+        assertEquals(1, BlobHistory.record(blobDir, BlobHistory.REASON_BEFORE_EDIT));
+        long before = BlobHistory.storedBytes(blobDir);
+
+        // A few bytes in the middle shift everything after them
+        write(insert(original, SIZE / 2 + 12345, random(100, 2)));
+        assertEquals(2, BlobHistory.record(blobDir, BlobHistory.REASON_EDIT));
+
+        List<String> v1 = chunksOf(1);
+        List<String> v2 = chunksOf(2);
+        Set<String> changed = new HashSet<>(v2);
+        changed.removeAll(v1);
+        // The chunk holding the insertion, maybe its neighbour if a cut point moved
+        assertTrue("changed " + changed.size() + " of " + v2.size(), changed.size() <= 2);
+        assertTrue(BlobHistory.storedBytes(blobDir) - before <= 2L * BlobHistory.MAX_CHUNK + 100);
+        // Chunks before and after the edit line up again
+        assertEquals(v1.get(0), v2.get(0));
+        assertEquals(v1.get(v1.size() - 1), v2.get(v2.size() - 1));
+    }
+
+    @Test
+    public void insertionAtTheStartKeepsTheRest() throws Exception {
+        byte[] original = read();
+        BlobHistory.record(blobDir, BlobHistory.REASON_BEFORE_EDIT);
+
+        write(insert(original, 0, random(7, 3)));
+        BlobHistory.record(blobDir, BlobHistory.REASON_EDIT);
+
+        Set<String> changed = new HashSet<>(chunksOf(2));
+        changed.removeAll(chunksOf(1));
+        assertTrue("changed " + changed.size(), changed.size() <= 2);
+    }
+
+    @Test
+    public void versionsReadBackAndRestore() throws Exception {
+        byte[] original = read();
+        BlobHistory.record(blobDir, BlobHistory.REASON_BEFORE_EDIT);
+        byte[] edited = insert(original, 1000, random(5000, 4));
+        write(edited);
+        BlobHistory.record(blobDir, BlobHistory.REASON_EDIT);
+        // Nothing changed since, so nothing to record
+        assertEquals(-1, BlobHistory.record(blobDir, BlobHistory.REASON_EDIT));
+
+        assertArrayEquals(original, open(1));
+        assertArrayEquals(edited, open(2));
+
+        JSONObject meta = new JSONObject(BlobHistory.restore(blobDir, 1));
+        assertArrayEquals(original, read());
+        assertEquals(BlobChangeTracker.sha256(payload), meta.getString("sha256"));
+        assertTrue(BlobChangeTracker.isModified(meta));
+        assertTrue(BlobChangeTracker.matchesBaseline(meta, payload));
+    }
+
+    @Test
+    public void oldVersionsArePrunedWithTheirChunks() throws Exception {
+        for (int i = 0; i < BlobHistory.MAX_VERSIONS + 3; i++) {
+            write(random(BlobHistory.MIN_CHUNK, 100 + i));
+            assertEquals(i + 1, BlobHistory.record(blobDir, BlobHistory.REASON_EDIT));
+        }
+
+        List<BlobHistory.Version> versions = BlobHistory.list(blobDir);
+        assertEquals(BlobHistory.MAX_VERSIONS, versions.size());
+        assertEquals(4, versions.get(0).number);
+        // One chunk per version, the dropped ones' chunks are gone
+        File[] chunks = new File(new File(blobDir, BlobHistory.HISTORY_DIR), "chunks").listFiles();
+        assertEquals(BlobHistory.MAX_VERSIONS, chunks.length);
+        assertEquals((long) BlobHistory.MAX_VERSIONS * BlobHistory.MIN_CHUNK, BlobHistory.storedBytes(blobDir));
+        assertThrows(IOException.class, () -> BlobHistory.find(blobDir, 1));
+    }
+}
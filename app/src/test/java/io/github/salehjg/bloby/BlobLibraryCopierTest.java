@@ -0,0 +1,109 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class BlobLibraryCopierTest {
+
+    private static final long MTIME = 1_600_000_000_000L;
+
+    private File sourceRoot;
+    private File targetRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        sourceRoot = Files.createTempDirectory("bloby-source").toFile();
+        targetRoot = Files.createTempDirectory("bloby-target").toFile();
+        File blobDir = new File(sourceRoot, "blob");
+        assertTrue(blobDir.mkdir());
+        File payload = new File(blobDir, "notes.txt");
+        write(payload, "the payload");
+        assertTrue(payload.setLastModified(MTIME));
+        JSONObject meta = new JSONObject();
+        meta.put("blob_name", "blob");
+        meta.put("file_name", "notes.txt");
+        meta.put("sha256", BlobChangeTracker.sha256(payload));
+        BlobChangeTracker.recordBaseline(meta, payload);
+        write(new File(blobDir, "blob.json"), meta.toString(4));
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private BlobLibraryCopier.Result copy() throws IOException {
+        BlobLibraryCopier copier = new BlobLibraryCopier(sourceRoot, targetRoot);
+        TransferProgress progress = new TransferProgress(1, TransferProgress.Direction.SEND, "copy", 0, null);
+        return copier.copy(copier.plan(), progress);
+    }
+
+    private File target() {
+        return new File(new File(targetRoot, "blob"), "notes.txt");
+    }
+
+    @Test
+    public void secondCopySkipsEverything() throws Exception {
+        BlobLibraryCopier.Result first = copy();
+        assertEquals(2, first.copiedFiles);
+        assertEquals("the payload", read(target()));
+        assertEquals(MTIME, target().lastModified());
+
+        BlobLibraryCopier.Result second = copy();
+        assertEquals(0, second.copiedFiles);
+        assertEquals(2, second.skippedFiles);
+    }
+
+    @Test
+    public void sameSizeAndMtimeIsTrustedWithoutReading() throws Exception {
+        copy();
+        // Same length and mtime: taken as the same file, like rsync's quick check
+        write(target(), "THE PAYLOAD");
+        assertTrue(target().setLastModified(MTIME));
+
+        assertEquals(0, copy().copiedFiles);
+        assertEquals("THE PAYLOAD", read(target()));
+    }
+
+    @Test
+    public void otherMtimeWithSameContentIsSkippedAndFixed() throws Exception {
+        copy();
+        assertTrue(target().setLastModified(MTIME + 60_000));
+
+        assertEquals(0, copy().copiedFiles);
+        assertEquals(MTIME, target().lastModified());
+    }
+
+    @Test
+    public void otherMtimeWithOtherContentIsCopied() throws Exception {
+        copy();
+        write(target(), "THE PAYLOAD");
+
+        assertEquals(1, copy().copiedFiles);
+        assertEquals("the payload", read(target()));
+    }
+
+    @Test
+    public void payloadIsComparedWithTheHashInBlobJson() throws Exception {
+        copy();
+        assertTrue(target().setLastModified(MTIME + 60_000));
+        // The recorded hash is what the payload is compared with, the source is not read
+        File json = new File(new File(sourceRoot, "blob"), "blob.json");
+        JSONObject meta = new JSONObject(read(json));
+        meta.put("sha256", "0000000000000000000000000000000000000000000000000000000000000000");
+        write(json, meta.toString(4));
+
+        assertEquals(2, copy().copiedFiles);
+    }
+}
@@ -0,0 +1,214 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BlobMetaTest {
+
+    private static final String SHA256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final String UUID = "123e4567-e89b-12d3-a456-426614174000";
+
+    @Test
+    public void jsonToTlvRoundTrip() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("blob_name", "notes");
+        json.put("datetime", "2024-01-02 03:04:05");
+        json.put("file_name", "notes – draft.txt");
+        json.put("sha256", SHA256);
+        json.put("uuid", UUID);
+        json.put("tags", "work");
+        json.put("pinned", true);
+
+        byte[] header = BlobMeta.fromJson(json).encode();
+        assertTrue(BlobMeta.isBinaryHeader(header));
+        BlobMeta.Frame frame = BlobMeta.decodeFrame(header);
+        assertFalse(frame.isBatch());
+        JSONObject back = frame.blob.toJson();
+        assertEquals(json.length(), back.length());
+        for (String key : new String[]{"blob_name", "datetime", "file_name", "sha256", "uuid", "tags"}) {
+            assertEquals(key, json.getString(key), back.getString(key));
+        }
+        assertTrue(back.getBoolean("pinned"));
+    }
+
+    @Test
+    public void valuesThatDoNotRoundTripGoInTheExtras() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("blob_name", "b");
+        json.put("sha256", SHA256.toUpperCase());
+        json.put("uuid", "not-a-uuid");
+
+        BlobMeta meta = BlobMeta.decodeFrame(BlobMeta.fromJson(json).encode()).blob;
+        assertNull(meta.sha256);
+        assertNull(meta.uuid);
+        assertEquals(SHA256.toUpperCase(), meta.toJson().getString("sha256"));
+        assertEquals("not-a-uuid", meta.toJson().getString("uuid"));
+    }
+
+    @Test
+    public void batchFrameCarriesEntrySizes() throws JSONException {
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        field(entry, 2, "a".getBytes(StandardCharsets.UTF_8));
+        field(entry, 7, varint(300));
+        ByteArrayOutputStream out = header();
+        field(out, 1, "batch".getBytes(StandardCharsets.UTF_8));
+        field(out, 8, entry.toByteArray());
+        field(out, 8, entry.toByteArray());
+
+        BlobMeta.Frame frame = BlobMeta.decodeFrame(out.toByteArray());
+        assertTrue(frame.isBatch());
+        assertEquals(2, frame.entries.size());
+        assertEquals("a", frame.entries.get(0).blobName);
+        assertEquals(Integer.valueOf(300), frame.sizes.get(1));
+    }
+
+    @Test
+    public void unknownTagsAreSkipped() throws JSONException {
+        ByteArrayOutputStream out = header();
+        field(out, 99, new byte[]{1, 2, 3});
+        field(out, 2, "kept".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("kept", BlobMeta.decodeFrame(out.toByteArray()).blob.blobName);
+    }
+
+    @Test
+    public void truncatedVarintIsRejected() {
+        ByteArrayOutputStream out = header();
+        out.write(2);
+        out.write(0x80);
+        assertThrows(JSONException.class, () -> BlobMeta.decodeFrame(out.toByteArray()));
+    }
+
+    @Test
+    public void overlongVarintIsRejected() {
+        ByteArrayOutputStream out = header();
+        out.write(2);
+        for (int i = 0; i < 11; i++) {
+            out.write(0xFF);
+        }
+        out.write(0);
+        assertThrows(JSONException.class, () -> BlobMeta.decodeFrame(out.toByteArray()));
+
+        // Ten bytes, but the last one carries bits past 64
+        ByteArrayOutputStream wide = header();
+        wide.write(2);
+        for (int i = 0; i < 9; i++) {
+            wide.write(0x80);
+        }
+        wide.write(0x02);
+        assertThrows(JSONException.class, () -> BlobMeta.decodeFrame(wide.toByteArray()));
+    }
+
+    @Test(timeout = 5000)
+    public void negativeLengthOnUnknownTagIsRejected() {
+        ByteArrayOutputStream out = header();
+        out.write(99);
+        writeBytes(out, varint(-11));
+        out.write(new byte[16], 0, 16);
+        assertThrows(JSONException.class, () -> BlobMeta.decodeFrame(out.toByteArray()));
+    }
+
+    @Test
+    public void negativeLengthOnKnownTagIsRejected() {
+        for (int tag : new int[]{2, 5, 6, 7, 8, 15}) {
+            ByteArrayOutputStream out = header();
+            out.write(tag);
+            writeBytes(out, varint(-1));
+            out.write(new byte[40], 0, 40);
+            assertThrows(JSONException.class, () -> BlobMeta.decodeFrame(out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void fieldOverrunningTheHeaderIsRejected() {
+        ByteArrayOutputStream out = header();
+        field(out, 2, "name".getBytes(StandardCharsets.UTF_8));
+        byte[] header = out.toByteArray();
+        byte[] cut = new byte[header.length - 1];
+        System.arraycopy(header, 0, cut, 0, cut.length);
+        assertThrows(JSONException.class, () -> BlobMeta.decodeFrame(cut));
+    }
+
+    @Test
+    public void negativeBatchEntrySizeIsRejected() {
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        field(entry, 7, varint(-1));
+        ByteArrayOutputStream out = header();
+        field(out, 1, "batch".getBytes(StandardCharsets.UTF_8));
+        field(out, 8, entry.toByteArray());
+        assertThrows(JSONException.class, () -> BlobMeta.decodeFrame(out.toByteArray()));
+    }
+
+    private static JSONObject storedMeta() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("blob_name", "notes");
+        json.put("file_name", "notes.txt");
+        json.put("sha256", SHA256);
+        json.put("tags", "work");
+        json.put(BlobChangeTracker.KEY_FILE_SIZE, 42);
+        json.put(BlobChangeTracker.KEY_FILE_MTIME, 1_600_000_000_000L);
+        json.put(BlobChangeTracker.KEY_MODIFIED, true);
+        json.put(BlobTiering.KEY_TIER, BlobTiering.TIER_COMPRESSED);
+        json.put(BlobTiering.KEY_LAST_ACCESS, 1_600_000_000_000L);
+        json.put(BlobTiering.KEY_INCOMPRESSIBLE, true);
+        return json;
+    }
+
+    @Test
+    public void deviceKeysAreNotSent() throws JSONException {
+        JSONObject sent = BlobMeta.forClient(storedMeta().toString());
+
+        for (String key : BlobMeta.DEVICE_KEYS) {
+            assertFalse(key, sent.has(key));
+        }
+        assertEquals("notes.txt", sent.getString("file_name"));
+        assertEquals("work", sent.getString("tags"));
+        JSONObject decoded = BlobMeta.decodeFrame(BlobMeta.fromJson(sent).encode()).blob.toJson();
+        assertEquals(sent.length(), decoded.length());
+        assertEquals("work", decoded.getString("tags"));
+    }
+
+    @Test
+    public void receivedDeviceKeysAreNotStored() throws JSONException {
+        JSONObject stored = BlobMeta.fromJson(storedMeta()).toJson();
+
+        for (String key : BlobMeta.DEVICE_KEYS) {
+            assertFalse(key, stored.has(key));
+        }
+        assertEquals(SHA256, stored.getString("sha256"));
+        assertEquals("work", stored.getString("tags"));
+    }
+
+    private static ByteArrayOutputStream header() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BlobMeta.TLV_MAGIC);
+        out.write(1);
+        return out;
+    }
+
+    private static void field(ByteArrayOutputStream out, int tag, byte[] value) {
+        out.write(tag);
+        writeBytes(out, varint(value.length));
+        writeBytes(out, value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] varint(long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlobReadCacheTest {
+
+    private int opens;
+
+    private ByteServer.PayloadSource source(byte[] data) {
+        return () -> {
+            opens++;
+            return new ByteArrayInputStream(data);
+        };
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        }
+    }
+
+    @Test
+    public void secondReadIsServedFromMemory() throws IOException {
+        byte[] data = random(3 * BlobReadCache.SEGMENT_SIZE + 123, 1);
+        BlobReadCache cache = new BlobReadCache();
+
+        assertArrayEquals(data, readAll(cache.open("a", data.length, source(data))));
+        assertArrayEquals(data, readAll(cache.open("a", data.length, source(data))));
+        assertEquals(1, opens);
+        assertTrue(cache.describe(), cache.describe().contains("50% of bytes"));
+    }
+
+    @Test
+    public void rangeReadsOnlyTheSegmentsItTouches() throws IOException {
+        byte[] data = random(4 * BlobReadCache.SEGMENT_SIZE, 2);
+        BlobReadCache cache = new BlobReadCache();
+        int offset = 2 * BlobReadCache.SEGMENT_SIZE + 17;
+
+        byte[] range = new byte[1000];
+        try (InputStream in = cache.open("a", data.length, source(data))) {
+            assertEquals(offset, in.skip(offset));
+            new DataInputStream(in).readFully(range);
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, offset, offset + range.length), range);
+        assertTrue(cache.describe(), cache.describe().startsWith("1 MB of"));
+    }
+
+    @Test
+    public void changedBlobDropsItsOldSegments() throws IOException {
+        byte[] data = random(BlobReadCache.SEGMENT_SIZE, 3);
+        BlobReadCache cache = new BlobReadCache();
+        cache.onBlobChanged("blob", "old");
+        readAll(cache.open("old", data.length, source(data)));
+
+        cache.onBlobChanged("blob", "new");
+        readAll(cache.open("old", data.length, source(data)));
+        assertEquals(2, opens);
+    }
+
+    @Test
+    public void shrinkingTheBudgetEvicts() throws IOException {
+        byte[] data = random(8 * BlobReadCache.SEGMENT_SIZE, 4);
+        BlobReadCache cache = new BlobReadCache();
+        readAll(cache.open("a", data.length, source(data)));
+
+        cache.setBudget(4L * BlobReadCache.SEGMENT_SIZE);
+        assertTrue(cache.describe(), cache.describe().startsWith("4 MB of 4 MB"));
+        assertFalse(cache.admits(data.length));
+        cache.setBudget(0);
+        assertFalse(cache.admits(1));
+    }
+
+    @Test
+    public void budgetIsCappedToAFractionOfTheHeap() {
+        assertEquals(64L * 1024 * 1024, BlobReadCache.maxBudget(256));
+    }
+
+    @Test
+    public void payloadEditedBehindTheTrackersBackBypassesTheCache() throws Exception {
+        File filesDir = Files.createTempDirectory("bloby").toFile();
+        File blobDir = new File(filesDir, "blob");
+        assertTrue(blobDir.mkdir());
+        File payload = new File(blobDir, "data.bin");
+        byte[] original = random(100_000, 5);
+        Files.write(payload.toPath(), original);
+        JSONObject meta = new JSONObject();
+        meta.put("file_name", "data.bin");
+        meta.put("sha256", BlobChangeTracker.sha256(payload));
+        BlobChangeTracker.recordBaseline(meta, payload);
+
+        BlobTiering tiering = new BlobTiering(filesDir);
+        assertArrayEquals(original, readAll(tiering.openPayload(blobDir, meta)));
+
+        // Same size, another app wrote it and the mtime moved; blob.json still has the old hash
+        byte[] edited = random(original.length, 6);
+        try (FileOutputStream out = new FileOutputStream(payload)) {
+            out.write(edited);
+        }
+        assertTrue(payload.setLastModified(meta.getLong(BlobChangeTracker.KEY_FILE_MTIME) + 2000));
+        assertArrayEquals(edited, readAll(tiering.openPayload(blobDir, meta)));
+    }
+}
@@ -0,0 +1,131 @@
+package io.github.salehjg.bloby;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BlobTieringTest {
+
+    private static final long LONG_AGO = 1_000_000_000_000L;
+
+    private File filesDir;
+    private BlobTiering tiering;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = Files.createTempDirectory("bloby").toFile();
+        tiering = new BlobTiering(filesDir);
+    }
+
+    /**
+     * A cold blob with a compressible payload of the given size
+     */
+    private File blob(String name, int size) throws Exception {
+        File blobDir = new File(filesDir, name);
+        assertTrue(blobDir.mkdir());
+        File payload = new File(blobDir, name + ".txt");
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        Files.write(payload.toPath(), data);
+        JSONObject meta = new JSONObject();
+        meta.put("blob_name", name);
+        meta.put("file_name", payload.getName());
+        meta.put("sha256", BlobChangeTracker.sha256(payload));
+        BlobChangeTracker.recordBaseline(meta, payload);
+        meta.put(BlobTiering.KEY_LAST_ACCESS, LONG_AGO);
+        BlobChangeTracker.writeTextAtomically(new File(blobDir, "blob.json"), meta.toString(4));
+        return blobDir;
+    }
+
+    private static JSONObject metaOf(File blobDir) throws Exception {
+        return new JSONObject(BlobChangeTracker.readText(new File(blobDir, "blob.json")));
+    }
+
+    @Test
+    public void coldBlobIsCompressedAndStillReadable() throws Exception {
+        File blobDir = blob("cold", 100_000);
+
+        BlobTiering.Report report = tiering.enforceQuota(50_000, null);
+
+        assertEquals(1, report.compressed);
+        assertEquals(BlobTiering.TIER_COMPRESSED, BlobTiering.tierOf(metaOf(blobDir)));
+        try (InputStream in = tiering.openPayload(blobDir, metaOf(blobDir))) {
+            assertEquals(100_000, in.readAllBytes().length);
+        }
+        assertNotNull(tiering.ensureHot(blobDir));
+        assertEquals(BlobTiering.TIER_HOT, BlobTiering.tierOf(metaOf(blobDir)));
+    }
+
+    @Test
+    public void uncheckedEditIsNeitherCompressedNorEvicted() throws Exception {
+        File blobDir = blob("edited", 100_000);
+        File payload = new File(blobDir, "edited.txt");
+        Files.write(payload.toPath(), "changed behind our back".getBytes(StandardCharsets.UTF_8));
+        assertTrue(payload.setLastModified(LONG_AGO));
+
+        BlobTiering.Report report = tiering.enforceQuota(1, null);
+
+        assertEquals(0, report.compressed);
+        assertEquals(0, report.evicted);
+        assertNotNull(BlobChangeTracker.check(blobDir));
+        assertTrue(BlobChangeTracker.isModified(metaOf(blobDir)));
+    }
+
+    @Test
+    public void restoreOnlyTakesTheBlobsOwnContent() throws Exception {
+        File blobDir = blob("gone", 100_000);
+        File payload = new File(blobDir, "gone.txt");
+        byte[] content = Files.readAllBytes(payload.toPath());
+        assertEquals(1, tiering.enforceQuota(1, null).evicted);
+        assertFalse(payload.exists());
+
+        byte[] other = "claims the same sha256".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> tiering.restore(blobDir, other));
+        assertFalse(payload.exists());
+        assertEquals(BlobTiering.TIER_EVICTED, BlobTiering.tierOf(metaOf(blobDir)));
+
+        tiering.restore(blobDir, content);
+        assertArrayEquals(content, Files.readAllBytes(payload.toPath()));
+        assertEquals(BlobTiering.TIER_HOT, BlobTiering.tierOf(metaOf(blobDir)));
+    }
+
+    @Test
+    public void concurrentUpdatesOfBlobJsonAreNotLost() throws Exception {
+        File blobDir = blob("busy", 10_000);
+        File payload = new File(blobDir, "busy.txt");
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread toucher = new Thread(() -> {
+            try {
+                for (int i = 0; i < 300; i++) {
+                    tiering.touch(blobDir);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        toucher.start();
+        for (int i = 0; i < 30; i++) {
+            Files.write(payload.toPath(), ("version " + i).getBytes(StandardCharsets.UTF_8));
+            assertTrue(payload.setLastModified(LONG_AGO + i * 1000L));
+            BlobChangeTracker.check(blobDir);
+            BlobChangeTracker.markSynced(blobDir);
+        }
+        toucher.join();
+        assertNull(failure.get());
+
+        JSONObject meta = metaOf(blobDir);
+        assertEquals(BlobChangeTracker.sha256(payload), meta.getString("sha256"));
+        assertTrue(BlobChangeTracker.matchesBaseline(meta, payload));
+        assertFalse(BlobChangeTracker.isModified(meta));
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.salehjg.bloby;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FanOutRingTest {
+
+    private static final int SLOTS = 4;
+    private static final int CHUNK = 1024;
+
+    /**
+     * Drains a consumer on its own thread, optionally pausing before every chunk
+     */
+    private static class Reader extends Thread {
+        final FanOutRing ring;
+        final int consumer;
+        final long pauseMs;
+        final long startDelayMs;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        volatile long finishedAt;
+
+        Reader(FanOutRing ring, int consumer, long pauseMs, long startDelayMs) {
+            this.ring = ring;
+            this.consumer = consumer;
+            this.pauseMs = pauseMs;
+            this.startDelayMs = startDelayMs;
+            start();
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[ring.getChunkSize()];
+            try {
+                Thread.sleep(startDelayMs);
+                int length;
+                while ((length = ring.take(consumer, chunk)) >= 0) {
+                    received.write(chunk, 0, length);
+                    Thread.sleep(pauseMs);
+                }
+            } catch (Exception e) {
+                error.set(e);
+            }
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static void produce(FanOutRing ring, InputStream in) throws Exception {
+        while (ring.fill(in)) {
+            // the readers drain the ring
+        }
+        ring.finish();
+    }
+
+    @Test(timeout = 10000)
+    public void consumersKeepingUpGetEverything() throws Exception {
+        byte[] data = payload(40 * CHUNK + 100);
+        // A grace long enough for any scheduling hiccup of the readers
+        FanOutRing ring = new FanOutRing(2, SLOTS, CHUNK, 2000);
+        Reader first = new Reader(ring, 0, 0, 0);
+        Reader second = new Reader(ring, 1, 0, 0);
+
+        produce(ring, new ByteArrayInputStream(data));
+        first.join();
+        second.join();
+
+        assertNull(first.error.get());
+        assertNull(second.error.get());
+        assertArrayEquals(data, first.received.toByteArray());
+        assertArrayEquals(data, second.received.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void slowConsumerDoesNotHoldBackTheFastOne() throws Exception {
+        byte[] data = payload(64 * CHUNK);
+        FanOutRing ring = new FanOutRing(2, SLOTS, CHUNK);
+        Reader fast = new Reader(ring, 0, 0, 0);
+        // Over a second for the whole payload at this pace
+        Reader slow = new Reader(ring, 1, 20, 0);
+
+        long start = System.currentTimeMillis();
+        produce(ring, new ByteArrayInputStream(data));
+        fast.join();
+        long took = fast.finishedAt - start;
+        slow.join();
+
+        assertTrue("took " + took, took < 500);
+        assertNull(fast.error.get());
+        assertArrayEquals(data, fast.received.toByteArray());
+        // Lapped, so it is told to continue from a read of its own, with what it got so far intact
+        assertTrue(slow.error.get() instanceof FanOutRing.OverrunException);
+        byte[] partial = slow.received.toByteArray();
+        assertTrue(partial.length < data.length);
+        assertArrayEquals(Arrays.copyOf(data, partial.length), partial);
+    }
+
+    @Test(timeout = 10000)
+    public void producerStopsOnceEveryConsumerDetached() throws Exception {
+        FanOutRing ring = new FanOutRing(2, SLOTS, CHUNK);
+        ring.detach(0);
+        ring.detach(1);
+
+        assertFalse(ring.fill(new ByteArrayInputStream(payload(CHUNK))));
+    }
+
+    @Test(timeout = 10000)
+    public void readFailureReachesTheConsumers() throws Exception {
+        FanOutRing ring = new FanOutRing(1, SLOTS, CHUNK);
+        Reader reader = new Reader(ring, 0, 0, 0);
+
+        ring.fail(new IOException("disk gone"));
+        reader.join();
+
+        assertTrue(reader.error.get() instanceof IOException);
+        assertTrue(reader.error.get().getMessage().contains("disk gone"));
+    }
+}
@@ -0,0 +1,327 @@
+package io.github.salehjg.bloby;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a {@link StreamMux} over a loopback connection, the test playing the client by writing and
+ * reading raw segments.
+ */
+public class StreamMuxTest {
+
+    private Socket client;
+    private DataOutputStream clientOut;
+    private DataInputStream clientIn;
+    private StreamMux mux;
+    private Thread reader;
+    private final BlockingQueue<StreamMux.Input> opened = new LinkedBlockingQueue<>();
+    private final AtomicReference<IOException> runError = new AtomicReference<>();
+
+    private static class Segment {
+        final int id;
+        final int flags;
+        final byte[] data;
+
+        Segment(int id, int flags, byte[] data) {
+            this.id = id;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Socket server;
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            server = listener.accept();
+        }
+        client.setSoTimeout(5000);
+        clientOut = new DataOutputStream(client.getOutputStream());
+        clientIn = new DataInputStream(client.getInputStream());
+        mux = new StreamMux(server);
+        reader = new Thread(() -> {
+            try {
+                mux.run(server.getInputStream(), opened::add);
+            } catch (IOException e) {
+                runError.set(e);
+            }
+        });
+        reader.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        mux.close();
+        reader.join(5000);
+    }
+
+    private void send(int id, int flags, byte[] data) throws IOException {
+        clientOut.writeInt(id);
+        clientOut.writeByte(flags);
+        clientOut.writeInt(data.length);
+        clientOut.write(data);
+        clientOut.flush();
+    }
+
+    private void grant(int id, int credit) throws IOException {
+        send(id, StreamMux.FLAG_WINDOW, ByteBuffer.allocate(4).putInt(credit).array());
+    }
+
+    private Segment receive() throws IOException {
+        int id = clientIn.readInt();
+        int flags = clientIn.readUnsignedByte();
+        byte[] data = new byte[clientIn.readInt()];
+        clientIn.readFully(data);
+        return new Segment(id, flags, data);
+    }
+
+    private StreamMux.Input nextStream() throws InterruptedException {
+        StreamMux.Input stream = opened.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no stream opened", stream);
+        return stream;
+    }
+
+    private static byte[] payload(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write data on a stream of ours from a thread of its own, closing it at the end
+     */
+    private Thread writeInBackground(StreamMux.Output stream, byte[] data, AtomicReference<IOException> error) {
+        Thread writer = new Thread(() -> {
+            try {
+                stream.write(data);
+                stream.close();
+            } catch (IOException e) {
+                error.set(e);
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    @Test(timeout = 10000)
+    public void writerStopsAtTheWindowUntilCreditComes() throws Exception {
+        byte[] data = payload(StreamMux.WINDOW + 3 * StreamMux.SEGMENT_SIZE, 1);
+        StreamMux.Output stream = mux.openStream();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread writer = writeInBackground(stream, data, error);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < StreamMux.WINDOW) {
+            Segment segment = receive();
+            assertEquals(stream.id, segment.id);
+            received.write(segment.data);
+        }
+        assertEquals(StreamMux.WINDOW, received.size());
+        Thread.sleep(200);
+        // Out of credit: nothing more is sent
+        assertEquals(0, client.getInputStream().available());
+        assertTrue(writer.isAlive());
+
+        grant(stream.id, data.length - StreamMux.WINDOW);
+        Segment segment;
+        do {
+            segment = receive();
+            received.write(segment.data);
+        } while ((segment.flags & StreamMux.FLAG_FIN) == 0);
+        writer.join();
+
+        assertNull(error.get());
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void readerReturnsCreditAsItConsumes() throws Exception {
+        byte[] data = payload(StreamMux.WINDOW, 2);
+        for (int offset = 0; offset < data.length; offset += StreamMux.SEGMENT_SIZE) {
+            send(1, 0, Arrays.copyOfRange(data, offset, offset + StreamMux.SEGMENT_SIZE));
+        }
+        StreamMux.Input stream = nextStream();
+        byte[] read = new byte[data.length];
+        new DataInputStream(stream).readFully(read);
+        assertArrayEquals(data, read);
+
+        // The whole window came back, half a window at a time
+        int credit = 0;
+        while (credit < StreamMux.WINDOW) {
+            Segment segment = receive();
+            assertEquals(1, segment.id);
+            assertEquals(StreamMux.FLAG_WINDOW, segment.flags);
+            int increment = ByteBuffer.wrap(segment.data).getInt();
+            assertEquals(StreamMux.WINDOW / 2, increment);
+            credit += increment;
+        }
+        send(1, StreamMux.FLAG_FIN, new byte[0]);
+        assertEquals(-1, stream.read());
+    }
+
+    @Test(timeout = 10000)
+    public void overrunningTheWindowDropsTheConnection() throws Exception {
+        byte[] segment = new byte[StreamMux.SEGMENT_SIZE];
+        // Nobody reads the stream, so no credit comes back
+        for (int sent = 0; sent <= StreamMux.WINDOW; sent += segment.length) {
+            send(1, 0, segment);
+        }
+        reader.join(5000);
+
+        assertNotNull(runError.get());
+        assertTrue(runError.get().getMessage(), runError.get().getMessage().contains("overran"));
+        // The connection is closed
+        assertThrows(IOException.class, () -> mux.openStream());
+    }
+
+    @Test(timeout = 10000)
+    public void clientResetFailsTheReadMidStream() throws Exception {
+        send(1, 0, payload(1000, 3));
+        StreamMux.Input stream = nextStream();
+        byte[] first = new byte[1000];
+        new DataInputStream(stream).readFully(first);
+
+        send(1, StreamMux.FLAG_RESET, new byte[0]);
+        IOException e = assertThrows(IOException.class, () -> stream.read());
+        assertEquals("Stream reset", e.getMessage());
+        // Segments after the reset are dropped, the other streams carry on
+        send(1, 0, payload(10, 4));
+        send(3, StreamMux.FLAG_FIN, payload(10, 5));
+        assertArrayEquals(payload(10, 5), readAll(nextStream()));
+    }
+
+    @Test(timeout = 10000)
+    public void clientResetFailsTheWriterMidStream() throws Exception {
+        byte[] data = payload(4 * StreamMux.WINDOW, 6);
+        StreamMux.Output stream = mux.openStream();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread writer = writeInBackground(stream, data, error);
+        receive();
+
+        send(stream.id, StreamMux.FLAG_RESET, new byte[0]);
+        writer.join();
+
+        assertNotNull(error.get());
+        assertEquals("Stream reset by the client", error.get().getMessage());
+        // The connection itself is fine
+        StreamMux.Output next = mux.openStream();
+        next.write(payload(10, 7));
+        next.close();
+        Segment segment;
+        do {
+            segment = receive();
+        } while (segment.id != next.id);
+        assertArrayEquals(payload(10, 7), segment.data);
+        assertEquals(StreamMux.FLAG_FIN, segment.flags);
+    }
+
+    @Test(timeout = 10000)
+    public void interleavedClientStreamsStayApart() throws Exception {
+        byte[] a = payload(5 * StreamMux.SEGMENT_SIZE, 8);
+        byte[] b = payload(3 * StreamMux.SEGMENT_SIZE + 17, 9);
+        for (int offset = 0; offset < Math.max(a.length, b.length); offset += StreamMux.SEGMENT_SIZE) {
+            if (offset < a.length) {
+                boolean last = offset + StreamMux.SEGMENT_SIZE >= a.length;
+                send(1, last ? StreamMux.FLAG_FIN : 0,
+                        Arrays.copyOfRange(a, offset, Math.min(a.length, offset + StreamMux.SEGMENT_SIZE)));
+            }
+            if (offset < b.length) {
+                boolean last = offset + StreamMux.SEGMENT_SIZE >= b.length;
+                send(3, last ? StreamMux.FLAG_FIN : 0,
+                        Arrays.copyOfRange(b, offset, Math.min(b.length, offset + StreamMux.SEGMENT_SIZE)));
+            }
+        }
+
+        // Each stream is handed over on a thread of its own, so in either order
+        StreamMux.Input first = nextStream();
+        StreamMux.Input second = nextStream();
+        if (first.id == 3) {
+            StreamMux.Input swap = first;
+            first = second;
+            second = swap;
+        }
+        assertEquals(1, first.id);
+        assertEquals(3, second.id);
+        assertArrayEquals(a, readAll(first));
+        assertArrayEquals(b, readAll(second));
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentWritersShareTheConnection() throws Exception {
+        byte[] a = payload(2 * StreamMux.WINDOW, 10);
+        byte[] b = payload(StreamMux.WINDOW + 123, 11);
+        StreamMux.Output streamA = mux.openStream();
+        StreamMux.Output streamB = mux.openStream();
+        assertNotEquals(streamA.id, streamB.id);
+        assertEquals(0, streamA.id % 2);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread writerA = writeInBackground(streamA, a, error);
+        Thread writerB = writeInBackground(streamB, b, error);
+
+        ByteArrayOutputStream receivedA = new ByteArrayOutputStream();
+        ByteArrayOutputStream receivedB = new ByteArrayOutputStream();
+        int finished = 0;
+        while (finished < 2) {
+            Segment segment = receive();
+            assertTrue(segment.data.length <= StreamMux.SEGMENT_SIZE);
+            (segment.id == streamA.id ? receivedA : receivedB).write(segment.data);
+            grant(segment.id, segment.data.length);
+            if ((segment.flags & StreamMux.FLAG_FIN) != 0) {
+                finished++;
+            }
+        }
+        writerA.join();
+        writerB.join();
+
+        assertNull(error.get());
+        assertArrayEquals(a, receivedA.toByteArray());
+        assertArrayEquals(b, receivedB.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void streamsBeyondTheLimitAreRefused() throws Exception {
+        for (int i = 0; i <= StreamMux.MAX_STREAMS; i++) {
+            send(2 * i + 1, 0, new byte[1]);
+        }
+        for (int i = 0; i < StreamMux.MAX_STREAMS; i++) {
+            nextStream();
+        }
+
+        Segment refused = receive();
+        assertEquals(2 * StreamMux.MAX_STREAMS + 1, refused.id);
+        assertEquals(StreamMux.FLAG_RESET, refused.flags);
+        assertNull(opened.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(StreamMux.MAX_STREAMS, mux.getOpenStreamCount());
+    }
+}
@@ -1,91 +1,762 @@
 import socket
 import argparse
+import glob
+import collections
+import itertools
+import queue
+import re
+import sys
+import threading
 import base64
 import json
 import os
+import shutil
 import hashlib
+import ipaddress
 import uuid
 import struct
+import time
 from datetime import datetime
 
+# Number of ping/pong round trips used to measure the RTT at connection start
+HANDSHAKE_PINGS = 3
+DEFAULT_CHUNK_SIZE = 64 * 1024
+# Requested before connect() so the kernel can negotiate a large TCP window
+INITIAL_SOCKET_BUFFER = 4 * 1024 * 1024
+# send-batch packs files up to this size into shared batch frames, larger ones go as single frames
+BATCH_SMALL_FILE_LIMIT = 256 * 1024
+BATCH_MAX_BYTES = 8 * 1024 * 1024
+BATCH_MAX_FILES = 512
+# fetch pulls large blobs as consecutive ranges of this size (the server caps a reply at 64 MB)
+FETCH_RANGE_SIZE = 16 * 1024 * 1024
+LIST_PAGE_SIZE = 100
+# Manifest entry: 32-byte sha256 followed by the payload size as a big-endian 8-byte integer
+MANIFEST_ENTRY_SIZE = 40
+# Local file hashes, keyed by path and reused while size and mtime are unchanged
+HASH_CACHE_PATH = os.path.join(os.path.expanduser('~'), '.cache', 'bloby', 'hashes.json')
+# Progress lines are redrawn at most this often (seconds)
+PROGRESS_INTERVAL = 0.25
+# Payloads stream between the socket and disk in blocks of this size, so memory use stays flat
+STREAM_BLOCK_SIZE = 4 * 1024 * 1024
+# Frame payload lengths are read as signed 32-bit ints on the device
+MAX_FRAME_PAYLOAD = 2 ** 31 - 1
+# Concurrent connections used by send
+SEND_JOBS = 3
+# Binary blob metadata, used instead of JSON when the server agrees in the handshake. Header:
+# magic byte (a JSON header starts with '{'), version, then [tag][varint length][value] fields.
+# sha256 and uuid go as raw bytes, sizes as varints, other metadata as compact JSON under "extra".
+META_FORMAT_TLV = 'tlv1'
+TLV_MAGIC = 0xB1
+TLV_VERSION = 1
+TLV_TAGS = {"type": 1, "blob_name": 2, "datetime": 3, "file_name": 4, "sha256": 5, "uuid": 6, "size": 7}
+TLV_TAG_ENTRY = 8
+TLV_TAG_EXTRA = 15
+# Multiplexed streams, used when the server agrees in the handshake: everything on the wire is then
+# a segment of stream id, flags and data length (big-endian) followed by the data. Our streams have
+# odd ids, each carries frames and has a flow-control window the server refills as it reads.
+MUX_VERSION = 1
+MUX_FIN = 1
+MUX_WINDOW = 2
+MUX_RESET = 4
+MUX_SEGMENT_HEADER = struct.Struct('>IBI')
+# A device is reachable over each of its links (USB tethering, Ethernet, Wi-Fi; IPv4 and IPv6). The
+# first connection asks for all of them and probes them at once; the kind of link ranks before the
+# RTT since a wired link outruns Wi-Fi even when their RTTs look alike.
+PATH_KINDS = ('usb', 'ethernet', 'wifi', 'other')
+PATH_PROBE_TIMEOUT = 0.5
+# Connecting gives up after this long, so an unreachable address fails over to the next (seconds)
+CONNECT_TIMEOUT = 10
+# A link that stops answering is given up after this long, idle or with data unacknowledged (seconds)
+DEAD_PATH_TIMEOUT = 30
+# receive reconnects this many times in a row (over another path if there is one) when it loses the server
+RECEIVE_RECONNECTS = 3
+SHA256_HEX = re.compile(r'[0-9a-f]{64}')
+UUID_TEXT = re.compile(r'[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}')
 
-def send_data(target_ip, target_port, json_payload, file_bytes):
-    """Send JSON payload and file bytes in a single connection with proper protocol"""
-    with socket.socket(socket.AF_INET, socket.SOCK_STREAM) as s:
-        s.connect((target_ip, target_port))
+_request_ids = itertools.count(1)
+_device_paths = {}
+_device_paths_lock = threading.Lock()
 
-        # Convert JSON to bytes
-        json_str = json.dumps(json_payload, indent=4)
-        json_bytes = json_str.encode('utf-8')
 
-        # Send JSON length as 4-byte integer (big-endian)
-        json_length = len(json_bytes)
-        s.sendall(struct.pack('>I', json_length))
+class FairLock:
+    """A lock handed to waiters in arrival order, so threads sharing a socket take turns"""
 
-        # Send JSON data
-        s.sendall(json_bytes)
+    def __init__(self):
+        self._lock = threading.Lock()
+        self._waiters = collections.deque()
+        self._held = False
 
-        # Send file length as 4-byte integer (big-endian)
-        file_length = len(file_bytes)
-        s.sendall(struct.pack('>I', file_length))
+    def acquire(self):
+        with self._lock:
+            if not self._held:
+                self._held = True
+                return
+            ready = threading.Event()
+            self._waiters.append(ready)
+        ready.wait()  # the releasing thread passed the lock on to us
 
-        # Send file data
-        s.sendall(file_bytes)
+    def release(self):
+        with self._lock:
+            if self._waiters:
+                self._waiters.popleft().set()
+            else:
+                self._held = False
 
-        print(f"Data sent successfully. JSON: {len(json_bytes)} bytes, File: {len(file_bytes)} bytes")
+    def __enter__(self):
+        self.acquire()
 
+    def __exit__(self, *exc):
+        self.release()
 
-def receive_data(conn):
-    """Receive JSON payload and file bytes from a connection"""
-    # Receive JSON length (4 bytes, big-endian)
-    json_length_bytes = conn.recv(4)
-    if len(json_length_bytes) == 0:
-        # Connection closed gracefully
-        raise ValueError("Connection closed by peer")
-    if len(json_length_bytes) != 4:
-        raise ValueError("Failed to receive JSON length")
 
-    json_length = struct.unpack('>I', json_length_bytes)[0]
-    print(f"Expecting JSON of length: {json_length} bytes")
+class Mux:
+    """One connection carrying many streams to the server (see MUX_VERSION).
 
-    # Receive JSON data
-    json_bytes = b''
-    while len(json_bytes) < json_length:
-        chunk = conn.recv(min(4096, json_length - len(json_bytes)))
-        if not chunk:
-            raise ValueError("Connection closed while receiving JSON")
-        json_bytes += chunk
+    Streams are written segment by segment in turns, so a small file overtakes a large one instead
+    of waiting for it. A reader thread takes the server's credit and resets; this client only
+    sends, so streams the server opens are refused.
+    """
 
-    # Parse JSON
-    json_str = json_bytes.decode('utf-8')
-    json_payload = json.loads(json_str)
-    print("Received JSON payload:")
-    print(json.dumps(json_payload, indent=4))
+    def __init__(self, sock, params):
+        self.sock = sock
+        self.window = params.get("window", 256 * 1024)
+        self.segment_size = params.get("segment", 16 * 1024)
+        self.max_streams = params.get("max_streams", 32)
+        self._write_lock = FairLock()
+        self._lock = threading.Lock()
+        self._streams = {}
+        self._next_id = 1
+        self._error = None
+        self._reader = threading.Thread(target=self._read_loop, daemon=True)
+        self._reader.start()
 
-    # Receive file length (4 bytes, big-endian)
-    file_length_bytes = conn.recv(4)
-    if len(file_length_bytes) != 4:
-        raise ValueError("Failed to receive file length")
+    @property
+    def alive(self):
+        return self._error is None
 
-    file_length = struct.unpack('>I', file_length_bytes)[0]
-    print(f"Expecting file data of length: {file_length} bytes")
+    def open_stream(self):
+        with self._lock:
+            if self._error:
+                raise ValueError(self._error)
+            stream = MuxStream(self, self._next_id)
+            self._next_id += 2
+            self._streams[stream.id] = stream
+        return stream
+
+    def write_segment(self, stream_id, flags, data=b''):
+        segment = MUX_SEGMENT_HEADER.pack(stream_id, flags, len(data)) + data
+        with self._write_lock:
+            try:
+                self.sock.sendall(segment)
+            except OSError as e:
+                # Dead from now on, without waiting for the reader to notice
+                with self._lock:
+                    if self._error is None:
+                        self._error = f"Connection lost: {e}"
+                raise
+
+    def _read_loop(self):
+        try:
+            while True:
+                stream_id, flags, length = MUX_SEGMENT_HEADER.unpack(recv_exact(self.sock, MUX_SEGMENT_HEADER.size))
+                data = recv_exact(self.sock, length) if length else b''
+                if stream_id % 2 == 0:
+                    if not flags & MUX_RESET:
+                        self.write_segment(stream_id, MUX_RESET)
+                    continue
+                with self._lock:
+                    stream = self._streams.get(stream_id)
+                if stream is None:
+                    continue
+                if flags & MUX_RESET:
+                    stream.fail("Stream reset by the server")
+                elif flags & MUX_WINDOW and length == 4:
+                    stream.grant(struct.unpack('>I', data)[0])
+        except (OSError, ValueError):
+            pass
+        finally:
+            with self._lock:
+                self._error = "Connection closed by peer"
+                streams = list(self._streams.values())
+            for stream in streams:
+                stream.fail(self._error)
+
+    def close(self):
+        """Close once the server has read everything we sent (closing with its credit still
+        unread would reset the connection)"""
+        try:
+            self.sock.shutdown(socket.SHUT_WR)
+            self._reader.join(timeout=30)
+        except OSError:
+            pass
+        self.sock.close()
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, *exc):
+        self.close()
+
+
+class MuxStream:
+    """A stream of a Mux, usable in place of a socket by send_frame and send_file_frame"""
+
+    def __init__(self, mux, stream_id):
+        self.mux = mux
+        self.id = stream_id
+        self._credit = mux.window
+        self._error = None
+        self._changed = threading.Condition()
+
+    def sendall(self, data):
+        view = memoryview(data)
+        for offset in range(0, len(view), self.mux.segment_size):
+            chunk = view[offset:offset + self.mux.segment_size]
+            with self._changed:
+                while self._credit < len(chunk) and self._error is None:
+                    self._changed.wait()
+                if self._error:
+                    raise ValueError(self._error)
+                self._credit -= len(chunk)
+            self.mux.write_segment(self.id, 0, bytes(chunk))
+
+    def sendfile(self, f, offset, count):
+        """Like socket.sendfile, but through memory since the payload is cut into segments"""
+        f.seek(offset)
+        data = f.read(count)
+        self.sendall(data)
+        return len(data)
+
+    def grant(self, credit):
+        with self._changed:
+            self._credit += credit
+            self._changed.notify_all()
+
+    def fail(self, reason):
+        with self._changed:
+            if self._error is None:
+                self._error = reason
+            self._changed.notify_all()
+
+    def close(self):
+        """End the stream after what was sent"""
+        self._finish(MUX_FIN)
+
+    def abort(self):
+        """Drop the stream; the server discards the frame it was carrying"""
+        try:
+            self._finish(MUX_RESET)
+        except OSError:
+            pass
+
+    def _finish(self, flags):
+        with self.mux._lock:
+            open_stream = self.mux._streams.pop(self.id, None)
+        if open_stream is not None:
+            self.mux.write_segment(self.id, flags)
+
+
+class DevicePaths:
+    """The addresses a device is reachable at, best first.
+
+    Starts from the addresses given on the command line (comma-separated). The first connection
+    asks the server for all of its addresses in its handshake and ranks them by kind of link. Only
+    addresses on a better kind of link than the one connected to are probed, with a ping each, all
+    at once, so the usual case costs no connection besides the one in use. An address whose
+    connection failed goes last, so the next connection fails over to another path.
+
+    Only send_paths and receive_file reconnect mid-session; the other commands take the best path
+    when they connect and fail if it drops.
+    """
+
+    def __init__(self, target, port):
+        self.port = port
+        self.given = [normalize_address(address) for address in target.split(',') if address.strip()]
+        self.ranked = list(self.given)
+        self.kinds = {}
+        self.learned = False
+        self.lock = threading.Lock()
+
+    def candidates(self):
+        with self.lock:
+            return list(self.ranked)
 
-    # Receive file data based on expected length
-    file_bytes = b''
-    while len(file_bytes) < file_length:
-        chunk = conn.recv(min(4096, file_length - len(file_bytes)))
-        if not chunk:
+    def kind(self, address):
+        return self.kinds.get(address, 'other')
+
+    def failed(self, address):
+        with self.lock:
+            if address in self.ranked and len(self.ranked) > 1:
+                self.ranked.remove(address)
+                self.ranked.append(address)
+
+    def learn(self, connected, rtt_ms, advertised):
+        """Rank the device's addresses from the first handshake that listed them, connected being
+        the address that handshake went to"""
+        with self.lock:
+            if self.learned or not advertised:
+                return
+            self.learned = True
+            for path in advertised:
+                self.kinds[normalize_address(path["address"])] = path.get("kind", 'other')
+        rank = {kind: i for i, kind in enumerate(PATH_KINDS)}
+
+        def rank_of(address):
+            return rank.get(self.kind(address), len(PATH_KINDS))
+
+        rtts = {connected: rtt_ms}
+        better = [address for address in self.kinds if rank_of(address) < rank_of(connected)]
+
+        def probe(address):
+            try:
+                rtts[address] = probe_path(address, self.port, PATH_PROBE_TIMEOUT)
+            except (OSError, ValueError):
+                pass
+
+        threads = [threading.Thread(target=probe, args=(address,), daemon=True) for address in better]
+        for thread in threads:
+            thread.start()
+        for thread in threads:
+            thread.join()
+        reachable = sorted(rtts, key=lambda address: (rank_of(address), rtts[address]))
+        # Not probed: worse than the connected one, tried in order of kind if that one fails
+        untried = sorted((address for address in self.kinds if address not in rtts and address not in better),
+                         key=rank_of)
+        unreachable = [address for address in better if address not in rtts]
+        with self.lock:
+            self.ranked = reachable + untried + unreachable
+            self.ranked += [address for address in self.given if address not in self.ranked]
+        if len(self.kinds) > 1:
+            print("Paths: " + ", ".join(
+                f"{address} ({self.kind(address)}, "
+                f"{f'{rtts[address]:.1f} ms' if address in rtts else 'not probed' if address in untried else 'unreachable'})"
+                for address in reachable + untried + unreachable), file=sys.stderr)
+
+
+class Progress:
+    """One progress line on stderr with percent, rate and ETA, redrawn at most every PROGRESS_INTERVAL.
+
+    Only drawn on a terminal, so redirected output stays clean. Safe to share between threads.
+    """
+
+    def __init__(self, label, total):
+        self.label = label
+        self.total = total
+        self.done = 0
+        self.start = time.perf_counter()
+        self.last_draw = 0.0
+        self.enabled = sys.stderr.isatty()
+        self.lock = threading.Lock()
+
+    def extend(self, n):
+        """Count n more bytes to do, e.g. for a file sent again"""
+        with self.lock:
+            self.total += n
+
+    def update(self, n):
+        with self.lock:
+            self.done += n
+            now = time.perf_counter()
+            if self.enabled and now - self.last_draw >= PROGRESS_INTERVAL:
+                self.last_draw = now
+                self._draw(now)
+
+    def note(self, text):
+        """Print a line without tearing the progress line"""
+        with self.lock:
+            if self.enabled and self.last_draw:
+                sys.stderr.write('\r\033[K')
+                sys.stderr.flush()
+            print(text, flush=True)
+            if self.enabled and self.last_draw:
+                self._draw(time.perf_counter())
+
+    def close(self):
+        with self.lock:
+            if self.enabled and self.last_draw:
+                self._draw(time.perf_counter())
+                sys.stderr.write('\n')
+                sys.stderr.flush()
+
+    def _draw(self, now):
+        elapsed = max(now - self.start, 1e-9)
+        rate = self.done / elapsed
+        percent = self.done * 100 // self.total if self.total else 100
+        eta = f"{int((self.total - self.done) / rate) // 60}:{int((self.total - self.done) / rate) % 60:02d}" \
+            if rate > 0 and self.total >= self.done else "?"
+        sys.stderr.write(f"\r{self.label}: {percent}% {self.done}/{self.total} bytes, "
+                         f"{rate / (1024 * 1024):.1f} MB/s, ETA {eta}   ")
+        sys.stderr.flush()
+
+
+def recv_exact(conn, length):
+    """Receive exactly length bytes into one buffer, or raise if the peer closes first"""
+    data = bytearray(length)
+    view = memoryview(data)
+    received = 0
+    while received < length:
+        n = conn.recv_into(view[received:])
+        if not n:
+            raise ValueError("Connection closed by peer")
+        received += n
+    return data
+
+
+def recv_to_file(conn, length, out, buffer, progress=None):
+    """Stream length payload bytes into out (None discards them) through a reusable buffer.
+
+    Returns the sha256 of the data, hashed as it arrives.
+    """
+    hasher = hashlib.sha256()
+    view = memoryview(buffer)
+    remaining = length
+    while remaining:
+        n = conn.recv_into(view, min(len(view), remaining))
+        if not n:
             raise ValueError("Connection closed while receiving file data")
-        file_bytes += chunk
+        block = view[:n]
+        hasher.update(block)
+        if out is not None:
+            out.write(block)
+        remaining -= n
+        if progress:
+            progress.update(n)
+    return hasher.hexdigest()
+
+
+def encode_varint(value):
+    out = bytearray()
+    while value > 0x7F:
+        out.append((value & 0x7F) | 0x80)
+        value >>= 7
+    out.append(value)
+    return bytes(out)
+
+
+def decode_varint(data, pos, end):
+    """Returns (value, position after the varint)"""
+    value = shift = 0
+    while True:
+        if pos >= end:
+            raise ValueError("Truncated varint in binary header")
+        b = data[pos]
+        pos += 1
+        value |= (b & 0x7F) << shift
+        if not b & 0x80:
+            return value, pos
+        shift += 7
+
+
+def encode_tlv_fields(meta, tags):
+    """Fields for the keys in tags that round-trip exactly; everything else goes in "extra" """
+    out = bytearray()
+    extra = {}
+    for key, value in meta.items():
+        tag = tags.get(key)
+        if tag == TLV_TAGS["sha256"] and isinstance(value, str) and SHA256_HEX.fullmatch(value):
+            encoded = bytes.fromhex(value)
+        elif tag == TLV_TAGS["uuid"] and isinstance(value, str) and UUID_TEXT.fullmatch(value):
+            encoded = uuid.UUID(value).bytes
+        elif tag == TLV_TAGS["size"] and isinstance(value, int) and value >= 0:
+            encoded = encode_varint(value)
+        elif tag in (TLV_TAGS["type"], TLV_TAGS["blob_name"], TLV_TAGS["datetime"], TLV_TAGS["file_name"]) \
+                and isinstance(value, str):
+            encoded = value.encode('utf-8')
+        else:
+            extra[key] = value
+            continue
+        out += bytes([tag]) + encode_varint(len(encoded)) + encoded
+    if extra:
+        encoded = json.dumps(extra, separators=(',', ':')).encode('utf-8')
+        out += bytes([TLV_TAG_EXTRA]) + encode_varint(len(encoded)) + encoded
+    return out
 
-    print(f"Received file data: {len(file_bytes)} bytes")
-    return json_payload, file_bytes
 
+def encode_meta_tlv(json_payload):
+    """Binary header for a blob frame, or a batch frame with its entries nested"""
+    header = bytearray([TLV_MAGIC, TLV_VERSION])
+    if json_payload.get("type") == "batch":
+        header += encode_tlv_fields({"type": "batch"}, TLV_TAGS)
+        entry_tags = {key: tag for key, tag in TLV_TAGS.items() if key != "type"}
+        for entry in json_payload["entries"]:
+            fields = encode_tlv_fields(entry, entry_tags)
+            header += bytes([TLV_TAG_ENTRY]) + encode_varint(len(fields)) + fields
+    else:
+        header += encode_tlv_fields(json_payload, {key: tag for key, tag in TLV_TAGS.items()
+                                                   if key not in ("type", "size")})
+    return bytes(header)
+
+
+def decode_tlv_fields(data, pos, end):
+    names = {tag: key for key, tag in TLV_TAGS.items()}
+    meta = {}
+    entries = []
+    while pos < end:
+        tag = data[pos]
+        length, pos = decode_varint(data, pos + 1, end)
+        value = data[pos:pos + length]
+        if len(value) != length:
+            raise ValueError(f"Binary header field {tag} overruns the header")
+        pos += length
+        key = names.get(tag)
+        if key == "sha256":
+            meta[key] = value.hex()
+        elif key == "uuid":
+            meta[key] = str(uuid.UUID(bytes=bytes(value)))
+        elif key == "size":
+            meta[key] = decode_varint(value, 0, len(value))[0]
+        elif key is not None:
+            meta[key] = bytes(value).decode('utf-8')
+        elif tag == TLV_TAG_ENTRY:
+            entries.append(decode_tlv_fields(data, pos - length, pos))
+        elif tag == TLV_TAG_EXTRA:
+            meta.update(json.loads(bytes(value).decode('utf-8')))
+        # Unknown tags are skipped
+    if entries:
+        meta["entries"] = entries
+    return meta
+
+
+def decode_header(header_bytes):
+    """Frame header as a dict, whether it came as JSON or binary metadata"""
+    if header_bytes[:1] == bytes([TLV_MAGIC]):
+        if header_bytes[1:2] != bytes([TLV_VERSION]):
+            raise ValueError("Unsupported binary header version")
+        return decode_tlv_fields(header_bytes, 2, len(header_bytes))
+    return json.loads(header_bytes.decode('utf-8'))
+
+
+def encode_header(json_payload, meta_format=None):
+    """Compact JSON, or binary metadata for blob and batch frames when meta_format is the one the
+    server agreed to"""
+    if meta_format == META_FORMAT_TLV and json_payload.get("type", "batch") == "batch":
+        return encode_meta_tlv(json_payload)
+    return json.dumps(json_payload, separators=(',', ':')).encode('utf-8')
+
+
+def send_frame(s, json_payload, file_bytes, chunk_size=DEFAULT_CHUNK_SIZE, progress=None, meta_format=None):
+    """Send one frame: header length, header, file length, file (lengths are 4-byte big-endian)"""
+    json_bytes = encode_header(json_payload, meta_format)
+    # Header in a single send since the server disables Nagle
+    s.sendall(struct.pack('>I', len(json_bytes)) + json_bytes + struct.pack('>I', len(file_bytes)))
+    view = memoryview(file_bytes)
+    for offset in range(0, len(view), chunk_size):
+        chunk = view[offset:offset + chunk_size]
+        s.sendall(chunk)
+        if progress:
+            progress.update(len(chunk))
+    return len(json_bytes)
+
+
+def send_file_frame(s, json_payload, path, progress=None, meta_format=None):
+    """Send one frame whose payload streams from a file with sendfile (no copy through Python)"""
+    json_bytes = encode_header(json_payload, meta_format)
+    with open(path, 'rb') as f:
+        size = os.fstat(f.fileno()).st_size
+        s.sendall(struct.pack('>I', len(json_bytes)) + json_bytes + struct.pack('>I', size))
+        offset = 0
+        while offset < size:
+            sent = s.sendfile(f, offset, min(STREAM_BLOCK_SIZE, size - offset))
+            if not sent:
+                raise ValueError("Connection closed while sending file data")
+            offset += sent
+            if progress:
+                progress.update(sent)
+    return len(json_bytes), size
+
+
+def read_frame(conn):
+    """Read one frame; returns (json_payload, payload_bytes)"""
+    json_length = struct.unpack('>I', recv_exact(conn, 4))[0]
+    json_payload = decode_header(recv_exact(conn, json_length))
+    file_length = struct.unpack('>I', recv_exact(conn, 4))[0]
+    return json_payload, recv_exact(conn, file_length)
+
+
+def request(s, payload):
+    """Send a request frame and return (reply_json, reply_payload) of the matching reply"""
+    request_id = next(_request_ids)
+    send_frame(s, dict(payload, request_id=request_id), b'')
+    while True:
+        reply, reply_payload = read_frame(s)
+        if reply.get("request_id") != request_id:
+            continue  # not ours, e.g. a late pong
+        if reply.get("type") == "error":
+            raise RuntimeError(reply.get("error", "request failed"))
+        return reply, reply_payload
+
+
+def read_control_frame(conn):
+    """Read a frame expected to carry only JSON (control replies)"""
+    json_length = struct.unpack('>I', recv_exact(conn, 4))[0]
+    json_payload = json.loads(recv_exact(conn, json_length).decode('utf-8'))
+    file_length = struct.unpack('>I', recv_exact(conn, 4))[0]
+    if file_length:
+        recv_exact(conn, file_length)
+    return json_payload
+
+
+def handshake(s, accept_pushes=False, mux=False, want_paths=False):
+    """Measure the RTT with ping/pong frames; returns (rtt_ms, tuning, meta_format, mux_params,
+    paths) as chosen by the server, meta_format being None for JSON metadata (servers predating
+    binary metadata), mux_params None unless the connection switched to multiplexed streams and
+    paths the device's addresses if asked for and the server knows them.
+
+    Only receiving clients set accept_pushes; the server never pushes blobs to the others.
+    """
+    rtt_ms = None
+    tuning = {}
+    meta_format = None
+    mux_params = None
+    paths = []
+    # One extra ping so the server receives the last measured RTT as well
+    for seq in range(HANDSHAKE_PINGS + 1):
+        ping = {"type": "ping", "seq": seq, "accept_pushes": accept_pushes, "meta_formats": [META_FORMAT_TLV]}
+        if rtt_ms is not None:
+            ping["rtt_ms"] = rtt_ms
+        if want_paths and seq == 0:
+            ping["paths"] = True
+        if mux and seq == HANDSHAKE_PINGS:
+            # Last, since both sides switch right after the pong
+            ping["mux"] = MUX_VERSION
+        start = time.perf_counter()
+        send_frame(s, ping, b'')
+        pong = read_control_frame(s)
+        if pong.get("type") != "pong":
+            raise ValueError(f"Unexpected handshake reply: {pong.get('type')}")
+        sample = (time.perf_counter() - start) * 1000.0
+        rtt_ms = sample if rtt_ms is None else min(rtt_ms, sample)
+        tuning = pong.get("tuning", {})
+        meta_format = pong.get("meta_format")
+        mux_params = pong.get("mux")
+        paths = pong.get("paths", paths)
+    return rtt_ms, tuning, meta_format, mux_params, paths
+
+
+def probe_path(address, port, timeout):
+    """Time two ping/pong round trips over a short-lived connection; returns the RTT in ms"""
+    with open_connection(address, port, timeout) as s:
+        s.settimeout(timeout)
+        rtt_ms = None
+        for seq in range(2):
+            start = time.perf_counter()
+            send_frame(s, {"type": "ping", "seq": seq, "accept_pushes": False}, b'')
+            read_control_frame(s)
+            sample = (time.perf_counter() - start) * 1000.0
+            rtt_ms = sample if rtt_ms is None else min(rtt_ms, sample)
+        return rtt_ms
+
+
+def normalize_address(address):
+    """One spelling per IP address, so addresses from the server and from sockets compare equal"""
+    address = address.strip().strip('[]')
+    try:
+        return str(ipaddress.ip_address(address))
+    except ValueError:
+        return address  # a host name
+
+
+def device_paths(target, port):
+    with _device_paths_lock:
+        paths = _device_paths.get((target, port))
+        if paths is None:
+            paths = _device_paths[(target, port)] = DevicePaths(target, port)
+        return paths
 
-def verify_sha256(file_bytes, expected_sha256):
-    """Verify SHA256 hash of received file"""
-    actual_sha256 = compute_sha256(file_bytes)
-    return actual_sha256 == expected_sha256
+
+def peer_address(s):
+    """The device address a connection (or Mux) goes to"""
+    sock = s.sock if isinstance(s, Mux) else s
+    return normalize_address(sock.getpeername()[0])
+
+
+def open_connection(address, port, timeout):
+    """Connect over IPv4 or IPv6, whichever the address is, with the socket options that must be
+    set before connect()"""
+    family, _, _, _, sockaddr = socket.getaddrinfo(address, port, 0, socket.SOCK_STREAM)[0]
+    s = socket.socket(family, socket.SOCK_STREAM)
+    try:
+        s.setsockopt(socket.SOL_SOCKET, socket.SO_RCVBUF, INITIAL_SOCKET_BUFFER)
+        s.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        s.settimeout(timeout)
+        s.connect(sockaddr)
+        s.settimeout(None)
+    except BaseException:
+        s.close()
+        raise
+    return s
+
+
+def watch_path(s):
+    """Make a link that stops answering fail within DEAD_PATH_TIMEOUT instead of hanging, so the
+    connection can fail over (where the platform has the options)"""
+    s.setsockopt(socket.SOL_SOCKET, socket.SO_KEEPALIVE, 1)
+    for option, value in (('TCP_KEEPIDLE', DEAD_PATH_TIMEOUT // 3), ('TCP_KEEPINTVL', DEAD_PATH_TIMEOUT // 6),
+                          ('TCP_KEEPCNT', 3), ('TCP_USER_TIMEOUT', DEAD_PATH_TIMEOUT * 1000)):
+        if hasattr(socket, option):
+            s.setsockopt(socket.IPPROTO_TCP, getattr(socket, option), value)
+
+
+def apply_tuning(s, tuning):
+    """Size our socket buffers like the server did and return the chunk size to use"""
+    for option, key in ((socket.SO_SNDBUF, 'sndbuf'), (socket.SO_RCVBUF, 'rcvbuf')):
+        wanted = tuning.get(key, 0)
+        if wanted > s.getsockopt(socket.SOL_SOCKET, option):
+            s.setsockopt(socket.SOL_SOCKET, option, wanted)
+    return tuning.get('chunk_size', DEFAULT_CHUNK_SIZE)
+
+
+def connect_tuned(target_ip, target_port, accept_pushes=False, mux=False):
+    """Connect over the best path to the device (see DevicePaths), run the handshake and apply the
+    tuning; returns (socket, chunk_size, meta_format).
+
+    Addresses that cannot be reached are skipped; if none can, the last error is raised. With mux
+    the socket is a Mux if the server agreed to multiplex, to open streams on.
+    """
+    paths = device_paths(target_ip, target_port)
+    error = None
+    for address in paths.candidates():
+        try:
+            s = open_connection(address, target_port, CONNECT_TIMEOUT)
+        except OSError as e:
+            paths.failed(address)
+            error = e
+            continue
+        try:
+            watch_path(s)
+            rtt_ms, tuning, meta_format, mux_params, advertised = handshake(
+                s, accept_pushes, mux, want_paths=not paths.learned)
+            chunk_size = apply_tuning(s, tuning)
+        except BaseException:
+            s.close()
+            raise
+        paths.learn(address, rtt_ms, advertised)
+        print(f"Transport: path={address} ({paths.kind(address)}), rtt={rtt_ms:.1f} ms, "
+              f"sndbuf={s.getsockopt(socket.SOL_SOCKET, socket.SO_SNDBUF) // 1024} KB, "
+              f"rcvbuf={s.getsockopt(socket.SOL_SOCKET, socket.SO_RCVBUF) // 1024} KB, "
+              f"chunk={chunk_size // 1024} KB, metadata={meta_format or 'json'}, "
+              f"streams={'on' if mux_params else 'off'}, server tuning: {tuning}",
+              file=sys.stderr)
+        if mux_params:
+            return Mux(s, mux_params), chunk_size, meta_format
+        return s, chunk_size, meta_format
+    raise error if error else ValueError(f"No address to connect to in '{target_ip}'")
+
+
+def receive_header(conn):
+    """Receive the header of a pushed frame; returns (json_payload, file_length).
+
+    The payload is left on the socket for recv_to_file.
+    """
+    json_length = struct.unpack('>I', recv_exact(conn, 4))[0]
+    print(f"Expecting metadata of length: {json_length} bytes")
+    json_payload = decode_header(recv_exact(conn, json_length))
+    print("Received metadata:")
+    print(json.dumps(json_payload, indent=4))
+
+    file_length = struct.unpack('>I', recv_exact(conn, 4))[0]
+    print(f"Expecting file data of length: {file_length} bytes")
+    return json_payload, file_length
 
 
 def compute_sha256(file_bytes):
@@ -93,17 +764,11 @@ def compute_sha256(file_bytes):
     return sha256_hash
 
 
-def send_file(file_path, ip_address):
+def make_blob_metadata(file_path, sha256):
     uuid_str = str(uuid.uuid4())
     blob_name = f"{os.path.basename(file_path)}_{uuid_str}_{int(datetime.now().timestamp())}"
     current_datetime = datetime.now().strftime("%Y-%m-%d--%H:%M:%S.%f")
-
-    with open(file_path, 'rb') as file:
-        file_bytes = file.read()
-
-    sha256 = compute_sha256(file_bytes)
-
-    json_payload = {
+    return {
         "blob_name": blob_name,
         "datetime": current_datetime,
         "file_name": os.path.basename(file_path),
@@ -111,88 +776,754 @@ def send_file(file_path, ip_address):
         "uuid": uuid_str
     }
 
-    print("JSON payload:")
-    print(json.dumps(json_payload, indent=4))
 
-    # Send both JSON and file in single connection
-    send_data(ip_address, 12345, json_payload, file_bytes)
+def load_hash_cache():
+    try:
+        with open(HASH_CACHE_PATH, 'r') as f:
+            return json.load(f)
+    except (OSError, ValueError):
+        return {}
+
+
+def save_hash_cache(cache):
+    try:
+        os.makedirs(os.path.dirname(HASH_CACHE_PATH), exist_ok=True)
+        tmp_path = HASH_CACHE_PATH + '.tmp'
+        with open(tmp_path, 'w') as f:
+            json.dump(cache, f)
+        os.replace(tmp_path, HASH_CACHE_PATH)
+    except OSError as e:
+        print(f"Warning: could not save the hash cache: {e}", file=sys.stderr)
+
+
+def file_sha256(path, cache):
+    """sha256 of a file, from the cache if its size and mtime did not change"""
+    st = os.stat(path)
+    key = os.path.abspath(path)
+    cached = cache.get(key)
+    if cached and cached[0] == st.st_size and cached[1] == st.st_mtime_ns:
+        return cached[2]
+    hasher = hashlib.sha256()
+    with open(path, 'rb') as f:
+        for chunk in iter(lambda: f.read(1024 * 1024), b''):
+            hasher.update(chunk)
+    cache[key] = [st.st_size, st.st_mtime_ns, hasher.hexdigest()]
+    return cache[key][2]
+
+
+def local_manifest(file_paths):
+    """Returns {sha256: (size, path)} for the given files"""
+    cache = load_hash_cache()
+    manifest = {}
+    for path in file_paths:
+        manifest.setdefault(file_sha256(path, cache), (os.path.getsize(path), path))
+    save_hash_cache(cache)
+    return manifest
+
+
+def pack_manifest(manifest):
+    """Encode {sha256: (size, ...)} as sorted fixed-size entries"""
+    return b''.join(bytes.fromhex(sha) + struct.pack('>Q', manifest[sha][0]) for sha in sorted(manifest))
+
+
+def fetch_manifest(s):
+    """Returns {sha256: size} for every blob on the device"""
+    reply, payload = request(s, {"type": "manifest"})
+    entry_size = reply.get("entry_size", MANIFEST_ENTRY_SIZE)
+    return {payload[i:i + 32].hex(): struct.unpack('>Q', payload[i + 32:i + 40])[0]
+            for i in range(0, len(payload) - entry_size + 1, entry_size)}
+
+
+def missing_on_device(file_paths, remote):
+    """Split file_paths into (to_send, already_present) using the device manifest"""
+    to_send, present = [], []
+    for sha, (size, path) in local_manifest(file_paths).items():
+        (present if remote.get(sha) == size else to_send).append(path)
+    # Duplicates of one file are one blob, keep the remaining order as given
+    order = {path: i for i, path in enumerate(file_paths)}
+    return sorted(to_send, key=order.get), present
+
+
+def expand_paths(patterns):
+    """Files named by plain paths, globs ('**' recurses) and directories (walked); returns
+    (paths, missing) with duplicates dropped"""
+    paths = []
+    missing = []
+    for pattern in patterns:
+        matches = sorted(glob.glob(pattern, recursive=True)) if re.search(r'[*?[]', pattern) else [pattern]
+        if not matches:
+            missing.append(pattern)
+        for match in matches:
+            if os.path.isdir(match):
+                paths.extend(sorted(os.path.join(root, name) for root, _, names in os.walk(match) for name in names))
+            elif os.path.isfile(match):
+                paths.append(match)
+            else:
+                missing.append(match)
+    return list(dict.fromkeys(paths)), missing
+
+
+def send_paths(ip_address, patterns, port=12345, jobs=SEND_JOBS):
+    """Send files, one frame each, jobs at a time.
+
+    If the server multiplexes, the files share one connection as concurrent streams, so small
+    files are not held up by a large one; otherwise each job has a connection of its own. A
+    hashing thread prepares the metadata of the next files while earlier ones are on the wire, so
+    hashing overlaps with sending. A connection that drops mid-frame is replaced, over another
+    path to the device if there is one, and the file is sent again once unless the device's
+    manifest shows that it got the file after all; the files that failed are listed at the end.
+    """
+    paths, missing = expand_paths(patterns)
+    if missing:
+        print(f"Error: no such file: {', '.join(missing)}")
+        return
+    if not paths:
+        print("Nothing to send")
+        return
+    jobs = max(1, min(jobs, len(paths)))
+    prepared = queue.Queue(maxsize=jobs * 2)
+    failures = []
+    totals = {"files": 0, "bytes": 0}
+    lock = threading.Lock()
+    progress = Progress("Sending", sum(os.path.getsize(path) for path in paths))
+    connect_lock = threading.Lock()
+    shared = {"mux": None, "meta_format": None, "multiplexed": None}
+    muxes = []
+    routes = device_paths(ip_address, port)
+    manifest = {"remote": None, "fetched_at": 0.0}
+    manifest_lock = threading.Lock()
+
+    def connection():
+        """The shared Mux (reconnected if it failed), or a connection of the caller's own if the
+        server does not multiplex"""
+        with connect_lock:
+            mux = shared["mux"]
+            if mux is not None and mux.alive:
+                return mux, shared["meta_format"]
+            if shared["multiplexed"] is False:
+                s, _, meta_format = connect_tuned(ip_address, port)
+                return s, meta_format
+            s, _, meta_format = connect_tuned(ip_address, port, mux=True)
+            shared["multiplexed"] = isinstance(s, Mux)
+            if shared["multiplexed"]:
+                shared.update(mux=s, meta_format=meta_format)
+                muxes.append(s)
+            return s, meta_format
+
+    def on_device(meta, path, dropped_at):
+        """Whether a file whose connection dropped was stored anyway. The manifest is fetched over
+        a connection of its own (a Mux only sends) and shared by the files cut off by the same drop."""
+        with manifest_lock:
+            if manifest["remote"] is None or manifest["fetched_at"] < dropped_at:
+                s, _, _ = connect_tuned(ip_address, port)
+                try:
+                    manifest.update(remote=fetch_manifest(s), fetched_at=time.monotonic())
+                finally:
+                    s.close()
+            return manifest["remote"].get(meta["sha256"]) == os.path.getsize(path)
+
+    def prepare():
+        cache = load_hash_cache()
+        try:
+            for path in paths:
+                try:
+                    prepared.put((path, make_blob_metadata(path, file_sha256(path, cache))))
+                except OSError as e:
+                    with lock:
+                        failures.append((path, e))
+        finally:
+            save_hash_cache(cache)
+            for _ in range(jobs):
+                prepared.put(None)
+
+    def send_worker():
+        s = meta_format = address = None
+        try:
+            while True:
+                item = prepared.get()
+                if item is None:
+                    return
+                path, meta = item
+                for attempt in range(2):
+                    try:
+                        if s is None:
+                            s, meta_format = connection()
+                            address = peer_address(s)
+                        if isinstance(s, Mux):
+                            stream = s.open_stream()
+                            try:
+                                _, size = send_file_frame(stream, meta, path, progress, meta_format)
+                            except BaseException:
+                                stream.abort()
+                                raise
+                            stream.close()
+                        else:
+                            _, size = send_file_frame(s, meta, path, progress, meta_format)
+                        with lock:
+                            totals["files"] += 1
+                            totals["bytes"] += size
+                        progress.note(f"Sent {path} ({size} bytes)")
+                        break
+                    except (OSError, ValueError) as e:
+                        # A frame cut off halfway leaves a plain connection unusable, a stream is
+                        # simply dropped unless the whole connection went down
+                        dropped = s is not None and (not isinstance(s, Mux) or not s.alive)
+                        if s is not None and not isinstance(s, Mux):
+                            s.close()
+                        s = None
+                        if dropped:
+                            routes.failed(address)
+                        if not dropped or attempt:
+                            with lock:
+                                failures.append((path, e))
+                            break
+                        try:
+                            stored = on_device(meta, path, time.monotonic())
+                        except (OSError, ValueError, RuntimeError) as check_error:
+                            with lock:
+                                failures.append((path, check_error))
+                            break
+                        if stored:
+                            with lock:
+                                totals["files"] += 1
+                            progress.note(f"Connection to {address} lost, but the device has {path}")
+                            break
+                        progress.extend(os.path.getsize(path))
+                        progress.note(f"Connection to {address} lost, sending {path} again")
+        finally:
+            if s is not None and not isinstance(s, Mux):
+                s.close()
+
+    start = time.perf_counter()
+    threads = [threading.Thread(target=prepare, daemon=True)]
+    threads += [threading.Thread(target=send_worker, daemon=True) for _ in range(jobs)]
+    try:
+        for thread in threads:
+            thread.start()
+        for thread in threads:
+            thread.join()
+    finally:
+        for mux in muxes:
+            mux.close()
+        progress.close()
+
+    elapsed = max(time.perf_counter() - start, 1e-9)
+    over = f"{jobs} stream(s) on one connection" if shared["multiplexed"] else f"{jobs} connection(s)"
+    print(f"Sent {totals['files']} of {len(paths)} file(s), {totals['bytes']} bytes in {elapsed:.1f} s "
+          f"over {over}, {totals['bytes'] / elapsed / (1024 * 1024):.1f} MB/s aggregate")
+    for path, error in failures:
+        print(f"Error: failed to send {path}: {error}")
+
+
+def list_tree(root):
+    """Entries of a directory sent as a tree blob: (path, full_path, is_dir, stat) for every file
+    plus directories with nothing in them, paths relative to root with '/' separators"""
+    entries = []
+    for dir_path, dir_names, file_names in os.walk(root):
+        dir_names.sort()
+        relative = os.path.relpath(dir_path, root)
+        prefix = '' if relative == '.' else relative.replace(os.sep, '/') + '/'
+        if prefix and not dir_names and not file_names:
+            entries.append((prefix[:-1], dir_path, True, os.stat(dir_path)))
+        for name in sorted(file_names):
+            full_path = os.path.join(dir_path, name)
+            if os.path.isfile(full_path):
+                entries.append((prefix + name, full_path, False, os.stat(full_path)))
+    return entries
+
+
+def send_tree(ip_address, directories, port=12345):
+    """Send each directory as one tree blob over a single connection.
+
+    A "tree" frame carries the blob metadata plus the entry count and total size, then every file
+    follows as a "tree_entry" frame streamed with sendfile right after the previous one (no
+    archive is built), then a "tree_end" frame. The device lists the tree as one blob once all
+    entries are in.
+    """
+    missing = [directory for directory in directories if not os.path.isdir(directory)]
+    if missing:
+        print(f"Error: not a directory: {', '.join(missing)}")
+        return
+    s, _, _ = connect_tuned(ip_address, port)
+    with s:
+        for directory in directories:
+            root = os.path.abspath(directory)
+            entries = list_tree(root)
+            too_large = [path for path, _, _, st in entries if st.st_size > MAX_FRAME_PAYLOAD]
+            if too_large:
+                print(f"Error: too large for a single frame: {', '.join(too_large)}")
+                continue
+            total = sum(st.st_size for _, _, is_dir, st in entries if not is_dir)
+            meta = make_blob_metadata(root, None)
+            del meta["sha256"]
+            meta["kind"] = "tree"
+            send_frame(s, dict(meta, type="tree", entries=len(entries), size=total), b'')
+
+            start = time.perf_counter()
+            progress = Progress(os.path.basename(root), total)
+            try:
+                for path, full_path, is_dir, st in entries:
+                    header = {"type": "tree_entry", "path": path, "mtime": st.st_mtime_ns // 1000000,
+                              "mode": st.st_mode & 0o777}
+                    if is_dir:
+                        header["dir"] = True
+                        send_frame(s, header, b'')
+                    else:
+                        send_file_frame(s, header, full_path, progress)
+                send_frame(s, {"type": "tree_end", "entries": len(entries)}, b'')
+            finally:
+                progress.close()
+            elapsed = max(time.perf_counter() - start, 1e-9)
+            print(f"Sent tree {directory}: {len(entries)} entries, {total} bytes in {elapsed:.1f} s, "
+                  f"{total / elapsed / (1024 * 1024):.1f} MB/s")
+
+
+def tree_entry_path(root, path):
+    """Where a received tree entry goes under root, or None if its path could escape root"""
+    segments = path.split('/')
+    if not path or path.startswith('/') or '\\' in path or any(seg in ('', '.', '..') for seg in segments):
+        return None
+    return os.path.join(root, *segments)
+
+
+def receive_tree(conn, begin, buffer, force_overwrite=False):
+    """Receive the entries of a tree the device pushes into a directory named after it.
+
+    Entries are written under <name>.part as they arrive; it is renamed into place after the end
+    frame, or removed if the tree is cut off. Returns the number of entries received.
+    """
+    name = begin.get('file_name') or begin.get('blob_name') or 'received_tree'
+    if os.path.basename(name) != name or name in ('.', '..'):
+        print(f"Warning: invalid tree name '{name}', using its blob name")
+        name = begin.get('blob_name', 'received_tree').replace('/', '_')
+    skip = os.path.exists(name) and not force_overwrite
+    if skip:
+        print(f"Error: '{name}' already exists. Use -f to force overwrite.")
+    part = name + '.part'
+    if not skip:
+        shutil.rmtree(part, ignore_errors=True)
+        os.makedirs(part)
+
+    count = 0
+    progress = Progress(name, begin.get('size', 0))
+    try:
+        while True:
+            json_length = struct.unpack('>I', recv_exact(conn, 4))[0]
+            header = decode_header(recv_exact(conn, json_length))
+            length = struct.unpack('>I', recv_exact(conn, 4))[0]
+            if header.get('type') == 'tree_end':
+                break
+            if header.get('type') != 'tree_entry':
+                raise ValueError(f"Unexpected {header.get('type')} frame inside a tree")
+            target = None if skip else tree_entry_path(part, header.get('path', ''))
+            if target is None:
+                if not skip:
+                    progress.note(f"Warning: skipping entry with invalid path {header.get('path')!r}")
+                recv_to_file(conn, length, None, buffer, progress)
+                continue
+            if header.get('dir'):
+                os.makedirs(target, exist_ok=True)
+            else:
+                os.makedirs(os.path.dirname(target), exist_ok=True)
+                with open(target, 'wb') as f:
+                    recv_to_file(conn, length, f, buffer, progress)
+                if header.get('mode'):
+                    os.chmod(target, header['mode'] & 0o777)
+            if header.get('mtime'):
+                os.utime(target, ns=(header['mtime'] * 1000000, header['mtime'] * 1000000))
+            count += 1
+    except BaseException:
+        if not skip:
+            shutil.rmtree(part, ignore_errors=True)
+        raise
+    finally:
+        progress.close()
+    if skip:
+        return 0
+
+    if force_overwrite and os.path.exists(name):
+        print(f"Overwriting existing '{name}'")
+        if os.path.isdir(name):
+            shutil.rmtree(name)
+        else:
+            os.remove(name)
+    os.replace(part, name)
+    print(f"✓ Folder '{name}' received successfully ({count} entries, {progress.done} bytes)")
+    return count
+
+
+def plan_batches(file_paths):
+    """Group small files into batches; returns (batches, large_files)"""
+    batches = []
+    large_files = []
+    current = []
+    current_bytes = 0
+    for path in file_paths:
+        size = os.path.getsize(path)
+        if size > BATCH_SMALL_FILE_LIMIT:
+            large_files.append(path)
+            continue
+        if current and (current_bytes + size > BATCH_MAX_BYTES or len(current) >= BATCH_MAX_FILES):
+            batches.append(current)
+            current = []
+            current_bytes = 0
+        current.append(path)
+        current_bytes += size
+    if current:
+        batches.append(current)
+    return batches, large_files
+
+
+def send_batch(file_paths, ip_address, port=12345, skip_existing=True):
+    """Send many files over one connection, packing small ones into batch frames.
+
+    A batch frame's JSON is {"type": "batch", "entries": [...]} where each entry is the usual blob
+    metadata plus "size"; the payload is the entries' file contents concatenated in order. Files
+    whose content the device already has are skipped unless skip_existing is False.
+    """
+    missing = [path for path in file_paths if not os.path.isfile(path)]
+    if missing:
+        print(f"Error: not a file: {', '.join(missing)}")
+        return
+
+    s, chunk_size, meta_format = connect_tuned(ip_address, port)
+    with s:
+        if skip_existing:
+            file_paths, present = missing_on_device(file_paths, fetch_manifest(s))
+            if present:
+                print(f"Skipping {len(present)} file(s) the device already has")
+        send_files(s, chunk_size, file_paths, meta_format)
+
+
+def send_files(s, chunk_size, file_paths, meta_format=None):
+    """Send files on a connected socket, small ones in batch frames, and print the throughput"""
+    batches, large_files = plan_batches(file_paths)
+    total_bytes = 0
+    start = time.perf_counter()
+    progress = Progress("Sending", sum(os.path.getsize(path) for path in file_paths))
+    try:
+        send_planned(s, chunk_size, batches, large_files, progress, meta_format)
+        total_bytes = progress.done
+    finally:
+        progress.close()
+
+    elapsed = max(time.perf_counter() - start, 1e-9)
+    print(f"Sent {len(file_paths)} files in {len(batches)} batch(es) and {len(large_files)} single frame(s), "
+          f"{total_bytes} bytes, {len(file_paths) / elapsed:.1f} files/s, "
+          f"{total_bytes / elapsed / (1024 * 1024):.1f} MB/s")
+
+
+def send_planned(s, chunk_size, batches, large_files, progress, meta_format=None):
+    for batch in batches:
+        entries = []
+        payload = bytearray()
+        for path in batch:
+            with open(path, 'rb') as file:
+                file_bytes = file.read()
+            entry = make_blob_metadata(path, compute_sha256(file_bytes))
+            entry["size"] = len(file_bytes)
+            entries.append(entry)
+            payload += file_bytes
+        send_frame(s, {"type": "batch", "entries": entries}, payload, chunk_size, progress=progress,
+                   meta_format=meta_format)
+        progress.note(f"Sent batch of {len(entries)} files ({len(payload)} bytes)")
+
+    # Usually hashed already for the manifest exchange, then the hash comes from the cache
+    cache = load_hash_cache()
+    for path in large_files:
+        _, size = send_file_frame(s, make_blob_metadata(path, file_sha256(path, cache)), path, progress, meta_format)
+        progress.note(f"Sent {path} ({size} bytes)")
+    save_hash_cache(cache)
+
+
+def list_blobs(ip_address, port=12345, page_size=LIST_PAGE_SIZE, as_json=False):
+    """Print the metadata of every blob on the device, one page per request"""
+    s, _, _ = connect_tuned(ip_address, port)
+    count = 0
+    with s:
+        cursor = None
+        while True:
+            page = {"type": "list", "limit": page_size}
+            if cursor is not None:
+                page["cursor"] = cursor
+            reply, _ = request(s, page)
+            for blob in reply.get("blobs", []):
+                count += 1
+                if as_json:
+                    print(json.dumps(blob))
+                else:
+                    print(f"{blob.get('blob_name')}  {blob.get('size', '?')} bytes  "
+                          f"{blob.get('storage_tier', 'hot')}  {blob.get('datetime')}  {blob.get('sha256', '')}")
+            cursor = reply.get("cursor")
+            if cursor is None:
+                break
+    if not as_json:
+        print(f"{count} blob(s)")
+
+
+def fetch_blob(ip_address, target, port=12345, output=None, offset=0, length=None, force_overwrite=False):
+    """Fetch a blob, or the byte range [offset, offset + length), by blob name or sha256.
+
+    The data is written as it arrives; output '-' writes to stdout. A whole blob is verified
+    against its sha256.
+    """
+    if re.fullmatch(r'[0-9a-fA-F]{64}', target):
+        selector = {"sha256": target.lower()}
+    else:
+        selector = {"blob_name": target}
+
+    s, _, _ = connect_tuned(ip_address, port)
+    with s:
+        position = offset
+        hasher = hashlib.sha256() if offset == 0 and length is None else None
+        out = None
+        meta = None
+        start = time.perf_counter()
+        try:
+            for meta, data, blob_size in fetch_ranges(s, selector, offset, length):
+                if out is None:
+                    out = open_fetch_output(output or meta.get("file_name") or meta["blob_name"], force_overwrite)
+                    if out is None:
+                        return
+                    progress = Progress(meta["blob_name"], length if length is not None else blob_size - offset)
+                progress.update(len(data))
+                out.write(data)
+                if hasher:
+                    hasher.update(data)
+                position += len(data)
+        finally:
+            if out is not None:
+                progress.close()
+                if out is not sys.stdout.buffer:
+                    out.close()
+
+    elapsed = max(time.perf_counter() - start, 1e-9)
+    fetched = position - offset
+    print(f"Fetched {meta['blob_name']}: {fetched} bytes at offset {offset}, "
+          f"{fetched / elapsed / (1024 * 1024):.1f} MB/s", file=sys.stderr)
+    if hasher and meta.get("sha256"):
+        if hasher.hexdigest() == meta["sha256"]:
+            print("✓ SHA256 verification passed", file=sys.stderr)
+        else:
+            print("⚠ Warning: SHA256 verification failed!", file=sys.stderr)
+
+
+def fetch_ranges(s, selector, offset=0, length=None):
+    """Yield (blob_metadata, data, blob_size) for consecutive ranges of a blob until length or its end"""
+    position = offset
+    end = None if length is None else offset + length
+    while end is None or position < end:
+        range_length = FETCH_RANGE_SIZE if end is None else min(FETCH_RANGE_SIZE, end - position)
+        reply, data = request(s, dict(selector, type="fetch", offset=position, length=range_length))
+        # Later ranges by name, in case another blob gets the same hash meanwhile
+        selector = {"blob_name": reply["blob"]["blob_name"]}
+        yield reply["blob"], data, reply["total_size"]
+        position += len(data)
+        if not data or position >= reply["total_size"]:
+            break
+
+
+def open_fetch_output(path, force_overwrite):
+    if path == '-':
+        return sys.stdout.buffer
+    if os.path.exists(path) and not force_overwrite:
+        print(f"Error: File '{path}' already exists. Use -f to force overwrite.", file=sys.stderr)
+        return None
+    return open(path, 'wb')
+
+
+def sync_directory(ip_address, directory, port=12345, push=True, pull=True):
+    """Make the device and a local directory hold the same set of blob contents.
+
+    One manifest exchange decides what moves: local files the device lacks are sent, device blobs
+    missing locally are fetched into the directory. Nothing is deleted on either side.
+    """
+    if not os.path.isdir(directory):
+        print(f"Error: not a directory: {directory}")
+        return
+    local_paths = sorted(os.path.join(root, name)
+                         for root, _, names in os.walk(directory) for name in names)
+    local = local_manifest(local_paths)
+
+    s, chunk_size, meta_format = connect_tuned(ip_address, port)
+    with s:
+        remote = fetch_manifest(s)
+        to_send = [path for sha, (size, path) in sorted(local.items(), key=lambda e: e[1][1])
+                   if remote.get(sha) != size]
+        to_fetch = sorted(sha for sha in remote if sha not in local)
+        print(f"Local: {len(local)}, device: {len(remote)}, "
+              f"to send: {len(to_send) if push else 0}, to fetch: {len(to_fetch) if pull else 0}")
+
+        if push and to_send:
+            send_files(s, chunk_size, to_send, meta_format)
+
+        if pull:
+            fetched_bytes = 0
+            start = time.perf_counter()
+            for sha in to_fetch:
+                path = None
+                hasher = hashlib.sha256()
+                for meta, data, _ in fetch_ranges(s, {"sha256": sha}):
+                    if path is None:
+                        path = sync_output_path(directory, meta.get("file_name") or meta["blob_name"], sha)
+                        out = open(path + '.part', 'wb')
+                    out.write(data)
+                    hasher.update(data)
+                    fetched_bytes += len(data)
+                out.close()
+                if hasher.hexdigest() != sha:
+                    os.remove(path + '.part')
+                    print(f"⚠ Warning: SHA256 verification failed for {path}, discarded")
+                    continue
+                os.replace(path + '.part', path)
+                print(f"Fetched {path}")
+            if to_fetch:
+                elapsed = max(time.perf_counter() - start, 1e-9)
+                print(f"Fetched {len(to_fetch)} blob(s), {fetched_bytes} bytes, "
+                      f"{fetched_bytes / elapsed / (1024 * 1024):.1f} MB/s")
+
+
+def sync_output_path(directory, file_name, sha):
+    """A path for a fetched blob that does not clobber a different local file of the same name"""
+    path = os.path.join(directory, os.path.basename(file_name))
+    if os.path.exists(path) or os.path.exists(path + '.part'):
+        stem, ext = os.path.splitext(path)
+        path = f"{stem}_{sha[:12]}{ext}"
+    return path
+
+
+def trace_control(ip_address, port=12345, enable=None, clear=False, output=None):
+    """Turn device tracing on or off, clear it, or download it as Chrome trace-event JSON"""
+    s, _, _ = connect_tuned(ip_address, port)
+    with s:
+        command = {"type": "trace", "clear": clear, "export": output is not None}
+        if enable is not None:
+            command["enable"] = enable
+        reply, payload = request(s, command)
+    if output is not None:
+        with open(output, 'wb') as f:
+            f.write(payload)
+        print(f"Wrote {reply.get('exported', reply['events'])} event(s) to {output}, "
+              f"open it in https://ui.perfetto.dev or chrome://tracing")
+    print(f"Tracing is {'on' if reply['enabled'] else 'off'}, {reply['events']} event(s) buffered")
 
 
 def receive_file(ip_address, force_overwrite=False, port=12345):
-    """Connect to Android server and wait for it to send files"""
+    """Connect to Android server and wait for it to send files.
+
+    If the connection is lost, it reconnects (over another path to the device if there is one)
+    and keeps waiting.
+    """
     print(f"Connecting to {ip_address}:{port} to receive files...")
+    paths = device_paths(ip_address, port)
+    file_count = 0
+    reconnects = 0
 
     try:
-        with socket.socket(socket.AF_INET, socket.SOCK_STREAM) as s:
-            s.connect((ip_address, port))
-            print("Connected successfully to Android server")
-            print("Waiting for Android app to send files... (Press Ctrl+C to disconnect)")
+        s, chunk_size, _ = connect_tuned(ip_address, port, accept_pushes=True)
+        print("Connected successfully to Android server")
+        while True:
+            address = peer_address(s)
+            with s:
+                # Files land in the current directory; let the device skip the ones already here
+                have = local_manifest([name for name in os.listdir('.') if os.path.isfile(name)])
+                if have:
+                    send_frame(s, {"type": "have", "count": len(have)}, pack_manifest(have), chunk_size)
+                print("Waiting for Android app to send files... (Press Ctrl+C to disconnect)")
 
-            file_count = 0
-            while True:
-                try:
-                    # Wait for Android to send data (blocking call)
-                    json_payload, file_bytes = receive_data(s)
-                    file_count += 1
-
-                    # Extract file information from JSON
-                    file_name = json_payload.get('file_name')
-                    expected_sha256 = json_payload.get('sha256')
-
-                    if not file_name:
-                        print("Warning: JSON payload missing 'file_name' field, using default")
-                        file_name = f"received_file_{file_count}"
-
-                    # Check if file already exists
-                    if os.path.exists(file_name):
-                        if not force_overwrite:
-                            print(f"Error: File '{file_name}' already exists. Use -f to force overwrite.")
+                # Reused for every payload, which streams through it to disk
+                buffer = bytearray(max(chunk_size, STREAM_BLOCK_SIZE))
+                while True:
+                    try:
+                        # Wait for Android to send data (blocking call)
+                        json_payload, file_length = receive_header(s)
+                        file_count += 1
+
+                        if json_payload.get('type') == 'tree':
+                            receive_tree(s, json_payload, buffer, force_overwrite)
                             print("Waiting for next file...")
                             continue
-                        else:
-                            print(f"Overwriting existing file '{file_name}'")
 
-                    # Verify SHA256 if provided
-                    if expected_sha256:
-                        if verify_sha256(file_bytes, expected_sha256):
-                            print("✓ SHA256 verification passed")
-                        else:
-                            print("⚠ Warning: SHA256 verification failed!")
-                            actual_sha256 = compute_sha256(file_bytes)
-                            print(f"Expected: {expected_sha256}")
-                            print(f"Actual:   {actual_sha256}")
+                        # Extract file information from JSON
+                        file_name = json_payload.get('file_name')
+                        expected_sha256 = json_payload.get('sha256')
+
+                        if not file_name:
+                            print("Warning: JSON payload missing 'file_name' field, using default")
+                            file_name = f"received_file_{file_count}"
+
+                        # Check if file already exists
+                        if os.path.exists(file_name):
+                            if not force_overwrite:
+                                print(f"Error: File '{file_name}' already exists. Use -f to force overwrite.")
+                                recv_to_file(s, file_length, None, buffer)
+                                print("Waiting for next file...")
+                                continue
+                            else:
+                                print(f"Overwriting existing file '{file_name}'")
 
-                    # Write file to disk
-                    with open(file_name, 'wb') as f:
-                        f.write(file_bytes)
+                        # Written next to the target and renamed once complete, hashed on the way
+                        part_name = file_name + '.part'
+                        progress = Progress(file_name, file_length)
+                        try:
+                            with open(part_name, 'wb') as f:
+                                actual_sha256 = recv_to_file(s, file_length, f, buffer, progress)
+                        except BaseException:
+                            os.remove(part_name)
+                            raise
+                        finally:
+                            progress.close()
+                        os.replace(part_name, file_name)
 
-                    print(f"✓ File '{file_name}' received successfully ({len(file_bytes)} bytes)")
-                    print("Waiting for next file...")
+                        # Verify SHA256 if provided
+                        if expected_sha256:
+                            if actual_sha256 == expected_sha256.lower():
+                                print("✓ SHA256 verification passed")
+                            else:
+                                print("⚠ Warning: SHA256 verification failed!")
+                                print(f"Expected: {expected_sha256}")
+                                print(f"Actual:   {actual_sha256}")
+
+                        print(f"✓ File '{file_name}' received successfully ({file_length} bytes)")
+                        print("Waiting for next file...")
+                        reconnects = 0
+
+                    except ValueError as e:
+                        if "Connection closed by peer" in str(e):
+                            print("Android server disconnected")
+                            break
+                        else:
+                            print(f"Error receiving file: {e}")
+                            print("Waiting for next file...")
+                            continue
 
-                except ValueError as e:
-                    if "Connection closed by peer" in str(e):
-                        print("Android server disconnected")
+                    except ConnectionResetError:
+                        print("Connection reset by Android server")
                         break
-                    elif "Failed to receive JSON length" in str(e):
-                        print("Android server closed connection")
+                    except (ConnectionError, TimeoutError) as e:
+                        print(f"Connection lost: {e}")
                         break
-                    else:
+                    except Exception as e:
                         print(f"Error receiving file: {e}")
                         print("Waiting for next file...")
                         continue
 
-                except ConnectionResetError:
-                    print("Connection reset by Android server")
-                    break
-                except Exception as e:
-                    print(f"Error receiving file: {e}")
-                    print("Waiting for next file...")
-                    continue
+            # The server went away or the path to it dropped; the next path is tried first
+            if reconnects >= RECEIVE_RECONNECTS:
+                break
+            reconnects += 1
+            paths.failed(address)
+            try:
+                s, chunk_size, _ = connect_tuned(ip_address, port, accept_pushes=True)
+            except (OSError, ValueError) as e:
+                print(f"Could not reconnect: {e}")
+                break
+            print(f"Reconnected to Android server over {peer_address(s)}")
 
-            if file_count > 0:
-                print(f"\nSession complete. Received {file_count} file(s).")
-            else:
-                print("\nSession ended. No files received.")
+        if file_count > 0:
+            print(f"\nSession complete. Received {file_count} file(s).")
+        else:
+            print("\nSession ended. No files received.")
 
     except ConnectionRefusedError:
         print(f"Error: Could not connect to {ip_address}:{port}")
@@ -206,24 +1537,118 @@ def receive_file(ip_address, force_overwrite=False, port=12345):
 
 
 def main():
-    parser = argparse.ArgumentParser(description="File sender and receiver CLI")
+    parser = argparse.ArgumentParser(
+        description="File sender and receiver CLI",
+        epilog="Any one address of the device is enough: its other addresses (USB tethering, Ethernet, "
+               "Wi-Fi, IPv6) are probed and the fastest is used, failing over to the next if it drops.")
     subparsers = parser.add_subparsers(dest='command')
 
-    send_parser = subparsers.add_parser('send', help='Send a file to an IP address')
-    send_parser.add_argument('file', type=str, help='Path to the file to send')
-    send_parser.add_argument('ip', type=str, help='Destination IP address')
+    send_parser = subparsers.add_parser('send', help='Send files, globs or directories to an IP address')
+    send_parser.add_argument('files', type=str, nargs='+',
+                             help="Files, directories or quoted globs ('**' recurses) to send")
+    send_parser.add_argument('ip', type=str, help='Destination IP address, IPv4 or IPv6 (several may be given comma-separated)')
+    send_parser.add_argument('-j', '--jobs', type=int, default=SEND_JOBS,
+                             help=f'Concurrent connections (default: {SEND_JOBS})')
+    send_parser.add_argument('-p', '--port', type=int, default=12345,
+                             help='Port to connect to (default: 12345)')
+
+    tree_parser = subparsers.add_parser('send-tree', help='Send directories as single tree blobs, structure included')
+    tree_parser.add_argument('directories', type=str, nargs='+', help='Directories to send')
+    tree_parser.add_argument('ip', type=str, help='Destination IP address, IPv4 or IPv6 (several may be given comma-separated)')
+    tree_parser.add_argument('-p', '--port', type=int, default=12345,
+                             help='Port to connect to (default: 12345)')
+
+    batch_parser = subparsers.add_parser('send-batch', help='Send many files, packing small ones into batches')
+    batch_parser.add_argument('ip', type=str, help='Destination IP address, IPv4 or IPv6 (several may be given comma-separated)')
+    batch_parser.add_argument('files', type=str, nargs='+', help='Paths of the files to send')
+    batch_parser.add_argument('-p', '--port', type=int, default=12345,
+                              help='Port to connect to (default: 12345)')
+    batch_parser.add_argument('--all', action='store_true',
+                              help='Send every file, even if the device already has its content')
+
+    sync_parser = subparsers.add_parser('sync', help='Exchange only the missing blobs with a local directory')
+    sync_parser.add_argument('ip', type=str, help='IP address of the device, IPv4 or IPv6 (several may be given comma-separated)')
+    sync_parser.add_argument('directory', type=str, help='Local directory to sync')
+    direction = sync_parser.add_mutually_exclusive_group()
+    direction.add_argument('--push-only', action='store_true', help='Only send local files the device lacks')
+    direction.add_argument('--pull-only', action='store_true', help='Only fetch device blobs missing locally')
+    sync_parser.add_argument('-p', '--port', type=int, default=12345,
+                             help='Port to connect to (default: 12345)')
+
+    list_parser = subparsers.add_parser('list', help='List the blobs stored on the device')
+    list_parser.add_argument('ip', type=str, help='IP address of the device, IPv4 or IPv6 (several may be given comma-separated)')
+    list_parser.add_argument('-p', '--port', type=int, default=12345,
+                             help='Port to connect to (default: 12345)')
+    list_parser.add_argument('--page-size', type=int, default=LIST_PAGE_SIZE,
+                             help=f'Blobs per request (default: {LIST_PAGE_SIZE})')
+    list_parser.add_argument('--json', action='store_true', help='Print full metadata, one JSON object per line')
+
+    fetch_parser = subparsers.add_parser('fetch', help='Fetch a blob or a byte range of it from the device')
+    fetch_parser.add_argument('ip', type=str, help='IP address of the device, IPv4 or IPv6 (several may be given comma-separated)')
+    fetch_parser.add_argument('blob', type=str, help='Blob name or sha256')
+    fetch_parser.add_argument('-o', '--output', type=str,
+                              help="Output path, '-' for stdout (default: the blob's file name)")
+    fetch_parser.add_argument('--offset', type=int, default=0, help='First byte to fetch (default: 0)')
+    fetch_parser.add_argument('--length', type=int, help='Number of bytes to fetch (default: to the end)')
+    fetch_parser.add_argument('-f', '--force', action='store_true',
+                              help='Force overwrite if the output file already exists')
+    fetch_parser.add_argument('-p', '--port', type=int, default=12345,
+                              help='Port to connect to (default: 12345)')
+
+    trace_parser = subparsers.add_parser('trace', help='Control transfer tracing on the device and download traces')
+    trace_parser.add_argument('ip', type=str, help='IP address of the device, IPv4 or IPv6 (several may be given comma-separated)')
+    switch = trace_parser.add_mutually_exclusive_group()
+    switch.add_argument('--on', dest='enable', action='store_const', const=True, help='Start tracing')
+    switch.add_argument('--off', dest='enable', action='store_const', const=False, help='Stop tracing')
+    trace_parser.add_argument('--clear', action='store_true', help='Drop the buffered events, after saving them if -o is given')
+    trace_parser.add_argument('-o', '--output', type=str, help='Save the buffered events as trace-event JSON')
+    trace_parser.add_argument('-p', '--port', type=int, default=12345,
+                              help='Port to connect to (default: 12345)')
 
     receive_parser = subparsers.add_parser('receive', help='Receive a file')
-    receive_parser.add_argument('ip', type=str, help='IP address to connect to for receiving file')
+    receive_parser.add_argument('ip', type=str, help='IP address to connect to for receiving file, IPv4 or IPv6 (several may be given comma-separated)')
     receive_parser.add_argument('-f', '--force', action='store_true',
                                 help='Force overwrite if file already exists')
     receive_parser.add_argument('-p', '--port', type=int, default=12345,
                                 help='Port to connect to (default: 12345)')
 
     args = parser.parse_args()
+    try:
+        run_command(parser, args)
+    except KeyboardInterrupt:
+        # Closing the socket is what aborts the transfer on the device
+        print("\nCancelled", file=sys.stderr)
+        sys.exit(130)
+    except (BrokenPipeError, ConnectionResetError):
+        # The device drops the connection when a transfer is cancelled there
+        print("\nError: connection closed by the device", file=sys.stderr)
+        sys.exit(1)
+
 
+def run_command(parser, args):
     if args.command == 'send':
-        send_file(args.file, args.ip)
+        send_paths(args.ip, args.files, args.port, args.jobs)
+    elif args.command == 'send-tree':
+        send_tree(args.ip, args.directories, args.port)
+    elif args.command == 'send-batch':
+        try:
+            send_batch(args.files, args.ip, args.port, not args.all)
+        except RuntimeError as e:
+            print(f"Error: {e}", file=sys.stderr)
+            sys.exit(1)
+    elif args.command in ('list', 'fetch', 'sync', 'trace'):
+        try:
+            if args.command == 'list':
+                list_blobs(args.ip, args.port, args.page_size, args.json)
+            elif args.command == 'trace':
+                trace_control(args.ip, args.port, args.enable, args.clear, args.output)
+            elif args.command == 'sync':
+                sync_directory(args.ip, args.directory, args.port, not args.pull_only, not args.push_only)
+            else:
+                fetch_blob(args.ip, args.blob, args.port, args.output, args.offset, args.length, args.force)
+        except RuntimeError as e:
+            print(f"Error: {e}", file=sys.stderr)
+            sys.exit(1)
     elif args.command == 'receive':
         receive_file(args.ip, args.force, args.port)
     else: